@@ -26,6 +26,8 @@ import org.forgerock.openig.decoration.timer.TimerDecorator;
 import org.forgerock.openig.filter.AssignmentFilter;
 import org.forgerock.openig.filter.ChainFilterHeaplet;
 import org.forgerock.openig.filter.ChainHandlerHeaplet;
+import org.forgerock.openig.filter.CircuitBreakerFilter;
+import org.forgerock.openig.filter.CoalescingFilter;
 import org.forgerock.openig.filter.ConditionEnforcementFilter;
 import org.forgerock.openig.filter.ConditionalFilterHeaplet;
 import org.forgerock.openig.filter.CookieFilter;
@@ -36,10 +38,13 @@ import org.forgerock.openig.filter.HeaderFilter;
 import org.forgerock.openig.filter.HttpBasicAuthFilter;
 import org.forgerock.openig.filter.LocationHeaderFilter;
 import org.forgerock.openig.filter.PasswordReplayFilterHeaplet;
+import org.forgerock.openig.filter.RetryFilter;
 import org.forgerock.openig.filter.ScriptableFilter;
 import org.forgerock.openig.filter.SqlAttributesFilter;
 import org.forgerock.openig.filter.StaticRequestFilter;
 import org.forgerock.openig.filter.SwitchFilter;
+import org.forgerock.openig.filter.cache.CacheFilter;
+import org.forgerock.openig.filter.compression.CompressionFilter;
 import org.forgerock.openig.filter.throttling.DefaultRateThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.MappedThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.ScriptableThrottlingPolicy;
@@ -47,12 +52,14 @@ import org.forgerock.openig.filter.throttling.ThrottlingFilterHeaplet;
 import org.forgerock.openig.handler.ClientHandler;
 import org.forgerock.openig.handler.DesKeyGenHandler;
 import org.forgerock.openig.handler.DispatchHandler;
+import org.forgerock.openig.handler.LoadBalancingHandler;
 import org.forgerock.openig.handler.ScriptableHandler;
 import org.forgerock.openig.handler.SequenceHandler;
 import org.forgerock.openig.handler.StaticResponseHandler;
 import org.forgerock.openig.handler.WelcomeHandler;
 import org.forgerock.openig.handler.router.AuditServiceObjectHeaplet;
 import org.forgerock.openig.handler.router.RouterHandler;
+import org.forgerock.openig.io.PooledTemporaryStorage;
 import org.forgerock.openig.io.TemporaryStorageHeaplet;
 import org.forgerock.openig.jwt.JwtSessionManager;
 import org.forgerock.openig.security.KeyManagerHeaplet;
@@ -71,10 +78,14 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("AuditService", AuditServiceObjectHeaplet.class);
         ALIASES.put("AssignmentFilter", AssignmentFilter.class);
         ALIASES.put("BaseUriDecorator", BaseUriDecorator.class);
+        ALIASES.put("CacheFilter", CacheFilter.class);
         ALIASES.put("CaptureDecorator", CaptureDecorator.class);
         ALIASES.put("Chain", ChainHandlerHeaplet.class);
         ALIASES.put("ChainOfFilters", ChainFilterHeaplet.class);
+        ALIASES.put("CircuitBreakerFilter", CircuitBreakerFilter.class);
         ALIASES.put("ClientHandler", ClientHandler.class);
+        ALIASES.put("CoalescingFilter", CoalescingFilter.class);
+        ALIASES.put("CompressionFilter", CompressionFilter.class);
         ALIASES.put("ConditionalFilter", ConditionalFilterHeaplet.class);
         ALIASES.put("ConditionEnforcementFilter", ConditionEnforcementFilter.class);
         ALIASES.put("CookieFilter", CookieFilter.class);
@@ -91,10 +102,13 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("JwtSession", JwtSessionManager.class);
         ALIASES.put("KeyManager", KeyManagerHeaplet.class);
         ALIASES.put("KeyStore", KeyStoreHeaplet.class);
+        ALIASES.put("LoadBalancingHandler", LoadBalancingHandler.class);
         ALIASES.put("LocationHeaderFilter", LocationHeaderFilter.class);
         ALIASES.put("MappedThrottlingPolicy", MappedThrottlingPolicyHeaplet.class);
         ALIASES.put("PasswordReplayFilter", PasswordReplayFilterHeaplet.class);
+        ALIASES.put("PooledTemporaryStorage", PooledTemporaryStorage.class);
         ALIASES.put("RedirectFilter", LocationHeaderFilter.class);
+        ALIASES.put("RetryFilter", RetryFilter.class);
         ALIASES.put("Router", RouterHandler.class);
         ALIASES.put("RouterHandler", RouterHandler.class);
         ALIASES.put("ScheduledExecutorService", ScheduledExecutorServiceHeaplet.class);
@@ -124,6 +124,7 @@ public class Expression<T> {
         } catch (ELException ele) {
             throw new ExpressionException(ele);
         }
+        PatternCache.INSTANCE.compileConstantArguments(expression);
     }
 
     /**
@@ -164,8 +164,7 @@ public final class Functions {
             // avoid unnecessary proxying via duck typing
             Pattern p = null;
             try {
-                // TODO: cache oft-used patterns?
-                p = Pattern.compile(pattern);
+                p = PatternCache.INSTANCE.compile(pattern);
             } catch (PatternSyntaxException pse) {
                 // invalid pattern results in no match
                 return null;
@@ -225,7 +224,7 @@ public final class Functions {
         }
         Pattern compiledPattern;
         try {
-            compiledPattern = Pattern.compile(pattern);
+            compiledPattern = PatternCache.INSTANCE.compile(pattern);
         } catch (PatternSyntaxException pse) {
             logger.warn("Ignoring incorrect pattern : {}", pattern, pse);
             return false;
@@ -247,7 +246,7 @@ public final class Functions {
      */
     public static String[] matchingGroups(String value, String pattern) {
         try {
-            Pattern p = Pattern.compile(pattern);
+            Pattern p = PatternCache.INSTANCE.compile(pattern);
             Matcher m = p.matcher(value);
             if (m.find()) {
                 int count = m.groupCount();
@@ -275,7 +274,8 @@ public final class Functions {
      * @return the resulting array of split substrings.
      */
     public static String[] split(String value, String regex) {
-        return value != null ? value.split(regex) : null;
+        // Same as String.split(), without compiling the regular expression each time
+        return value != null ? PatternCache.INSTANCE.compile(regex).split(value) : null;
     }
 
     /**
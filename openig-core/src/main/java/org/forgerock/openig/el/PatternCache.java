@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.el;
+
+import static java.util.Arrays.asList;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.odysseus.el.tree.FunctionNode;
+import de.odysseus.el.tree.Tree;
+import de.odysseus.el.tree.TreeBuilder;
+import de.odysseus.el.tree.TreeBuilderException;
+import de.odysseus.el.tree.impl.Builder;
+import de.odysseus.el.tree.impl.ast.AstFunction;
+import de.odysseus.el.tree.impl.ast.AstNode;
+import de.odysseus.el.tree.impl.ast.AstString;
+
+/**
+ * Bounded cache of compiled regular expression patterns, shared by the EL {@link Functions} that take a pattern as
+ * a string argument ({@code matches}, {@code matchingGroups}, {@code split} and {@code keyMatch}).
+ * <p>
+ * The cache is safe for concurrent use. When it is full, an arbitrary entry is evicted before a new pattern is added:
+ * patterns are cheap to recompile, the point is only to avoid compiling the same few patterns on every request.
+ * Invalid patterns are never cached.
+ */
+final class PatternCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatternCache.class);
+
+    /** Default maximum number of cached patterns. */
+    static final int DEFAULT_MAX_SIZE = 512;
+
+    /** The cache shared by the EL functions. */
+    static final PatternCache INSTANCE = new PatternCache(DEFAULT_MAX_SIZE);
+
+    /** The functions accepting a pattern as their last argument. */
+    private static final Set<String> PATTERN_FUNCTIONS =
+            new HashSet<>(asList("matches", "matchingGroups", "split", "keyMatch"));
+
+    /** Parses the expressions with the same features as the expression factory used by {@link Expression}. */
+    private static final TreeBuilder PARSER = new Builder(Builder.Feature.METHOD_INVOCATIONS, Builder.Feature.VARARGS);
+
+    private final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    @VisibleForTesting
+    PatternCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the compiled form of the given regular expression, compiling it only if it is not already cached.
+     *
+     * @param regex
+     *         the regular expression to compile
+     * @return the compiled pattern
+     * @throws PatternSyntaxException
+     *         if the regular expression's syntax is invalid
+     */
+    Pattern compile(final String regex) {
+        Pattern pattern = patterns.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            evictIfFull();
+            Pattern previous = patterns.putIfAbsent(regex, pattern);
+            if (previous != null) {
+                pattern = previous;
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Compiles ahead of time the constant patterns given to the pattern functions in an expression, so that the
+     * first evaluation of the expression does not have to compile them.
+     *
+     * @param expression
+     *         the expression's source
+     */
+    void compileConstantArguments(final String expression) {
+        Tree tree;
+        try {
+            tree = PARSER.build(expression);
+        } catch (TreeBuilderException e) {
+            // Reported when the expression is created
+            return;
+        }
+        for (FunctionNode function : tree.getFunctionNodes()) {
+            if (!(function instanceof AstFunction) || !PATTERN_FUNCTIONS.contains(function.getName())) {
+                continue;
+            }
+            AstFunction call = (AstFunction) function;
+            if (call.getParamCount() == 0) {
+                continue;
+            }
+            AstNode last = call.getParam(call.getParamCount() - 1);
+            if (last instanceof AstString) {
+                String constant = (String) last.eval(null, null);
+                try {
+                    compile(constant);
+                } catch (PatternSyntaxException e) {
+                    // Will be reported when the expression is evaluated
+                    logger.debug("Cannot pre-compile the pattern {} of expression {}", constant, expression, e);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean contains(final String regex) {
+        return patterns.containsKey(regex);
+    }
+
+    @VisibleForTesting
+    int size() {
+        return patterns.size();
+    }
+
+    private void evictIfFull() {
+        Iterator<String> iterator = patterns.keySet().iterator();
+        while (patterns.size() >= maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
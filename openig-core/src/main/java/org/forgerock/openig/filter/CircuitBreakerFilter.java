@@ -0,0 +1,419 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.ReadOnlyResourceProvider;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CircuitBreakerFilter} stops sending requests to a failing or slow downstream handler (usually a
+ * {@literal ClientHandler}), so that requests fail fast instead of piling up while waiting for a timeout.
+ * <p>
+ * The outcome of the last {@literal windowSize} calls is recorded: a call fails when there is no response, or when
+ * the response is a server error ({@literal 5xx}), and it is slow when it takes longer than
+ * {@literal slowCallDuration}. Once at least {@literal minimumNumberOfCalls} calls have been recorded, the circuit
+ * opens when the failure rate or the slow call rate (as percentages) reach their threshold.
+ * <p>
+ * While the circuit is open, requests are answered with a {@literal 503 Service Unavailable} response (with a
+ * {@literal Retry-After} header) without calling the downstream handler. After {@literal openDuration}, the circuit
+ * becomes half-open: {@literal permittedCallsInHalfOpenState} probe calls are let through, and the circuit closes
+ * again if their failure and slow call rates are below the thresholds, otherwise it opens again.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "failureRateThreshold"          : number,      [OPTIONAL - percentage, default to 50]
+ *     "slowCallRateThreshold"         : number,      [OPTIONAL - percentage, default to 100]
+ *     "slowCallDuration"              : duration,    [OPTIONAL - default to 10 seconds]
+ *     "windowSize"                    : integer,     [OPTIONAL - number of calls, default to 100]
+ *     "minimumNumberOfCalls"          : integer,     [OPTIONAL - default to 10]
+ *     "openDuration"                  : duration,    [OPTIONAL - default to 30 seconds]
+ *     "permittedCallsInHalfOpenState" : integer      [OPTIONAL - default to 5]
+ * }
+ * }
+ * </pre>
+ *
+ * For example, in front of the handler used to reach OpenAM:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "name": "OpenAmClient",
+ *     "type": "Chain",
+ *     "config": {
+ *         "filters": [ {
+ *             "type": "CircuitBreakerFilter",
+ *             "config": {
+ *                 "failureRateThreshold": 50,
+ *                 "slowCallDuration": "2 seconds",
+ *                 "openDuration": "10 seconds"
+ *             }
+ *         } ],
+ *         "handler": "ClientHandler"
+ *     }
+ * }
+ * }
+ * </pre>
+ *
+ * The state of the circuit is exposed (read-only) by the {@literal circuit} endpoint of the filter.
+ */
+public class CircuitBreakerFilter extends GenericHeapObject implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerFilter.class);
+
+    /** State of the circuit. */
+    public enum State {
+        /** Calls go through, their outcome is recorded. */
+        CLOSED,
+        /** Calls are rejected without calling the downstream handler. */
+        OPEN,
+        /** A limited number of probe calls go through to decide whether to close the circuit. */
+        HALF_OPEN
+    }
+
+    private final TimeService time;
+    private final float failureRateThreshold;
+    private final float slowCallRateThreshold;
+    private final long slowCallDuration;
+    private final int minimumNumberOfCalls;
+    private final long openDuration;
+    private final int permittedCallsInHalfOpenState;
+
+    /** Outcomes of the last calls, used as a ring buffer. */
+    private final Outcomes window;
+
+    /** Outcomes of the probe calls. */
+    private final Outcomes probes;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int permittedProbes;
+
+    /** Changes on each transition, so that the calls admitted before a transition are not recorded after it. */
+    private int generation;
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param time
+     *         the time service
+     * @param windowSize
+     *         number of calls whose outcome is recorded
+     * @param minimumNumberOfCalls
+     *         number of calls to record before rates are computed
+     * @param failureRateThreshold
+     *         failure rate (percentage) opening the circuit
+     * @param slowCallRateThreshold
+     *         slow call rate (percentage) opening the circuit
+     * @param slowCallDuration
+     *         duration above which a call is slow
+     * @param openDuration
+     *         how long the circuit stays open before probe calls are let through
+     * @param permittedCallsInHalfOpenState
+     *         number of probe calls in the half-open state
+     */
+    public CircuitBreakerFilter(final TimeService time,
+                                final int windowSize,
+                                final int minimumNumberOfCalls,
+                                final float failureRateThreshold,
+                                final float slowCallRateThreshold,
+                                final Duration slowCallDuration,
+                                final Duration openDuration,
+                                final int permittedCallsInHalfOpenState) {
+        if (windowSize <= 0 || permittedCallsInHalfOpenState <= 0) {
+            throw new IllegalArgumentException("The window size and the number of probe calls must be positive");
+        }
+        this.time = checkNotNull(time);
+        this.window = new Outcomes(windowSize);
+        this.probes = new Outcomes(permittedCallsInHalfOpenState);
+        this.minimumNumberOfCalls = Math.min(Math.max(1, minimumNumberOfCalls), windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration.to(MILLISECONDS);
+        this.openDuration = openDuration.to(MILLISECONDS);
+        this.permittedCallsInHalfOpenState = permittedCallsInHalfOpenState;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final int admitted;
+        final long start = time.now();
+        synchronized (this) {
+            if (!acquirePermission(start)) {
+                return newResponsePromise(rejected(start));
+            }
+            admitted = generation;
+        }
+        try {
+            return next.handle(context, request)
+                       .thenOnResult(new ResultHandler<Response>() {
+                           @Override
+                           public void handleResult(final Response response) {
+                               boolean failed = response.getCause() != null || response.getStatus().isServerError();
+                               record(admitted, failed, start);
+                           }
+                       })
+                       .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                           @Override
+                           public void handleRuntimeException(final RuntimeException exception) {
+                               record(admitted, true, start);
+                           }
+                       });
+        } catch (RuntimeException e) {
+            record(admitted, true, start);
+            return newResponsePromise(newInternalServerError(e));
+        }
+    }
+
+    /**
+     * Returns the current state of the circuit.
+     *
+     * @return the current state of the circuit
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && time.now() - openedAt >= openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Returns a snapshot of the circuit's state and rates.
+     *
+     * @return a snapshot of the circuit's state and rates
+     */
+    synchronized JsonValue getStatus() {
+        boolean enoughCalls = window.size() >= minimumNumberOfCalls;
+        return json(object(field("state", getState().name()),
+                           field("numberOfCalls", window.size()),
+                           field("failureRate", enoughCalls ? window.failureRate() : null),
+                           field("slowCallRate", enoughCalls ? window.slowCallRate() : null)));
+    }
+
+    private boolean acquirePermission(final long now) {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now - openedAt < openDuration) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN, now);
+            // fall through
+        case HALF_OPEN:
+        default:
+            if (permittedProbes > 0) {
+                permittedProbes--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private synchronized void record(final int admitted, final boolean failed, final long start) {
+        if (admitted != generation) {
+            // The circuit changed its state while this call was in flight
+            return;
+        }
+        long now = time.now();
+        boolean slow = now - start >= slowCallDuration;
+        if (state == State.CLOSED) {
+            window.add(failed, slow);
+            if (window.size() >= minimumNumberOfCalls && isAboveThresholds(window)) {
+                logger.warn("Circuit opened: failure rate {}%, slow call rate {}%",
+                            window.failureRate(), window.slowCallRate());
+                transitionTo(State.OPEN, now);
+            }
+        } else if (state == State.HALF_OPEN) {
+            probes.add(failed, slow);
+            if (probes.size() == permittedCallsInHalfOpenState) {
+                if (isAboveThresholds(probes)) {
+                    logger.warn("Circuit opened again: failure rate {}%, slow call rate {}%",
+                                probes.failureRate(), probes.slowCallRate());
+                    transitionTo(State.OPEN, now);
+                } else {
+                    logger.info("Circuit closed");
+                    transitionTo(State.CLOSED, now);
+                }
+            }
+        }
+    }
+
+    private boolean isAboveThresholds(final Outcomes outcomes) {
+        return outcomes.failureRate() >= failureRateThreshold || outcomes.slowCallRate() >= slowCallRateThreshold;
+    }
+
+    private void transitionTo(final State newState, final long now) {
+        state = newState;
+        generation++;
+        switch (newState) {
+        case OPEN:
+            openedAt = now;
+            break;
+        case HALF_OPEN:
+            probes.clear();
+            permittedProbes = permittedCallsInHalfOpenState;
+            break;
+        case CLOSED:
+        default:
+            window.clear();
+            break;
+        }
+    }
+
+    private Response rejected(final long now) {
+        Response response = new Response(Status.SERVICE_UNAVAILABLE);
+        long remaining = Math.max(0L, openDuration - (now - openedAt));
+        response.getHeaders().put("Retry-After", String.valueOf(MILLISECONDS.toSeconds(remaining + 999L)));
+        response.setCause(new Exception(format("Circuit is %s", state)));
+        return response;
+    }
+
+    /**
+     * Outcomes of a bounded number of calls.
+     */
+    @VisibleForTesting
+    static final class Outcomes {
+        private final boolean[] failures;
+        private final boolean[] slows;
+        private int next;
+        private int size;
+        private int failureCount;
+        private int slowCount;
+
+        Outcomes(final int capacity) {
+            failures = new boolean[capacity];
+            slows = new boolean[capacity];
+        }
+
+        void add(final boolean failed, final boolean slow) {
+            if (size == failures.length) {
+                // Evict the oldest outcome
+                failureCount -= failures[next] ? 1 : 0;
+                slowCount -= slows[next] ? 1 : 0;
+            } else {
+                size++;
+            }
+            failures[next] = failed;
+            slows[next] = slow;
+            failureCount += failed ? 1 : 0;
+            slowCount += slow ? 1 : 0;
+            next = (next + 1) % failures.length;
+        }
+
+        void clear() {
+            next = 0;
+            size = 0;
+            failureCount = 0;
+            slowCount = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        float failureRate() {
+            return size == 0 ? 0f : failureCount * 100f / size;
+        }
+
+        float slowCallRate() {
+            return size == 0 ? 0f : slowCount * 100f / size;
+        }
+    }
+
+    /** Creates and initializes a circuit breaker filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private EndpointRegistry.Registration registration;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            return new CircuitBreakerFilter(time != null ? time : TimeService.SYSTEM,
+                                            evaluated.get("windowSize").defaultTo(100).asInteger(),
+                                            evaluated.get("minimumNumberOfCalls").defaultTo(10).asInteger(),
+                                            evaluated.get("failureRateThreshold").defaultTo(50).asNumber()
+                                                     .floatValue(),
+                                            evaluated.get("slowCallRateThreshold").defaultTo(100).asNumber()
+                                                     .floatValue(),
+                                            evaluated.get("slowCallDuration").defaultTo("10 seconds")
+                                                     .as(duration()),
+                                            evaluated.get("openDuration").defaultTo("30 seconds").as(duration()),
+                                            evaluated.get("permittedCallsInHalfOpenState").defaultTo(5)
+                                                     .asInteger());
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final CircuitBreakerFilter filter = (CircuitBreakerFilter) object;
+            ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                @Override
+                public JsonValue newInstance() {
+                    return filter.getStatus();
+                }
+            });
+            registration = endpointRegistry().register("circuit", newHttpHandler(newHandler(provider)));
+            logger.info("Circuit breaker endpoint available at '{}'", registration.getPath());
+        }
+
+        @Override
+        public void destroy() {
+            if (registration != null) {
+                registration.unregister();
+            }
+            super.destroy();
+        }
+    }
+}
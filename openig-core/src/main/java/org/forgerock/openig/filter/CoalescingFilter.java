@@ -0,0 +1,334 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.http.io.IO.newBranchingInputStream;
+import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.BranchingInputStream;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CoalescingFilter} collapses identical concurrent requests into a single one (single-flight): while a
+ * request is in flight, the identical requests that arrive wait for its response instead of being sent to the next
+ * handler. Nothing is kept once the response has been received, so no stale data is ever served.
+ * <p>
+ * Only {@literal GET} and {@literal HEAD} requests without entity are coalesced. Two requests are identical when they
+ * have the same key (by default their method and URI) and the same values for the configured headers (by default the
+ * ones that usually change the response, including the credentials).
+ * <p>
+ * Each waiter (including the first request) receives its own copy of the response, whose entity is a branch of the
+ * response entity: the body is read once from the next handler and buffered (in the temporary storage) only as long
+ * as the slowest waiter has not read it.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "key"      : expression,   [OPTIONAL - default to ${request.method} ${request.uri}]
+ *     "headers"  : [ string ]    [OPTIONAL - request headers added to the key, default to Authorization,
+ *                                            Cookie, Accept, Accept-Encoding and Accept-Language]
+ * }
+ * }
+ * </pre>
+ */
+public class CoalescingFilter extends GenericHeapObject implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingFilter.class);
+
+    /** Default request headers added to the key. */
+    static final List<String> DEFAULT_HEADERS =
+            asList("Authorization", "Cookie", "Accept", "Accept-Encoding", "Accept-Language");
+
+    private final Expression<String> key;
+    private final List<String> headers;
+
+    /** Requests in flight, by key. */
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Creates a new coalescing filter.
+     *
+     * @param key
+     *         the expression that computes the key of a request
+     * @param headers
+     *         the names of the request headers whose values are added to the key
+     */
+    public CoalescingFilter(final Expression<String> key, final List<String> headers) {
+        this.key = checkNotNull(key);
+        this.headers = checkNotNull(headers);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final String flightKey = key(context, request);
+        if (flightKey == null) {
+            return next.handle(context, request);
+        }
+        final Flight flight;
+        synchronized (flights) {
+            Flight existing = flights.get(flightKey);
+            if (existing != null) {
+                Waiter waiter = new Waiter(context, request, next);
+                existing.waiters.add(waiter);
+                return waiter.promise;
+            }
+            flight = new Flight();
+            flights.put(flightKey, flight);
+        }
+        try {
+            return next.handle(context, request)
+                       .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                           @Override
+                           public void handleRuntimeException(final RuntimeException exception) {
+                               land(flightKey, flight, null);
+                           }
+                       })
+                       .then(new Function<Response, Response, NeverThrowsException>() {
+                           @Override
+                           public Response apply(final Response response) {
+                               return land(flightKey, flight, response);
+                           }
+                       });
+        } catch (RuntimeException e) {
+            land(flightKey, flight, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the key of the request, or {@code null} if the request cannot be coalesced.
+     */
+    private String key(final Context context, final Request request) {
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            return null;
+        }
+        if (request.getHeaders().containsKey("Content-Length")
+                || request.getHeaders().containsKey("Transfer-Encoding")) {
+            return null;
+        }
+        String value = key.eval(bindings(context, request));
+        if (value == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(value);
+        for (String name : headers) {
+            Header header = request.getHeaders().get(name);
+            builder.append('\n').append(name).append(':');
+            if (header != null) {
+                builder.append(header.getValues());
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Ends the flight: hands a copy of the response to each waiter, or lets them send their own request if there is
+     * no response.
+     *
+     * @return the response for the first request
+     */
+    private Response land(final String flightKey, final Flight flight, final Response response) {
+        List<Waiter> waiters;
+        synchronized (flights) {
+            if (flights.get(flightKey) == flight) {
+                flights.remove(flightKey);
+            }
+            waiters = new ArrayList<>(flight.waiters);
+            flight.waiters.clear();
+        }
+        if (waiters.isEmpty()) {
+            return response;
+        }
+        if (response == null) {
+            for (Waiter waiter : waiters) {
+                waiter.sendAlone();
+            }
+            return null;
+        }
+
+        List<Response> copies;
+        try {
+            copies = share(response, waiters.size() + 1);
+        } catch (IOException e) {
+            logger.warn("Cannot share the response, identical requests will be sent again", e);
+            for (Waiter waiter : waiters) {
+                waiter.sendAlone();
+            }
+            return response;
+        }
+        for (int i = 0; i < waiters.size(); i++) {
+            waiters.get(i).promise.handleResult(copies.get(i + 1));
+        }
+        return copies.get(0);
+    }
+
+    /**
+     * Creates copies of the response, each one reading its own branch of the response entity. The response entity is
+     * closed once all the copies have been closed.
+     */
+    private List<Response> share(final Response response, final int count) throws IOException {
+        BranchingInputStream trunk = response.getEntity().getRawContentInputStream();
+        SharedTrunk shared = new SharedTrunk(trunk, count);
+        List<Response> copies = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Response copy = new Response(response.getStatus());
+                copy.setVersion(response.getVersion());
+                copy.setCause(response.getCause());
+                for (Map.Entry<String, Header> header : response.getHeaders().asMapOfHeaders().entrySet()) {
+                    copy.getHeaders().put(header.getKey(), new ArrayList<>(header.getValue().getValues()));
+                }
+                copy.getEntity().setRawContentInputStream(newBranchingInputStream(shared.branch(), getStorage()));
+                copies.add(copy);
+            }
+        } catch (IOException e) {
+            for (Response copy : copies) {
+                closeSilently(copy);
+            }
+            throw e;
+        }
+        return copies;
+    }
+
+    /** A request in flight, and the identical requests waiting for its response. */
+    private static final class Flight {
+        private final List<Waiter> waiters = new ArrayList<>();
+    }
+
+    /** An identical request waiting for the response of the request in flight. */
+    private static final class Waiter {
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+
+        Waiter(final Context context, final Request request, final Handler next) {
+            this.context = context;
+            this.request = request;
+            this.next = next;
+        }
+
+        void sendAlone() {
+            try {
+                next.handle(context, request)
+                    .thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response response) {
+                            promise.handleResult(response);
+                        }
+                    })
+                    .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                        @Override
+                        public void handleRuntimeException(final RuntimeException exception) {
+                            promise.handleResult(newInternalServerError(exception));
+                        }
+                    });
+            } catch (RuntimeException e) {
+                promise.handleResult(newInternalServerError(e));
+            }
+        }
+    }
+
+    /** Closes the trunk once all its branches have been closed. */
+    private static final class SharedTrunk {
+        private final BranchingInputStream trunk;
+        private int open;
+
+        SharedTrunk(final BranchingInputStream trunk, final int count) {
+            this.trunk = trunk;
+            this.open = count;
+        }
+
+        InputStream branch() throws IOException {
+            return new FilterInputStream(trunk.branch()) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+        private void release() {
+            boolean last;
+            synchronized (this) {
+                last = --open == 0;
+            }
+            if (last) {
+                closeSilently(trunk);
+            }
+        }
+    }
+
+    /** Creates and initializes a coalescing filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            List<String> headers = config.get("headers")
+                                         .as(evaluatedWithHeapProperties())
+                                         .defaultTo(DEFAULT_HEADERS)
+                                         .asList(String.class);
+            return new CoalescingFilter(config.get("key")
+                                              .defaultTo("${request.method} ${request.uri}")
+                                              .as(expression(String.class)),
+                                        Collections.unmodifiableList(headers));
+        }
+    }
+}
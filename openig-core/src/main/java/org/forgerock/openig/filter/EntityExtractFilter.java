@@ -63,6 +63,10 @@ import org.slf4j.LoggerFactory;
  * by the {@code target} expression. For a given matched pattern, the value stored in the map
  * is either the result of applying its associated pattern template (if specified) or the
  * match result itself otherwise.
+ * <p>
+ * All the patterns are searched for in a single pass over the entity, and the entity is only read until every
+ * pattern has been resolved. The entity is read through a branch of its content, so it remains readable by the
+ * downstream filters and handlers.
  *
  * @see StreamPatternExtractor
  * @see PatternTemplate
@@ -0,0 +1,355 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+/**
+ * A {@link RetryFilter} re-sends idempotent requests ({@literal GET}, {@literal HEAD}, {@literal OPTIONS},
+ * {@literal TRACE}, {@literal PUT} and {@literal DELETE}) that failed, and can hedge them: when the first attempt has
+ * not been answered after the observed {@literal hedgingPercentile} latency, a second attempt is sent and the first
+ * successful response wins (the other one is closed).
+ * <p>
+ * Each attempt is sent with its own copy of the request, so the entity (kept in the temporary storage) can be
+ * re-sent. Placed in front of a {@link org.forgerock.openig.handler.LoadBalancingHandler}, the extra attempts go to
+ * another backend.
+ * <p>
+ * A request fails when there is no response, or when the response is a {@literal 502}, {@literal 503} or
+ * {@literal 504}. Retries and hedged attempts are bounded by a budget: each request adds {@literal retryBudgetRatio}
+ * (for example {@literal 0.1} for at most 10% of extra load) to the budget and each extra attempt spends 1 from it,
+ * so that retries cannot amplify an outage. Unused budget is capped to {@value #MAX_BUDGET} attempts.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "maxRetries"         : integer,   [OPTIONAL - extra attempts per request, default to 1]
+ *     "retryBudgetRatio"   : number,    [OPTIONAL - default to 0.1]
+ *     "hedging"            : boolean,   [OPTIONAL - default to false]
+ *     "hedgingPercentile"  : number,    [OPTIONAL - default to 0.95]
+ *     "executor"           : executor   [OPTIONAL - by default uses 'ScheduledExecutorService' heap object]
+ * }
+ * }
+ * </pre>
+ *
+ * Hedging only starts once {@value #MIN_LATENCY_SAMPLES} responses have been observed.
+ */
+public class RetryFilter extends GenericHeapObject implements Filter {
+
+    /** Maximum number of extra attempts kept in the budget. */
+    static final int MAX_BUDGET = 10;
+
+    /** Number of observed latencies needed before hedging. */
+    static final int MIN_LATENCY_SAMPLES = 20;
+
+    private static final Set<String> IDEMPOTENT_METHODS =
+            new HashSet<>(asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    /** Interval between two computations of the hedging delay. */
+    private static final long HEDGING_DELAY_REFRESH = 1000L;
+
+    private final TimeService time;
+    private final ScheduledExecutorService executor;
+    private final int maxRetries;
+    private final double budgetRatio;
+    private final double hedgingPercentile;
+
+    private final Histogram latencies = new Histogram(new ExponentiallyDecayingReservoir());
+
+    private double budget;
+    private volatile long hedgingDelay = -1L;
+    private volatile long hedgingDelayComputedAt = -HEDGING_DELAY_REFRESH;
+
+    /**
+     * Creates a new retry filter.
+     *
+     * @param time
+     *         the time service used to measure latencies
+     * @param executor
+     *         the executor used to send hedged attempts, or {@code null} to disable hedging
+     * @param maxRetries
+     *         the maximum number of extra attempts per request
+     * @param budgetRatio
+     *         the ratio of extra attempts to requests
+     * @param hedgingPercentile
+     *         the percentile of the observed latencies after which an attempt is hedged
+     */
+    public RetryFilter(final TimeService time,
+                       final ScheduledExecutorService executor,
+                       final int maxRetries,
+                       final double budgetRatio,
+                       final double hedgingPercentile) {
+        this.time = checkNotNull(time);
+        this.executor = executor;
+        this.maxRetries = maxRetries;
+        this.budgetRatio = budgetRatio;
+        this.hedgingPercentile = hedgingPercentile;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        deposit();
+        if (!IDEMPOTENT_METHODS.contains(request.getMethod()) || maxRetries <= 0) {
+            return next.handle(context, request);
+        }
+        Exchange exchange = new Exchange(context, request, next);
+        exchange.start();
+        return exchange.promise;
+    }
+
+    @VisibleForTesting
+    synchronized double getBudget() {
+        return budget;
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget >= 1d) {
+            budget -= 1d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the delay (ms) after which an attempt is hedged, or {@code -1} if attempts are not hedged (yet).
+     */
+    private long hedgingDelay() {
+        if (executor == null) {
+            return -1L;
+        }
+        long now = time.now();
+        if (now - hedgingDelayComputedAt >= HEDGING_DELAY_REFRESH) {
+            hedgingDelayComputedAt = now;
+            hedgingDelay = latencies.getCount() < MIN_LATENCY_SAMPLES
+                    ? -1L
+                    : (long) latencies.getSnapshot().getValue(hedgingPercentile);
+        }
+        return hedgingDelay;
+    }
+
+    private static boolean isFailure(final Response response) {
+        if (response.getCause() != null) {
+            return true;
+        }
+        Status status = response.getStatus();
+        return Status.BAD_GATEWAY.equals(status)
+                || Status.SERVICE_UNAVAILABLE.equals(status)
+                || Status.GATEWAY_TIMEOUT.equals(status);
+    }
+
+    /**
+     * The attempts made for a single request.
+     */
+    private final class Exchange {
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+
+        private int inFlight;
+        private int retriesLeft = maxRetries;
+        private boolean done;
+
+        /** Failed response kept in case no other attempt succeeds. */
+        private Response fallback;
+        private Future<?> hedge;
+
+        Exchange(final Context context, final Request request, final Handler next) {
+            this.context = context;
+            this.request = request;
+            this.next = next;
+        }
+
+        void start() {
+            synchronized (this) {
+                inFlight++;
+            }
+            long delay = hedgingDelay();
+            if (delay >= 0L) {
+                try {
+                    Future<?> future = executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            hedge();
+                        }
+                    }, delay, MILLISECONDS);
+                    synchronized (this) {
+                        hedge = future;
+                    }
+                } catch (RejectedExecutionException e) {
+                    // Executor shutting down: no hedging
+                }
+            }
+            send();
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (done || retriesLeft <= 0 || !withdraw()) {
+                    return;
+                }
+                retriesLeft--;
+                inFlight++;
+            }
+            send();
+        }
+
+        private void send() {
+            final Request attempt;
+            try {
+                attempt = new Request(request);
+            } catch (IOException e) {
+                onResponse(newInternalServerError(e));
+                return;
+            }
+            final long sentAt = time.now();
+            try {
+                next.handle(context, attempt)
+                    .thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response response) {
+                            latencies.update(time.now() - sentAt);
+                            onResponse(response);
+                        }
+                    })
+                    .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                        @Override
+                        public void handleRuntimeException(final RuntimeException exception) {
+                            onResponse(newInternalServerError(exception));
+                        }
+                    })
+                    .thenAlways(new Runnable() {
+                        @Override
+                        public void run() {
+                            closeSilently(attempt);
+                        }
+                    });
+            } catch (RuntimeException e) {
+                closeSilently(attempt);
+                onResponse(newInternalServerError(e));
+            }
+        }
+
+        private void onResponse(final Response response) {
+            Response result = null;
+            Response discarded = null;
+            boolean retry = false;
+            synchronized (this) {
+                inFlight--;
+                if (done) {
+                    // Another attempt already won
+                    discarded = response;
+                } else if (!isFailure(response)) {
+                    done = true;
+                    result = response;
+                    discarded = fallback;
+                } else if (retriesLeft > 0 && withdraw()) {
+                    retriesLeft--;
+                    inFlight++;
+                    retry = true;
+                    discarded = fallback;
+                    fallback = response;
+                } else if (inFlight > 0) {
+                    // Wait for the other attempt
+                    discarded = fallback;
+                    fallback = response;
+                } else {
+                    done = true;
+                    result = response;
+                    discarded = fallback;
+                }
+                if (done) {
+                    fallback = null;
+                    if (hedge != null) {
+                        hedge.cancel(false);
+                    }
+                }
+            }
+            if (discarded != null) {
+                closeSilently(discarded);
+            }
+            if (result != null) {
+                promise.handleResult(result);
+            }
+            if (retry) {
+                send();
+            }
+        }
+    }
+
+    /** Creates and initializes a retry filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            ScheduledExecutorService executor = null;
+            if (evaluated.get("hedging").defaultTo(false).asBoolean()) {
+                executor = config.get("executor")
+                                 .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                 .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            }
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            return new RetryFilter(time != null ? time : TimeService.SYSTEM,
+                                   executor,
+                                   evaluated.get("maxRetries").defaultTo(1).asInteger(),
+                                   evaluated.get("retryBudgetRatio").defaultTo(0.1).asDouble(),
+                                   evaluated.get("hedgingPercentile").defaultTo(0.95).asDouble());
+        }
+    }
+}
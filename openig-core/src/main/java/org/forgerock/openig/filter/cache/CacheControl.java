@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of {@literal Cache-Control} header(s), as defined in RFC 7234 section 5.2.
+ */
+final class CacheControl {
+
+    /** Returned by {@link #getSeconds(String)} when the directive is absent or its value is invalid. */
+    static final long UNDEFINED = -1L;
+
+    /** Directive names (lower case) mapped to their value ({@code null} when the directive has no argument). */
+    private final Map<String, String> directives;
+
+    private CacheControl(final Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parses the given {@literal Cache-Control} header values.
+     *
+     * @param values
+     *         the header values, may be {@code null}
+     * @return the parsed directives
+     */
+    static CacheControl valueOf(final List<String> values) {
+        Map<String, String> directives = new HashMap<>();
+        if (values != null) {
+            for (String value : values) {
+                parse(value, directives);
+            }
+        }
+        return new CacheControl(directives);
+    }
+
+    private static void parse(final String value, final Map<String, String> directives) {
+        int n = 0;
+        while (n < value.length()) {
+            int end = n;
+            boolean quoted = false;
+            // Commas within quoted strings do not separate directives
+            while (end < value.length() && (quoted || value.charAt(end) != ',')) {
+                if (value.charAt(end) == '"') {
+                    quoted = !quoted;
+                }
+                end++;
+            }
+            String directive = value.substring(n, end).trim();
+            if (!directive.isEmpty()) {
+                int equals = directive.indexOf('=');
+                if (equals < 0) {
+                    directives.put(directive.toLowerCase(Locale.ROOT), null);
+                } else {
+                    String argument = directive.substring(equals + 1).trim();
+                    if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+                        argument = argument.substring(1, argument.length() - 1);
+                    }
+                    directives.put(directive.substring(0, equals).trim().toLowerCase(Locale.ROOT), argument);
+                }
+            }
+            n = end + 1;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given directive is present.
+     *
+     * @param name
+     *         the directive name (lower case)
+     * @return {@code true} if the given directive is present
+     */
+    boolean has(final String name) {
+        return directives.containsKey(name);
+    }
+
+    /**
+     * Returns the value of a delta-seconds directive such as {@literal max-age}.
+     *
+     * @param name
+     *         the directive name (lower case)
+     * @return the number of seconds, or {@link #UNDEFINED} if the directive is absent or invalid
+     */
+    long getSeconds(final String name) {
+        String value = directives.get(name);
+        if (value == null) {
+            return UNDEFINED;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? UNDEFINED : seconds;
+        } catch (NumberFormatException e) {
+            // Overflowing values are to be treated as "infinity" (RFC 7234 section 1.2.1)
+            return value.matches("\\d+") ? Integer.MAX_VALUE : UNDEFINED;
+        }
+    }
+}
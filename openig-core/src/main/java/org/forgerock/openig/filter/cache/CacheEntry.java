@@ -0,0 +1,388 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.http.header.HeaderUtil.parseDate;
+import static org.forgerock.http.io.IO.newBranchingInputStream;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Headers;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.util.Factory;
+
+/**
+ * A response stored in the cache: its status, headers and body, along with the information needed to compute its
+ * freshness (RFC 7234 section 4.2) and to select it for a request ({@literal Vary}).
+ * <p>
+ * The body is either kept in memory ({@code byte[]}) or, once spilled by the {@link CacheStore}, in a {@link Buffer}
+ * of the temporary storage. The buffer is only closed when the entry has been evicted and no response is still
+ * reading it.
+ */
+final class CacheEntry {
+
+    /** Response headers that are not stored, as they only apply to a single connection (RFC 7230 section 6.1). */
+    private static final String[] HOP_BY_HOP_HEADERS = {
+        "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer",
+        "Transfer-Encoding", "Upgrade"
+    };
+
+    /**
+     * Response headers that are never stored, as they are meant for the client that received the response: the cache
+     * key does not tell the clients apart, so a stored cookie would be served to every client.
+     */
+    static final String[] PER_CLIENT_HEADERS = { "Set-Cookie", "Set-Cookie2" };
+
+    private final Status status;
+    private final Headers headers = new Headers();
+
+    /** Values of the request headers nominated by {@literal Vary}, when the response was stored. */
+    private final Map<String, List<String>> varying;
+
+    private final long length;
+    private byte[] bytes;
+    private Buffer buffer;
+
+    /** Number of served responses still reading the body. */
+    private int readers;
+    private boolean evicted;
+
+    /** Time (ms) at which the response was received, and its corrected initial age (ms). */
+    private long responseTime;
+    private long initialAge;
+    private long freshnessLifetime;
+
+    CacheEntry(final Request request,
+               final Response response,
+               final byte[] bytes,
+               final long requestTime,
+               final long responseTime) {
+        this.status = response.getStatus();
+        copyHeaders(response.getHeaders(), headers);
+        this.varying = varying(request, response.getHeaders());
+        this.bytes = bytes;
+        this.length = bytes.length;
+        update(requestTime, responseTime);
+    }
+
+    private static void copyHeaders(final Headers from, final Headers to) {
+        for (Map.Entry<String, Header> header : from.asMapOfHeaders().entrySet()) {
+            to.put(header.getKey(), new ArrayList<>(header.getValue().getValues()));
+        }
+        for (String name : HOP_BY_HOP_HEADERS) {
+            to.remove(name);
+        }
+        for (String name : PER_CLIENT_HEADERS) {
+            to.remove(name);
+        }
+    }
+
+    private static Map<String, List<String>> varying(final Request request, final Headers headers) {
+        Map<String, List<String>> varying = new LinkedHashMap<>();
+        for (String value : values(headers, "Vary")) {
+            for (String name : value.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    varying.put(name.trim(), new ArrayList<>(values(request.getHeaders(), name.trim())));
+                }
+            }
+        }
+        return varying;
+    }
+
+    /**
+     * Returns the values of the given header, or an empty list if the header is absent.
+     *
+     * @param headers
+     *         the message headers
+     * @param name
+     *         the header name
+     * @return the values of the given header
+     */
+    static List<String> values(final Headers headers, final String name) {
+        Header header = headers.get(name);
+        return header != null ? header.getValues() : Collections.<String>emptyList();
+    }
+
+    /**
+     * Computes the corrected initial age and the freshness lifetime from the stored headers (RFC 7234 section 4.2).
+     */
+    private void update(final long requestTime, final long responseTime) {
+        this.responseTime = responseTime;
+        Date date = parseHeaderDate("Date");
+        long dateValue = date != null ? date.getTime() : responseTime;
+        long apparentAge = Math.max(0L, responseTime - dateValue);
+        long ageValue = 0L;
+        try {
+            String age = headers.getFirst("Age");
+            ageValue = age != null ? SECONDS.toMillis(Long.parseLong(age.trim())) : 0L;
+        } catch (NumberFormatException e) {
+            // Ignore invalid Age
+        }
+        this.initialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+
+        CacheControl cacheControl = getCacheControl();
+        long seconds = cacheControl.getSeconds("s-maxage");
+        if (seconds == CacheControl.UNDEFINED) {
+            seconds = cacheControl.getSeconds("max-age");
+        }
+        if (seconds != CacheControl.UNDEFINED) {
+            freshnessLifetime = SECONDS.toMillis(seconds);
+        } else if (headers.containsKey("Expires")) {
+            // An invalid Expires (such as "0") means already expired
+            Date expires = parseHeaderDate("Expires");
+            freshnessLifetime = expires != null ? Math.max(0L, expires.getTime() - dateValue) : 0L;
+        } else {
+            freshnessLifetime = 0L;
+        }
+    }
+
+    private Date parseHeaderDate(final String name) {
+        String value = headers.getFirst(name);
+        return value != null ? parseDate(value) : null;
+    }
+
+    /**
+     * Updates this entry with the headers of a {@literal 304 Not Modified} response (RFC 7234 section 4.3.4).
+     *
+     * @param notModified
+     *         the {@literal 304} response received when revalidating this entry
+     * @param requestTime
+     *         the time (ms) at which the conditional request was sent
+     * @param responseTime
+     *         the time (ms) at which the response was received
+     */
+    synchronized void revalidated(final Response notModified, final long requestTime, final long responseTime) {
+        Headers updated = new Headers();
+        copyHeaders(notModified.getHeaders(), updated);
+        updated.remove("Content-Length");
+        copyHeaders(updated, headers);
+        update(requestTime, responseTime);
+    }
+
+    /**
+     * Returns the directives of the stored response.
+     *
+     * @return the directives of the stored response
+     */
+    synchronized CacheControl getCacheControl() {
+        return CacheControl.valueOf(values(headers, "Cache-Control"));
+    }
+
+    /**
+     * Returns the current age (ms) of this entry.
+     *
+     * @param now
+     *         the current time (ms)
+     * @return the current age of this entry
+     */
+    synchronized long getAge(final long now) {
+        return initialAge + Math.max(0L, now - responseTime);
+    }
+
+    /**
+     * Returns {@code true} if this entry can be served without revalidation.
+     *
+     * @param now
+     *         the current time (ms)
+     * @return {@code true} if this entry can be served without revalidation
+     */
+    synchronized boolean isFresh(final long now) {
+        return freshnessLifetime > getAge(now);
+    }
+
+    /**
+     * Returns {@code true} if this entry can be revalidated.
+     *
+     * @return {@code true} if this entry has an {@literal ETag} or a {@literal Last-Modified} header
+     */
+    synchronized boolean hasValidator() {
+        return headers.containsKey("ETag") || headers.containsKey("Last-Modified");
+    }
+
+    /**
+     * Adds the validators of this entry to the given (conditional) request.
+     *
+     * @param request
+     *         the request to revalidate this entry with
+     */
+    synchronized void addValidators(final Request request) {
+        String etag = headers.getFirst("ETag");
+        if (etag != null) {
+            request.getHeaders().put("If-None-Match", etag);
+        }
+        String lastModified = headers.getFirst("Last-Modified");
+        if (lastModified != null) {
+            request.getHeaders().put("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the request headers nominated by the stored {@literal Vary} header match the ones of the
+     * given request (RFC 7234 section 4.1).
+     *
+     * @param request
+     *         the request to serve
+     * @return {@code true} if this entry can be selected for the given request
+     */
+    boolean matches(final Request request) {
+        for (Map.Entry<String, List<String>> entry : varying.entrySet()) {
+            if (!entry.getValue().equals(values(request.getHeaders(), entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of the stored body.
+     *
+     * @return the length of the stored body
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the body when it is kept in memory.
+     *
+     * @return the body, or {@code null} if it has been spilled
+     */
+    synchronized byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Moves the body from memory to the given buffer.
+     *
+     * @param buffer
+     *         the buffer that now holds the body
+     */
+    synchronized void spilled(final Buffer buffer) {
+        this.buffer = buffer;
+        this.bytes = null;
+    }
+
+    /**
+     * Marks this entry as evicted: its buffer is closed as soon as no response reads it any more.
+     */
+    void evicted() {
+        Buffer closed = null;
+        synchronized (this) {
+            evicted = true;
+            if (readers == 0) {
+                closed = buffer;
+                buffer = null;
+            }
+        }
+        closeSilently(closed);
+    }
+
+    /**
+     * Builds a new response out of this entry.
+     *
+     * @param now
+     *         the current time (ms), used to compute the {@literal Age} header
+     * @param storage
+     *         the temporary storage used to branch the entity of the response
+     * @return a new response, whose entity reads the stored body, or {@code null} if the entry has been evicted
+     *         and its body is no longer available
+     */
+    synchronized Response newResponse(final long now, final Factory<Buffer> storage) {
+        if (bytes == null && (evicted || buffer == null)) {
+            return null;
+        }
+        Response response = new Response(status);
+        copyHeaders(headers, response.getHeaders());
+        response.getHeaders().put("Age", String.valueOf(MILLISECONDS.toSeconds(getAge(now))));
+        InputStream body;
+        if (bytes != null) {
+            body = new ByteArrayInputStream(bytes);
+        } else {
+            readers++;
+            body = new BufferInputStream(buffer);
+        }
+        response.getEntity().setRawContentInputStream(newBranchingInputStream(body, storage));
+        return response;
+    }
+
+    private void release() {
+        Buffer closed = null;
+        synchronized (this) {
+            readers--;
+            if (evicted && readers == 0) {
+                closed = buffer;
+                buffer = null;
+            }
+        }
+        closeSilently(closed);
+    }
+
+    /**
+     * Reads a spilled body, and releases the entry when closed.
+     */
+    private final class BufferInputStream extends InputStream {
+        private final Buffer buffer;
+        private int position;
+        private boolean closed;
+
+        BufferInputStream(final Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int n = buffer.read(position, b, off, len);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+}
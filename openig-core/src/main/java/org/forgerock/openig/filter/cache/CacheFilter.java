@@ -0,0 +1,416 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.filter.cache.CacheEntry.values;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Factory;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CacheFilter} is a shared HTTP cache (RFC 7234) for the responses of {@literal GET} requests.
+ * <p>
+ * Responses are stored when they are cacheable ({@literal 200}, {@literal 203}, {@literal 204}, {@literal 300},
+ * {@literal 301}, {@literal 404} or {@literal 410}), have an explicit freshness ({@literal s-maxage},
+ * {@literal max-age} or {@literal Expires}) or a validator ({@literal ETag} or {@literal Last-Modified}), and are not
+ * marked {@literal no-store} or {@literal private}. Responses to requests with an {@literal Authorization} header are
+ * only stored when explicitly allowed ({@literal public}, {@literal s-maxage} or {@literal must-revalidate}).
+ * <p>
+ * A fresh stored response is served directly, with an {@literal Age} header. A stale one (or one that the request or
+ * the response requires to revalidate with {@literal no-cache}) is revalidated with a conditional request
+ * ({@literal If-None-Match} and/or {@literal If-Modified-Since}): a {@literal 304 Not Modified} response refreshes
+ * the stored one. A stored response is only selected when the request headers nominated by its {@literal Vary}
+ * header are the same as the ones of the request it was stored for.
+ * <p>
+ * Concurrent misses for the same key are collapsed: only one request is sent to the next handler, the others wait
+ * for its response and are served from the cache (or sent to the next handler if the response could not be stored).
+ * <p>
+ * Successful unsafe requests ({@literal POST}, {@literal PUT}, {@literal DELETE} and {@literal PATCH}) invalidate the
+ * response stored under their key.
+ * <p>
+ * Bodies are kept in memory up to {@literal maxMemorySize} bytes, then the least recently used ones are spilled to
+ * the {@literal temporaryStorage} (that writes them in its directory) up to {@literal maxDiskSize} bytes.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "key"              : expression,  [OPTIONAL - the cache key, default to ${request.uri}]
+ *     "maxEntrySize"     : integer,     [OPTIONAL - largest body (bytes) to store, default to 1 MiB]
+ *     "maxMemorySize"    : integer,     [OPTIONAL - bytes kept in memory, default to 10 MiB]
+ *     "maxDiskSize"      : integer,     [OPTIONAL - bytes kept in the temporary storage, default to 100 MiB]
+ *     "temporaryStorage" : reference    [OPTIONAL - the temporary storage used for the disk tier]
+ * }
+ * }
+ * </pre>
+ */
+public class CacheFilter extends GenericHeapObject implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheFilter.class);
+
+    private static final Set<Integer> CACHEABLE_STATUSES = new HashSet<>(asList(200, 203, 204, 300, 301, 404, 410));
+
+    /** Status code of a {@literal Not Modified} response, which has no {@link Status} constant. */
+    private static final int NOT_MODIFIED = 304;
+
+    private static final Set<String> UNSAFE_METHODS = new HashSet<>(asList("POST", "PUT", "DELETE", "PATCH"));
+
+    private final Expression<String> key;
+    private final TimeService time;
+    private final Factory<Buffer> storage;
+    private final long maxEntrySize;
+    private final CacheStore store;
+
+    /** Pending requests to the next handler, by cache key. */
+    private final Map<String, PromiseImpl<CacheEntry, NeverThrowsException>> pending = new HashMap<>();
+
+    /**
+     * Creates a new cache filter.
+     *
+     * @param key
+     *         the expression that computes the cache key of a request
+     * @param time
+     *         the time service used to compute the age of the stored responses
+     * @param storage
+     *         the temporary storage used for the disk tier
+     * @param maxEntrySize
+     *         the largest body (in bytes) to store
+     * @param maxMemorySize
+     *         the maximum number of bytes kept in memory
+     * @param maxDiskSize
+     *         the maximum number of bytes kept in the temporary storage
+     */
+    public CacheFilter(final Expression<String> key,
+                       final TimeService time,
+                       final Factory<Buffer> storage,
+                       final long maxEntrySize,
+                       final long maxMemorySize,
+                       final long maxDiskSize) {
+        this.key = checkNotNull(key);
+        this.time = checkNotNull(time);
+        this.storage = checkNotNull(storage);
+        this.maxEntrySize = maxEntrySize;
+        this.store = new CacheStore(storage, maxMemorySize, maxDiskSize);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final String cacheKey = key.eval(bindings(context, request));
+        if (cacheKey == null) {
+            return next.handle(context, request);
+        }
+        if (UNSAFE_METHODS.contains(request.getMethod())) {
+            return next.handle(context, request)
+                       .thenOnResult(new ResultHandler<Response>() {
+                           @Override
+                           public void handleResult(final Response response) {
+                               if (response.getStatus().isSuccessful()
+                                       || response.getStatus().getFamily() == Status.Family.REDIRECTION) {
+                                   store.remove(cacheKey);
+                               }
+                           }
+                       });
+        }
+        CacheControl directives = CacheControl.valueOf(values(request.getHeaders(), "Cache-Control"));
+        if (!"GET".equals(request.getMethod()) || directives.has("no-store")) {
+            return next.handle(context, request);
+        }
+
+        CacheEntry entry = store.get(cacheKey);
+        if (entry != null && entry.matches(request)) {
+            long now = time.now();
+            if (isFresh(entry, directives, now)) {
+                Response response = entry.newResponse(now, storage);
+                if (response != null) {
+                    return newResponsePromise(response);
+                }
+                // Evicted since the lookup
+                entry = null;
+            } else if (!entry.hasValidator()) {
+                entry = null;
+            }
+        } else {
+            entry = null;
+        }
+        return fetch(context, request, next, cacheKey, entry);
+    }
+
+    private static boolean isFresh(final CacheEntry entry, final CacheControl directives, final long now) {
+        if (directives.has("no-cache") || entry.getCacheControl().has("no-cache") || !entry.isFresh(now)) {
+            return false;
+        }
+        long maxAge = directives.getSeconds("max-age");
+        return maxAge == CacheControl.UNDEFINED || entry.getAge(now) <= maxAge * 1000L;
+    }
+
+    /**
+     * Sends the request to the next handler, or waits for the response of a concurrent request for the same key.
+     */
+    private Promise<Response, NeverThrowsException> fetch(final Context context,
+                                                          final Request request,
+                                                          final Handler next,
+                                                          final String cacheKey,
+                                                          final CacheEntry stale) {
+        final PromiseImpl<CacheEntry, NeverThrowsException> leader;
+        synchronized (pending) {
+            PromiseImpl<CacheEntry, NeverThrowsException> existing = pending.get(cacheKey);
+            if (existing != null) {
+                return existing.thenAsync(new AsyncFunction<CacheEntry, Response, NeverThrowsException>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> apply(final CacheEntry entry) {
+                        if (entry != null && entry.matches(request)) {
+                            Response response = entry.newResponse(time.now(), storage);
+                            if (response != null) {
+                                return newResponsePromise(response);
+                            }
+                        }
+                        return next.handle(context, request);
+                    }
+                });
+            }
+            leader = PromiseImpl.create();
+            pending.put(cacheKey, leader);
+        }
+
+        final Request upstream;
+        // Only revalidate on our own behalf when the client did not send its own validators
+        final boolean revalidate = stale != null
+                && !request.getHeaders().containsKey("If-None-Match")
+                && !request.getHeaders().containsKey("If-Modified-Since");
+        try {
+            upstream = revalidate ? new Request(request) : request;
+        } catch (IOException e) {
+            complete(cacheKey, leader, null);
+            return next.handle(context, request);
+        }
+        if (revalidate) {
+            stale.addValidators(upstream);
+        }
+        final long requestTime = time.now();
+        try {
+            return next.handle(context, upstream)
+                       .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                           @Override
+                           public void handleRuntimeException(final RuntimeException exception) {
+                               complete(cacheKey, leader, null);
+                           }
+                       })
+                       .thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+                           @Override
+                           public Promise<Response, NeverThrowsException> apply(final Response response) {
+                               CacheEntry stored = null;
+                               try {
+                                   long responseTime = time.now();
+                                   if (revalidate && response.getStatus().getCode() == NOT_MODIFIED) {
+                                       closeSilently(response);
+                                       Response revalidated = stale.newResponse(responseTime, storage);
+                                       if (revalidated == null) {
+                                           // Evicted meanwhile: the 304 cannot be answered to the client
+                                           return next.handle(context, request);
+                                       }
+                                       stale.revalidated(response, requestTime, responseTime);
+                                       stored = stale;
+                                       // The cookies set by the 304 are only meant for this client
+                                       copyPerClientHeaders(response, revalidated);
+                                       return newResponsePromise(revalidated);
+                                   }
+                                   stored = store(cacheKey, request, response, requestTime, responseTime);
+                                   return newResponsePromise(response);
+                               } finally {
+                                   if (upstream != request) {
+                                       closeSilently(upstream);
+                                   }
+                                   complete(cacheKey, leader, stored);
+                               }
+                           }
+                       });
+        } catch (RuntimeException e) {
+            complete(cacheKey, leader, null);
+            throw e;
+        }
+    }
+
+    private void complete(final String cacheKey,
+                          final PromiseImpl<CacheEntry, NeverThrowsException> leader,
+                          final CacheEntry entry) {
+        synchronized (pending) {
+            if (pending.get(cacheKey) == leader) {
+                pending.remove(cacheKey);
+            }
+        }
+        leader.handleResult(entry);
+    }
+
+    /**
+     * Stores the given response if it is cacheable.
+     *
+     * @return the stored entry, or {@code null} if the response has not been stored
+     */
+    private CacheEntry store(final String cacheKey,
+                             final Request request,
+                             final Response response,
+                             final long requestTime,
+                             final long responseTime) {
+        if (!isStorable(request, response)) {
+            // A 304 answers the client's own validators and says nothing about the stored response
+            if (!response.getStatus().isServerError() && response.getStatus().getCode() != NOT_MODIFIED) {
+                // The stored response is outdated
+                store.remove(cacheKey);
+            }
+            return null;
+        }
+        byte[] body = readBody(response);
+        if (body == null) {
+            return null;
+        }
+        CacheEntry entry = new CacheEntry(request, response, body, requestTime, responseTime);
+        store.put(cacheKey, entry);
+        return entry;
+    }
+
+    private static void copyPerClientHeaders(final Response from, final Response to) {
+        for (String name : CacheEntry.PER_CLIENT_HEADERS) {
+            if (from.getHeaders().containsKey(name)) {
+                to.getHeaders().put(name, new ArrayList<>(from.getHeaders().get(name).getValues()));
+            }
+        }
+    }
+
+    private static boolean isStorable(final Request request, final Response response) {
+        if (response.getCause() != null || !CACHEABLE_STATUSES.contains(response.getStatus().getCode())) {
+            return false;
+        }
+        CacheControl directives = CacheControl.valueOf(values(response.getHeaders(), "Cache-Control"));
+        if (directives.has("no-store") || directives.has("private")) {
+            return false;
+        }
+        // A response setting cookies is specific to the client that received it
+        for (String name : CacheEntry.PER_CLIENT_HEADERS) {
+            if (response.getHeaders().containsKey(name)) {
+                return false;
+            }
+        }
+        for (String vary : values(response.getHeaders(), "Vary")) {
+            if (vary.contains("*")) {
+                return false;
+            }
+        }
+        if (request.getHeaders().containsKey("Authorization")
+                && !directives.has("public") && !directives.has("s-maxage") && !directives.has("must-revalidate")) {
+            return false;
+        }
+        return directives.getSeconds("s-maxage") != CacheControl.UNDEFINED
+                || directives.getSeconds("max-age") != CacheControl.UNDEFINED
+                || response.getHeaders().containsKey("Expires")
+                || response.getHeaders().containsKey("ETag")
+                || response.getHeaders().containsKey("Last-Modified");
+    }
+
+    /**
+     * Reads the (raw) body of the response from a branch of its entity, so that the response can still be read.
+     *
+     * @return the body, or {@code null} if it is too large or could not be read
+     */
+    private byte[] readBody(final Response response) {
+        try (InputStream in = response.getEntity().getRawContentInputStream().branch()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8 * 1024];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                if (out.size() + n > maxEntrySize) {
+                    return null;
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            logger.warn("Cannot read the response body, it will not be cached", e);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    CacheStore getStore() {
+        return store;
+    }
+
+    /** Creates and initializes a cache filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private CacheFilter filter;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            filter = new CacheFilter(config.get("key").defaultTo("${request.uri}").as(expression(String.class)),
+                                     time != null ? time : TimeService.SYSTEM,
+                                     storage,
+                                     evaluated.get("maxEntrySize").defaultTo(1024 * 1024).asLong(),
+                                     evaluated.get("maxMemorySize").defaultTo(10 * 1024 * 1024).asLong(),
+                                     evaluated.get("maxDiskSize").defaultTo(100 * 1024 * 1024).asLong());
+            return filter;
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (filter != null) {
+                filter.store.clear();
+            }
+        }
+    }
+}
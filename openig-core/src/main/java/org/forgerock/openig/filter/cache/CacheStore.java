@@ -0,0 +1,185 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.util.Factory;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+/**
+ * Stores the {@link CacheEntry cache entries} in two size-bounded, least recently used tiers.
+ * <p>
+ * Bodies are first kept in memory. When the memory tier is full, the least recently used entries are spilled to
+ * {@link Buffer buffers} of the temporary storage (which writes them to its directory), and when that tier is full
+ * too, the least recently used entries are dropped.
+ */
+final class CacheStore {
+
+    private final Factory<Buffer> storage;
+    private final long maxMemorySize;
+    private final long maxDiskSize;
+
+    private final Map<String, CacheEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CacheEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize;
+    private long diskSize;
+
+    /**
+     * Creates a new store.
+     *
+     * @param storage
+     *         the temporary storage used for the disk tier
+     * @param maxMemorySize
+     *         the maximum number of bytes kept in memory
+     * @param maxDiskSize
+     *         the maximum number of bytes kept in the temporary storage ({@literal 0} to disable the disk tier)
+     */
+    CacheStore(final Factory<Buffer> storage, final long maxMemorySize, final long maxDiskSize) {
+        this.storage = checkNotNull(storage);
+        this.maxMemorySize = maxMemorySize;
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * Returns the entry stored under the given key.
+     *
+     * @param key
+     *         the cache key
+     * @return the entry stored under the given key, or {@code null}
+     */
+    synchronized CacheEntry get(final String key) {
+        CacheEntry entry = memory.get(key);
+        return entry != null ? entry : disk.get(key);
+    }
+
+    /**
+     * Stores the given entry, replacing the one previously stored under the same key.
+     *
+     * @param key
+     *         the cache key
+     * @param entry
+     *         the entry to store, its body being in memory
+     */
+    void put(final String key, final CacheEntry entry) {
+        List<Map.Entry<String, CacheEntry>> spilled = new ArrayList<>();
+        synchronized (this) {
+            remove(key);
+            memory.put(key, entry);
+            memorySize += entry.getLength();
+            Iterator<Map.Entry<String, CacheEntry>> eldest = memory.entrySet().iterator();
+            while (memorySize > maxMemorySize && eldest.hasNext()) {
+                Map.Entry<String, CacheEntry> next = eldest.next();
+                eldest.remove();
+                memorySize -= next.getValue().getLength();
+                spilled.add(next);
+            }
+        }
+        // Write the spilled bodies outside of the lock
+        for (Map.Entry<String, CacheEntry> next : spilled) {
+            spill(next.getKey(), next.getValue());
+        }
+    }
+
+    private void spill(final String key, final CacheEntry entry) {
+        if (entry.getLength() > maxDiskSize) {
+            entry.evicted();
+            return;
+        }
+        Buffer buffer = null;
+        try {
+            buffer = storage.newInstance();
+            byte[] bytes = entry.getBytes();
+            buffer.append(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            closeSilently(buffer);
+            entry.evicted();
+            return;
+        }
+        entry.spilled(buffer);
+        synchronized (this) {
+            if (memory.containsKey(key) || disk.containsKey(key)) {
+                // Replaced in the meantime
+                entry.evicted();
+                return;
+            }
+            disk.put(key, entry);
+            diskSize += entry.getLength();
+            Iterator<CacheEntry> eldest = disk.values().iterator();
+            while (diskSize > maxDiskSize && eldest.hasNext()) {
+                CacheEntry next = eldest.next();
+                eldest.remove();
+                diskSize -= next.getLength();
+                next.evicted();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry stored under the given key.
+     *
+     * @param key
+     *         the cache key
+     */
+    synchronized void remove(final String key) {
+        CacheEntry entry = memory.remove(key);
+        if (entry != null) {
+            memorySize -= entry.getLength();
+            entry.evicted();
+        }
+        entry = disk.remove(key);
+        if (entry != null) {
+            diskSize -= entry.getLength();
+            entry.evicted();
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    synchronized void clear() {
+        for (CacheEntry entry : memory.values()) {
+            entry.evicted();
+        }
+        for (CacheEntry entry : disk.values()) {
+            entry.evicted();
+        }
+        memory.clear();
+        disk.clear();
+        memorySize = 0L;
+        diskSize = 0L;
+    }
+
+    @VisibleForTesting
+    synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    @VisibleForTesting
+    synchronized long getDiskSize() {
+        return diskSize;
+    }
+}
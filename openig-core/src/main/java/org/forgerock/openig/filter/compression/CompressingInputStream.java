@@ -0,0 +1,206 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link InputStream} that compresses the stream it reads, chunk by chunk: the whole content is never buffered.
+ * <p>
+ * When the source stream has no more data available, the compressed data produced so far is flushed
+ * ({@link Deflater#SYNC_FLUSH}), so that slowly produced content (such as server-sent events) is not held back.
+ * <p>
+ * The deflater is borrowed from a {@link DeflaterPool} on the first read, and returned once the stream has been fully
+ * read or closed: a stream that is never read does not hold a deflater (and its native memory).
+ */
+final class CompressingInputStream extends InputStream {
+
+    /** Receives the statistics of a compressed stream. */
+    interface Listener {
+        /**
+         * Called once the stream has been fully compressed.
+         *
+         * @param uncompressed
+         *         the number of bytes read from the source stream
+         * @param compressed
+         *         the number of compressed bytes produced
+         * @param cpuTime
+         *         the CPU time (ns) spent compressing, {@literal 0} if not supported by the JVM
+         */
+        void completed(long uncompressed, long compressed, long cpuTime);
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** Minimal gzip member header (RFC 1952): deflate method, no flags, no time, unknown OS. */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final InputStream in;
+    private final DeflaterPool pool;
+    private final Listener listener;
+    private final CRC32 crc;
+    private final byte[] input = new byte[8 * 1024];
+
+    /** Borrowed on the first read, {@code null} once returned. */
+    private Deflater deflater;
+    private boolean done;
+
+    /** Header or trailer bytes not read yet. */
+    private byte[] pending;
+    private int pendingPosition;
+
+    private int flush = Deflater.NO_FLUSH;
+    private long uncompressed;
+    private long compressed;
+    private long cpuTime;
+
+    /**
+     * Creates a new compressing stream.
+     *
+     * @param in
+     *         the stream to compress
+     * @param pool
+     *         the pool of deflaters
+     * @param gzip
+     *         {@code true} to produce the gzip format, {@code false} for the zlib format ({@literal deflate})
+     * @param listener
+     *         receives the statistics once the stream has been compressed
+     */
+    CompressingInputStream(final InputStream in,
+                           final DeflaterPool pool,
+                           final boolean gzip,
+                           final Listener listener) {
+        this.in = in;
+        this.pool = pool;
+        this.listener = listener;
+        this.crc = gzip ? new CRC32() : null;
+        this.pending = gzip ? GZIP_HEADER : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (pending != null) {
+                int n = Math.min(len, pending.length - pendingPosition);
+                System.arraycopy(pending, pendingPosition, b, off, n);
+                pendingPosition += n;
+                if (pendingPosition == pending.length) {
+                    pending = null;
+                    pendingPosition = 0;
+                }
+                compressed += n;
+                return n;
+            }
+            if (done) {
+                return -1;
+            }
+            if (deflater == null) {
+                deflater = pool.borrow();
+            }
+            int n = deflate(b, off, len);
+            if (n > 0) {
+                compressed += n;
+                return n;
+            }
+            if (deflater.finished()) {
+                finish();
+            } else if (deflater.needsInput()) {
+                fill();
+            }
+        }
+    }
+
+    private int deflate(final byte[] b, final int off, final int len) {
+        long start = cpuTime();
+        try {
+            int n = deflater.deflate(b, off, len, flush);
+            if (n < len) {
+                // All the available input has been flushed
+                flush = Deflater.NO_FLUSH;
+            }
+            return n;
+        } finally {
+            cpuTime += cpuTime() - start;
+        }
+    }
+
+    private void fill() throws IOException {
+        int n = in.read(input);
+        if (n == -1) {
+            deflater.finish();
+        } else if (n > 0) {
+            if (crc != null) {
+                crc.update(input, 0, n);
+            }
+            uncompressed += n;
+            deflater.setInput(input, 0, n);
+            flush = in.available() > 0 ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+        }
+    }
+
+    private void finish() {
+        if (crc != null) {
+            pending = new byte[8];
+            writeInt(pending, 0, crc.getValue());
+            writeInt(pending, 4, uncompressed);
+        }
+        release();
+        if (listener != null) {
+            listener.completed(uncompressed, compressed + (pending != null ? pending.length : 0), cpuTime);
+        }
+    }
+
+    private static void writeInt(final byte[] b, final int off, final long value) {
+        // Little endian, modulo 2^32
+        for (int i = 0; i < 4; i++) {
+            b[off + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private void release() {
+        done = true;
+        if (deflater != null) {
+            pool.release(deflater);
+            deflater = null;
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        pending = null;
+        in.close();
+    }
+}
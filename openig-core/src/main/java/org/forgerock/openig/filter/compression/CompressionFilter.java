@@ -0,0 +1,423 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.compression;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.http.io.IO.newBranchingInputStream;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Message;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.ReadOnlyResourceProvider;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
+import org.forgerock.util.Function;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+/**
+ * A {@link CompressionFilter} compresses the response entities with the best coding ({@literal gzip} or
+ * {@literal deflate}) accepted by the client ({@literal Accept-Encoding}), and optionally decompresses the request
+ * entities sent with a {@literal Content-Encoding}.
+ * <p>
+ * Entities are compressed as they are read (written to the client): they are never buffered as a whole. Responses
+ * are compressed when they have an entity of one of the configured media types ({@literal text/*} matches any text
+ * type), of at least {@literal minSize} bytes when their length is known, and when they are not already encoded nor
+ * marked with {@literal Cache-Control: no-transform}. Compressed responses have a {@literal Vary: Accept-Encoding}
+ * header and a weak {@literal ETag}.
+ * <p>
+ * The statistics (number of compressed responses, bytes before and after compression, average ratio and CPU time
+ * spent compressing) are exposed through the {@literal compression} endpoint of this object.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "encodings"          : [ string ],  [OPTIONAL - by order of preference, default to [ "gzip", "deflate" ]]
+ *     "minSize"            : integer,     [OPTIONAL - bytes, default to 1024]
+ *     "mediaTypes"         : [ string ],  [OPTIONAL - default to text/*, application/json, application/javascript,
+ *                                                     application/xml and image/svg+xml]
+ *     "level"              : integer,     [OPTIONAL - 1 (fastest) to 9 (best), default to 6]
+ *     "decompressRequests" : boolean      [OPTIONAL - default to false]
+ * }
+ * }
+ * </pre>
+ */
+public class CompressionFilter extends GenericHeapObject implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressionFilter.class);
+
+    /** Maximum number of idle deflaters kept per encoding. */
+    private static final int MAX_IDLE_DEFLATERS = 32;
+
+    static final List<String> DEFAULT_MEDIA_TYPES = asList("text/*",
+                                                           "application/json",
+                                                           "application/javascript",
+                                                           "application/xml",
+                                                           "image/svg+xml");
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private final List<String> encodings;
+    private final long minSize;
+    private final List<String> mediaTypes;
+    private final boolean decompressRequests;
+    private final DeflaterPool gzipPool;
+    private final DeflaterPool deflatePool;
+
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong cpuTime = new AtomicLong();
+    private final Histogram ratios = new Histogram(new ExponentiallyDecayingReservoir());
+
+    private final CompressingInputStream.Listener listener = new CompressingInputStream.Listener() {
+        @Override
+        public void completed(final long uncompressed, final long compressed, final long time) {
+            compressedResponses.incrementAndGet();
+            uncompressedBytes.addAndGet(uncompressed);
+            compressedBytes.addAndGet(compressed);
+            cpuTime.addAndGet(time);
+            if (uncompressed > 0) {
+                // Percentage of the original size
+                ratios.update(compressed * 100 / uncompressed);
+            }
+        }
+    };
+
+    /**
+     * Creates a new compression filter.
+     *
+     * @param encodings
+     *         the supported encodings ({@literal gzip} and/or {@literal deflate}), by order of preference
+     * @param minSize
+     *         the minimum size (bytes) of the response entities to compress, when their length is known
+     * @param mediaTypes
+     *         the media types of the response entities to compress
+     * @param level
+     *         the compression level
+     * @param decompressRequests
+     *         {@code true} to decompress the request entities
+     */
+    public CompressionFilter(final List<String> encodings,
+                             final long minSize,
+                             final List<String> mediaTypes,
+                             final int level,
+                             final boolean decompressRequests) {
+        this.encodings = new ArrayList<>();
+        for (String encoding : checkNotNull(encodings)) {
+            String lower = encoding.toLowerCase(Locale.ROOT);
+            if (!GZIP.equals(lower) && !DEFLATE.equals(lower)) {
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+            this.encodings.add(lower);
+        }
+        this.minSize = minSize;
+        this.mediaTypes = new ArrayList<>();
+        for (String mediaType : checkNotNull(mediaTypes)) {
+            this.mediaTypes.add(mediaType.toLowerCase(Locale.ROOT));
+        }
+        this.decompressRequests = decompressRequests;
+        this.gzipPool = new DeflaterPool(level, true, MAX_IDLE_DEFLATERS);
+        this.deflatePool = new DeflaterPool(level, false, MAX_IDLE_DEFLATERS);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        Request forwarded = request;
+        if (decompressRequests) {
+            String coding = contentCoding(request);
+            if (GZIP.equals(coding) || "x-gzip".equals(coding) || DEFLATE.equals(coding)) {
+                try {
+                    forwarded = decompressed(request, !DEFLATE.equals(coding));
+                } catch (IOException e) {
+                    logger.debug("Cannot decompress the request entity", e);
+                    Response response = new Response(Status.BAD_REQUEST);
+                    response.setEntity("Invalid " + coding + " request entity");
+                    return newResponsePromise(response);
+                }
+            } else if (coding != null && !"identity".equals(coding)) {
+                Response response = new Response(Status.UNSUPPORTED_MEDIA_TYPE);
+                response.getHeaders().put("Accept-Encoding", "gzip, deflate");
+                return newResponsePromise(response);
+            }
+        }
+
+        final String encoding = negotiate(request);
+        if (encoding == null || "HEAD".equals(request.getMethod())) {
+            return next.handle(context, forwarded);
+        }
+        return next.handle(context, forwarded)
+                   .then(new Function<Response, Response, NeverThrowsException>() {
+                       @Override
+                       public Response apply(final Response response) {
+                           return isCompressible(response) ? compressed(response, encoding) : response;
+                       }
+                   });
+    }
+
+    private static String contentCoding(final Message message) {
+        String coding = message.getHeaders().getFirst("Content-Encoding");
+        return coding != null ? coding.trim().toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Returns a copy of the request, whose entity reads the decompressed request entity.
+     */
+    private Request decompressed(final Request request, final boolean gzip) throws IOException {
+        InputStream raw = request.getEntity().getRawContentInputStream();
+        InputStream decompressed = gzip ? new GZIPInputStream(raw) : new InflaterInputStream(raw);
+        Request copy = new Request();
+        copy.setMethod(request.getMethod());
+        copy.setUri(request.getUri());
+        copy.setVersion(request.getVersion());
+        copyHeaders(request, copy);
+        copy.getHeaders().remove("Content-Encoding");
+        copy.getHeaders().remove("Content-Length");
+        copy.getEntity().setRawContentInputStream(newBranchingInputStream(decompressed, getStorage()));
+        return copy;
+    }
+
+    /**
+     * Returns the supported encoding with the highest quality in the {@literal Accept-Encoding} header of the request
+     * (the first configured one for equal qualities), or {@code null} if none is acceptable.
+     */
+    @VisibleForTesting
+    String negotiate(final Request request) {
+        Header header = request.getHeaders().get("Accept-Encoding");
+        if (header == null) {
+            return null;
+        }
+        String best = null;
+        float bestQuality = 0f;
+        for (String encoding : encodings) {
+            float quality = quality(header.getValues(), encoding);
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static float quality(final List<String> values, final String encoding) {
+        float wildcard = 0f;
+        for (String value : values) {
+            for (String element : value.split(",")) {
+                String[] parts = element.split(";");
+                String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+                float quality = 1f;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Float.parseFloat(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0f;
+                        }
+                    }
+                }
+                if (coding.equals(encoding) || (GZIP.equals(encoding) && "x-gzip".equals(coding))) {
+                    return quality;
+                } else if ("*".equals(coding)) {
+                    wildcard = quality;
+                }
+            }
+        }
+        return wildcard;
+    }
+
+    private boolean isCompressible(final Response response) {
+        Status status = response.getStatus();
+        if (status == null
+                || status.getCode() < 200
+                || Status.NO_CONTENT.equals(status)
+                || status.getCode() == 304
+                || status.getCode() == 206) {
+            return false;
+        }
+        String coding = contentCoding(response);
+        if (coding != null && !"identity".equals(coding)) {
+            return false;
+        }
+        Header cacheControl = response.getHeaders().get("Cache-Control");
+        if (cacheControl != null && cacheControl.getValues().toString().toLowerCase(Locale.ROOT)
+                                                .contains("no-transform")) {
+            return false;
+        }
+        String length = response.getHeaders().getFirst("Content-Length");
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) < minSize) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return isCompressibleType(response.getHeaders().getFirst("Content-Type"));
+    }
+
+    private boolean isCompressibleType(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        for (String mediaType : mediaTypes) {
+            if (mediaType.endsWith("/*")
+                    ? type.startsWith(mediaType.substring(0, mediaType.length() - 1))
+                    : type.equals(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the response, whose entity compresses the response entity as it is read.
+     */
+    private Response compressed(final Response response, final String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        InputStream compressing = new CompressingInputStream(response.getEntity().getRawContentInputStream(),
+                                                             gzip ? gzipPool : deflatePool,
+                                                             gzip,
+                                                             listener);
+        Response copy = new Response(response.getStatus());
+        copy.setVersion(response.getVersion());
+        copy.setCause(response.getCause());
+        copyHeaders(response, copy);
+        copy.getHeaders().remove("Content-Length");
+        copy.getHeaders().put("Content-Encoding", encoding);
+        Header vary = copy.getHeaders().get("Vary");
+        if (vary == null) {
+            copy.getHeaders().put("Vary", "Accept-Encoding");
+        } else if (!vary.getValues().toString().toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+            copy.getHeaders().add("Vary", "Accept-Encoding");
+        }
+        String etag = copy.getHeaders().getFirst("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            // The compressed representation is not byte-for-byte identical to the original one
+            copy.getHeaders().put("ETag", "W/" + etag);
+        }
+        copy.getEntity().setRawContentInputStream(newBranchingInputStream(compressing, getStorage()));
+        return copy;
+    }
+
+    private static void copyHeaders(final Message from, final Message to) {
+        for (Map.Entry<String, Header> header : from.getHeaders().asMapOfHeaders().entrySet()) {
+            to.getHeaders().put(header.getKey(), new ArrayList<>(header.getValue().getValues()));
+        }
+    }
+
+    /**
+     * Returns the compression statistics.
+     *
+     * @return the compression statistics
+     */
+    JsonValue getStatistics() {
+        long uncompressed = uncompressedBytes.get();
+        long compressed = compressedBytes.get();
+        return json(object(field("compressedResponses", compressedResponses.get()),
+                           field("uncompressedBytes", uncompressed),
+                           field("compressedBytes", compressed),
+                           field("ratio", uncompressed > 0 ? (double) compressed / uncompressed : 1d),
+                           field("meanResponseRatio", ratios.getSnapshot().getMean() / 100),
+                           field("cpuTime", NANOSECONDS.toMillis(cpuTime.get()))));
+    }
+
+    /** Creates and initializes a compression filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private EndpointRegistry.Registration registration;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            return new CompressionFilter(evaluated.get("encodings").defaultTo(asList(GZIP, DEFLATE))
+                                                  .asList(String.class),
+                                         evaluated.get("minSize").defaultTo(1024).asLong(),
+                                         evaluated.get("mediaTypes").defaultTo(DEFAULT_MEDIA_TYPES)
+                                                  .asList(String.class),
+                                         evaluated.get("level").defaultTo(Deflater.DEFAULT_COMPRESSION).asInteger(),
+                                         evaluated.get("decompressRequests").defaultTo(false).asBoolean());
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final CompressionFilter filter = (CompressionFilter) object;
+            ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                @Override
+                public JsonValue newInstance() {
+                    return filter.getStatistics();
+                }
+            });
+            registration = endpointRegistry().register("compression", newHttpHandler(newHandler(provider)));
+            logger.info("Compression statistics endpoint available at '{}'", registration.getPath());
+        }
+
+        @Override
+        public void destroy() {
+            if (registration != null) {
+                registration.unregister();
+            }
+            if (object != null) {
+                CompressionFilter filter = (CompressionFilter) object;
+                filter.gzipPool.clear();
+                filter.deflatePool.clear();
+            }
+            super.destroy();
+        }
+    }
+}
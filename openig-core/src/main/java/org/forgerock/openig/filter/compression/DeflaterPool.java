@@ -0,0 +1,97 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of {@link Deflater}s, so that the native memory of a deflater is not allocated (and freed) for each
+ * compressed response.
+ * <p>
+ * A deflater is borrowed for the whole life of a compressed entity, which is read by whatever thread writes the
+ * response: a per-thread deflater would not survive the thread switches of asynchronous processing, hence the shared
+ * pool.
+ */
+final class DeflaterPool {
+
+    private final int level;
+    private final boolean nowrap;
+    private final int maxIdle;
+
+    private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param level
+     *         the compression level of the deflaters
+     * @param nowrap
+     *         {@code true} to produce raw deflate data (for {@literal gzip}), {@code false} for the zlib format
+     * @param maxIdle
+     *         the maximum number of deflaters kept in the pool
+     */
+    DeflaterPool(final int level, final boolean nowrap, final int maxIdle) {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Borrows a deflater from the pool, or creates a new one if the pool is empty.
+     *
+     * @return a deflater ready to compress a new stream
+     */
+    Deflater borrow() {
+        Deflater deflater = idle.poll();
+        if (deflater == null) {
+            return new Deflater(level, nowrap);
+        }
+        idleCount.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Returns the given deflater to the pool, or frees it if the pool is full.
+     *
+     * @param deflater
+     *         a deflater previously borrowed from this pool
+     */
+    void release(final Deflater deflater) {
+        deflater.reset();
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(deflater);
+        } else {
+            idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Frees all the idle deflaters.
+     */
+    void clear() {
+        Deflater deflater;
+        while ((deflater = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
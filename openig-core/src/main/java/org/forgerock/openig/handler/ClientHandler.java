@@ -34,13 +34,19 @@ import static org.forgerock.http.handler.HttpClientHandler.OPTION_TRUST_MANAGERS
 import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.enumConstant;
 import static org.forgerock.json.JsonValueFunctions.listOf;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.Utils.closeSilently;
 
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 
 import org.forgerock.http.Handler;
@@ -50,10 +56,14 @@ import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.ReadOnlyResourceProvider;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
 import org.forgerock.util.Options;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
@@ -81,10 +91,16 @@ import org.slf4j.LoggerFactory;
  *       "soTimeout": "10 seconds",
  *       "connectionTimeout": "10 seconds",
  *       "numberOfWorkers": 6,
+ *       "connectionsPerHost": 16,
+ *       "pendingRequestsPerHost": 64,
  *       "keyManager": [ "RefToKeyManager", ... ],
  *       "trustManager": [ "RefToTrustManager", ... ],
  *       "sslEnabledProtocols": [ "SSLv2", ... ],
- *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ]
+ *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ],
+ *       "sslSessionCacheSize": 1000,
+ *       "sslSessionTimeout": "1 hour",
+ *       "sslHandshakeStatistics": true,
+ *       "protocol": "http/1.1"
  *     }
  *   }
  *   }
@@ -127,6 +143,14 @@ import org.slf4j.LoggerFactory;
  * requests. It defaults to the number of CPUs available to the JVM. This attribute is only used if an asynchronous
  * Http client engine is used (that is the default).
  *
+ * <p>The {@literal connectionsPerHost} optional attribute specifies the maximum number of exchanges in flight with
+ * a single remote host ({@literal scheme://host:port}), so that a slow host cannot take all the {@literal connections}
+ * and starve the other routes. Requests above that limit wait for an exchange with the same host to complete.
+ * The {@literal pendingRequestsPerHost} optional attribute bounds the number of such waiting requests per host
+ * (unbounded by default): when it is reached, requests fail immediately with a {@literal 503 Service Unavailable}
+ * response. When {@literal connectionsPerHost} is set, the leased, available, pending and rejected counts of each host
+ * are exposed by the {@literal connections} endpoint of this object.
+ *
  * <p>The {@literal sslEnabledProtocols} optional attribute specifies
  * <a href="http://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#jssenames">the protocol
  * versions</a> to be enabled for use on the connection.
@@ -135,6 +159,19 @@ import org.slf4j.LoggerFactory;
  * <a href="http://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#ciphersuites">
  * cipher suite names</a> used by the SSL connection.
  *
+ * <p>The {@literal sslSessionCacheSize} optional attribute specifies the maximum number of TLS sessions kept to be
+ * resumed by the next connections to the same host ({@literal 0} for no limit), and the {@literal sslSessionTimeout}
+ * optional attribute how long a session can be resumed ({@literal unlimited} for no limit). A resumed handshake
+ * skips the key exchange and the certificate validation. Both default to the platform settings. When one of them
+ * is set, or when {@literal sslHandshakeStatistics} is {@literal true}, the number of full, resumed and failed
+ * handshakes, their latency and the state of the session cache are exposed by the {@literal tls} endpoint of this
+ * object.
+ *
+ * <p>The {@literal protocol} optional attribute specifies the HTTP version spoken with the remote servers. It defaults
+ * to {@literal http/1.1}, the only version supported by the asynchronous HTTP client engine: {@literal h2} (HTTP/2
+ * with multiplexed streams) is recognized but rejected, until an HTTP/2 capable client engine is available. To bound
+ * the number of connections opened with each host, use {@literal connectionsPerHost}.
+ *
  * @see Duration
  * @see org.forgerock.openig.security.KeyManagerHeaplet
  * @see org.forgerock.openig.security.TrustManagerHeaplet
@@ -143,7 +180,14 @@ public class ClientHandler extends GenericHeapObject implements Handler {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
 
+    /** The HTTP/1.1 protocol identifier (as registered for ALPN). */
+    static final String HTTP_1_1 = "http/1.1";
+
+    /** The HTTP/2 over TLS protocol identifier (as registered for ALPN). */
+    static final String H2 = "h2";
+
     private final Handler delegate;
+    private final PerHostConnectionLimiter limiter;
 
     /**
      * Creates a new client handler.
@@ -152,12 +196,28 @@ public class ClientHandler extends GenericHeapObject implements Handler {
      *         The HTTP Handler delegate.
      */
     public ClientHandler(final Handler delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * Creates a new client handler limiting the number of exchanges in flight with each host.
+     *
+     * @param delegate
+     *         The HTTP Handler delegate.
+     * @param limiter
+     *         The per-host limits, may be {@code null}.
+     */
+    ClientHandler(final Handler delegate, final PerHostConnectionLimiter limiter) {
         this.delegate = delegate;
+        this.limiter = limiter;
     }
 
     @Override
     public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
-        return delegate.handle(context, request)
+        Promise<Response, NeverThrowsException> promise = limiter != null
+                ? limiter.handle(context, request, delegate)
+                : delegate.handle(context, request);
+        return promise
                        .thenOnResult(new ResultHandler<Response>() {
                            @Override
                            public void handleResult(final Response response) {
@@ -174,12 +234,19 @@ public class ClientHandler extends GenericHeapObject implements Handler {
         private static final Logger logger = LoggerFactory.getLogger(Heaplet.class);
 
         private HttpClientHandler httpClientHandler;
+        private PerHostConnectionLimiter limiter;
+        private TlsStatistics tlsStatistics;
+        private String sslContextAlgorithm;
+        private EndpointRegistry.Registration registration;
+        private EndpointRegistry.Registration tlsRegistration;
 
         @Override
         public Object create() throws HeapException {
             final Options options = Options.defaultOptions();
             final JsonValue evaluated = config.as(evaluatedWithHeapProperties());
 
+            checkProtocol(evaluated.get("protocol").defaultTo(HTTP_1_1));
+
             if (evaluated.isDefined("connections")) {
                 options.set(OPTION_MAX_CONNECTIONS, evaluated.get("connections").asInteger());
             }
@@ -202,6 +269,12 @@ public class ClientHandler extends GenericHeapObject implements Handler {
                 options.set(OPTION_SSLCONTEXT_ALGORITHM, evaluated.get("sslContextAlgorithm").asString());
             }
 
+            if (evaluated.isDefined("sslSessionCacheSize")
+                    || evaluated.isDefined("sslSessionTimeout")
+                    || evaluated.get("sslHandshakeStatistics").defaultTo(false).asBoolean()) {
+                instrumentSslContext(evaluated, options);
+            }
+
             if (evaluated.isDefined("soTimeout")) {
                 options.set(OPTION_SO_TIMEOUT, evaluated.get("soTimeout").as(duration()));
             }
@@ -225,6 +298,13 @@ public class ClientHandler extends GenericHeapObject implements Handler {
                             evaluated.get("numberOfWorkers").asInteger());
             }
 
+            if (evaluated.isDefined("connectionsPerHost")) {
+                limiter = new PerHostConnectionLimiter(evaluated.get("connectionsPerHost").asInteger(),
+                                                       evaluated.get("pendingRequestsPerHost")
+                                                                .defaultTo(Integer.MAX_VALUE)
+                                                                .asInteger());
+            }
+
             options.set(OPTION_TEMPORARY_STORAGE, storage);
             options.set(OPTION_KEY_MANAGERS, getKeyManagers());
             options.set(OPTION_TRUST_MANAGERS, getTrustManagers());
@@ -238,20 +318,99 @@ public class ClientHandler extends GenericHeapObject implements Handler {
 
             try {
                 httpClientHandler = new HttpClientHandler(options);
-                return new ClientHandler(httpClientHandler);
+                return new ClientHandler(httpClientHandler, limiter);
             } catch (final HttpApplicationException e) {
                 throw new HeapException(format("Cannot build ClientHandler named '%s'", name), e);
             }
         }
 
+        @Override
+        public void start() throws HeapException {
+            if (limiter != null) {
+                // Register the /connections endpoint
+                ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                    @Override
+                    public JsonValue newInstance() {
+                        return limiter.getUsage();
+                    }
+                });
+                registration = endpointRegistry().register("connections", newHttpHandler(newHandler(provider)));
+                logger.info("Connections endpoint available at '{}'", registration.getPath());
+            }
+            if (tlsStatistics != null) {
+                ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                    @Override
+                    public JsonValue newInstance() {
+                        return tlsStatistics.getStatistics();
+                    }
+                });
+                tlsRegistration = endpointRegistry().register("tls", newHttpHandler(newHandler(provider)));
+                logger.info("TLS statistics endpoint available at '{}'", tlsRegistration.getPath());
+            }
+        }
+
         @Override
         public void destroy() {
+            if (registration != null) {
+                registration.unregister();
+            }
+            if (tlsRegistration != null) {
+                tlsRegistration.unregister();
+            }
             if (httpClientHandler != null) {
                 closeSilently(httpClientHandler);
             }
+            if (sslContextAlgorithm != null) {
+                InstrumentedSslContextSpi.unregister(sslContextAlgorithm);
+            }
             super.destroy();
         }
 
+        /**
+         * Makes the HTTP client engine use an {@link InstrumentedSslContextSpi}, wrapping a context of the configured
+         * algorithm.
+         */
+        private void instrumentSslContext(final JsonValue evaluated, final Options options) throws HeapException {
+            int sessionCacheSize = evaluated.get("sslSessionCacheSize").defaultTo(-1).asInteger();
+            int sessionTimeout = -1;
+            if (evaluated.isDefined("sslSessionTimeout")) {
+                Duration timeout = evaluated.get("sslSessionTimeout").as(duration());
+                if (timeout.isUnlimited()) {
+                    // No limit for an SSLSessionContext
+                    sessionTimeout = 0;
+                } else {
+                    // At least 1 second (0 would mean no limit), at most Integer.MAX_VALUE
+                    sessionTimeout = (int) Math.max(1L, Math.min(timeout.to(TimeUnit.SECONDS), Integer.MAX_VALUE));
+                }
+            }
+            String algorithm = options.get(OPTION_SSLCONTEXT_ALGORITHM);
+            try {
+                tlsStatistics = new TlsStatistics();
+                sslContextAlgorithm = InstrumentedSslContextSpi.register(
+                        new InstrumentedSslContextSpi(SSLContext.getInstance(algorithm),
+                                                      sessionCacheSize,
+                                                      sessionTimeout,
+                                                      tlsStatistics));
+                options.set(OPTION_SSLCONTEXT_ALGORITHM, sslContextAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new HeapException(format("Unknown SSL context algorithm '%s'", algorithm), e);
+            } catch (IllegalStateException e) {
+                throw new HeapException(format("Cannot instrument the SSL context of '%s'", name), e);
+            }
+        }
+
+        private void checkProtocol(final JsonValue protocol) throws HeapException {
+            String value = protocol.asString().toLowerCase(Locale.ROOT);
+            if (H2.equals(value) || "h2c".equals(value) || "http/2".equals(value)) {
+                throw new HeapException(format("ClientHandler named '%s' cannot use HTTP/2: the asynchronous HTTP "
+                                                       + "client engine only supports %s",
+                                               name, HTTP_1_1));
+            }
+            if (!HTTP_1_1.equals(value)) {
+                throw new JsonValueException(protocol, format("Unknown protocol, expecting '%s'", HTTP_1_1));
+            }
+        }
+
         private TrustManager[] getTrustManagers() throws HeapException {
             // Build an optional TrustManagerFactory
             TrustManager[] trustManagers = null;
@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.lang.String.format;
+
+import java.security.KeyManagementException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * An {@link SSLContextSpi} delegating to a standard {@link SSLContext}, that configures its client session cache and
+ * instruments the {@link SSLEngine}s it creates.
+ * <p>
+ * The HTTP client engine builds its own {@link SSLContext} from an algorithm name: {@link #register} makes this
+ * implementation available under a unique algorithm name, through a security provider private to OpenIG.
+ */
+final class InstrumentedSslContextSpi extends SSLContextSpi {
+
+    /** Holds the services of the registered contexts. */
+    private static final class InstrumentedProvider extends Provider {
+
+        private static final long serialVersionUID = 1L;
+
+        private InstrumentedProvider() {
+            super("OpenIG-TLS", 1.0, "Instrumented SSL contexts of the OpenIG ClientHandlers");
+        }
+
+        private void add(final String algorithm, final SSLContextSpi spi) {
+            putService(new Service(this, "SSLContext", algorithm, InstrumentedSslContextSpi.class.getName(),
+                                   null, null) {
+                @Override
+                public Object newInstance(final Object constructorParameter) {
+                    return spi;
+                }
+            });
+        }
+
+        private boolean remove(final String algorithm) {
+            Service service = getService("SSLContext", algorithm);
+            if (service == null) {
+                return false;
+            }
+            removeService(service);
+            return true;
+        }
+    }
+
+    private static final InstrumentedProvider PROVIDER = new InstrumentedProvider();
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /** Number of registered contexts. Guarded by this class. */
+    private static int registered;
+
+    /**
+     * Makes the given context available through {@link SSLContext#getInstance(String)}. The security provider is
+     * installed along with the first context.
+     *
+     * @param spi
+     *         the context to register
+     * @return the (unique) algorithm name of the context
+     * @throws IllegalStateException
+     *         if another security provider (such as the one of another OpenIG deployed in the same JVM) is installed
+     *         under the same name
+     */
+    static synchronized String register(final InstrumentedSslContextSpi spi) {
+        Provider installed = Security.getProvider(PROVIDER.getName());
+        if (installed == null) {
+            Security.addProvider(PROVIDER);
+        } else if (installed != PROVIDER) {
+            throw new IllegalStateException(format("Another security provider named '%s' is already installed",
+                                                   PROVIDER.getName()));
+        }
+        String algorithm = PROVIDER.getName() + "-" + COUNTER.incrementAndGet();
+        PROVIDER.add(algorithm, spi);
+        registered++;
+        return algorithm;
+    }
+
+    /**
+     * Removes a registered context. The security provider is removed along with the last context.
+     *
+     * @param algorithm
+     *         the algorithm name returned by {@link #register}
+     */
+    static synchronized void unregister(final String algorithm) {
+        if (PROVIDER.remove(algorithm) && --registered == 0
+                && Security.getProvider(PROVIDER.getName()) == PROVIDER) {
+            Security.removeProvider(PROVIDER.getName());
+        }
+    }
+
+    private final SSLContext delegate;
+    private final int sessionCacheSize;
+    private final int sessionTimeout;
+    private final TlsStatistics statistics;
+
+    /**
+     * Creates a new instrumented context.
+     *
+     * @param delegate
+     *         the (not initialized) standard context
+     * @param sessionCacheSize
+     *         the maximum number of client sessions kept for resumption, {@literal 0} for no limit, {@literal -1}
+     *         for the platform default
+     * @param sessionTimeout
+     *         the time (seconds) a client session can be resumed, {@literal 0} for no limit, {@literal -1} for the
+     *         platform default
+     * @param statistics
+     *         receives the handshake statistics
+     */
+    InstrumentedSslContextSpi(final SSLContext delegate,
+                              final int sessionCacheSize,
+                              final int sessionTimeout,
+                              final TlsStatistics statistics) {
+        this.delegate = delegate;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected void engineInit(final KeyManager[] km, final TrustManager[] tm, final SecureRandom sr)
+            throws KeyManagementException {
+        delegate.init(km, tm, sr);
+        SSLSessionContext sessions = delegate.getClientSessionContext();
+        if (sessionCacheSize >= 0) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+        }
+        if (sessionTimeout >= 0) {
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        statistics.setSessionContext(sessions);
+    }
+
+    @Override
+    protected SSLSocketFactory engineGetSocketFactory() {
+        return delegate.getSocketFactory();
+    }
+
+    @Override
+    protected SSLServerSocketFactory engineGetServerSocketFactory() {
+        return delegate.getServerSocketFactory();
+    }
+
+    @Override
+    protected SSLEngine engineCreateSSLEngine() {
+        return new InstrumentedSslEngine(delegate.createSSLEngine(), statistics);
+    }
+
+    @Override
+    protected SSLEngine engineCreateSSLEngine(final String host, final int port) {
+        return new InstrumentedSslEngine(delegate.createSSLEngine(host, port), statistics);
+    }
+
+    @Override
+    protected SSLSessionContext engineGetServerSessionContext() {
+        return delegate.getServerSessionContext();
+    }
+
+    @Override
+    protected SSLSessionContext engineGetClientSessionContext() {
+        return delegate.getClientSessionContext();
+    }
+}
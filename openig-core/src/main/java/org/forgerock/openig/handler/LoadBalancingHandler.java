@@ -0,0 +1,401 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.json.JsonValueFunctions.enumConstant;
+import static org.forgerock.json.JsonValueFunctions.listOf;
+import static org.forgerock.json.JsonValueFunctions.uri;
+import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the requests over a list of backends: the request URI is rebased on the selected backend's base URI (as
+ * with {@link DispatchHandler} bindings) before being given to the {@literal handler}.
+ *
+ * <pre>
+ *   {@code
+ *   {
+ *     "name": "LoadBalancer",
+ *     "type": "LoadBalancingHandler",
+ *     "config": {
+ *       "handler": "ClientHandler",
+ *       "backends": [ "http://app1:8080", "http://app2:8080" ],
+ *       "strategy": "POWER_OF_TWO_CHOICES",
+ *       "healthCheck": {
+ *         "path": "/health",
+ *         "interval": "5 seconds",
+ *         "executor": "ScheduledExecutorService"
+ *       },
+ *       "ejection": {
+ *         "consecutiveFailures": 5,
+ *         "duration": "30 seconds"
+ *       }
+ *     }
+ *   }
+ *   }
+ * </pre>
+ *
+ * The {@literal handler} optional attribute references the handler sending the rebased requests, it defaults to the
+ * heap's {@literal ClientHandler}. Only the scheme, host and port of the {@literal backends} URIs are used.
+ *
+ * <p>The {@literal strategy} optional attribute selects how a backend is chosen among the available ones:
+ * <ul>
+ *     <li>{@literal ROUND_ROBIN} (the default): each backend in turn</li>
+ *     <li>{@literal LEAST_OUTSTANDING_REQUESTS}: the backend with the fewest requests in flight</li>
+ *     <li>{@literal POWER_OF_TWO_CHOICES}: the one with the fewest requests in flight among two backends picked at
+ *     random, which avoids herding all the requests to the same backend</li>
+ * </ul>
+ *
+ * <p>The {@literal healthCheck} optional attribute enables active health checks: a {@literal GET} request is sent
+ * to the {@literal path} of each backend every {@literal interval} (defaults to {@literal 10 seconds}) using the
+ * given {@literal executor} (defaults to the heap's {@literal ScheduledExecutorService}). A backend whose health check
+ * does not answer with a successful response is taken out of the rotation until it does.
+ *
+ * <p>Backends are also ejected passively: after {@literal consecutiveFailures} (defaults to {@literal 5}) requests
+ * failing without a response, or with a {@literal 502}, {@literal 503} or {@literal 504} response, a backend is left
+ * out of the rotation for the {@literal duration} of the {@literal ejection} (defaults to {@literal 30 seconds}).
+ *
+ * <p>When no backend is available, requests are spread over all of them rather than failing altogether.
+ */
+public class LoadBalancingHandler extends GenericHeapObject implements Handler {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadBalancingHandler.class);
+
+    /**
+     * How a backend is selected among the available ones.
+     */
+    public enum Strategy {
+        /** Each backend in turn. */
+        ROUND_ROBIN,
+        /** The backend with the fewest requests in flight. */
+        LEAST_OUTSTANDING_REQUESTS,
+        /** The one with the fewest requests in flight among two backends picked at random. */
+        POWER_OF_TWO_CHOICES
+    }
+
+    private final Handler handler;
+    private final List<Backend> backends;
+    private final Strategy strategy;
+    private final TimeService time;
+    private final int maxConsecutiveFailures;
+    private final Duration ejectionDuration;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a new load balancing handler.
+     *
+     * @param handler
+     *         the handler sending the rebased requests
+     * @param baseURIs
+     *         the base URIs of the backends (only scheme, host and port are used)
+     * @param strategy
+     *         how a backend is selected
+     * @param time
+     *         the time service used to measure ejection durations
+     * @param maxConsecutiveFailures
+     *         number of consecutive failures after which a backend is ejected
+     * @param ejectionDuration
+     *         how long an ejected backend is left out of the rotation
+     */
+    public LoadBalancingHandler(final Handler handler,
+                                final List<URI> baseURIs,
+                                final Strategy strategy,
+                                final TimeService time,
+                                final int maxConsecutiveFailures,
+                                final Duration ejectionDuration) {
+        if (baseURIs.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required");
+        }
+        this.handler = checkNotNull(handler);
+        this.strategy = checkNotNull(strategy);
+        this.time = checkNotNull(time);
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.ejectionDuration = checkNotNull(ejectionDuration);
+        List<Backend> list = new ArrayList<>();
+        for (URI baseURI : baseURIs) {
+            list.add(new Backend(baseURI));
+        }
+        this.backends = Collections.unmodifiableList(list);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final Backend backend = select();
+        request.getUri().rebase(backend.baseURI);
+        backend.outstanding.incrementAndGet();
+        try {
+            return handler.handle(context, request)
+                          .thenOnResult(new ResultHandler<Response>() {
+                              @Override
+                              public void handleResult(final Response response) {
+                                  backend.outstanding.decrementAndGet();
+                                  if (isFailure(response)) {
+                                      onFailure(backend);
+                                  } else {
+                                      backend.consecutiveFailures.set(0);
+                                  }
+                              }
+                          })
+                          .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                              @Override
+                              public void handleRuntimeException(final RuntimeException exception) {
+                                  backend.outstanding.decrementAndGet();
+                                  onFailure(backend);
+                              }
+                          });
+        } catch (RuntimeException e) {
+            backend.outstanding.decrementAndGet();
+            onFailure(backend);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a health check request to each backend, updating their health status when the responses come back.
+     *
+     * @param path
+     *         the path of the health check resource, relative to the backends' base URIs
+     */
+    void checkHealth(final String path) {
+        for (final Backend backend : backends) {
+            final Request request;
+            try {
+                request = new Request().setMethod("GET").setUri(backend.baseURI.resolve(path));
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid health check path {} for backend {}", path, backend.baseURI, e);
+                continue;
+            }
+            try {
+                handler.handle(new RootContext(), request)
+                       .thenOnResult(new ResultHandler<Response>() {
+                           @Override
+                           public void handleResult(final Response response) {
+                               boolean healthy = response.getStatus().isSuccessful();
+                               if (backend.healthy != healthy) {
+                                   logger.info("Backend {} is now {}", backend.baseURI,
+                                               healthy ? "healthy" : "unhealthy");
+                               }
+                               backend.healthy = healthy;
+                               closeSilently(response);
+                           }
+                       })
+                       .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                           @Override
+                           public void handleRuntimeException(final RuntimeException exception) {
+                               backend.healthy = false;
+                           }
+                       });
+            } catch (RuntimeException e) {
+                logger.debug("Health check of backend {} failed", backend.baseURI, e);
+                backend.healthy = false;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    List<Backend> getBackends() {
+        return backends;
+    }
+
+    private Backend select() {
+        List<Backend> available = new ArrayList<>(backends.size());
+        long now = time.now();
+        for (Backend backend : backends) {
+            if (backend.isAvailable(now)) {
+                available.add(backend);
+            }
+        }
+        if (available.isEmpty()) {
+            // Better try an unhealthy backend than failing all the requests
+            available = backends;
+        }
+
+        switch (strategy) {
+        case LEAST_OUTSTANDING_REQUESTS:
+            Backend least = null;
+            // Start at a rotating offset so that ties are spread over the backends
+            int offset = (next.getAndIncrement() & Integer.MAX_VALUE) % available.size();
+            for (int i = 0; i < available.size(); i++) {
+                Backend candidate = available.get((offset + i) % available.size());
+                if (least == null || candidate.outstanding.get() < least.outstanding.get()) {
+                    least = candidate;
+                }
+            }
+            return least;
+        case POWER_OF_TWO_CHOICES:
+            if (available.size() == 1) {
+                return available.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(available.size());
+            int second = random.nextInt(available.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Backend one = available.get(first);
+            Backend two = available.get(second);
+            return one.outstanding.get() <= two.outstanding.get() ? one : two;
+        case ROUND_ROBIN:
+        default:
+            return available.get((next.getAndIncrement() & Integer.MAX_VALUE) % available.size());
+        }
+    }
+
+    private void onFailure(final Backend backend) {
+        if (backend.consecutiveFailures.incrementAndGet() >= maxConsecutiveFailures) {
+            backend.consecutiveFailures.set(0);
+            backend.ejectedUntil = time.now() + ejectionDuration.to(MILLISECONDS);
+            logger.warn("Backend {} ejected for {}", backend.baseURI, ejectionDuration);
+        }
+    }
+
+    private static boolean isFailure(final Response response) {
+        if (response.getCause() != null) {
+            return true;
+        }
+        Status status = response.getStatus();
+        return Status.BAD_GATEWAY.equals(status)
+                || Status.SERVICE_UNAVAILABLE.equals(status)
+                || Status.GATEWAY_TIMEOUT.equals(status);
+    }
+
+    /**
+     * State of a backend.
+     */
+    @VisibleForTesting
+    static final class Backend {
+        private final URI baseURI;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntil;
+
+        Backend(final URI baseURI) {
+            this.baseURI = checkNotNull(baseURI);
+        }
+
+        boolean isAvailable(final long now) {
+            return healthy && now >= ejectedUntil;
+        }
+
+        URI getBaseURI() {
+            return baseURI;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+    }
+
+    /**
+     * Creates and initializes a load balancing handler in a heap environment.
+     */
+    public static class Heaplet extends GenericHeaplet {
+
+        private ScheduledFuture<?> healthCheck;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            Handler handler = config.get("handler")
+                                    .defaultTo(CLIENT_HANDLER_HEAP_KEY)
+                                    .as(requiredHeapObject(heap, Handler.class));
+            List<URI> baseURIs = evaluated.get("backends").required().as(listOf(uri()));
+            Strategy strategy = evaluated.get("strategy")
+                                         .defaultTo(Strategy.ROUND_ROBIN.name())
+                                         .as(enumConstant(Strategy.class));
+            JsonValue ejection = evaluated.get("ejection");
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            return new LoadBalancingHandler(handler,
+                                            baseURIs,
+                                            strategy,
+                                            time != null ? time : TimeService.SYSTEM,
+                                            ejection.get("consecutiveFailures").defaultTo(5).asInteger(),
+                                            ejection.get("duration").defaultTo("30 seconds").as(duration()));
+        }
+
+        @Override
+        public void start() throws HeapException {
+            JsonValue healthCheckConfig = config.get("healthCheck");
+            if (healthCheckConfig.isNull()) {
+                return;
+            }
+            final String path = healthCheckConfig.get("path")
+                                                 .as(evaluatedWithHeapProperties())
+                                                 .required()
+                                                 .asString();
+            Duration interval = healthCheckConfig.get("interval")
+                                                 .as(evaluatedWithHeapProperties())
+                                                 .defaultTo("10 seconds")
+                                                 .as(duration());
+            ScheduledExecutorService executor =
+                    healthCheckConfig.get("executor")
+                                     .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                     .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            final LoadBalancingHandler handler = (LoadBalancingHandler) object;
+            healthCheck = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    handler.checkHealth(path);
+                }
+            }, 0L, interval.to(MILLISECONDS), MILLISECONDS);
+        }
+
+        @Override
+        public void destroy() {
+            if (healthCheck != null) {
+                healthCheck.cancel(false);
+            }
+            super.destroy();
+        }
+    }
+}
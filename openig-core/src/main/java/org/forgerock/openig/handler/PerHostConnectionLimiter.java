@@ -0,0 +1,384 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.lang.String.format;
+import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.MutableUri;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+
+/**
+ * Limits the number of exchanges in flight towards each remote host, so that a slow host cannot take all the
+ * connections of the underlying HTTP client.
+ * <p>
+ * Requests above the per-host limit wait in a per-host queue and are sent (in order) as soon as an exchange with the
+ * same host completes. When that queue is full, the request fails immediately with a {@literal 503 Service
+ * Unavailable} response instead of waiting for a connection. A pending request whose promise is cancelled leaves the
+ * queue.
+ * <p>
+ * A host is forgotten (along with its statistics) as soon as it has no exchange in flight.
+ */
+final class PerHostConnectionLimiter {
+
+    private final int maxConnectionsPerHost;
+    private final int maxPendingRequestsPerHost;
+
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param maxConnectionsPerHost
+     *         maximum number of exchanges in flight with a single host
+     * @param maxPendingRequestsPerHost
+     *         maximum number of requests waiting for a connection to a single host
+     */
+    PerHostConnectionLimiter(final int maxConnectionsPerHost, final int maxPendingRequestsPerHost) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("The maximum number of connections per host must be positive");
+        }
+        if (maxPendingRequestsPerHost < 0) {
+            throw new IllegalArgumentException("The maximum number of pending requests per host cannot be negative");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxPendingRequestsPerHost = maxPendingRequestsPerHost;
+    }
+
+    /**
+     * Sends the request through the given handler once a connection to its host is available.
+     *
+     * @param context
+     *         the request's context
+     * @param request
+     *         the request to send
+     * @param next
+     *         the handler actually sending the request
+     * @return the promise of the response
+     */
+    Promise<Response, NeverThrowsException> handle(final Context context,
+                                                   final Request request,
+                                                   final Handler next) {
+        String host = hostOf(request.getUri());
+        while (true) {
+            HostPool pool = pools.get(host);
+            if (pool == null) {
+                HostPool created = new HostPool(host);
+                pool = pools.putIfAbsent(host, created);
+                if (pool == null) {
+                    pool = created;
+                }
+            }
+
+            Exchange exchange = new Exchange(pool, context, request, next);
+            switch (pool.acquire(exchange)) {
+            case LEASED:
+                exchange.send();
+                return exchange.promise;
+            case QUEUED:
+                pool.dequeueWhenDone(exchange);
+                return exchange.promise;
+            case REJECTED:
+                return exchange.promise;
+            default:
+                // The pool has just been removed because it was idle: use a new one
+                continue;
+            }
+        }
+    }
+
+    int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    int getMaxPendingRequestsPerHost() {
+        return maxPendingRequestsPerHost;
+    }
+
+    /**
+     * Returns a snapshot of the connection usage, per host ({@literal scheme://host:port}).
+     *
+     * @return a snapshot of the connection usage, per host
+     */
+    Map<String, HostStatistics> getStatistics() {
+        Map<String, HostStatistics> statistics = new TreeMap<>();
+        for (Map.Entry<String, HostPool> entry : pools.entrySet()) {
+            statistics.put(entry.getKey(), entry.getValue().statistics());
+        }
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Returns the limits and the connection usage of each host, as exposed by the {@literal connections} endpoint.
+     *
+     * @return the limits and the connection usage of each host
+     */
+    JsonValue getUsage() {
+        JsonValue usage = json(object(field("maxConnectionsPerHost", maxConnectionsPerHost),
+                                      field("maxPendingRequestsPerHost", maxPendingRequestsPerHost)));
+
+        JsonValue hosts = json(object());
+        for (Map.Entry<String, HostStatistics> entry : getStatistics().entrySet()) {
+            HostStatistics statistics = entry.getValue();
+            hosts.put(entry.getKey(), object(field("leased", statistics.getLeased()),
+                                             field("available", statistics.getAvailable()),
+                                             field("pending", statistics.getPending()),
+                                             field("rejected", statistics.getRejected())));
+        }
+        usage.put("hosts", hosts.getObject());
+        return usage;
+    }
+
+    private static String hostOf(final MutableUri uri) {
+        String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        return format("%s://%s:%d", scheme, uri.getHost(), port);
+    }
+
+    /**
+     * Connection usage of a single host.
+     */
+    static final class HostStatistics {
+        private final int leased;
+        private final int available;
+        private final int pending;
+        private final long rejected;
+
+        HostStatistics(final int leased, final int available, final int pending, final long rejected) {
+            this.leased = leased;
+            this.available = available;
+            this.pending = pending;
+            this.rejected = rejected;
+        }
+
+        /**
+         * Returns the number of exchanges in flight with the host.
+         * @return the number of exchanges in flight with the host
+         */
+        int getLeased() {
+            return leased;
+        }
+
+        /**
+         * Returns the number of exchanges that can still be started without waiting.
+         * @return the number of exchanges that can still be started without waiting
+         */
+        int getAvailable() {
+            return available;
+        }
+
+        /**
+         * Returns the number of requests waiting for a connection.
+         * @return the number of requests waiting for a connection
+         */
+        int getPending() {
+            return pending;
+        }
+
+        /**
+         * Returns the number of requests rejected because the pending queue was full.
+         * @return the number of requests rejected because the pending queue was full
+         */
+        long getRejected() {
+            return rejected;
+        }
+    }
+
+    /** Outcome of {@link HostPool#acquire(Exchange)}. */
+    private enum Admission {
+        /** The exchange can be sent right away. */
+        LEASED,
+        /** The exchange waits for a connection. */
+        QUEUED,
+        /** The pending queue is full: the exchange has been completed with an error response. */
+        REJECTED,
+        /** The pool is no longer in use: the exchange must be given to the current pool of the host. */
+        RETIRED
+    }
+
+    /**
+     * Book-keeping of the exchanges with a single host.
+     */
+    private final class HostPool {
+        private final String host;
+        private final Deque<Exchange> pending = new ArrayDeque<>();
+        private int leased;
+        private long rejected;
+        private boolean retired;
+
+        /** Releases not handled yet, and whether a thread is handling them. */
+        private int releases;
+        private boolean releasing;
+
+        HostPool(final String host) {
+            this.host = host;
+        }
+
+        /**
+         * Tries to get a connection for the given exchange.
+         */
+        Admission acquire(final Exchange exchange) {
+            synchronized (this) {
+                if (retired) {
+                    return Admission.RETIRED;
+                }
+                if (leased < maxConnectionsPerHost) {
+                    leased++;
+                    return Admission.LEASED;
+                }
+                if (pending.size() < maxPendingRequestsPerHost) {
+                    pending.addLast(exchange);
+                    return Admission.QUEUED;
+                }
+                rejected++;
+            }
+            Response response = new Response(Status.SERVICE_UNAVAILABLE);
+            response.setCause(new Exception(format("Too many pending requests to %s", host)));
+            exchange.promise.handleResult(response);
+            return Admission.REJECTED;
+        }
+
+        /**
+         * Removes the queued exchange as soon as its promise completes, so that a cancelled request does not hold a
+         * place in the queue. An exchange that has already been sent is no longer queued.
+         */
+        void dequeueWhenDone(final Exchange exchange) {
+            exchange.promise.thenAlways(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (HostPool.this) {
+                        pending.remove(exchange);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Gives the connection back, or hands it over to the oldest pending exchange. The pool is removed once it
+         * has no exchange in flight.
+         * <p>
+         * Sending an exchange may release its connection right away (when the next handler completes or fails
+         * synchronously): such nested releases are only counted, and handled by the loop of the outermost call, so
+         * that a long queue of exchanges completing synchronously does not grow the stack.
+         */
+        void release() {
+            synchronized (this) {
+                releases++;
+                if (releasing) {
+                    return;
+                }
+                releasing = true;
+            }
+            while (true) {
+                Exchange next;
+                synchronized (this) {
+                    if (releases == 0) {
+                        releasing = false;
+                        return;
+                    }
+                    releases--;
+                    do {
+                        next = pending.pollFirst();
+                    } while (next != null && next.promise.isDone());
+                    if (next == null) {
+                        leased--;
+                        if (leased == 0) {
+                            retired = true;
+                            pools.remove(host, this);
+                        }
+                        continue;
+                    }
+                }
+                next.send();
+            }
+        }
+
+        synchronized HostStatistics statistics() {
+            return new HostStatistics(leased, maxConnectionsPerHost - leased, pending.size(), rejected);
+        }
+    }
+
+    /**
+     * A request to send once a connection is available.
+     */
+    private static final class Exchange {
+        private final HostPool pool;
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+
+        Exchange(final HostPool pool, final Context context, final Request request, final Handler next) {
+            this.pool = pool;
+            this.context = context;
+            this.request = request;
+            this.next = next;
+        }
+
+        void send() {
+            try {
+                next.handle(context, request)
+                    .thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response response) {
+                            promise.handleResult(response);
+                        }
+                    })
+                    .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                        @Override
+                        public void handleRuntimeException(final RuntimeException exception) {
+                            promise.handleResult(newInternalServerError(exception));
+                        }
+                    })
+                    .thenAlways(new Runnable() {
+                        @Override
+                        public void run() {
+                            pool.release();
+                        }
+                    });
+            } catch (RuntimeException e) {
+                // May be sent from another exchange's thread: always complete the promise
+                promise.handleResult(newInternalServerError(e));
+                pool.release();
+            }
+        }
+    }
+}
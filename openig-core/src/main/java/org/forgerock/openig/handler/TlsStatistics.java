@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSessionContext;
+
+import org.forgerock.json.JsonValue;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Counts the full and resumed TLS handshakes of a {@link ClientHandler}, and keeps their latency distributions.
+ */
+final class TlsStatistics {
+
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final Histogram fullLatencies = new Histogram(new ExponentiallyDecayingReservoir());
+    private final Histogram resumedLatencies = new Histogram(new ExponentiallyDecayingReservoir());
+
+    private volatile SSLSessionContext sessions;
+
+    void handshakeCompleted(final boolean resumed, final long nanos) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+        (resumed ? resumedLatencies : fullLatencies).update(NANOSECONDS.toMicros(nanos));
+    }
+
+    void handshakeFailed() {
+        failedHandshakes.incrementAndGet();
+    }
+
+    void setSessionContext(final SSLSessionContext sessions) {
+        this.sessions = sessions;
+    }
+
+    long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the handshake counts and latencies (in milliseconds), and the state of the client session cache.
+     *
+     * @return the TLS statistics
+     */
+    JsonValue getStatistics() {
+        JsonValue statistics = json(object(field("fullHandshakes", fullHandshakes.get()),
+                                           field("resumedHandshakes", resumedHandshakes.get()),
+                                           field("failedHandshakes", failedHandshakes.get()),
+                                           field("fullHandshakeLatency", latencies(fullLatencies)),
+                                           field("resumedHandshakeLatency", latencies(resumedLatencies))));
+        SSLSessionContext context = sessions;
+        if (context != null) {
+            int cached = 0;
+            for (Enumeration<byte[]> ids = context.getIds(); ids.hasMoreElements(); ids.nextElement()) {
+                cached++;
+            }
+            statistics.put("sessionCache", object(field("size", context.getSessionCacheSize()),
+                                                  field("timeout", context.getSessionTimeout()),
+                                                  field("sessions", cached)));
+        }
+        return statistics;
+    }
+
+    private static Map<String, Object> latencies(final Histogram histogram) {
+        Snapshot snapshot = histogram.getSnapshot();
+        return object(field("mean", millis(snapshot.getMean())),
+                      field("p50", millis(snapshot.getMedian())),
+                      field("p99", millis(snapshot.get99thPercentile())),
+                      field("max", millis(snapshot.getMax())));
+    }
+
+    private static double millis(final double micros) {
+        return micros / 1000d;
+    }
+}
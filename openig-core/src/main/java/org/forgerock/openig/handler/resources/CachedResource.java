@@ -0,0 +1,231 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.resources;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link Resource} snapshot kept by a {@link CachingResourceSet}. Its content is either held in memory as an
+ * immutable byte array (small resources), or read from its {@link File} when served (large resources).
+ * <p>
+ * A cached resource carries a strong entity tag, and may have pre-compressed variants (built from the {@literal .br}
+ * and {@literal .gz} siblings of the original resource) selected according to the request's
+ * {@literal Accept-Encoding} header.
+ */
+final class CachedResource extends AbstractResource {
+
+    private final String etag;
+    private final long lastModified;
+    private final long length;
+    private final String encoding;
+
+    /** Content held in memory, {@code null} if it is served from {@link #file}. */
+    private final byte[] content;
+
+    /** File to read the content from when it is not held in memory. */
+    private final File file;
+
+    /** Pre-compressed variants, in order of preference. */
+    private final List<CachedResource> variants = new ArrayList<>();
+
+    private CachedResource(final String type,
+                           final String etag,
+                           final long lastModified,
+                           final String encoding,
+                           final byte[] content,
+                           final File file) {
+        super(type);
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.content = content;
+        this.file = file;
+        this.length = content != null ? content.length : file.length();
+    }
+
+    /**
+     * Creates a cached resource whose content is held in memory.
+     *
+     * @param type the media type
+     * @param etag the strong entity tag (quoted)
+     * @param lastModified the last modification timestamp (ms)
+     * @param encoding the content-coding of the content, {@code null} for the identity encoding
+     * @param content the content (not copied, must not be modified afterwards)
+     * @return a new cached resource
+     */
+    static CachedResource inMemory(final String type,
+                                   final String etag,
+                                   final long lastModified,
+                                   final String encoding,
+                                   final byte[] content) {
+        return new CachedResource(type, etag, lastModified, encoding, content, null);
+    }
+
+    /**
+     * Creates a cached resource whose content is read from a file when served.
+     *
+     * @param type the media type
+     * @param etag the strong entity tag (quoted)
+     * @param lastModified the last modification timestamp (ms)
+     * @param encoding the content-coding of the file, {@code null} for the identity encoding
+     * @param file the file
+     * @return a new cached resource
+     */
+    static CachedResource onDisk(final String type,
+                                 final String etag,
+                                 final long lastModified,
+                                 final String encoding,
+                                 final File file) {
+        return new CachedResource(type, etag, lastModified, encoding, null, file);
+    }
+
+    /**
+     * Creates a cached resource for a file, with an entity tag built from its timestamp and length.
+     *
+     * @param type the media type
+     * @param lastModified the last modification timestamp (ms)
+     * @param encoding the content-coding of the file, {@code null} for the identity encoding
+     * @param file the file
+     * @return a new cached resource
+     */
+    static CachedResource onDisk(final String type,
+                                 final long lastModified,
+                                 final String encoding,
+                                 final File file) {
+        String etag = format("\"%x-%x%s\"", lastModified, file.length(), encoding == null ? "" : "-" + encoding);
+        return onDisk(type, etag, lastModified, encoding, file);
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return content != null ? new ByteArrayInputStream(content) : new FileInputStream(file);
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the strong entity tag of this resource, including the surrounding quotes.
+     * @return the strong entity tag of this resource
+     */
+    String getETag() {
+        return etag;
+    }
+
+    /**
+     * Returns the length of the content in bytes.
+     * @return the length of the content in bytes
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the content-coding of this resource, or {@code null} for the identity encoding.
+     * @return the content-coding of this resource, or {@code null} for the identity encoding
+     */
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the content of this resource if it is held in memory, {@code null} otherwise.
+     * @return the content of this resource if it is held in memory, {@code null} otherwise
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the file containing this resource when it is not held in memory, {@code null} otherwise.
+     * @return the file containing this resource when it is not held in memory, {@code null} otherwise
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the pre-compressed variants of this resource.
+     * @return the pre-compressed variants of this resource
+     */
+    List<CachedResource> getVariants() {
+        return Collections.unmodifiableList(variants);
+    }
+
+    void addVariant(final CachedResource variant) {
+        variants.add(variant);
+    }
+
+    /**
+     * Selects the representation to send back according to the given {@literal Accept-Encoding} header value: the
+     * first pre-compressed variant whose content-coding is acceptable, or this resource otherwise.
+     *
+     * @param acceptEncoding the {@literal Accept-Encoding} header value, may be {@code null}
+     * @return the selected representation
+     */
+    CachedResource select(final String acceptEncoding) {
+        if (acceptEncoding != null) {
+            for (CachedResource variant : variants) {
+                if (isAcceptable(acceptEncoding, variant.encoding)) {
+                    return variant;
+                }
+            }
+        }
+        return this;
+    }
+
+    private static boolean isAcceptable(final String acceptEncoding, final String coding) {
+        Boolean wildcard = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = qualityOf(parts) > 0;
+            if (name.equals(coding) || ("gzip".equals(coding) && "x-gzip".equals(name))) {
+                return accepted;
+            } else if ("*".equals(name)) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static double qualityOf(final String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.resources;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link CachingResourceSet} keeps the {@link Resource}s found by another {@link ResourceSet} so that serving them
+ * again does not hit the file system.
+ * <p>
+ * Resources smaller than {@code maxEntrySize} are held in memory as immutable byte arrays (within a global
+ * {@code maxMemorySize} budget), larger file-based resources are served straight from their file. Each cached
+ * resource gets a strong entity tag, and the {@literal .br} and {@literal .gz} siblings of a resource (when at least
+ * as recent) are registered as its pre-compressed variants.
+ * <p>
+ * The cache can be invalidated explicitly with {@link #invalidate()}, or automatically by {@linkplain #watch(File)
+ * watching} the directory the resources come from.
+ */
+public class CachingResourceSet implements ResourceSet, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingResourceSet.class);
+
+    /** Default size (in bytes) under which a resource is held in memory. */
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 128 * 1024;
+
+    /** Default size (in bytes) of all the resources held in memory. */
+    public static final long DEFAULT_MAX_MEMORY_SIZE = 16 * 1024 * 1024;
+
+    /** Maximum number of cached paths (guards against many aliases of the same resources). */
+    private static final int MAX_ENTRIES = 4096;
+
+    /** Supported pre-compressed variants, in order of preference: content-coding then file suffix. */
+    private static final String[][] ENCODINGS = { { "br", ".br" }, { "gzip", ".gz" } };
+
+    private final ResourceSet delegate;
+    private final int maxEntrySize;
+    private final long maxMemorySize;
+
+    private final ConcurrentMap<String, CachedResource> cache = new ConcurrentHashMap<>();
+    private final AtomicLong memorySize = new AtomicLong();
+
+    /** Incremented on each invalidation, so that a resource loaded before an invalidation is not cached. */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private WatchService watchService;
+
+    /**
+     * Creates a new cache around the given {@link ResourceSet} with default sizes.
+     *
+     * @param delegate the {@link ResourceSet} to get the resources from
+     */
+    public CachingResourceSet(final ResourceSet delegate) {
+        this(delegate, DEFAULT_MAX_ENTRY_SIZE, DEFAULT_MAX_MEMORY_SIZE);
+    }
+
+    /**
+     * Creates a new cache around the given {@link ResourceSet}.
+     *
+     * @param delegate the {@link ResourceSet} to get the resources from
+     * @param maxEntrySize size (in bytes) under which a resource is held in memory
+     * @param maxMemorySize maximum size (in bytes) of all the resources held in memory
+     */
+    public CachingResourceSet(final ResourceSet delegate, final int maxEntrySize, final long maxMemorySize) {
+        this.delegate = checkNotNull(delegate);
+        this.maxEntrySize = maxEntrySize;
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    /**
+     * Watches the given directory (and its sub-directories) and invalidates the cache whenever something changes in
+     * there. The watch stops when this resource set is {@linkplain #close() closed}.
+     *
+     * @param directory the directory the cached resources come from
+     * @return this resource set
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized CachingResourceSet watch(final File directory) throws IOException {
+        if (watchService != null) {
+            throw new IllegalStateException("Already watching a directory");
+        }
+        watchService = directory.toPath().getFileSystem().newWatchService();
+        registerAll(directory.toPath());
+        Thread thread = new Thread(new Watcher(watchService), "resources-watcher-" + directory.getName());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public Resource find(final String path) {
+        CachedResource cached = cache.get(path);
+        if (cached != null) {
+            return cached;
+        }
+        Resource resource = delegate.find(path);
+        if (resource == null) {
+            return null;
+        }
+        int expected = generation.get();
+        try {
+            cached = load(resource, resource.getType(), null);
+            if (cached == null) {
+                // Can't be cached (too large and not file-based)
+                return resource;
+            }
+            for (String[] encoding : ENCODINGS) {
+                Resource sibling = delegate.find(path + encoding[1]);
+                if (sibling != null && sibling.getLastModified() >= resource.getLastModified()) {
+                    CachedResource variant = load(sibling, resource.getType(), encoding[0]);
+                    if (variant != null) {
+                        cached.addVariant(variant);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Can't cache resource {}", path, e);
+            if (cached != null) {
+                release(cached);
+            }
+            return resource;
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            // Serve it this time, without keeping it
+            release(cached);
+            return cached;
+        }
+        CachedResource previous = cache.putIfAbsent(path, cached);
+        if (previous != null) {
+            release(cached);
+            return previous;
+        }
+        if (generation.get() != expected && cache.remove(path, cached)) {
+            // Invalidated in the meantime
+            release(cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Discards all the cached resources.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        for (String path : cache.keySet()) {
+            CachedResource removed = cache.remove(path);
+            if (removed != null) {
+                release(removed);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the directory (if any) and discards all the cached resources.
+     *
+     * @throws IOException if the directory watcher cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        invalidate();
+    }
+
+    private CachedResource load(final Resource resource, final String type, final String encoding)
+            throws IOException {
+        File file = resource instanceof FileResourceSet.FileResource
+                ? ((FileResourceSet.FileResource) resource).getFile()
+                : null;
+        byte[] content = null;
+        if (file == null || file.length() <= maxEntrySize) {
+            content = readAtMost(resource, maxEntrySize);
+        }
+        if (content != null && memorySize.addAndGet(content.length) > maxMemorySize) {
+            // Over budget: serve it from the file instead
+            memorySize.addAndGet(-content.length);
+            content = null;
+        }
+        if (content != null) {
+            String etag = format("\"%s%s\"", digest(content), encoding == null ? "" : "-" + encoding);
+            return CachedResource.inMemory(type, etag, resource.getLastModified(), encoding, content);
+        } else if (file != null) {
+            return CachedResource.onDisk(type, resource.getLastModified(), encoding, file);
+        }
+        return null;
+    }
+
+    private void release(final CachedResource resource) {
+        long size = 0;
+        if (resource.getContent() != null) {
+            size += resource.getContent().length;
+        }
+        for (CachedResource variant : resource.getVariants()) {
+            if (variant.getContent() != null) {
+                size += variant.getContent().length;
+            }
+        }
+        memorySize.addAndGet(-size);
+    }
+
+    /**
+     * Reads the whole content of the resource if it is not larger than {@code limit} bytes.
+     *
+     * @return the content, or {@code null} if the resource is larger than {@code limit}
+     */
+    private static byte[] readAtMost(final Resource resource, final int limit) throws IOException {
+        try (InputStream stream = resource.open()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > limit) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String digest(final byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder();
+            // 128 bits are plenty to identify a version of a resource
+            for (int i = 0; i < 16; i++) {
+                sb.append(format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private void registerAll(final Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                    throws IOException {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Invalidates the cache on every change notified by the watch service.
+     */
+    private final class Watcher implements Runnable {
+
+        private final WatchService service;
+
+        Watcher(final WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == ENTRY_CREATE) {
+                            Path child = ((Path) key.watchable()).resolve((Path) event.context());
+                            if (Files.isDirectory(child)) {
+                                register(child);
+                            }
+                        }
+                    }
+                    invalidate();
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                logger.debug("Stopped watching resources", e);
+            }
+        }
+
+        private void register(final Path directory) {
+            try {
+                synchronized (CachingResourceSet.this) {
+                    if (watchService == service) {
+                        registerAll(directory);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Can't watch directory {}", directory, e);
+            }
+        }
+    }
+}
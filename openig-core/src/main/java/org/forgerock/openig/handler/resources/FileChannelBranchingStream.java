@@ -0,0 +1,217 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.http.io.BranchingInputStream;
+
+/**
+ * A {@link BranchingInputStream} reading a file through positioned reads on a shared {@link FileChannel}.
+ * <p>
+ * As the file itself is the backing storage, branches and copies are only new positions on the same channel: the
+ * content is never copied into a temporary storage. The channel is closed once the trunk and all its branches are
+ * closed.
+ */
+final class FileChannelBranchingStream extends BranchingInputStream {
+
+    private final FileChannel channel;
+
+    /** Number of open streams sharing the channel. */
+    private final AtomicInteger references;
+
+    private final FileChannelBranchingStream parent;
+
+    private final List<FileChannelBranchingStream> branches = new ArrayList<>();
+
+    /** Position (exclusive) where the stream ends. */
+    private final long end;
+
+    private long position;
+
+    private long mark = -1;
+
+    private boolean closed;
+
+    /**
+     * Opens a stream over the whole content of the given file.
+     *
+     * @param file
+     *         the file to read
+     * @throws IOException
+     *         if the file cannot be opened
+     */
+    FileChannelBranchingStream(final File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), new AtomicInteger(1), null, 0L, -1L);
+    }
+
+    /**
+     * Opens a stream over a range of the given file.
+     *
+     * @param file
+     *         the file to read
+     * @param start
+     *         position of the first byte to read
+     * @param end
+     *         position (exclusive) where the stream ends
+     * @throws IOException
+     *         if the file cannot be opened
+     */
+    FileChannelBranchingStream(final File file, final long start, final long end) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), new AtomicInteger(1), null, start, end);
+    }
+
+    private FileChannelBranchingStream(final FileChannel channel,
+                                       final AtomicInteger references,
+                                       final FileChannelBranchingStream parent,
+                                       final long position,
+                                       final long end) throws IOException {
+        this.channel = channel;
+        this.references = references;
+        this.parent = parent;
+        this.position = position;
+        this.end = end < 0 ? channel.size() : end;
+    }
+
+    @Override
+    public synchronized FileChannelBranchingStream branch() throws IOException {
+        notClosed();
+        FileChannelBranchingStream branch = newStream(this);
+        branches.add(branch);
+        return branch;
+    }
+
+    @Override
+    public synchronized FileChannelBranchingStream copy() throws IOException {
+        notClosed();
+        FileChannelBranchingStream copy = newStream(parent);
+        if (parent != null) {
+            parent.addBranch(copy);
+        }
+        return copy;
+    }
+
+    @Override
+    public FileChannelBranchingStream parent() {
+        return parent;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+        notClosed();
+        if (len == 0) {
+            return 0;
+        }
+        long remaining = end - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+        int read = channel.read(buffer, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long skip(final long n) throws IOException {
+        notClosed();
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        notClosed();
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (mark < 0) {
+            throw new IOException("mark not set");
+        }
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<FileChannelBranchingStream> children;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            children = new ArrayList<>(branches);
+            branches.clear();
+        }
+        // Closing a stream closes its branches
+        for (FileChannelBranchingStream branch : children) {
+            branch.close();
+        }
+        if (parent != null) {
+            parent.removeBranch(this);
+        }
+        if (references.decrementAndGet() == 0) {
+            channel.close();
+        }
+    }
+
+    private synchronized void addBranch(final FileChannelBranchingStream branch) {
+        branches.add(branch);
+    }
+
+    private synchronized void removeBranch(final FileChannelBranchingStream branch) {
+        branches.remove(branch);
+    }
+
+    private FileChannelBranchingStream newStream(final FileChannelBranchingStream parent) throws IOException {
+        references.incrementAndGet();
+        return new FileChannelBranchingStream(channel, references, parent, position, end);
+    }
+
+    private void notClosed() throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+    }
+}
@@ -88,5 +88,9 @@ public class FileResourceSet implements ResourceSet {
         public long getLastModified() {
             return file.lastModified();
         }
+
+        File getFile() {
+            return file;
+        }
     }
 }
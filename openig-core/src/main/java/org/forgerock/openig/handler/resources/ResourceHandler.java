@@ -16,6 +16,9 @@
 
 package org.forgerock.openig.handler.resources;
 
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.forgerock.http.header.HeaderUtil.formatDate;
 import static org.forgerock.http.header.HeaderUtil.parseDate;
 import static org.forgerock.http.io.IO.newBranchingInputStream;
@@ -27,6 +30,7 @@ import static org.forgerock.http.protocol.Status.NOT_FOUND;
 import static org.forgerock.http.protocol.Status.OK;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
@@ -50,6 +54,13 @@ import org.forgerock.util.promise.Promise;
  *
  * <p>It's using the remaining URL information provided by the {@link UriRouterContext} to determine
  * the resource path to look for.
+ *
+ * <p>Resources found through a {@link FileResourceSet} or a {@link CachingResourceSet} are served without copying
+ * their content through the temporary storage, with a strong {@literal ETag} (honouring {@literal If-None-Match}).
+ * Single byte {@literal Range} requests (guarded by {@literal If-Range}) are answered with partial content read from
+ * the file at the requested position, and pre-compressed variants are used when the client accepts them.
+ *
+ * <p>Both {@literal GET} and {@literal HEAD} methods are supported.
  */
 public class ResourceHandler extends GenericHeapObject implements Handler {
 
@@ -59,6 +70,22 @@ public class ResourceHandler extends GenericHeapObject implements Handler {
     @VisibleForTesting
     static final Status NOT_MODIFIED = Status.valueOf(304, "Not Modified");
 
+    /**
+     * {@literal Partial Content} 206 Status.
+     */
+    @VisibleForTesting
+    static final Status PARTIAL_CONTENT = Status.valueOf(206, "Partial Content");
+
+    /**
+     * {@literal Range Not Satisfiable} 416 Status.
+     */
+    @VisibleForTesting
+    static final Status RANGE_NOT_SATISFIABLE = Status.valueOf(416, "Range Not Satisfiable");
+
+    /** Marker for a {@literal Range} header that does not overlap the content. */
+    @VisibleForTesting
+    static final long[] UNSATISFIABLE = new long[0];
+
     private final List<ResourceSet> resourceSets;
     private final List<String> welcomePages;
 
@@ -84,8 +111,9 @@ public class ResourceHandler extends GenericHeapObject implements Handler {
 
     @Override
     public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
-        // Reject any non-GET methods
-        if (!"GET".equals(request.getMethod())) {
+        // Reject any non-GET/HEAD methods
+        boolean head = "HEAD".equals(request.getMethod());
+        if (!"GET".equals(request.getMethod()) && !head) {
             return newResponsePromise(new Response(METHOD_NOT_ALLOWED));
         }
 
@@ -114,6 +142,18 @@ public class ResourceHandler extends GenericHeapObject implements Handler {
             resource = findResource(target);
         }
 
+        if (resource instanceof FileResourceSet.FileResource) {
+            // Serve plain files with the same validators and range support as the cached ones
+            resource = CachedResource.onDisk(resource.getType(),
+                                             resource.getLastModified(),
+                                             null,
+                                             ((FileResourceSet.FileResource) resource).getFile());
+        }
+
+        if (resource instanceof CachedResource) {
+            return newResponsePromise(serve(request, (CachedResource) resource, head));
+        }
+
         if (resource != null) {
             // cached in client ?
             String since = request.getHeaders().getFirst("If-Modified-Since");
@@ -127,10 +167,13 @@ public class ResourceHandler extends GenericHeapObject implements Handler {
             Response response = new Response(OK);
             // last modified
             response.getHeaders().put("Last-Modified", formatDate(new Date(resource.getLastModified())));
-            try {
-                response.getEntity().setRawContentInputStream(newBranchingInputStream(resource.open(), getStorage()));
-            } catch (IOException e) {
-                return newResponsePromise(newInternalServerError(e));
+            if (!head) {
+                try {
+                    response.getEntity()
+                            .setRawContentInputStream(newBranchingInputStream(resource.open(), getStorage()));
+                } catch (IOException e) {
+                    return newResponsePromise(newInternalServerError(e));
+                }
             }
 
             // content-type
@@ -144,6 +187,167 @@ public class ResourceHandler extends GenericHeapObject implements Handler {
         return newResponsePromise(new Response(NOT_FOUND));
     }
 
+    private static Response serve(final Request request, final CachedResource resource, final boolean head) {
+        CachedResource selected = resource.select(request.getHeaders().getFirst("Accept-Encoding"));
+
+        // cached in client ? (If-None-Match takes precedence over If-Modified-Since)
+        String ifNoneMatch = request.getHeaders().getFirst("If-None-Match");
+        String since = request.getHeaders().getFirst("If-Modified-Since");
+        if ((ifNoneMatch != null && matchesAny(ifNoneMatch, selected.getETag()))
+                || (ifNoneMatch == null && since != null && !selected.hasChangedSince(parseDate(since).getTime()))) {
+            Response notModified = new Response(NOT_MODIFIED);
+            putValidators(notModified, resource, selected);
+            return notModified;
+        }
+
+        // Partial content requested ? (only honoured if the client's copy is still the current one)
+        long start = 0;
+        long end = selected.getLength();
+        Status status = OK;
+        String range = request.getHeaders().getFirst("Range");
+        if (range != null && !head && isRangeApplicable(request.getHeaders().getFirst("If-Range"), selected)) {
+            long[] bounds = parseRange(range, selected.getLength());
+            if (bounds == UNSATISFIABLE) {
+                Response unsatisfiable = new Response(RANGE_NOT_SATISFIABLE);
+                unsatisfiable.getHeaders().put("Content-Range", "bytes */" + selected.getLength());
+                putValidators(unsatisfiable, resource, selected);
+                return unsatisfiable;
+            } else if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                status = PARTIAL_CONTENT;
+            }
+        }
+
+        Response response = new Response(status);
+        putValidators(response, resource, selected);
+        if (!head) {
+            try {
+                if (selected.getContent() != null) {
+                    // immutable content, shared by all the responses (unless a range is requested)
+                    byte[] content = selected.getContent();
+                    response.getEntity().setBytes(status == OK ? content : Arrays.copyOfRange(content,
+                                                                                             (int) start,
+                                                                                             (int) end));
+                } else {
+                    response.getEntity()
+                            .setRawContentInputStream(new FileChannelBranchingStream(selected.getFile(), start, end));
+                }
+            } catch (IOException e) {
+                return newInternalServerError(e);
+            }
+        }
+        if (status == PARTIAL_CONTENT) {
+            response.getHeaders().put("Content-Range",
+                                      format("bytes %d-%d/%d", start, end - 1, selected.getLength()));
+        }
+        response.getHeaders().put("Content-Length", String.valueOf(end - start));
+        if (selected.getEncoding() != null) {
+            response.getHeaders().put("Content-Encoding", selected.getEncoding());
+        }
+        if (selected.getType() != null) {
+            response.getHeaders().put(ContentTypeHeader.NAME, selected.getType());
+        }
+        return response;
+    }
+
+    private static void putValidators(final Response response,
+                                      final CachedResource resource,
+                                      final CachedResource selected) {
+        response.getHeaders().put("ETag", selected.getETag());
+        response.getHeaders().put("Last-Modified", formatDate(new Date(selected.getLastModified())));
+        response.getHeaders().put("Accept-Ranges", "bytes");
+        if (!resource.getVariants().isEmpty()) {
+            response.getHeaders().put("Vary", "Accept-Encoding");
+        }
+    }
+
+    /**
+     * Returns {@code true} if one of the entity tags of the given {@literal If-None-Match} header value matches the
+     * given entity tag (weak comparison).
+     */
+    private static boolean matchesAny(final String ifNoneMatch, final String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if ("*".equals(value) || etag.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the {@literal Range} header has to be honoured given the {@literal If-Range} header
+     * value: it is either absent, the current strong entity tag, or the exact last modification date.
+     */
+    private static boolean isRangeApplicable(final String ifRange, final CachedResource selected) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            // Strong comparison
+            return value.equals(selected.getETag());
+        } else if (value.startsWith("W/")) {
+            return false;
+        }
+        Date date = parseDate(value);
+        return date != null && SECONDS.convert(date.getTime(), MILLISECONDS)
+                == SECONDS.convert(selected.getLastModified(), MILLISECONDS);
+    }
+
+    /**
+     * Parses a {@literal Range} header value.
+     *
+     * @return the start (inclusive) and end (exclusive) positions of the range, {@link #UNSATISFIABLE} if the range
+     * does not overlap the content, or {@code null} if the header has to be ignored (not a single valid byte range)
+     */
+    @VisibleForTesting
+    static long[] parseRange(final String range, final long length) {
+        String value = range.trim();
+        if (!value.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = value.substring("bytes=".length()).trim();
+        if (spec.contains(",")) {
+            // Multiple ranges would require a multipart/byteranges response: serve the whole content instead
+            return null;
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] { Math.max(0, length - suffix), length };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[] { start, Math.min(end, length - 1) + 1 };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     private Resource findResource(final String path) {
         // Test path in every root and return the first match
         Resource resource = null;
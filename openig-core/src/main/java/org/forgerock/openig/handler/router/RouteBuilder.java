@@ -107,7 +107,7 @@ class RouteBuilder {
 
         try {
             routeHeap.init(config.copy(), "handler", "session", "name", "condition", "auditService", "globalDecorators",
-                           "monitor", "properties");
+                           "monitor", "properties", "streaming");
 
             Expression<Boolean> condition = config.get("condition").as(expression(Boolean.class, heap.getProperties()));
 
@@ -175,6 +175,10 @@ class RouteBuilder {
         // Log a message if the response is null
         filters.add(new NullResponseFilter());
 
+        if (isStreaming(config)) {
+            filters.add(new StreamingFilter());
+        }
+
         return chainOf(routeHeap.getHandler(), filters);
     }
 
@@ -223,6 +227,39 @@ class RouteBuilder {
         return mc;
     }
 
+    /**
+     * Returns {@code true} if the entities of the route can flow without being copied in the temporary storage.
+     *
+     * <p>Accepted formats:
+     *
+     * <pre>
+     *     {@code
+     *       "streaming": true
+     *     }
+     * </pre>
+     *
+     * <pre>
+     *     {@code
+     *       "streaming": "auto"
+     *     }
+     * </pre>
+     *
+     * With {@literal auto}, the entities are streamed unless the route declares an object that reads them (detected
+     * from its type) or uses them in an expression. By default (if omitted), entities are not streamed.
+     */
+    private boolean isStreaming(final JsonValue config) {
+        JsonValue streaming = config.get("streaming").as(evaluated(heap.getProperties()));
+        if (streaming.isString() && "auto".equalsIgnoreCase(streaming.asString())) {
+            boolean needsEntity = StreamingFilter.needsEntity(config);
+            if (needsEntity) {
+                logger.info("Entities of route '{}' are not streamed as some objects read them",
+                            config.get("name").defaultTo("").asString());
+            }
+            return !needsEntity;
+        }
+        return streaming.defaultTo(false).asBoolean();
+    }
+
     private static class MonitorConfig {
         private boolean enabled;
         private List<Double> percentiles = DEFAULT_PERCENTILES;
@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.router;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.http.io.IO.newBranchingInputStream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Message;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Lets the request and response entities of a route flow straight through, without being copied in the temporary
+ * storage.
+ * <p>
+ * By default, entities are re-readable: as soon as an entity is branched (to be read by a filter, or to copy a
+ * request), the content read is kept in the temporary storage (in memory, then in a file). On a route where no
+ * filter needs the entity, this filter replaces the entities by ones whose branches can only look
+ * {@value #PEEK_LIMIT} bytes ahead: the content is never buffered beyond that, so transfers of any size use a
+ * constant amount of memory. Reading a branch further fails with an {@link java.io.IOException}.
+ */
+class StreamingFilter implements Filter {
+
+    /** Maximum number of bytes buffered for the branches of a streamed entity. */
+    static final int PEEK_LIMIT = 8 * 1024;
+
+    /**
+     * Heap object types (aliases or class names) that read or copy the entities, so that a route declaring one of them
+     * cannot stream its entities.
+     */
+    private static final Set<String> ENTITY_CONSUMERS = new HashSet<>(asList(
+            "CacheFilter", "CoalescingFilter", "EntityExtractFilter", "HttpBasicAuthFilter", "OAuth2ClientFilter",
+            "PasswordReplayFilter", "RetryFilter", "SamlFederationHandler", "ScriptableFilter", "ScriptableHandler",
+            "ScriptableThrottlingPolicy",
+            "org.forgerock.openig.filter.cache.CacheFilter",
+            "org.forgerock.openig.filter.CoalescingFilter",
+            "org.forgerock.openig.filter.EntityExtractFilter",
+            "org.forgerock.openig.filter.HttpBasicAuthFilter",
+            "org.forgerock.openig.filter.oauth2.client.OAuth2ClientFilter",
+            "org.forgerock.openig.filter.PasswordReplayFilterHeaplet",
+            "org.forgerock.openig.filter.RetryFilter",
+            "org.forgerock.openig.filter.ScriptableFilter",
+            "org.forgerock.openig.handler.ScriptableHandler",
+            "org.forgerock.openig.filter.throttling.ScriptableThrottlingPolicy",
+            "org.forgerock.openig.handler.saml.SamlFederationHandler"));
+
+    /**
+     * Matches a reference to the entity of the request or of the response in an expression, such as
+     * {@literal request.entity} or {@literal response['entity']}.
+     */
+    private static final Pattern ENTITY_REFERENCE =
+            Pattern.compile("\\b(?:request|response)\\s*(?:\\.\\s*entity\\b|\\[\\s*['\"]entity['\"]\\s*\\])");
+
+    private static final Factory<Buffer> PEEK_STORAGE = new Factory<Buffer>() {
+        @Override
+        public Buffer newInstance() {
+            return IO.newMemoryBuffer(1024, PEEK_LIMIT);
+        }
+    };
+
+    /**
+     * Returns {@code true} if the given route configuration declares an object that reads the entities, or uses them
+     * in an expression (such as {@literal ${request.entity.string}}).
+     *
+     * @param config
+     *         the route configuration
+     * @return {@code true} if the route needs re-readable entities
+     */
+    static boolean needsEntity(final JsonValue config) {
+        if (config.isString()) {
+            String value = config.asString();
+            return value.contains("${") && ENTITY_REFERENCE.matcher(value).find();
+        }
+        if (config.isMap()) {
+            JsonValue type = config.get("type");
+            if (type.isString() && ENTITY_CONSUMERS.contains(type.asString())) {
+                return true;
+            }
+            // Capture decorators configured to capture the entities
+            JsonValue captureEntity = config.get("captureEntity");
+            if (captureEntity.isBoolean() && captureEntity.asBoolean()) {
+                return true;
+            }
+        }
+        if (config.isMap() || config.isList()) {
+            for (JsonValue child : config) {
+                if (needsEntity(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        Request streamed = new Request();
+        streamed.setMethod(request.getMethod());
+        streamed.setUri(request.getUri());
+        streamed.setVersion(request.getVersion());
+        stream(request, streamed);
+        return next.handle(context, streamed)
+                   .then(new Function<Response, Response, NeverThrowsException>() {
+                       @Override
+                       public Response apply(final Response response) {
+                           if (response == null) {
+                               return null;
+                           }
+                           Response copy = new Response(response.getStatus());
+                           copy.setVersion(response.getVersion());
+                           copy.setCause(response.getCause());
+                           stream(response, copy);
+                           return copy;
+                       }
+                   });
+    }
+
+    /**
+     * Copies the headers of a message, and makes the entity of the copy read the (raw) entity of the original one
+     * through a non-buffering trunk. The original message is not closed: closing the copy closes its entity.
+     */
+    private static void stream(final Message from, final Message to) {
+        for (Map.Entry<String, Header> header : from.getHeaders().asMapOfHeaders().entrySet()) {
+            to.getHeaders().put(header.getKey(), new ArrayList<>(header.getValue().getValues()));
+        }
+        to.getEntity().setRawContentInputStream(newBranchingInputStream(from.getEntity().getRawContentInputStream(),
+                                                                        PEEK_STORAGE));
+    }
+}
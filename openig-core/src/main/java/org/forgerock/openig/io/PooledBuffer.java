@@ -0,0 +1,235 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.OverflowException;
+
+/**
+ * A {@link Buffer} made of fixed-size blocks: direct slabs borrowed from a {@link SlabPool} up to the memory limit
+ * of the buffer (or as long as the pool has free slabs), then blocks of a {@link SpillFile}.
+ * <p>
+ * Each block is owned by this buffer until it is closed, then given back: closing the buffer more than once has no
+ * effect. The blocks are held by a separate {@link Blocks} object, so that the storage can still give them back when
+ * a buffer is garbage collected without having been closed.
+ */
+final class PooledBuffer implements Buffer {
+
+    private final PooledTemporaryStorage storage;
+    private final Blocks blocks;
+    private final int blockSize;
+    private final int memoryBlocks;
+    private final int limit;
+
+    private int length;
+    private boolean closed;
+
+    /**
+     * Creates a new empty buffer.
+     *
+     * @param storage
+     *         the storage that created this buffer (notified of the overflows and of the closure)
+     * @param blocks
+     *         the (empty) blocks of this buffer
+     * @param memoryLimit
+     *         the number of bytes that can be kept in slabs
+     * @param limit
+     *         the maximum length of this buffer
+     */
+    PooledBuffer(final PooledTemporaryStorage storage,
+                 final Blocks blocks,
+                 final int memoryLimit,
+                 final int limit) {
+        this.storage = storage;
+        this.blocks = blocks;
+        this.blockSize = blocks.pool.getSlabSize();
+        this.memoryBlocks = (memoryLimit + blockSize - 1) / blockSize;
+        this.limit = limit;
+    }
+
+    @Override
+    public synchronized byte read(final int position) throws IOException {
+        checkOpen();
+        if (position < 0 || position >= length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return blocks.get(position / blockSize).get(position % blockSize);
+    }
+
+    @Override
+    public synchronized int read(final int position, final byte[] b, final int off, final int len)
+            throws IOException {
+        checkOpen();
+        if (position < 0 || position > length || off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int n = Math.min(len, length - position);
+        int read = 0;
+        while (read < n) {
+            int p = position + read;
+            ByteBuffer block = blocks.get(p / blockSize).duplicate();
+            block.position(p % blockSize);
+            int chunk = Math.min(n - read, block.remaining());
+            block.get(b, off + read, chunk);
+            read += chunk;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void append(final byte b) throws IOException {
+        append(new byte[] {b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void append(final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if ((long) length + len > limit) {
+            storage.overflowed();
+            throw new OverflowException("Buffer limit of " + limit + " bytes exceeded");
+        }
+        int written = 0;
+        while (written < len) {
+            if (length == blocks.size() * blockSize) {
+                if (!blocks.add(memoryBlocks)) {
+                    storage.overflowed();
+                    throw new OverflowException("No more memory nor spill file space available");
+                }
+            }
+            ByteBuffer block = blocks.get(blocks.size() - 1).duplicate();
+            block.position(length % blockSize);
+            int chunk = Math.min(len - written, block.remaining());
+            block.put(b, off + written, chunk);
+            written += chunk;
+            length += chunk;
+        }
+    }
+
+    @Override
+    public synchronized int length() throws IOException {
+        checkOpen();
+        return length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        length = 0;
+        storage.closed(blocks);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Buffer is closed");
+        }
+    }
+
+    /**
+     * The slabs and spill blocks owned by a buffer.
+     */
+    static final class Blocks {
+
+        /** Index recorded for the blocks that are slabs from the pool. */
+        private static final int SLAB = -1;
+
+        private final SlabPool pool;
+        private final SpillFile spill;
+        private final List<ByteBuffer> blocks = new ArrayList<>();
+        private final List<Integer> indexes = new ArrayList<>();
+        private int slabs;
+
+        /**
+         * Creates an empty set of blocks.
+         *
+         * @param pool
+         *         the pool of slabs
+         * @param spill
+         *         the spill file, may be {@code null}
+         */
+        Blocks(final SlabPool pool, final SpillFile spill) {
+            this.pool = pool;
+            this.spill = spill;
+        }
+
+        /**
+         * Adds a block: a slab while less than {@code memoryBlocks} slabs are owned and the pool has free slabs,
+         * otherwise a block of the spill file.
+         *
+         * @param memoryBlocks
+         *         the maximum number of slabs
+         * @return {@code false} if no block is available
+         */
+        synchronized boolean add(final int memoryBlocks) {
+            if (slabs < memoryBlocks) {
+                ByteBuffer slab = pool.borrow();
+                if (slab != null) {
+                    blocks.add(slab);
+                    indexes.add(SLAB);
+                    slabs++;
+                    return true;
+                }
+            }
+            int index = spill != null ? spill.allocate() : -1;
+            if (index == -1) {
+                return false;
+            }
+            blocks.add(spill.block(index));
+            indexes.add(index);
+            return true;
+        }
+
+        synchronized ByteBuffer get(final int i) {
+            return blocks.get(i);
+        }
+
+        synchronized int size() {
+            return blocks.size();
+        }
+
+        /**
+         * Gives all the blocks back to the pool and to the spill file.
+         *
+         * @return the number of blocks given back
+         */
+        synchronized int release() {
+            int released = blocks.size();
+            for (int i = 0; i < released; i++) {
+                int index = indexes.get(i);
+                if (index == SLAB) {
+                    pool.release(blocks.get(i));
+                } else {
+                    spill.release(index);
+                }
+            }
+            blocks.clear();
+            indexes.clear();
+            slabs = 0;
+            return released;
+        }
+    }
+}
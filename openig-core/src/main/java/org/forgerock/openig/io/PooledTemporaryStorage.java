@@ -0,0 +1,293 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.JsonValueFunctions.file;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.IO;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.ReadOnlyResourceProvider;
+import org.forgerock.util.Factory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A temporary storage whose buffers are made of pooled, off-heap blocks.
+ * <p>
+ * Unlike {@link IO#newTemporaryStorage}, whose buffers grow their own heap array before spilling to a new temporary
+ * file, the buffers created by this storage borrow direct memory slabs from a shared pool, and spill to the blocks
+ * of a single preallocated, memory-mapped file. The blocks are given back when the buffers are closed: under load,
+ * the entities do not produce garbage, nor create and delete files.
+ * <p>
+ * A buffer spills as soon as it exceeds its own {@literal memoryLimit}, or when the pool is exhausted. A buffer
+ * overflows (the entity cannot be branched further) when it exceeds its {@literal fileLimit}, or when the spill file
+ * is full.
+ * <p>
+ * The blocks of a buffer that is garbage collected without having been closed are reclaimed the next time a buffer
+ * is created: such leaks are counted, and logged as warnings.
+ * <p>
+ * Declare it in the heap with the {@literal TemporaryStorage} name to replace the default temporary storage.
+ * <p>
+ * The utilisation of the pool and of the spill file is exposed through the {@literal storage} endpoint of this
+ * object.
+ * <p>
+ * Configuration options:
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "directory"   : expression,  [OPTIONAL - where to create the spill file, default to the system
+ *                                              temporary directory]
+ *     "blockSize"   : integer,     [OPTIONAL - size of the slabs and spill blocks, default to 8 KiB]
+ *     "poolSize"    : integer,     [OPTIONAL - bytes of direct memory shared by all buffers, default to 64 MiB]
+ *     "memoryLimit" : integer,     [OPTIONAL - bytes of direct memory per buffer, default to 64 KiB]
+ *     "spillSize"   : integer,     [OPTIONAL - length of the spill file, 0 to disable it, default to 64 MiB]
+ *     "fileLimit"   : integer      [OPTIONAL - maximum length of a buffer, default to 1 GiB]
+ * }
+ * }
+ * </pre>
+ */
+public class PooledTemporaryStorage implements Factory<Buffer>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PooledTemporaryStorage.class);
+
+    static final int DEFAULT_BLOCK_SIZE = 8 * 1024;
+    static final int DEFAULT_POOL_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_SPILL_SIZE = 64 * 1024 * 1024;
+
+    private final SlabPool pool;
+    private final SpillFile spill;
+    private final int memoryLimit;
+    private final int fileLimit;
+
+    private final AtomicInteger openBuffers = new AtomicInteger();
+    private final AtomicLong createdBuffers = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /** The references to the open buffers, by blocks: removed when a buffer is closed. */
+    private final Map<PooledBuffer.Blocks, BufferReference> references = new ConcurrentHashMap<>();
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+
+    /**
+     * Creates a new pooled storage.
+     *
+     * @param directory
+     *         the directory where to create the spill file, {@code null} for the default temporary directory
+     * @param blockSize
+     *         the size of the slabs and of the spill blocks (bytes)
+     * @param poolSize
+     *         the amount of direct memory shared by all the buffers (bytes)
+     * @param memoryLimit
+     *         the amount of direct memory a buffer can use before spilling (bytes)
+     * @param spillSize
+     *         the length of the spill file (bytes), {@literal 0} for no spill file
+     * @param fileLimit
+     *         the maximum length of a buffer (bytes)
+     * @throws IOException
+     *         if the spill file cannot be created
+     */
+    public PooledTemporaryStorage(final File directory,
+                                  final int blockSize,
+                                  final int poolSize,
+                                  final int memoryLimit,
+                                  final int spillSize,
+                                  final int fileLimit) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        this.pool = new SlabPool(blockSize, poolSize / blockSize);
+        this.spill = spillSize >= blockSize ? new SpillFile(directory, blockSize, spillSize) : null;
+        this.memoryLimit = memoryLimit;
+        this.fileLimit = fileLimit;
+    }
+
+    @Override
+    public Buffer newInstance() {
+        reclaim();
+        openBuffers.incrementAndGet();
+        createdBuffers.incrementAndGet();
+        PooledBuffer.Blocks blocks = new PooledBuffer.Blocks(pool, spill);
+        PooledBuffer buffer = new PooledBuffer(this, blocks, memoryLimit, fileLimit);
+        references.put(blocks, new BufferReference(buffer, blocks, collected));
+        return buffer;
+    }
+
+    void overflowed() {
+        overflows.incrementAndGet();
+    }
+
+    void closed(final PooledBuffer.Blocks blocks) {
+        if (references.remove(blocks) != null) {
+            blocks.release();
+            openBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives back the blocks of the buffers that have been garbage collected without having been closed.
+     */
+    private void reclaim() {
+        Reference<? extends PooledBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            PooledBuffer.Blocks blocks = ((BufferReference) reference).blocks;
+            if (references.remove(blocks) != null) {
+                int released = blocks.release();
+                openBuffers.decrementAndGet();
+                leaks.incrementAndGet();
+                logger.warn("A buffer has not been closed before being garbage collected, reclaimed its {} blocks",
+                            released);
+            }
+        }
+    }
+
+    /**
+     * Returns the utilisation statistics of the pool and of the spill file.
+     *
+     * @return the utilisation statistics
+     */
+    public JsonValue getStatistics() {
+        reclaim();
+        int poolCapacity = pool.getCapacity();
+        int poolInUse = pool.getInUse();
+        int spillCapacity = spill != null ? spill.getCapacity() : 0;
+        int spillInUse = spill != null ? spill.getInUse() : 0;
+        return json(object(field("blockSize", pool.getSlabSize()),
+                           field("openBuffers", openBuffers.get()),
+                           field("createdBuffers", createdBuffers.get()),
+                           field("overflows", overflows.get()),
+                           field("leaks", leaks.get()),
+                           field("pool", object(field("capacity", poolCapacity),
+                                                field("allocated", pool.getAllocated()),
+                                                field("inUse", poolInUse),
+                                                field("utilisation", ratio(poolInUse, poolCapacity)),
+                                                field("misses", pool.getMisses()))),
+                           field("spill", object(field("capacity", spillCapacity),
+                                                 field("inUse", spillInUse),
+                                                 field("utilisation", ratio(spillInUse, spillCapacity))))));
+    }
+
+    private static double ratio(final int value, final int total) {
+        return total > 0 ? (double) value / total : 0d;
+    }
+
+    /**
+     * Deletes the spill file. The buffers still open cannot be used anymore.
+     *
+     * @throws IOException
+     *         if the spill file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /**
+     * A reference to a buffer that is enqueued once the buffer is garbage collected, and that keeps its blocks.
+     */
+    private static final class BufferReference extends PhantomReference<PooledBuffer> {
+
+        private final PooledBuffer.Blocks blocks;
+
+        BufferReference(final PooledBuffer buffer,
+                        final PooledBuffer.Blocks blocks,
+                        final ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            this.blocks = blocks;
+        }
+    }
+
+    /** Creates and initializes a pooled temporary storage in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private EndpointRegistry.Registration registration;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            JsonValue blockSize = evaluated.get("blockSize").defaultTo(DEFAULT_BLOCK_SIZE);
+            if (blockSize.asInteger() <= 0) {
+                throw new JsonValueException(blockSize, "The block size must be positive");
+            }
+            try {
+                return new PooledTemporaryStorage(evaluated.get("directory").as(file()),
+                                                  blockSize.asInteger(),
+                                                  evaluated.get("poolSize").defaultTo(DEFAULT_POOL_SIZE).asInteger(),
+                                                  evaluated.get("memoryLimit")
+                                                           .defaultTo(IO.DEFAULT_TMP_MEMORY_LIMIT)
+                                                           .asInteger(),
+                                                  evaluated.get("spillSize").defaultTo(DEFAULT_SPILL_SIZE).asInteger(),
+                                                  evaluated.get("fileLimit")
+                                                           .defaultTo(IO.DEFAULT_TMP_FILE_LIMIT)
+                                                           .asInteger());
+            } catch (IOException e) {
+                throw new HeapException("Cannot create the spill file", e);
+            }
+        }
+
+        @Override
+        public void start() throws HeapException {
+            final PooledTemporaryStorage pooled = (PooledTemporaryStorage) object;
+            ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                @Override
+                public JsonValue newInstance() {
+                    return pooled.getStatistics();
+                }
+            });
+            registration = endpointRegistry().register("storage", newHttpHandler(newHandler(provider)));
+            logger.info("Temporary storage statistics endpoint available at '{}'", registration.getPath());
+        }
+
+        @Override
+        public void destroy() {
+            if (registration != null) {
+                registration.unregister();
+            }
+            if (object != null) {
+                try {
+                    ((PooledTemporaryStorage) object).close();
+                } catch (IOException e) {
+                    logger.warn("Cannot delete the spill file", e);
+                }
+            }
+            super.destroy();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of direct {@link ByteBuffer} slabs of the same size.
+ * <p>
+ * Slabs are allocated lazily, up to the capacity of the pool, and are kept once released: they are never given back
+ * to the JVM, so the off-heap memory of the pool is allocated once and reused by all the buffers.
+ */
+final class SlabPool {
+
+    private final int slabSize;
+    private final int capacity;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param slabSize
+     *         the size of each slab (bytes)
+     * @param capacity
+     *         the maximum number of slabs allocated by this pool
+     */
+    SlabPool(final int slabSize, final int capacity) {
+        this.slabSize = slabSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Borrows a slab from this pool.
+     *
+     * @return a cleared slab, or {@code null} if all the slabs of this pool are in use
+     */
+    ByteBuffer borrow() {
+        ByteBuffer slab = free.poll();
+        if (slab == null) {
+            if (allocated.incrementAndGet() > capacity) {
+                allocated.decrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            slab = ByteBuffer.allocateDirect(slabSize);
+        }
+        inUse.incrementAndGet();
+        slab.clear();
+        return slab;
+    }
+
+    /**
+     * Gives a slab back to this pool.
+     *
+     * @param slab
+     *         a slab borrowed from this pool
+     */
+    void release(final ByteBuffer slab) {
+        inUse.decrementAndGet();
+        free.offer(slab);
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getAllocated() {
+        return allocated.get();
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A preallocated, memory-mapped file, divided in blocks of the same size that are handed out to the buffers
+ * exceeding their memory limit.
+ * <p>
+ * The file is created once, with its final length, and is deleted when closed (or when the JVM exits): no file is
+ * created nor deleted per message.
+ */
+final class SpillFile implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer mapped;
+    private final int blockSize;
+    private final int capacity;
+
+    /** Guarded by this. */
+    private final BitSet used;
+    private int inUse;
+    private int next;
+
+    /**
+     * Creates and maps a new spill file.
+     *
+     * @param directory
+     *         the directory where to create the file, {@code null} for the default temporary directory
+     * @param blockSize
+     *         the size of each block (bytes)
+     * @param size
+     *         the length of the file (bytes), rounded down to a number of blocks
+     * @throws IOException
+     *         if the file cannot be created or mapped
+     */
+    SpillFile(final File directory, final int blockSize, final int size) throws IOException {
+        this.blockSize = blockSize;
+        this.capacity = size / blockSize;
+        this.used = new BitSet(capacity);
+        this.file = File.createTempFile("openig-spill-", ".tmp", directory);
+        file.deleteOnExit();
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long) capacity * blockSize);
+            this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * blockSize);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves a free block.
+     *
+     * @return the index of the block, or {@literal -1} if the file is full
+     */
+    synchronized int allocate() {
+        if (inUse == capacity) {
+            return -1;
+        }
+        int index = used.nextClearBit(next);
+        if (index >= capacity) {
+            index = used.nextClearBit(0);
+        }
+        used.set(index);
+        inUse++;
+        next = index + 1;
+        return index;
+    }
+
+    /**
+     * Returns a view of a block: the view has its own position and limit.
+     *
+     * @param index
+     *         the index of a reserved block
+     * @return a view of the block
+     */
+    synchronized ByteBuffer block(final int index) {
+        ByteBuffer view = mapped.duplicate();
+        view.position(index * blockSize);
+        view.limit(index * blockSize + blockSize);
+        return view.slice();
+    }
+
+    /**
+     * Gives a block back.
+     *
+     * @param index
+     *         the index of a reserved block
+     */
+    synchronized void release(final int index) {
+        if (used.get(index)) {
+            used.clear(index);
+            inUse--;
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized int getInUse() {
+        return inUse;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            raf.close();
+        } finally {
+            // The mapping remains valid until garbage collected: on some platforms the deletion only happens then
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
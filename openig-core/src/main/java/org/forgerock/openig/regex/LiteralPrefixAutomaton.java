@@ -0,0 +1,257 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Aho-Corasick automaton over the literal prefixes of a set of regular expression patterns. Feeding characters to
+ * the automaton one at a time reports every position where one of the literal prefixes ends, in a single pass over
+ * the input, whatever the number of patterns.
+ * <p>
+ * The automaton is compiled into a complete transition table (failure links are folded into the transitions), so
+ * each character costs one table lookup.
+ */
+final class LiteralPrefixAutomaton {
+
+    /** Characters that have a special meaning in a regular expression. */
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    /** Flags that change the way literal characters are matched. */
+    private static final int UNSUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE
+            | Pattern.UNICODE_CASE
+            | Pattern.CANON_EQ
+            | Pattern.COMMENTS;
+
+    private static final int[] NO_OUTPUT = new int[0];
+
+    /** Sorted distinct characters appearing in the prefixes. */
+    private final char[] alphabet;
+
+    /** Transitions, indexed by state then by alphabet index (last column for any other character). */
+    private final int[][] transitions;
+
+    /** Indexes of the patterns whose prefix ends in each state. */
+    private final int[][] outputs;
+
+    /** Length of the literal prefix of each pattern ({@code 0} if the pattern has none). */
+    private final int[] prefixLengths;
+
+    /** Current state. */
+    private int state;
+
+    /**
+     * Builds an automaton for the given literal prefixes, {@code null} or empty prefixes are ignored.
+     *
+     * @param prefixes
+     *         the literal prefixes, indexed like the patterns they come from
+     */
+    LiteralPrefixAutomaton(final String[] prefixes) {
+        prefixLengths = new int[prefixes.length];
+        TreeSet<Character> chars = new TreeSet<>();
+        for (int n = 0; n < prefixes.length; n++) {
+            if (prefixes[n] != null) {
+                prefixLengths[n] = prefixes[n].length();
+                for (char c : prefixes[n].toCharArray()) {
+                    chars.add(c);
+                }
+            }
+        }
+        alphabet = new char[chars.size()];
+        int index = 0;
+        for (Character c : chars) {
+            alphabet[index++] = c;
+        }
+        int width = alphabet.length + 1;
+
+        // Build the trie
+        List<int[]> trie = new ArrayList<>();
+        List<int[]> out = new ArrayList<>();
+        trie.add(newRow(width));
+        out.add(NO_OUTPUT);
+        for (int n = 0; n < prefixes.length; n++) {
+            if (prefixLengths[n] == 0) {
+                continue;
+            }
+            int current = 0;
+            for (char c : prefixes[n].toCharArray()) {
+                int symbol = symbol(c);
+                if (trie.get(current)[symbol] < 0) {
+                    trie.get(current)[symbol] = trie.size();
+                    trie.add(newRow(width));
+                    out.add(NO_OUTPUT);
+                }
+                current = trie.get(current)[symbol];
+            }
+            out.set(current, append(out.get(current), n));
+        }
+
+        // Breadth-first computation of the failure links, folded into the transition table
+        int[] failures = new int[trie.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        int[] root = trie.get(0);
+        for (int symbol = 0; symbol < width; symbol++) {
+            if (root[symbol] < 0) {
+                root[symbol] = 0;
+            } else {
+                failures[root[symbol]] = 0;
+                queue.add(root[symbol]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int current = queue.remove();
+            int[] row = trie.get(current);
+            for (int symbol = 0; symbol < width; symbol++) {
+                int next = row[symbol];
+                int fallback = trie.get(failures[current])[symbol];
+                if (next < 0) {
+                    row[symbol] = fallback;
+                } else {
+                    failures[next] = fallback;
+                    out.set(next, concat(out.get(next), out.get(fallback)));
+                    queue.add(next);
+                }
+            }
+        }
+
+        transitions = trie.toArray(new int[trie.size()][]);
+        outputs = out.toArray(new int[out.size()][]);
+    }
+
+    /**
+     * Returns {@code true} if none of the patterns has a literal prefix.
+     *
+     * @return {@code true} if none of the patterns has a literal prefix
+     */
+    boolean isEmpty() {
+        return transitions.length == 1;
+    }
+
+    /**
+     * Returns the length of the literal prefix of the pattern at the given index.
+     *
+     * @param index
+     *         pattern index
+     * @return the length of the literal prefix, {@code 0} if the pattern has no literal prefix
+     */
+    int prefixLength(final int index) {
+        return prefixLengths[index];
+    }
+
+    /**
+     * Feeds the next character of the input to the automaton.
+     *
+     * @param c
+     *         the next character
+     * @return the indexes of the patterns whose literal prefix ends with this character (never {@code null})
+     */
+    int[] next(final char c) {
+        state = transitions[state][symbol(c)];
+        return outputs[state];
+    }
+
+    private int symbol(final char c) {
+        int index = Arrays.binarySearch(alphabet, c);
+        return index < 0 ? alphabet.length : index;
+    }
+
+    /**
+     * Extracts the literal characters any match of the given pattern has to start with. The extraction is
+     * conservative: it returns {@code null} as soon as the pattern uses a construct (alternation, group, character
+     * class, inline flag...) at its beginning.
+     *
+     * @param pattern
+     *         the pattern to inspect
+     * @return the literal prefix of the pattern, or {@code null} if none can be determined
+     */
+    static String literalPrefix(final Pattern pattern) {
+        if ((pattern.flags() & UNSUPPORTED_FLAGS) != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        if ((pattern.flags() & Pattern.LITERAL) != 0) {
+            return regex.isEmpty() ? null : regex;
+        }
+        if (regex.indexOf('|') >= 0) {
+            // Alternation may appear anywhere, do not bother
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder();
+        int n = 0;
+        // A leading line anchor does not consume any character
+        if (regex.startsWith("^")) {
+            n++;
+        }
+        while (n < regex.length()) {
+            char c = regex.charAt(n);
+            int next;
+            if (c == '\\') {
+                if (n + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(n + 1))) {
+                    // Character class, back reference, quotation, boundary...
+                    break;
+                }
+                c = regex.charAt(n + 1);
+                next = n + 2;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                next = n + 1;
+            }
+            if (next < regex.length()) {
+                char quantifier = regex.charAt(next);
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{') {
+                    // This character is optional (or its repetition is unknown): stop before it
+                    break;
+                }
+                if (quantifier == '+') {
+                    prefix.append(c);
+                    break;
+                }
+            }
+            prefix.append(c);
+            n = next;
+        }
+        return prefix.length() == 0 ? null : prefix.toString();
+    }
+
+    private static int[] newRow(final int width) {
+        int[] row = new int[width];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int[] append(final int[] values, final int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+
+    private static int[] concat(final int[] first, final int[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -12,7 +12,7 @@
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
  * Copyright 2010-2011 ApexIdentity Inc.
- * Portions Copyright 2011-2015 ForgeRock AS.
+ * Portions Copyright 2011-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.regex;
@@ -20,12 +20,14 @@ package org.forgerock.openig.regex;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 
 /**
@@ -64,7 +66,9 @@ public class StreamPatternExtractor {
      * applied template).
      * <p>
      * Patterns are resolved lazily; only as much of the stream is read in order
-     * to satisfy a request for a specific key in the returned map.
+     * to satisfy a request for a specific key in the returned map. All the
+     * patterns are searched for in a single pass, and the stream is not read
+     * anymore once every pattern has been resolved.
      * <p>
      * <strong>Note:</strong> If an {@link IOException} is encountered when
      * accessing the stream, the exception is caught and suppressed. This
@@ -74,21 +78,18 @@ public class StreamPatternExtractor {
      * @param reader the character stream .
      * @return a mapping of names to pattern match results (literal match or
      * applied template).
+     * @see StreamPatternScanner
      */
     public Iterable<Map.Entry<String, String>> extract(final Reader reader) {
+        final List<String> keys = new ArrayList<>(patterns.keySet());
+        final StreamPatternScanner scanner = new StreamPatternScanner(reader, new ArrayList<>(patterns.values()));
         return new Iterable<Map.Entry<String, String>>() {
-            private final Map<String, String> values = new HashMap<>();
-            @SuppressWarnings("rawtypes")
-            private Map.Entry[] entries = patterns.entrySet().toArray(
-                    new Map.Entry[patterns.size()]);
-            private final StreamPatternMatches matches = new StreamPatternMatches(reader, patterns
-                    .values(), true);
-
             @Override
             public Iterator<Map.Entry<String, String>> iterator() {
-                final Iterator<String> iterator = patterns.keySet().iterator();
-
+                final Iterator<String> iterator = keys.iterator();
                 return new Iterator<Map.Entry<String, String>>() {
+                    private int index = 0;
+
                     @Override
                     public boolean hasNext() {
                         return iterator.hasNext();
@@ -97,34 +98,17 @@ public class StreamPatternExtractor {
                     @Override
                     public Entry<String, String> next() {
                         String key = iterator.next();
-                        String value = values.get(key);
+                        String value = null;
                         try {
-                            while (value == null && matches.hasNext()) {
-                                Matcher matcher = matches.next();
-                                Pattern pattern = matcher.pattern();
-                                for (int n = 0; n < entries.length; n++) {
-                                    if (entries[n] != null) {
-                                        String entryKey = (String) (entries[n].getKey());
-                                        Pattern entryPattern = (Pattern) (entries[n].getValue());
-                                        if (entryPattern == pattern) {
-                                            // identity equality for accurate (and quick) correlation
-                                            PatternTemplate t = templates.get(entryKey);
-                                            String v =
-                                                    (t != null ? t.applyTo(matcher) : matcher
-                                                            .group());
-                                            values.put(entryKey, value);
-                                            if (entryKey.equals(key)) {
-                                                // found the value we were looking for
-                                                value = v;
-                                            }
-                                            // used entry; deference for efficiency
-                                            entries[n] = null;
-                                        }
-                                    }
-                                }
+                            MatchResult result = scanner.find(index);
+                            if (result != null) {
+                                PatternTemplate t = templates.get(key);
+                                value = (t != null ? t.applyTo(result) : result.group());
                             }
                         } catch (IOException ioe) {
                             // any failure to read stream yields null value in mapping
+                        } finally {
+                            index++;
                         }
                         return new AbstractMap.SimpleImmutableEntry<>(key, value);
                     }
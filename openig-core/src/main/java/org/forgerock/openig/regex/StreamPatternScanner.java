@@ -0,0 +1,450 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the first match of each of a set of regular expression patterns within a character stream, in a single
+ * pass.
+ * <p>
+ * The stream is read through a fixed-size sliding window: all the patterns that are not resolved yet are tried
+ * against the window content, then the part of the window that cannot contribute to a match anymore is discarded to
+ * make room for the next characters. Unlike {@link StreamPatternMatches}, the input is not split into lines, so a
+ * match may span several lines. Patterns are evaluated in {@link Pattern#MULTILINE} mode, so that {@code ^} and
+ * {@code $} keep on matching at line boundaries. A match cannot be longer than half of the window size.
+ * <p>
+ * Patterns starting with literal characters are pre-filtered: an Aho-Corasick automaton built over all these
+ * literal prefixes locates the candidate positions in one pass over the stream, and the regular expression is only
+ * evaluated, anchored, at these positions.
+ * <p>
+ * Reading stops as soon as every pattern has been resolved: the remaining part of the stream is never read.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+public class StreamPatternScanner implements Closeable {
+
+    /** Default size (in characters) of the sliding window. */
+    public static final int DEFAULT_WINDOW_SIZE = 8192;
+
+    /** The patterns to search for, in multi-line mode. */
+    private final Pattern[] patterns;
+
+    /** One matcher per pattern, reset against the window content at each scan. */
+    private final Matcher[] matchers;
+
+    /** Matches found so far. */
+    private final MatchResult[] results;
+
+    /** Position in the window from where patterns without a literal prefix are still to be searched. */
+    private final int[] searchFrom;
+
+    /** Candidate start positions (in the window) of patterns with a literal prefix, in ascending order. */
+    private final IntQueue[] candidates;
+
+    /** Literal prefixes pre-filter, {@code null} if no pattern has a literal prefix. */
+    private final LiteralPrefixAutomaton automaton;
+
+    /** Length of the longest literal prefix. */
+    private final int longestPrefix;
+
+    /** The sliding window. */
+    private final char[] window;
+
+    /** The character stream to search. */
+    private Reader input;
+
+    /** Number of valid characters in the window. */
+    private int length;
+
+    /** Number of characters of the window already fed to the pre-filter. */
+    private int filtered;
+
+    /** First window position a match may start from (a leading character is kept to evaluate boundaries). */
+    private int floor;
+
+    /** Stream offset of the first character of the window. */
+    private long offset;
+
+    /** Number of patterns not resolved yet. */
+    private int unresolved;
+
+    /** Has the end of the stream been reached. */
+    private boolean eof;
+
+    /**
+     * Constructs a new stream pattern scanner with the {@link #DEFAULT_WINDOW_SIZE default window size}.
+     *
+     * @param input
+     *         the character stream to match regular expression patterns against.
+     * @param patterns
+     *         the regular expression patterns to match.
+     */
+    public StreamPatternScanner(final Reader input, final List<Pattern> patterns) {
+        this(input, patterns, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a new stream pattern scanner.
+     *
+     * @param input
+     *         the character stream to match regular expression patterns against.
+     * @param patterns
+     *         the regular expression patterns to match.
+     * @param windowSize
+     *         the size (in characters) of the sliding window, the longest possible match being half of it.
+     */
+    public StreamPatternScanner(final Reader input, final List<Pattern> patterns, final int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("The window size must be at least 2 characters");
+        }
+        this.input = checkNotNull(input);
+        this.window = new char[windowSize];
+        int size = patterns.size();
+        this.patterns = new Pattern[size];
+        this.matchers = new Matcher[size];
+        this.results = new MatchResult[size];
+        this.searchFrom = new int[size];
+        this.candidates = new IntQueue[size];
+        this.unresolved = size;
+
+        String[] prefixes = new String[size];
+        int longest = 0;
+        for (int n = 0; n < size; n++) {
+            Pattern pattern = patterns.get(n);
+            this.patterns[n] = (pattern.flags() & Pattern.MULTILINE) != 0
+                    ? pattern
+                    : Pattern.compile(pattern.pattern(), pattern.flags() | Pattern.MULTILINE);
+            this.matchers[n] = this.patterns[n].matcher("");
+            this.matchers[n].useTransparentBounds(true);
+            this.matchers[n].useAnchoringBounds(false);
+            prefixes[n] = LiteralPrefixAutomaton.literalPrefix(pattern);
+            if (prefixes[n] != null) {
+                candidates[n] = new IntQueue();
+                longest = Math.max(longest, prefixes[n].length());
+            }
+        }
+        LiteralPrefixAutomaton prefilter = new LiteralPrefixAutomaton(prefixes);
+        this.automaton = prefilter.isEmpty() ? null : prefilter;
+        this.longestPrefix = longest;
+    }
+
+    /**
+     * Returns the first match of the pattern at the given index, reading the stream only as far as required to
+     * resolve it. Matches of the other patterns found on the way are kept for later calls.
+     * <p>
+     * The groups of the returned result are detached from the stream, and its {@code start} and {@code end}
+     * methods return offsets from the beginning of the stream.
+     *
+     * @param index
+     *         the index of the pattern in the list given at construction time.
+     * @return the first match of the pattern, or {@code null} if the pattern does not match the stream.
+     * @throws IOException
+     *         if an I/O exception occurs.
+     */
+    public MatchResult find(final int index) throws IOException {
+        while (results[index] == null && !eof) {
+            if (input == null) {
+                throw new IOException("stream is closed");
+            }
+            advance();
+        }
+        return results[index];
+    }
+
+    /**
+     * Returns {@code true} if every pattern has been resolved, in which case the stream will not be read anymore.
+     *
+     * @return {@code true} if every pattern has been resolved.
+     */
+    public boolean isResolved() {
+        return unresolved == 0;
+    }
+
+    /**
+     * Closes this scanner, as well as the reader it is reading from.
+     *
+     * @throws IOException
+     *         if an I/O exception occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    /**
+     * Reads the next characters in the window, then evaluates the unresolved patterns against it.
+     */
+    private void advance() throws IOException {
+        if (length == window.length) {
+            slide();
+        }
+        // Fill the window as much as possible to limit the number of evaluations
+        while (length < window.length) {
+            int read = input.read(window, length, window.length - length);
+            if (read < 0) {
+                eof = true;
+                break;
+            }
+            length += read;
+        }
+        prefilter();
+        scan();
+    }
+
+    /**
+     * Feeds the characters read since last time to the automaton, and records the candidate start positions.
+     */
+    private void prefilter() {
+        if (automaton == null) {
+            filtered = length;
+            return;
+        }
+        for (; filtered < length; filtered++) {
+            for (int index : automaton.next(window[filtered])) {
+                int start = filtered - automaton.prefixLength(index) + 1;
+                if (results[index] == null && start >= floor) {
+                    candidates[index].add(start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates each unresolved pattern against the window content.
+     */
+    private void scan() {
+        CharSequence content = CharBuffer.wrap(window, 0, length);
+        for (int index = 0; index < patterns.length; index++) {
+            if (results[index] != null) {
+                continue;
+            }
+            Matcher matcher = matchers[index].reset(content);
+            if (candidates[index] != null) {
+                scanCandidates(index, matcher);
+            } else {
+                scanWindow(index, matcher);
+            }
+        }
+        if (eof) {
+            // Patterns not resolved by now will never be
+            unresolved = 0;
+        }
+    }
+
+    private void scanCandidates(final int index, final Matcher matcher) {
+        IntQueue queue = candidates[index];
+        while (!queue.isEmpty()) {
+            matcher.region(queue.peek(), length);
+            boolean found = matcher.lookingAt();
+            if (matcher.hitEnd() && !eof) {
+                // More input may change the outcome: wait for it
+                return;
+            }
+            if (found) {
+                resolve(index, matcher);
+                return;
+            }
+            queue.remove();
+        }
+    }
+
+    private void scanWindow(final int index, final Matcher matcher) {
+        matcher.region(Math.max(searchFrom[index], floor), length);
+        boolean found = matcher.find();
+        if (matcher.hitEnd() && !eof) {
+            // An attempt reached the end of the window, more input may change the outcome: wait for it
+            if (!found) {
+                // No match completes within the window: a match may only start in its last half
+                searchFrom[index] = Math.max(searchFrom[index], length - window.length / 2);
+            }
+            return;
+        }
+        if (found) {
+            resolve(index, matcher);
+        } else {
+            searchFrom[index] = length;
+        }
+    }
+
+    private void resolve(final int index, final Matcher matcher) {
+        results[index] = new DetachedMatchResult(matcher, offset);
+        if (candidates[index] != null) {
+            candidates[index].clear();
+        }
+        unresolved--;
+    }
+
+    /**
+     * Discards the beginning of the window that cannot contribute to a match anymore.
+     */
+    private void slide() {
+        // Keep enough characters to complete the literal prefixes in progress
+        int keepFrom = length - Math.max(longestPrefix - 1, 0);
+        for (int index = 0; index < patterns.length; index++) {
+            if (results[index] == null) {
+                if (candidates[index] != null) {
+                    if (!candidates[index].isEmpty()) {
+                        keepFrom = Math.min(keepFrom, candidates[index].peek());
+                    }
+                } else {
+                    keepFrom = Math.min(keepFrom, searchFrom[index]);
+                }
+            }
+        }
+        // Keep one more character so that boundaries (^, \b...) are evaluated correctly
+        int discarded = keepFrom - 1;
+        if (discarded < length / 2) {
+            // A pending match is longer than half of the window: give up on its beginning
+            discarded = length / 2;
+        }
+        System.arraycopy(window, discarded, window, 0, length - discarded);
+        length -= discarded;
+        filtered -= discarded;
+        offset += discarded;
+        floor = 1;
+        for (int index = 0; index < patterns.length; index++) {
+            if (candidates[index] != null) {
+                candidates[index].shift(discarded, floor);
+            } else {
+                searchFrom[index] = Math.max(searchFrom[index] - discarded, floor);
+            }
+        }
+    }
+
+    /**
+     * Immutable copy of a match, independent from the sliding window content.
+     */
+    private static final class DetachedMatchResult implements MatchResult {
+
+        private final String[] groups;
+        private final int[] starts;
+        private final int[] ends;
+
+        DetachedMatchResult(final Matcher matcher, final long offset) {
+            int count = matcher.groupCount() + 1;
+            groups = new String[count];
+            starts = new int[count];
+            ends = new int[count];
+            for (int n = 0; n < count; n++) {
+                groups[n] = matcher.group(n);
+                starts[n] = matcher.start(n) < 0 ? -1 : (int) (offset + matcher.start(n));
+                ends[n] = matcher.end(n) < 0 ? -1 : (int) (offset + matcher.end(n));
+            }
+        }
+
+        @Override
+        public int start() {
+            return starts[0];
+        }
+
+        @Override
+        public int start(final int group) {
+            return starts[group];
+        }
+
+        @Override
+        public int end() {
+            return ends[0];
+        }
+
+        @Override
+        public int end(final int group) {
+            return ends[group];
+        }
+
+        @Override
+        public String group() {
+            return groups[0];
+        }
+
+        @Override
+        public String group(final int group) {
+            return groups[group];
+        }
+
+        @Override
+        public int groupCount() {
+            return groups.length - 1;
+        }
+    }
+
+    /**
+     * Minimal growable FIFO of {@code int} values, avoiding boxing.
+     */
+    private static final class IntQueue {
+        private int[] values = new int[8];
+        private int head;
+        private int tail;
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        void add(final int value) {
+            if (tail == values.length) {
+                if (head > 0) {
+                    System.arraycopy(values, head, values, 0, tail - head);
+                    tail -= head;
+                    head = 0;
+                } else {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+            }
+            values[tail++] = value;
+        }
+
+        int peek() {
+            return values[head];
+        }
+
+        void remove() {
+            head++;
+        }
+
+        void clear() {
+            head = 0;
+            tail = 0;
+        }
+
+        /** Translates the positions by {@code -delta}, dropping the ones that end up below {@code floor}. */
+        void shift(final int delta, final int floor) {
+            int size = 0;
+            for (int n = head; n < tail; n++) {
+                int value = values[n] - delta;
+                if (value >= floor) {
+                    values[size++] = value;
+                }
+            }
+            head = 0;
+            tail = size;
+        }
+    }
+}
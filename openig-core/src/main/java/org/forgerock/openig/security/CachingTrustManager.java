@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.security;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import org.forgerock.openig.util.LruCache;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * An {@link X509ExtendedTrustManager} that remembers, for a limited time, the server certificate chains successfully
+ * validated by another trust manager.
+ * <p>
+ * When the delegate checks revocation (OCSP or CRL), a validation can cost network round trips: as long as it is
+ * cached, a new connection presenting the same chain to the same peer is trusted without validating it again.
+ * Failed validations are never cached, and a validation is never remembered beyond the expiration of a certificate of
+ * the chain. Client certificate chains are always delegated.
+ */
+final class CachingTrustManager extends X509ExtendedTrustManager {
+
+    /** Identifies a validated chain. */
+    private static final class Key {
+        private final X509Certificate[] chain;
+        private final String authType;
+        private final String peer;
+
+        Key(final X509Certificate[] chain, final String authType, final String peer) {
+            this.chain = chain;
+            this.authType = authType;
+            this.peer = peer;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Arrays.equals(chain, other.chain)
+                    && authType.equals(other.authType)
+                    && (peer == null ? other.peer == null : peer.equals(other.peer));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(chain) + authType.hashCode()) + (peer == null ? 0 : peer.hashCode());
+        }
+    }
+
+    private final X509ExtendedTrustManager delegate;
+    private final TimeService time;
+    private final long ttl;
+
+    /** The validated chains. */
+    private final LruCache<Key, Boolean> validated;
+
+    /**
+     * Creates a new caching trust manager.
+     *
+     * @param delegate
+     *         the trust manager validating the chains
+     * @param time
+     *         the time service
+     * @param maxSize
+     *         the maximum number of validated chains remembered
+     * @param ttl
+     *         how long (ms) a validation is remembered
+     */
+    CachingTrustManager(final X509ExtendedTrustManager delegate,
+                        final TimeService time,
+                        final int maxSize,
+                        final long ttl) {
+        this.delegate = delegate;
+        this.time = time;
+        this.ttl = ttl;
+        this.validated = new LruCache<>(time, maxSize);
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final Socket socket)
+            throws CertificateException {
+        Key key = new Key(chain, authType, peer(socket));
+        if (!isValidated(key)) {
+            delegate.checkServerTrusted(chain, authType, socket);
+            validated(key);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine)
+            throws CertificateException {
+        Key key = new Key(chain, authType, engine != null ? engine.getPeerHost() : null);
+        if (!isValidated(key)) {
+            delegate.checkServerTrusted(chain, authType, engine);
+            validated(key);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType)
+            throws CertificateException {
+        Key key = new Key(chain, authType, null);
+        if (!isValidated(key)) {
+            delegate.checkServerTrusted(chain, authType);
+            validated(key);
+        }
+    }
+
+    private static String peer(final Socket socket) {
+        if (socket != null && socket.getRemoteSocketAddress() instanceof InetSocketAddress) {
+            return ((InetSocketAddress) socket.getRemoteSocketAddress()).getHostString();
+        }
+        return null;
+    }
+
+    private boolean isValidated(final Key key) {
+        if (validated.get(key) == null) {
+            return false;
+        }
+        if (notAfter(key.chain) <= time.now()) {
+            validated.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private void validated(final Key key) {
+        long now = time.now();
+        long expiresAt = ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
+        validated.put(key, Boolean.TRUE, Math.min(expiresAt, notAfter(key.chain)));
+    }
+
+    /** Returns when (ms) the first certificate of the chain expires. */
+    private static long notAfter(final X509Certificate[] chain) {
+        long notAfter = Long.MAX_VALUE;
+        for (X509Certificate certificate : chain) {
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+        }
+        return notAfter;
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final Socket socket)
+            throws CertificateException {
+        delegate.checkClientTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType, final SSLEngine engine)
+            throws CertificateException {
+        delegate.checkClientTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType)
+            throws CertificateException {
+        delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate.getAcceptedIssuers();
+    }
+}
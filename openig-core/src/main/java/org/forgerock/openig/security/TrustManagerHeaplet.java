@@ -17,17 +17,25 @@
 package org.forgerock.openig.security;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.heapObjectNameOrPointer;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
 import java.security.KeyStore;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.X509CertSelector;
 
+import javax.net.ssl.CertPathTrustManagerParameters;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,7 +48,12 @@ import org.slf4j.LoggerFactory;
  *         "type": "TrustManager",
  *         "config": {
  *             "keystore": "MyKeyStore",
- *             "alg": "SunX509"
+ *             "alg": "SunX509",
+ *             "checkRevocation": true,
+ *             "validationCache": {
+ *                 "maxSize": 1000,
+ *                 "ttl": "5 minutes"
+ *             }
  *         }
  *     }
  *     }
@@ -48,6 +61,13 @@ import org.slf4j.LoggerFactory;
  * <ul>
  *     <li>{@literal keystore}: Reference a KeyStore heap object (string, required).</li>
  *     <li>{@literal alg}: Trust manager algorithm (defaults to platform's default type) (string, optional).</li>
+ *     <li>{@literal checkRevocation}: Check the revocation status (OCSP or CRL, as configured with the
+ *     {@literal ocsp.enable} security property and the {@literal com.sun.security.enableCRLDP} system property) of
+ *     the certificates with the {@literal PKIX} algorithm (boolean, optional, defaults to {@literal false}).</li>
+ *     <li>{@literal validationCache}: Remember the successfully validated server certificate chains, so that new
+ *     connections presenting the same chain to the same host do not validate it (nor query its revocation status)
+ *     again: {@literal maxSize} is the maximum number of chains remembered (defaults to {@literal 1000}),
+ *     {@literal ttl} how long they are remembered (defaults to {@literal 5 minutes}) (object, optional).</li>
  * </ul>
  * @since 3.1
  */
@@ -64,24 +84,50 @@ public class TrustManagerHeaplet extends GenericHeaplet {
                                  .defaultTo(TrustManagerFactory.getDefaultAlgorithm())
                                  .asString();
 
+        boolean checkRevocation = config.get("checkRevocation")
+                                        .as(evaluatedWithHeapProperties())
+                                        .defaultTo(false)
+                                        .asBoolean();
+
         TrustManagerFactory factory;
         try {
             factory = TrustManagerFactory.getInstance(algorithm);
-            factory.init(keyStore);
+            if (checkRevocation) {
+                PKIXBuilderParameters parameters = new PKIXBuilderParameters(keyStore, new X509CertSelector());
+                parameters.setRevocationEnabled(true);
+                factory.init(new CertPathTrustManagerParameters(parameters));
+            } else {
+                factory.init(keyStore);
+            }
         } catch (Exception e) {
             throw new HeapException(loadingError(algorithm, storeRef), e);
         }
 
         // Retrieve manager
         TrustManager[] managers = factory.getTrustManagers();
-        if (managers.length == 1) {
-            return managers[0];
-        } else if (managers.length > 1) {
+        if (managers.length == 0) {
+            throw new HeapException(loadingError(algorithm, storeRef));
+        }
+        if (managers.length > 1) {
             logger.warn("Only the first TrustManager will be selected");
-            return managers[0];
         }
-        throw new HeapException(loadingError(algorithm, storeRef));
+        return withValidationCache(managers[0]);
+    }
 
+    private TrustManager withValidationCache(final TrustManager manager) throws HeapException {
+        JsonValue cache = config.get("validationCache").as(evaluatedWithHeapProperties());
+        if (cache.isNull()) {
+            return manager;
+        }
+        if (!(manager instanceof X509ExtendedTrustManager)) {
+            logger.warn("The validations of {} cannot be cached", manager);
+            return manager;
+        }
+        TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+        return new CachingTrustManager((X509ExtendedTrustManager) manager,
+                                       time != null ? time : TimeService.SYSTEM,
+                                       cache.get("maxSize").defaultTo(1000).asInteger(),
+                                       cache.get("ttl").defaultTo("5 minutes").as(duration()).to(MILLISECONDS));
     }
 
     private String loadingError(final String algorithm, final JsonValue reference) {
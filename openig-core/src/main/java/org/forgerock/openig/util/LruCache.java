@@ -0,0 +1,257 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import static org.forgerock.util.Reject.checkNotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A thread-safe, size-bounded cache whose entries can expire.
+ * <p>
+ * At most {@literal maxSize} entries are kept, the least recently used ones being evicted first. An entry is kept
+ * until its expiration time: expired entries are never returned, and are removed when they are looked up, or evicted
+ * as any other entry.
+ *
+ * @param <K>
+ *         the type of the keys
+ * @param <V>
+ *         the type of the values
+ */
+public final class LruCache<K, V> {
+
+    /** A cached value. */
+    private static final class Node<V> {
+        private final V value;
+        private long expiresAt;
+
+        Node(final V value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final TimeService time;
+    private final int maxSize;
+
+    /**
+     * Entries in least recently used order. Guarded by this cache.
+     * <p>
+     * The map is kept in insertion order, and an entry is moved last when it is used: unlike an access ordered map,
+     * this lets the entries be inspected without changing their order.
+     */
+    private final Map<K, Node<V>> entries = new LinkedHashMap<>();
+    private long evictions;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param time
+     *         the time service
+     * @param maxSize
+     *         the maximum number of entries kept
+     */
+    public LruCache(final TimeService time, final int maxSize) {
+        this.time = checkNotNull(time);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the value cached for the given key, and marks it as the most recently used.
+     *
+     * @param key
+     *         the key
+     * @return the cached value, or {@code null} if there is none or if it has expired
+     */
+    public synchronized V get(final K key) {
+        Node<V> node = entries.remove(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.expiresAt <= time.now()) {
+            return null;
+        }
+        entries.put(key, node);
+        return node.value;
+    }
+
+    /**
+     * Caches a value that never expires.
+     *
+     * @param key
+     *         the key
+     * @param value
+     *         the value
+     */
+    public void put(final K key, final V value) {
+        put(key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * Caches a value until the given expiration time. Nothing is cached if that time has already passed.
+     *
+     * @param key
+     *         the key
+     * @param value
+     *         the value
+     * @param expiresAt
+     *         the time (ms) at which the value expires
+     */
+    public synchronized void put(final K key, final V value, final long expiresAt) {
+        entries.remove(key);
+        if (expiresAt <= time.now()) {
+            return;
+        }
+        entries.put(key, new Node<>(value, expiresAt));
+        evict();
+    }
+
+    /**
+     * Caches a value, unless a value that has not expired is already cached for the same key.
+     *
+     * @param key
+     *         the key
+     * @param value
+     *         the value
+     * @param expiresAt
+     *         the time (ms) at which the value expires
+     * @return the value already cached, or {@code null} if the given value has been cached
+     */
+    public synchronized V putIfAbsent(final K key, final V value, final long expiresAt) {
+        V cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+        put(key, value, expiresAt);
+        return null;
+    }
+
+    /**
+     * Changes the expiration time of a cached value, if it is still cached for the given key. The value is removed if
+     * that time has already passed. The order of the entries is not changed.
+     *
+     * @param key
+     *         the key
+     * @param value
+     *         the expected cached value
+     * @param expiresAt
+     *         the new time (ms) at which the value expires
+     * @return {@code true} if the value was still cached for the given key
+     */
+    public synchronized boolean expireAt(final K key, final V value, final long expiresAt) {
+        Node<V> node = entries.get(key);
+        if (node == null || node.value != value) {
+            return false;
+        }
+        if (expiresAt <= time.now()) {
+            entries.remove(key);
+        } else {
+            node.expiresAt = expiresAt;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value cached for the given key.
+     *
+     * @param key
+     *         the key
+     */
+    public synchronized void remove(final K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes the value cached for the given key, if it is the expected one.
+     *
+     * @param key
+     *         the key
+     * @param value
+     *         the expected cached value
+     * @return {@code true} if the value has been removed
+     */
+    public synchronized boolean remove(final K key, final V value) {
+        Node<V> node = entries.get(key);
+        if (node == null || node.value != value) {
+            return false;
+        }
+        entries.remove(key);
+        return true;
+    }
+
+    /**
+     * Removes the value cached for the given key if it has expired. The order of the other entries is not changed.
+     *
+     * @param key
+     *         the key
+     * @return {@code true} if an expired value has been removed
+     */
+    public synchronized boolean removeIfExpired(final K key) {
+        Node<V> node = entries.get(key);
+        if (node != null && node.expiresAt <= time.now()) {
+            entries.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    /** Removes all the cached values. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached values, including the ones that have expired but have not been removed yet.
+     *
+     * @return the number of cached values
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the maximum number of cached values.
+     *
+     * @return the maximum number of cached values
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of values evicted to respect the maximum size.
+     *
+     * @return the number of evicted values
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Called with the lock held. */
+    private void evict() {
+        Iterator<Node<V>> iterator = entries.values().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded {@link LruCache} of asynchronously loaded values, where concurrent loads of the same key share a
+ * single call to the loader (single-flight).
+ * <p>
+ * The {@link Expiration} tells how long a loaded value, or a failure, is kept. A load failing with a runtime
+ * exception is never kept: the waiting callers get that exception, and the next lookup loads the value again.
+ *
+ * @param <K>
+ *         the type of the keys
+ * @param <V>
+ *         the type of the values
+ * @param <E>
+ *         the type of the exceptions of failed loads
+ */
+public final class SingleFlightCache<K, V, E extends Exception> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SingleFlightCache.class);
+
+    /**
+     * Tells until when the outcome of a load is kept.
+     *
+     * @param <K>
+     *         the type of the keys
+     * @param <V>
+     *         the type of the values
+     * @param <E>
+     *         the type of the exceptions of failed loads
+     */
+    public interface Expiration<K, V, E extends Exception> {
+
+        /**
+         * Returns the time until which a loaded value is kept.
+         *
+         * @param key
+         *         the key
+         * @param value
+         *         the loaded value
+         * @return the time (ms) at which the value expires, a past time to not keep it
+         */
+        long expiresAt(K key, V value);
+
+        /**
+         * Returns the time until which a failed load is kept.
+         *
+         * @param key
+         *         the key
+         * @param exception
+         *         the failure
+         * @return the time (ms) at which the failure expires, a past time to not keep it
+         */
+        long failureExpiresAt(K key, E exception);
+    }
+
+    /** A load, in progress or completed. */
+    private static final class Flight<V, E extends Exception> {
+        private final PromiseImpl<V, E> promise = PromiseImpl.create();
+        private volatile boolean failed;
+    }
+
+    private final LruCache<K, Flight<V, E>> cache;
+    private final Expiration<K, V, E> expiration;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong failureHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new single-flight cache.
+     *
+     * @param time
+     *         the time service
+     * @param maxSize
+     *         the maximum number of values (or loads in progress) kept
+     * @param expiration
+     *         tells how long the outcome of a load is kept
+     */
+    public SingleFlightCache(final TimeService time, final int maxSize, final Expiration<K, V, E> expiration) {
+        this.cache = new LruCache<>(time, maxSize);
+        this.expiration = checkNotNull(expiration);
+    }
+
+    /**
+     * Returns the value cached for the given key, loading it on cache misses. Until the load completes, the other
+     * lookups of the same key get the same promise.
+     *
+     * @param key
+     *         the key
+     * @param loader
+     *         called with the key on cache misses
+     * @return the promise of the value
+     */
+    public Promise<V, E> getValue(final K key, final AsyncFunction<K, V, E> loader) {
+        Flight<V, E> cached = cache.get(key);
+        if (cached == null) {
+            Flight<V, E> flight = new Flight<>();
+            // Loads in progress are kept until they complete
+            cached = cache.putIfAbsent(key, flight, Long.MAX_VALUE);
+            if (cached == null) {
+                misses.incrementAndGet();
+                load(key, flight, loader);
+                return flight.promise;
+            }
+        }
+        hits.incrementAndGet();
+        if (cached.failed) {
+            failureHits.incrementAndGet();
+        }
+        return cached.promise;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load(final K key, final Flight<V, E> flight, final AsyncFunction<K, V, E> loader) {
+        // Called out of the lock: the loader may complete synchronously
+        Promise<V, E> promise;
+        try {
+            promise = loader.apply(key);
+        } catch (RuntimeException e) {
+            failed(key, flight, e);
+            return;
+        } catch (Exception e) {
+            // The loader only declares E
+            promise = newExceptionPromise((E) e);
+        }
+        promise.thenOnResult(new ResultHandler<V>() {
+            @Override
+            public void handleResult(final V value) {
+                long expiresAt;
+                try {
+                    expiresAt = expiration.expiresAt(key, value);
+                } catch (RuntimeException e) {
+                    logger.warn("Cannot tell the expiration of the value of {}, it is not cached", key, e);
+                    expiresAt = Long.MIN_VALUE;
+                }
+                cache.expireAt(key, flight, expiresAt);
+                flight.promise.handleResult(value);
+            }
+        }).thenOnException(new ExceptionHandler<E>() {
+            @Override
+            public void handleException(final E exception) {
+                long expiresAt;
+                try {
+                    expiresAt = expiration.failureExpiresAt(key, exception);
+                } catch (RuntimeException e) {
+                    logger.warn("Cannot tell the expiration of the failure of {}, it is not cached", key, e);
+                    expiresAt = Long.MIN_VALUE;
+                }
+                flight.failed = true;
+                cache.expireAt(key, flight, expiresAt);
+                flight.promise.handleException(exception);
+            }
+        }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+            @Override
+            public void handleRuntimeException(final RuntimeException exception) {
+                failed(key, flight, exception);
+            }
+        });
+    }
+
+    private void failed(final K key, final Flight<V, E> flight, final RuntimeException exception) {
+        cache.remove(key, flight);
+        flight.promise.handleRuntimeException(exception);
+    }
+
+    /**
+     * Removes the value cached for the given key if it has expired.
+     *
+     * @param key
+     *         the key
+     * @return {@code true} if an expired value has been removed
+     * @see LruCache#removeIfExpired(Object)
+     */
+    public boolean removeIfExpired(final K key) {
+        return cache.removeIfExpired(key);
+    }
+
+    /** Removes all the cached values. Loads in progress still complete their promise. */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of cached values, including the loads in progress.
+     *
+     * @return the number of cached values
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the maximum number of cached values.
+     *
+     * @return the maximum number of cached values
+     */
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    /**
+     * Returns the number of lookups that found a value, a failure or a load in progress.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that found a failure.
+     *
+     * @return the number of hits on failures
+     */
+    public long getFailureHits() {
+        return failureHits.get();
+    }
+
+    /**
+     * Returns the number of lookups that started a load.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of values evicted to respect the maximum size.
+     *
+     * @return the number of evicted values
+     */
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+}
@@ -18,16 +18,22 @@
 
 package org.forgerock.openig.util;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 
+import org.forgerock.util.encode.Base64;
+
 /**
  * Miscellaneous string utility methods.
  */
@@ -144,6 +150,23 @@ public final class StringUtil {
                          .replaceAll("\\s", "-");
     }
 
+    /**
+     * Returns the Base64 encoded SHA-256 digest of the given value, for example to use a secret (like a token) as a
+     * cache key without keeping it in memory.
+     *
+     * @param value
+     *         the value to digest
+     * @return the Base64 encoded SHA-256 digest of the UTF-8 bytes of the value
+     */
+    public static String sha256(final String value) {
+        try {
+            return Base64.encode(MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Return the SI abbreviation from the given {@literal TimeUnit} name.
      *
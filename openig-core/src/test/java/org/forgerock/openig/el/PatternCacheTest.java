@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.el;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.regex.PatternSyntaxException;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PatternCacheTest {
+
+    @Test
+    public void shouldReturnCachedPattern() throws Exception {
+        PatternCache cache = new PatternCache(10);
+        assertThat(cache.compile("^/api/v[0-9]+/")).isSameAs(cache.compile("^/api/v[0-9]+/"));
+    }
+
+    @Test
+    public void shouldNotGrowBeyondMaxSize() throws Exception {
+        PatternCache cache = new PatternCache(10);
+        for (int i = 0; i < 100; i++) {
+            cache.compile("pattern-" + i);
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+        assertThat(cache.contains("pattern-99")).isTrue();
+    }
+
+    @Test(expectedExceptions = PatternSyntaxException.class)
+    public void shouldNotCacheInvalidPattern() throws Exception {
+        PatternCache cache = new PatternCache(10);
+        try {
+            cache.compile("[[invalid");
+        } finally {
+            assertThat(cache.size()).isEqualTo(0);
+        }
+    }
+
+    @DataProvider
+    public static Object[][] constantArguments() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "${matches(request.uri.path, '^/api/v[0-9]+/')}", "^/api/v[0-9]+/" },
+                { "${matchingGroups(request.uri.path, \"^/([a-z]+)/\")}", "^/([a-z]+)/" },
+                { "${split(toString(request.uri), ',')[1]}", "," },
+                { "${attributes[keyMatch(attributes, '^bjense.*')]}", "^bjense.*" },
+                { "${matches(attributes.value, '\\\\d+')}", "\\d+" },
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "constantArguments")
+    public void shouldCompileConstantArguments(final String expression, final String pattern) throws Exception {
+        PatternCache cache = new PatternCache(10);
+        cache.compileConstantArguments(expression);
+        assertThat(cache.contains(pattern)).isTrue();
+    }
+
+    @DataProvider
+    public static Object[][] nonConstantArguments() {
+        return new Object[][] {
+            { "${matches(request.uri.path, attributes.pattern)}" },
+            { "${matches(request.uri.path, 'prefix' += attributes.pattern)}" },
+            { "${request.uri.path.matches('/path')}" },
+            { "${attributes.label == 'matches(path, \\'^fake\\')'}" },
+            { "${matches(request.uri.path, split(attributes.patterns, ',')[0])}" },
+        };
+    }
+
+    @Test(dataProvider = "nonConstantArguments")
+    public void shouldIgnoreNonConstantArguments(final String expression) throws Exception {
+        PatternCache cache = new PatternCache(10);
+        cache.compileConstantArguments(expression);
+        assertThat(cache.contains("/path")).isFalse();
+        assertThat(cache.contains("^fake")).isFalse();
+        assertThat(cache.contains("prefix")).isFalse();
+    }
+
+    @Test
+    public void shouldCompileConstantArgumentsOfNestedCalls() throws Exception {
+        PatternCache cache = new PatternCache(10);
+        cache.compileConstantArguments("${matches(split(request.uri.query, '&')[0], '^id=')}");
+        assertThat(cache.contains("&")).isTrue();
+        assertThat(cache.contains("^id=")).isTrue();
+    }
+
+    @Test
+    public void shouldPrecompileConstantArgumentsWhenParsingExpression() throws Exception {
+        Expression.valueOf("${matches(request.uri.path, '^/precompiled/[0-9]+')}", Boolean.class);
+        assertThat(PatternCache.INSTANCE.contains("^/precompiled/[0-9]+")).isTrue();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.filter.CircuitBreakerFilter.State;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CircuitBreakerFilterTest {
+
+    @Mock
+    private Handler next;
+
+    @Mock
+    private TimeService time;
+
+    private CircuitBreakerFilter filter;
+
+    /** Status returned by the next handler. */
+    private Status status;
+
+    /** How long (ms) the next handler takes to answer. */
+    private long latency;
+
+    private long now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        status = Status.OK;
+        latency = 0L;
+        now = 0L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) {
+                return now;
+            }
+        });
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        now += latency;
+                        return newResponsePromise(new Response(status));
+                    }
+                });
+        // Window of 4 calls, opens at 50% failures or slow calls (> 1s), stays open for 10 seconds, 2 probes
+        filter = new CircuitBreakerFilter(time, 4, 4, 50f, 50f, Duration.duration(1, SECONDS),
+                                          Duration.duration(10, SECONDS), 2);
+    }
+
+    @Test
+    public void shouldStayClosedBelowThresholds() throws Exception {
+        call(3);
+        status = Status.INTERNAL_SERVER_ERROR;
+        call(1);
+
+        assertThat(filter.getState()).isEqualTo(State.CLOSED);
+        verify(next, times(4)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldOpenOnFailureRateAndFailFast() throws Exception {
+        call(2);
+        status = Status.BAD_GATEWAY;
+        call(2);
+        assertThat(filter.getState()).isEqualTo(State.OPEN);
+
+        Response response = call();
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("10");
+        verify(next, times(4)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldOpenOnSlowCallRate() throws Exception {
+        call(2);
+        latency = 2000L;
+        call(2);
+
+        assertThat(filter.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void shouldCloseAfterSuccessfulProbes() throws Exception {
+        status = Status.SERVICE_UNAVAILABLE;
+        call(4);
+        assertThat(filter.getState()).isEqualTo(State.OPEN);
+
+        now += 10000L;
+        assertThat(filter.getState()).isEqualTo(State.HALF_OPEN);
+        status = Status.OK;
+        call(2);
+
+        assertThat(filter.getState()).isEqualTo(State.CLOSED);
+        verify(next, times(6)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldOpenAgainAfterFailedProbes() throws Exception {
+        status = Status.SERVICE_UNAVAILABLE;
+        call(4);
+
+        now += 10000L;
+        call(2);
+        assertThat(filter.getState()).isEqualTo(State.OPEN);
+
+        // Only the permitted probes went through
+        call(1);
+        verify(next, times(6)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldRecordOutcomesInASlidingWindow() throws Exception {
+        CircuitBreakerFilter.Outcomes outcomes = new CircuitBreakerFilter.Outcomes(2);
+        outcomes.add(true, true);
+        outcomes.add(false, false);
+        assertThat(outcomes.failureRate()).isEqualTo(50f);
+        outcomes.add(false, true);
+        assertThat(outcomes.size()).isEqualTo(2);
+        assertThat(outcomes.failureRate()).isEqualTo(0f);
+        assertThat(outcomes.slowCallRate()).isEqualTo(50f);
+    }
+
+    private void call(final int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            call();
+        }
+    }
+
+    private Response call() throws Exception {
+        return filter.filter(new RootContext(), new Request(), next).get();
+    }
+}
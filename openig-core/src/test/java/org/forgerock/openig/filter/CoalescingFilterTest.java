@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedList;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CoalescingFilterTest {
+
+    @Mock
+    private Handler next;
+
+    /** Responses returned by the next handler, in order (OK when empty). */
+    private final LinkedList<Promise<Response, NeverThrowsException>> responses = new LinkedList<>();
+
+    private CoalescingFilter filter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        responses.clear();
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        if (responses.isEmpty()) {
+                            return newResponsePromise(new Response(Status.OK).setEntity("late"));
+                        }
+                        return responses.removeFirst();
+                    }
+                });
+        filter = new CoalescingFilter(Expression.valueOf("${request.method} ${request.uri}", String.class),
+                                      CoalescingFilter.DEFAULT_HEADERS);
+    }
+
+    @Test
+    public void shouldShareTheResponseWithIdenticalRequests() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> pending = PromiseImpl.create();
+        responses.add(pending);
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), get("/catalog"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/catalog"), next);
+        Promise<Response, NeverThrowsException> third = filter.filter(new RootContext(), get("/catalog"), next);
+        assertThat(second.isDone()).isFalse();
+
+        Response response = new Response(Status.OK);
+        response.getHeaders().put("Content-Type", "application/json");
+        response.setEntity("[1, 2, 3]");
+        pending.handleResult(response);
+
+        // Read the bodies in a different order than the one of the requests
+        assertThat(third.get().getEntity().getString()).isEqualTo("[1, 2, 3]");
+        assertThat(first.get().getEntity().getString()).isEqualTo("[1, 2, 3]");
+        assertThat(second.get().getEntity().getString()).isEqualTo("[1, 2, 3]");
+        assertThat(second.get().getHeaders().getFirst("Content-Type")).isEqualTo("application/json");
+        assertThat(second.get()).isNotSameAs(first.get());
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotCoalesceRequestsWithDifferentCredentials() throws Exception {
+        responses.add(PromiseImpl.<Response, NeverThrowsException>create());
+
+        Request alice = get("/catalog");
+        alice.getHeaders().put("Authorization", "Bearer alice");
+        Request bob = get("/catalog");
+        bob.getHeaders().put("Authorization", "Bearer bob");
+        filter.filter(new RootContext(), alice, next);
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), bob, next);
+
+        assertThat(promise.get().getEntity().getString()).isEqualTo("late");
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotCoalesceUnsafeRequests() throws Exception {
+        responses.add(PromiseImpl.<Response, NeverThrowsException>create());
+
+        filter.filter(new RootContext(), get("/catalog").setMethod("POST"), next);
+        filter.filter(new RootContext(), get("/catalog").setMethod("POST"), next);
+
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotKeepTheResponse() throws Exception {
+        filter.filter(new RootContext(), get("/catalog"), next).get();
+        filter.filter(new RootContext(), get("/catalog"), next).get();
+
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldSendWaitingRequestsAgainWhenThereIsNoResponse() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> pending = PromiseImpl.create();
+        responses.add(pending);
+
+        filter.filter(new RootContext(), get("/catalog"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/catalog"), next);
+        pending.handleRuntimeException(new IllegalStateException("boom"));
+
+        assertThat(second.get().getEntity().getString()).isEqualTo("late");
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldAnswerWaitingRequestWhenItsOwnRequestFails() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> pending = PromiseImpl.create();
+        PromiseImpl<Response, NeverThrowsException> failed = PromiseImpl.create();
+        failed.handleRuntimeException(new IllegalStateException("boom again"));
+        responses.add(pending);
+        responses.add(failed);
+
+        filter.filter(new RootContext(), get("/catalog"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/catalog"), next);
+        pending.handleRuntimeException(new IllegalStateException("boom"));
+
+        assertThat(second.get().getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+    }
+
+    private static Request get(final String path) throws Exception {
+        return new Request().setMethod("GET").setUri("http://example.com" + path);
+    }
+}
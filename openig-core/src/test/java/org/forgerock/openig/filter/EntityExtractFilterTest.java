@@ -97,6 +97,22 @@ public class EntityExtractFilterTest {
         verify(terminalHandler).handle(context, request);
     }
 
+    @Test
+    public void testEntityIsStillReadableAfterExtraction() throws Exception {
+        EntityExtractFilter filter =
+                new EntityExtractFilter(MessageType.REQUEST,
+                                        LeftValueExpression.valueOf("${attributes.result}", Map.class));
+        filter.getExtractor().getPatterns().put("hello", Pattern.compile("Hello"));
+
+        AttributesContext context = new AttributesContext(new RootContext());
+        Request request = new Request();
+        request.setEntity("Hello OpenIG\nand the rest of the entity");
+
+        filter.filter(context, request, terminalHandler);
+
+        assertThat(request.getEntity().getString()).isEqualTo("Hello OpenIG\nand the rest of the entity");
+    }
+
     @Test
     public void testResultMapIsEmptyWhenThereIsNoEntity() throws Exception {
         EntityExtractFilter filter =
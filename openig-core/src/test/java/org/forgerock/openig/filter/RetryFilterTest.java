@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class RetryFilterTest {
+
+    @Mock
+    private Handler next;
+
+    @Mock
+    private TimeService time;
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    /** Responses returned by the next handler, in order (OK when empty). */
+    private final LinkedList<Promise<Response, NeverThrowsException>> responses = new LinkedList<>();
+
+    private long now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        responses.clear();
+        now = 0L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) {
+                return now;
+            }
+        });
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        if (responses.isEmpty()) {
+                            return newResponsePromise(new Response(Status.OK));
+                        }
+                        return responses.removeFirst();
+                    }
+                });
+    }
+
+    @Test
+    public void shouldRetryFailedIdempotentRequestWithinBudget() throws Exception {
+        RetryFilter filter = new RetryFilter(time, null, 1, 0.5, 0.95);
+        filter.filter(new RootContext(), request("GET"), next).get();
+
+        responses.add(newResponsePromise(new Response(Status.SERVICE_UNAVAILABLE)));
+        Response response = filter.filter(new RootContext(), request("GET"), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        verify(next, times(3)).handle(any(Context.class), any(Request.class));
+        assertThat(filter.getBudget()).isEqualTo(0d);
+    }
+
+    @Test
+    public void shouldNotRetryWhenBudgetIsExhausted() throws Exception {
+        RetryFilter filter = new RetryFilter(time, null, 1, 0.1, 0.95);
+
+        responses.add(newResponsePromise(new Response(Status.BAD_GATEWAY)));
+        Response response = filter.filter(new RootContext(), request("GET"), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotRetryNonIdempotentRequest() throws Exception {
+        RetryFilter filter = new RetryFilter(time, null, 1, 1, 0.95);
+
+        responses.add(newResponsePromise(new Response(Status.BAD_GATEWAY)));
+        Response response = filter.filter(new RootContext(), request("POST"), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldCapBudget() throws Exception {
+        RetryFilter filter = new RetryFilter(time, null, 1, 1, 0.95);
+        for (int i = 0; i < RetryFilter.MAX_BUDGET * 2; i++) {
+            filter.filter(new RootContext(), request("GET"), next).get();
+        }
+        assertThat(filter.getBudget()).isEqualTo((double) RetryFilter.MAX_BUDGET);
+    }
+
+    @Test
+    public void shouldHedgeSlowRequest() throws Exception {
+        RetryFilter filter = new RetryFilter(time, executor, 1, 0.1, 0.95);
+        // Observe enough latencies first
+        for (int i = 0; i < RetryFilter.MIN_LATENCY_SAMPLES; i++) {
+            filter.filter(new RootContext(), request("GET"), next).get();
+        }
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        now += 1000L;
+        PromiseImpl<Response, NeverThrowsException> slow = PromiseImpl.create();
+        responses.add(slow);
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), request("GET"), next);
+
+        ArgumentCaptor<Runnable> hedge = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(hedge.capture(), eq(0L), eq(TimeUnit.MILLISECONDS));
+        assertThat(promise.isDone()).isFalse();
+
+        // The hedged attempt answers first
+        hedge.getValue().run();
+        assertThat(promise.get().getStatus()).isEqualTo(Status.OK);
+        verify(next, times(RetryFilter.MIN_LATENCY_SAMPLES + 2)).handle(any(Context.class), any(Request.class));
+
+        // The late answer is ignored
+        slow.handleResult(new Response(Status.CREATED));
+        assertThat(promise.get().getStatus()).isEqualTo(Status.OK);
+    }
+
+    private static Request request(final String method) {
+        return new Request().setMethod(method);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CacheControlTest {
+
+    @DataProvider
+    public static Object[][] maxAges() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "max-age=60", 60L },
+                { "public, max-age=\"60\"", 60L },
+                { "MAX-AGE=60", 60L },
+                { "max-age=-1", CacheControl.UNDEFINED },
+                { "max-age=abc", CacheControl.UNDEFINED },
+                { "max-age=99999999999999999999", (long) Integer.MAX_VALUE },
+                { "no-cache", CacheControl.UNDEFINED }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "maxAges")
+    public void shouldParseDeltaSeconds(final String value, final long expected) throws Exception {
+        assertThat(CacheControl.valueOf(singletonList(value)).getSeconds("max-age")).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldParseDirectivesOfSeveralHeaders() throws Exception {
+        CacheControl directives = CacheControl.valueOf(asList("no-cache=\"Set-Cookie, Foo\", private", "no-store"));
+
+        assertThat(directives.has("no-cache")).isTrue();
+        assertThat(directives.has("private")).isTrue();
+        assertThat(directives.has("no-store")).isTrue();
+        assertThat(directives.has("public")).isFalse();
+    }
+
+    @Test
+    public void shouldAcceptNoHeader() throws Exception {
+        assertThat(CacheControl.valueOf(null).has("no-store")).isFalse();
+    }
+}
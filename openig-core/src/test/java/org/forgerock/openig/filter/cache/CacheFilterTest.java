@@ -0,0 +1,275 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.io.IO.newTemporaryStorage;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedList;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CacheFilterTest {
+
+    private static final Status NOT_MODIFIED = Status.valueOf(304, "Not Modified");
+
+    @Mock
+    private Handler next;
+
+    @Mock
+    private TimeService time;
+
+    /** Responses returned by the next handler, in order. */
+    private final LinkedList<Promise<Response, NeverThrowsException>> responses = new LinkedList<>();
+
+    private long now;
+
+    private CacheFilter filter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        responses.clear();
+        now = 0L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) {
+                return now;
+            }
+        });
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        return responses.removeFirst();
+                    }
+                });
+        filter = new CacheFilter(Expression.valueOf("${request.uri}", String.class),
+                                 time,
+                                 newTemporaryStorage(),
+                                 1024,
+                                 1024,
+                                 1024);
+    }
+
+    @Test
+    public void shouldServeFreshResponseFromCache() throws Exception {
+        respond(response("max-age=60", "hello"));
+
+        assertThat(get("/a").getEntity().getString()).isEqualTo("hello");
+        now += 30000L;
+        Response cached = get("/a");
+
+        assertThat(cached.getEntity().getString()).isEqualTo("hello");
+        assertThat(cached.getHeaders().getFirst("Age")).isEqualTo("30");
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotStoreNoStoreResponse() throws Exception {
+        respond(response("no-store", "one"));
+        respond(response("no-store", "two"));
+
+        get("/a");
+        assertThat(get("/a").getEntity().getString()).isEqualTo("two");
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNeverServeTheCookiesOfAClientToAnother() throws Exception {
+        Response alice = response("max-age=60", "one");
+        alice.getHeaders().put("Set-Cookie", "session=alice");
+        respond(alice);
+        respond(response("max-age=60", "two"));
+
+        assertThat(get("/a").getHeaders().getFirst("Set-Cookie")).isEqualTo("session=alice");
+        Response bob = get("/a");
+
+        assertThat(bob.getEntity().getString()).isEqualTo("two");
+        assertThat(bob.getHeaders().containsKey("Set-Cookie")).isFalse();
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotStoreTheCookiesSetWhenRevalidating() throws Exception {
+        Response first = response("max-age=10", "hello");
+        first.getHeaders().put("ETag", "\"v1\"");
+        respond(first);
+        Response notModified = new Response(NOT_MODIFIED);
+        notModified.getHeaders().put("Cache-Control", "max-age=60");
+        notModified.getHeaders().put("Set-Cookie", "session=alice");
+        respond(notModified);
+        get("/a");
+
+        now += 20000L;
+        assertThat(get("/a").getHeaders().getFirst("Set-Cookie")).isEqualTo("session=alice");
+        Response other = get("/a");
+
+        assertThat(other.getEntity().getString()).isEqualTo("hello");
+        assertThat(other.getHeaders().containsKey("Set-Cookie")).isFalse();
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldRevalidateStaleResponse() throws Exception {
+        Response first = response("max-age=10", "hello");
+        first.getHeaders().put("ETag", "\"v1\"");
+        respond(first);
+        Response notModified = new Response(NOT_MODIFIED);
+        notModified.getHeaders().put("Cache-Control", "max-age=60");
+        respond(notModified);
+        get("/a");
+
+        now += 20000L;
+        Response revalidated = get("/a");
+
+        ArgumentCaptor<Request> request = ArgumentCaptor.forClass(Request.class);
+        verify(next, times(2)).handle(any(Context.class), request.capture());
+        assertThat(request.getValue().getHeaders().getFirst("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(revalidated.getStatus()).isEqualTo(Status.OK);
+        assertThat(revalidated.getEntity().getString()).isEqualTo("hello");
+
+        // The stored response is fresh again
+        now += 30000L;
+        assertThat(get("/a").getEntity().getString()).isEqualTo("hello");
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldKeepStoredResponseWhenClientRevalidates() throws Exception {
+        Response first = response("max-age=10", "hello");
+        first.getHeaders().put("ETag", "\"v1\"");
+        respond(first);
+        respond(new Response(NOT_MODIFIED));
+        get("/a");
+
+        now += 20000L;
+        Request conditional = request("/a");
+        conditional.getHeaders().put("If-None-Match", "\"v1\"");
+        Response response = filter.filter(new RootContext(), conditional, next).get();
+
+        assertThat(response.getStatus()).isEqualTo(NOT_MODIFIED);
+        assertThat(filter.getStore().get("http://example.com/a")).isNotNull();
+    }
+
+    @Test
+    public void shouldNotSelectResponseForDifferentVaryingHeaders() throws Exception {
+        Response english = response("max-age=60", "hello");
+        english.getHeaders().put("Vary", "Accept-Language");
+        respond(english);
+        respond(response("max-age=60", "bonjour"));
+
+        assertThat(get("/a", "en").getEntity().getString()).isEqualTo("hello");
+        assertThat(get("/a", "fr").getEntity().getString()).isEqualTo("bonjour");
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldCollapseConcurrentMisses() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> pending = PromiseImpl.create();
+        responses.add(pending);
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), request("/a"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), request("/a"), next);
+        assertThat(second.isDone()).isFalse();
+
+        pending.handleResult(response("max-age=60", "hello"));
+
+        assertThat(first.get().getEntity().getString()).isEqualTo("hello");
+        assertThat(second.get().getEntity().getString()).isEqualTo("hello");
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldSpillLeastRecentlyUsedBodiesToTemporaryStorage() throws Exception {
+        String body = new String(new char[600]).replace('\0', 'x');
+        respond(response("max-age=60", body));
+        respond(response("max-age=60", body));
+
+        get("/a");
+        get("/b");
+
+        assertThat(filter.getStore().getMemorySize()).isEqualTo(600L);
+        assertThat(filter.getStore().getDiskSize()).isEqualTo(600L);
+        assertThat(get("/a").getEntity().getString()).isEqualTo(body);
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldInvalidateOnUnsafeRequest() throws Exception {
+        respond(response("max-age=60", "one"));
+        respond(newResponsePromise(new Response(Status.NO_CONTENT)));
+        respond(response("max-age=60", "two"));
+
+        get("/a");
+        filter.filter(new RootContext(), request("/a").setMethod("POST"), next).get();
+
+        assertThat(get("/a").getEntity().getString()).isEqualTo("two");
+    }
+
+    private void respond(final Response response) {
+        respond(newResponsePromise(response));
+    }
+
+    private void respond(final Promise<Response, NeverThrowsException> response) {
+        responses.add(response);
+    }
+
+    private Response get(final String path) throws Exception {
+        return filter.filter(new RootContext(), request(path), next).get();
+    }
+
+    private Response get(final String path, final String language) throws Exception {
+        Request request = request(path);
+        request.getHeaders().put("Accept-Language", language);
+        return filter.filter(new RootContext(), request, next).get();
+    }
+
+    private static Request request(final String path) throws Exception {
+        return new Request().setMethod("GET").setUri("http://example.com" + path);
+    }
+
+    private static Response response(final String cacheControl, final String body) {
+        Response response = new Response(Status.OK);
+        response.getHeaders().put("Cache-Control", cacheControl);
+        response.setEntity(body);
+        return response;
+    }
+}
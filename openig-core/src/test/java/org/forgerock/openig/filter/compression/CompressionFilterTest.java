@@ -0,0 +1,221 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.compression;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CompressionFilterTest {
+
+    private static final String JSON = "{ \"items\": [" + new String(new char[200]).replace("\0", "\"item\", ") + "] }";
+
+    @Mock
+    private Handler next;
+
+    private Response response;
+
+    private CompressionFilter filter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        response = new Response(Status.OK);
+        response.getHeaders().put("Content-Type", "application/json; charset=UTF-8");
+        response.setEntity(JSON);
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        return newResponsePromise(response);
+                    }
+                });
+        filter = new CompressionFilter(asList("gzip", "deflate"), 100, CompressionFilter.DEFAULT_MEDIA_TYPES,
+                                       Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    @DataProvider
+    public static Object[][] acceptEncodings() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "gzip, deflate", "gzip" },
+                { "deflate", "deflate" },
+                { "gzip;q=0.5, deflate", "deflate" },
+                { "gzip;q=0, *", "deflate" },
+                { "x-gzip", "gzip" },
+                { "br", null },
+                { "*;q=0", null },
+                { "identity", null }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "acceptEncodings")
+    public void shouldNegotiateEncoding(final String acceptEncoding, final String expected) throws Exception {
+        assertThat(filter.negotiate(request(acceptEncoding))).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldCompressWithGzip() throws Exception {
+        response.getHeaders().put("ETag", "\"v1\"");
+        Response compressed = filter.filter(new RootContext(), request("gzip"), next).get();
+
+        assertThat(compressed.getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(compressed.getHeaders().getFirst("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(compressed.getHeaders().getFirst("ETag")).isEqualTo("W/\"v1\"");
+        assertThat(compressed.getHeaders().get("Content-Length")).isNull();
+        byte[] bytes = readAll(compressed.getEntity().getRawContentInputStream());
+        assertThat(bytes.length).isLessThan(JSON.length());
+        assertThat(new String(readAll(new GZIPInputStream(new ByteArrayInputStream(bytes))), UTF_8))
+                .isEqualTo(JSON);
+        assertThat(filter.getStatistics().get("compressedResponses").asLong()).isEqualTo(1L);
+        assertThat(filter.getStatistics().get("uncompressedBytes").asLong()).isEqualTo(JSON.length());
+    }
+
+    @Test
+    public void shouldCompressWithDeflate() throws Exception {
+        Response compressed = filter.filter(new RootContext(), request("deflate"), next).get();
+
+        assertThat(compressed.getHeaders().getFirst("Content-Encoding")).isEqualTo("deflate");
+        byte[] bytes = readAll(compressed.getEntity().getRawContentInputStream());
+        assertThat(new String(readAll(new InflaterInputStream(new ByteArrayInputStream(bytes))), UTF_8))
+                .isEqualTo(JSON);
+    }
+
+    @Test
+    public void shouldNotCompressSmallResponses() throws Exception {
+        response.setEntity("{}");
+        response.getHeaders().put("Content-Length", "2");
+
+        assertThat(filter.filter(new RootContext(), request("gzip"), next).get()).isSameAs(response);
+    }
+
+    @Test
+    public void shouldNotCompressOtherMediaTypes() throws Exception {
+        response.getHeaders().put("Content-Type", "image/png");
+
+        assertThat(filter.filter(new RootContext(), request("gzip"), next).get()).isSameAs(response);
+    }
+
+    @Test
+    public void shouldNotCompressEncodedResponses() throws Exception {
+        response.getHeaders().put("Content-Encoding", "br");
+
+        assertThat(filter.filter(new RootContext(), request("gzip"), next).get()).isSameAs(response);
+    }
+
+    @Test
+    public void shouldStreamLargeEntities() throws Exception {
+        byte[] content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+        DeflaterPool pool = new DeflaterPool(Deflater.BEST_SPEED, true, 1);
+        InputStream compressing = new CompressingInputStream(new ByteArrayInputStream(content), pool, true, null);
+
+        assertThat(readAll(new GZIPInputStream(compressing))).isEqualTo(content);
+    }
+
+    @Test
+    public void shouldOnlyBorrowDeflaterOnFirstRead() throws Exception {
+        DeflaterPool pool = new DeflaterPool(Deflater.BEST_SPEED, true, 1);
+        Deflater idle = pool.borrow();
+        pool.release(idle);
+
+        InputStream compressing = new CompressingInputStream(new ByteArrayInputStream(new byte[16]), pool, true, null);
+        assertThat(pool.borrow()).isSameAs(idle);
+        pool.release(idle);
+
+        compressing.read(new byte[1024]);
+        compressing.read(new byte[1024]);
+        assertThat(pool.borrow()).isNotSameAs(idle);
+        compressing.close();
+    }
+
+    @Test
+    public void shouldDecompressRequestEntity() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(JSON.getBytes(UTF_8));
+        }
+        Request request = new Request().setMethod("POST").setUri("http://example.com/items");
+        request.getHeaders().put("Content-Encoding", "gzip");
+        request.setEntity(gzipped.toByteArray());
+
+        filter.filter(new RootContext(), request, next).get();
+
+        ArgumentCaptor<Request> forwarded = ArgumentCaptor.forClass(Request.class);
+        verify(next).handle(any(Context.class), forwarded.capture());
+        assertThat(forwarded.getValue().getHeaders().get("Content-Encoding")).isNull();
+        assertThat(forwarded.getValue().getEntity().getString()).isEqualTo(JSON);
+    }
+
+    @Test
+    public void shouldRejectUnsupportedRequestEncoding() throws Exception {
+        Request request = new Request().setMethod("POST").setUri("http://example.com/items");
+        request.getHeaders().put("Content-Encoding", "br");
+
+        assertThat(filter.filter(new RootContext(), request, next).get().getStatus())
+                .isEqualTo(Status.UNSUPPORTED_MEDIA_TYPE);
+    }
+
+    private static Request request(final String acceptEncoding) throws Exception {
+        Request request = new Request().setMethod("GET").setUri("http://example.com/items");
+        request.getHeaders().put("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -28,6 +28,10 @@ import static com.xebialabs.restito.semantics.Condition.withPostBody;
 import static com.xebialabs.restito.semantics.Condition.withPostBodyContaining;
 import static java.lang.String.format;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
 import static org.forgerock.util.Options.defaultOptions;
 
 import java.util.LinkedHashMap;
@@ -38,6 +42,9 @@ import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.heap.Name;
 import org.forgerock.services.context.RootContext;
 import org.glassfish.grizzly.http.Method;
 import org.glassfish.grizzly.http.util.HttpStatus;
@@ -124,4 +131,18 @@ public class ClientHandlerTest {
                               .getStatus()).isEqualTo(Status.OK);
         }
     }
+
+    @Test(expectedExceptions = HeapException.class)
+    public void shouldRejectHttp2() throws Exception {
+        new ClientHandler.Heaplet().create(Name.of("client"),
+                                           json(object(field("protocol", "h2"))),
+                                           buildDefaultHeap());
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void shouldRejectUnknownProtocol() throws Exception {
+        new ClientHandler.Heaplet().create(Name.of("client"),
+                                           json(object(field("protocol", "spdy/3"))),
+                                           buildDefaultHeap());
+    }
 }
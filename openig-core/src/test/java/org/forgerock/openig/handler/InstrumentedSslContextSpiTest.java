@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+
+import org.forgerock.openig.security.TrustAllManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class InstrumentedSslContextSpiTest {
+
+    private static final String PROTOCOL = "TLSv1.2";
+    private static final String PROVIDER_NAME = "OpenIG-TLS";
+
+    private TlsStatistics statistics;
+    private String algorithm;
+    private SSLContext server;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        statistics = new TlsStatistics();
+        algorithm = InstrumentedSslContextSpi.register(
+                new InstrumentedSslContextSpi(SSLContext.getInstance(PROTOCOL), 10, 60, statistics));
+
+        KeyStore keyStore = KeyStore.getInstance("jks");
+        try (InputStream is = getClass().getResourceAsStream("/keypair-keystore.jks")) {
+            keyStore.load(is, "changeit".toCharArray());
+        }
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, "changeit".toCharArray());
+        server = SSLContext.getInstance(PROTOCOL);
+        server.init(factory.getKeyManagers(), null, null);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        InstrumentedSslContextSpi.unregister(algorithm);
+    }
+
+    @Test
+    public void shouldCountFullAndResumedHandshakes() throws Exception {
+        SSLContext client = SSLContext.getInstance(algorithm);
+        client.init(null, new TrustManager[] {new TrustAllManager()}, null);
+        assertThat(client.getClientSessionContext().getSessionCacheSize()).isEqualTo(10);
+        assertThat(client.getClientSessionContext().getSessionTimeout()).isEqualTo(60);
+
+        handshake(client.createSSLEngine("localhost", 8443));
+        // Session creation times have a millisecond precision
+        Thread.sleep(10L);
+        handshake(client.createSSLEngine("localhost", 8443));
+
+        assertThat(statistics.getFullHandshakes()).isEqualTo(1L);
+        assertThat(statistics.getResumedHandshakes()).isEqualTo(1L);
+        assertThat(statistics.getStatistics().get("sessionCache").get("sessions").asInteger()).isEqualTo(1);
+    }
+
+    @Test(expectedExceptions = java.security.NoSuchAlgorithmException.class)
+    public void shouldUnregisterContext() throws Exception {
+        InstrumentedSslContextSpi.unregister(algorithm);
+        SSLContext.getInstance(algorithm);
+    }
+
+    @Test
+    public void shouldRemoveProviderWithLastContext() throws Exception {
+        String other = InstrumentedSslContextSpi.register(
+                new InstrumentedSslContextSpi(SSLContext.getInstance(PROTOCOL), 10, 60, statistics));
+        InstrumentedSslContextSpi.unregister(algorithm);
+        assertThat(Security.getProvider(PROVIDER_NAME)).isNotNull();
+
+        InstrumentedSslContextSpi.unregister(other);
+        assertThat(Security.getProvider(PROVIDER_NAME)).isNull();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldNotRegisterThroughAnotherProviderOfTheSameName() throws Exception {
+        InstrumentedSslContextSpi.unregister(algorithm);
+        Security.addProvider(new Provider(PROVIDER_NAME, 1.0, "Impostor") {
+            private static final long serialVersionUID = 1L;
+        });
+        try {
+            InstrumentedSslContextSpi.register(
+                    new InstrumentedSslContextSpi(SSLContext.getInstance(PROTOCOL), 10, 60, statistics));
+        } finally {
+            Security.removeProvider(PROVIDER_NAME);
+        }
+    }
+
+    private void handshake(final SSLEngine client) throws Exception {
+        SSLEngine engine = server.createSSLEngine();
+        engine.setUseClientMode(false);
+        client.setUseClientMode(true);
+
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer clientIn = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        ByteBuffer serverIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+        client.beginHandshake();
+        engine.beginHandshake();
+        for (int i = 0; i < 100 && !(isDone(client) && isDone(engine)); i++) {
+            client.wrap(empty, clientToServer);
+            engine.wrap(empty, serverToClient);
+            clientToServer.flip();
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientIn);
+            engine.unwrap(clientToServer, serverIn);
+            clientToServer.compact();
+            serverToClient.compact();
+            runDelegatedTasks(client);
+            runDelegatedTasks(engine);
+        }
+        assertThat(isDone(client) && isDone(engine)).isTrue();
+    }
+
+    private static boolean isDone(final SSLEngine engine) {
+        return engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runDelegatedTasks(final SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
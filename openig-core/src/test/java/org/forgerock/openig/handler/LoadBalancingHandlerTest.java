@@ -0,0 +1,198 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.handler.LoadBalancingHandler.Strategy;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class LoadBalancingHandlerTest {
+
+    private static final List<URI> BACKENDS = asList(URI.create("http://one:8080"),
+                                                     URI.create("http://two:8080"),
+                                                     URI.create("http://three:8080"));
+
+    @Mock
+    private Handler next;
+
+    @Mock
+    private TimeService time;
+
+    /** Hosts the requests have been sent to, in order. */
+    private final List<String> hosts = new ArrayList<>();
+
+    /** Host answering with {@link #failingStatus}, if any. */
+    private String failingHost;
+    private Status failingStatus;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        hosts.clear();
+        failingHost = null;
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        Request request = (Request) invocation.getArguments()[1];
+                        String host = request.getUri().getHost();
+                        hosts.add(host);
+                        if (host.equals(failingHost)) {
+                            return newResponsePromise(new Response(failingStatus));
+                        }
+                        return newResponsePromise(new Response(Status.OK));
+                    }
+                });
+    }
+
+    @Test
+    public void shouldRoundRobinAndRebaseRequests() throws Exception {
+        LoadBalancingHandler handler = handler(Strategy.ROUND_ROBIN);
+
+        Request request = new Request().setMethod("GET").setUri("http://gateway/path?query");
+        handler.handle(new RootContext(), request).get();
+        for (int i = 0; i < 5; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/")).get();
+        }
+
+        assertThat(request.getUri().toString()).isEqualTo("http://one:8080/path?query");
+        assertThat(hosts).containsExactly("one", "two", "three", "one", "two", "three");
+    }
+
+    @Test
+    public void shouldPreferBackendWithLeastOutstandingRequests() throws Exception {
+        final List<PromiseImpl<Response, NeverThrowsException>> pending = new ArrayList<>();
+        Handler slow = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                hosts.add(request.getUri().getHost());
+                PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+                pending.add(promise);
+                return promise;
+            }
+        };
+        LoadBalancingHandler handler = new LoadBalancingHandler(slow, BACKENDS, Strategy.LEAST_OUTSTANDING_REQUESTS,
+                                                                time, 5, Duration.duration(30, SECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/"));
+        }
+        // Complete the request sent to 'two': it becomes the only idle backend
+        pending.get(hosts.indexOf("two")).handleResult(new Response(Status.OK));
+        handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/"));
+
+        assertThat(hosts).hasSize(4);
+        assertThat(hosts.subList(0, 3)).containsOnly("one", "two", "three");
+        assertThat(hosts.get(3)).isEqualTo("two");
+    }
+
+    @Test
+    public void shouldSpreadRequestsWithPowerOfTwoChoices() throws Exception {
+        LoadBalancingHandler handler = handler(Strategy.POWER_OF_TWO_CHOICES);
+
+        for (int i = 0; i < 30; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/")).get();
+        }
+
+        assertThat(hosts).contains("one", "two", "three");
+    }
+
+    @Test
+    public void shouldEjectFailingBackendForAWhile() throws Exception {
+        failingHost = "two";
+        failingStatus = Status.BAD_GATEWAY;
+        LoadBalancingHandler handler = new LoadBalancingHandler(next, BACKENDS, Strategy.ROUND_ROBIN,
+                                                                time, 1, Duration.duration(30, SECONDS));
+        when(time.now()).thenReturn(0L);
+
+        for (int i = 0; i < 6; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/")).get();
+        }
+        assertThat(hosts).containsExactly("one", "two", "one", "three", "one", "three");
+
+        // Back in the rotation once the ejection is over
+        hosts.clear();
+        when(time.now()).thenReturn(30000L);
+        for (int i = 0; i < 3; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/")).get();
+        }
+        assertThat(hosts).contains("two");
+    }
+
+    @Test
+    public void shouldTakeUnhealthyBackendOutOfRotation() throws Exception {
+        failingHost = "one";
+        failingStatus = Status.SERVICE_UNAVAILABLE;
+        LoadBalancingHandler handler = handler(Strategy.ROUND_ROBIN);
+
+        handler.checkHealth("/health");
+        hosts.clear();
+        failingHost = null;
+        for (int i = 0; i < 4; i++) {
+            handler.handle(new RootContext(), new Request().setMethod("GET").setUri("http://gateway/")).get();
+        }
+
+        assertThat(hosts).doesNotContain("one");
+    }
+
+    @Test
+    public void shouldUseAllBackendsWhenNoneIsAvailable() throws Exception {
+        failingStatus = Status.SERVICE_UNAVAILABLE;
+        LoadBalancingHandler handler = new LoadBalancingHandler(next, asList(URI.create("http://one:8080")),
+                                                                Strategy.ROUND_ROBIN,
+                                                                time, 5, Duration.duration(30, SECONDS));
+        failingHost = "one";
+        handler.checkHealth("/health");
+
+        Response response = handler.handle(new RootContext(),
+                                           new Request().setMethod("GET").setUri("http://gateway/")).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(hosts).containsExactly("one", "one");
+    }
+
+    private LoadBalancingHandler handler(final Strategy strategy) {
+        return new LoadBalancingHandler(next, BACKENDS, strategy, time, 5, Duration.duration(30, SECONDS));
+    }
+}
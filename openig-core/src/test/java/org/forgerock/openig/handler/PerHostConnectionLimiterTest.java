@@ -0,0 +1,193 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.handler.PerHostConnectionLimiter.HostStatistics;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PerHostConnectionLimiterTest {
+
+    @Mock
+    private Handler next;
+
+    private final List<PromiseImpl<Response, NeverThrowsException>> inFlight = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        inFlight.clear();
+        when(next.handle(any(Context.class), any(Request.class)))
+                .thenAnswer(new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) {
+                        PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+                        inFlight.add(promise);
+                        return promise;
+                    }
+                });
+    }
+
+    @Test
+    public void shouldQueueRequestsAboveTheLimit() throws Exception {
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 10);
+
+        Promise<Response, NeverThrowsException> first = limiter.handle(new RootContext(), request("a"), next);
+        Promise<Response, NeverThrowsException> second = limiter.handle(new RootContext(), request("a"), next);
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+        assertThat(statistics(limiter, "a").getPending()).isEqualTo(1);
+
+        inFlight.get(0).handleResult(new Response(Status.OK));
+        assertThat(first.get().getStatus()).isEqualTo(Status.OK);
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+        assertThat(second.isDone()).isFalse();
+
+        inFlight.get(1).handleResult(new Response(Status.CREATED));
+        assertThat(second.get().getStatus()).isEqualTo(Status.CREATED);
+    }
+
+    @Test
+    public void shouldForgetIdleHosts() throws Exception {
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 10);
+
+        limiter.handle(new RootContext(), request("a"), next);
+        limiter.handle(new RootContext(), request("b"), next);
+        inFlight.get(0).handleResult(new Response(Status.OK));
+
+        assertThat(limiter.getStatistics()).containsOnlyKeys("http://b.example.com:80");
+
+        limiter.handle(new RootContext(), request("a"), next);
+        assertThat(statistics(limiter, "a").getLeased()).isEqualTo(1);
+        verify(next, times(3)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldRemoveCancelledPendingRequests() throws Exception {
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 1);
+
+        limiter.handle(new RootContext(), request("a"), next);
+        Promise<Response, NeverThrowsException> cancelled = limiter.handle(new RootContext(), request("a"), next);
+        cancelled.cancel(false);
+        assertThat(statistics(limiter, "a").getPending()).isEqualTo(0);
+
+        Promise<Response, NeverThrowsException> queued = limiter.handle(new RootContext(), request("a"), next);
+        assertThat(queued.isDone()).isFalse();
+        inFlight.get(0).handleResult(new Response(Status.OK));
+
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+        inFlight.get(1).handleResult(new Response(Status.CREATED));
+        assertThat(queued.get().getStatus()).isEqualTo(Status.CREATED);
+    }
+
+    @Test
+    public void shouldLimitEachHostIndependently() throws Exception {
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 0);
+
+        limiter.handle(new RootContext(), request("a"), next);
+        Promise<Response, NeverThrowsException> other = limiter.handle(new RootContext(), request("b"), next);
+
+        verify(next, times(2)).handle(any(Context.class), any(Request.class));
+        assertThat(other.isDone()).isFalse();
+        assertThat(statistics(limiter, "a").getLeased()).isEqualTo(1);
+        assertThat(statistics(limiter, "b").getLeased()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailFastWhenPendingQueueIsFull() throws Exception {
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 0);
+
+        limiter.handle(new RootContext(), request("a"), next);
+        Response response = limiter.handle(new RootContext(), request("a"), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getCause()).isNotNull();
+        assertThat(statistics(limiter, "a").getRejected()).isEqualTo(1);
+        verify(next, times(1)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldReleaseConnectionWhenNextThrows() throws Exception {
+        Handler failing = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                throw new IllegalStateException("Boom");
+            }
+        };
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 0);
+
+        Response response = limiter.handle(new RootContext(), request("a"), failing).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+        assertThat(limiter.getStatistics()).isEmpty();
+        verify(next, never()).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotRecurseThroughQueuedRequestsFailingSynchronously() throws Exception {
+        Handler failing = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                throw new IllegalStateException("Boom");
+            }
+        };
+        PerHostConnectionLimiter limiter = new PerHostConnectionLimiter(1, 100000);
+        limiter.handle(new RootContext(), request("a"), next);
+        List<Promise<Response, NeverThrowsException>> queued = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            queued.add(limiter.handle(new RootContext(), request("a"), failing));
+        }
+
+        inFlight.get(0).handleResult(new Response(Status.OK));
+
+        for (Promise<Response, NeverThrowsException> promise : queued) {
+            assertThat(promise.get().getStatus()).isEqualTo(Status.INTERNAL_SERVER_ERROR);
+        }
+        assertThat(limiter.getStatistics()).isEmpty();
+    }
+
+    private static HostStatistics statistics(final PerHostConnectionLimiter limiter, final String host) {
+        return limiter.getStatistics().get("http://" + host + ".example.com:80");
+    }
+
+    private static Request request(final String host) throws Exception {
+        return new Request().setMethod("GET").setUri("http://" + host + ".example.com/path");
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.resources;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CachingResourceSetTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("resources").toFile().getCanonicalFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldKeepSmallResourceInMemory() throws Exception {
+        write("index.html", "<h1>Hello</h1>", 1000L);
+        CachingResourceSet resources = new CachingResourceSet(new FileResourceSet(directory));
+
+        CachedResource resource = (CachedResource) resources.find("index.html");
+        assertThat(resource.getContent()).isEqualTo("<h1>Hello</h1>".getBytes(UTF_8));
+        assertThat(resource.getETag()).startsWith("\"").endsWith("\"");
+        assertThat(resource.getType()).isEqualTo("text/html");
+        assertThat(resource.getLastModified()).isEqualTo(1000L);
+        assertThat(resources.find("index.html")).isSameAs(resource);
+    }
+
+    @Test
+    public void shouldServeLargeResourceFromFile() throws Exception {
+        File file = write("large.txt", "0123456789", 1000L);
+        CachingResourceSet resources = new CachingResourceSet(new FileResourceSet(directory), 4, 1024);
+
+        CachedResource resource = (CachedResource) resources.find("large.txt");
+        assertThat(resource.getContent()).isNull();
+        assertThat(resource.getFile()).isEqualTo(file.getCanonicalFile());
+        assertThat(resource.getLength()).isEqualTo(10L);
+    }
+
+    @Test
+    public void shouldNotFindMissingResource() throws Exception {
+        CachingResourceSet resources = new CachingResourceSet(new FileResourceSet(directory));
+        assertThat(resources.find("missing.html")).isNull();
+    }
+
+    @Test
+    public void shouldSelectPrecompressedVariants() throws Exception {
+        write("app.js", "var a = 1;", 1000L);
+        write("app.js.gz", "gzipped", 2000L);
+        write("app.js.br", "brotli", 500L);
+        CachingResourceSet resources = new CachingResourceSet(new FileResourceSet(directory));
+
+        CachedResource resource = (CachedResource) resources.find("app.js");
+        // The brotli sibling is older than the resource: ignored
+        assertThat(resource.getVariants()).hasSize(1);
+
+        CachedResource gzip = resource.select("br, gzip, deflate");
+        assertThat(gzip.getEncoding()).isEqualTo("gzip");
+        assertThat(gzip.getType()).isEqualTo(resource.getType());
+        assertThat(gzip.getETag()).isNotEqualTo(resource.getETag());
+
+        assertThat(resource.select(null)).isSameAs(resource);
+        assertThat(resource.select("gzip;q=0, identity")).isSameAs(resource);
+        assertThat(resource.select("*")).isSameAs(gzip);
+    }
+
+    @Test
+    public void shouldReloadResourceAfterInvalidation() throws Exception {
+        write("index.html", "version 1", 1000L);
+        CachingResourceSet resources = new CachingResourceSet(new FileResourceSet(directory));
+        CachedResource first = (CachedResource) resources.find("index.html");
+
+        write("index.html", "version 2", 2000L);
+        assertThat(resources.find("index.html")).isSameAs(first);
+
+        resources.invalidate();
+        CachedResource second = (CachedResource) resources.find("index.html");
+        assertThat(second.getContent()).isEqualTo("version 2".getBytes(UTF_8));
+        assertThat(second.getETag()).isNotEqualTo(first.getETag());
+    }
+
+    private File write(final String name, final String content, final long lastModified) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+        assertThat(file.setLastModified(lastModified)).isTrue();
+        return file;
+    }
+}
@@ -24,9 +24,14 @@ import static org.forgerock.http.protocol.Status.METHOD_NOT_ALLOWED;
 import static org.forgerock.http.protocol.Status.NOT_FOUND;
 import static org.forgerock.http.protocol.Status.OK;
 import static org.forgerock.openig.handler.resources.ResourceHandler.NOT_MODIFIED;
+import static org.forgerock.openig.handler.resources.ResourceHandler.PARTIAL_CONTENT;
+import static org.forgerock.openig.handler.resources.ResourceHandler.RANGE_NOT_SATISFIABLE;
+import static org.forgerock.openig.handler.resources.ResourceHandler.UNSATISFIABLE;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Collections;
 import java.util.Date;
 
@@ -61,7 +66,6 @@ public class ResourceHandlerTest {
         // @Checkstyle:off
         return new Object[][] {
                 { "POST" },
-                { "HEAD" },
                 { "PATCH" },
                 { "DELETE" },
         };
@@ -208,4 +212,169 @@ public class ResourceHandlerTest {
         assertThat(response.getHeaders().get(LocationHeader.class).getLocationUri())
                 .isEqualTo("/context/");
     }
+
+    @Test
+    public void shouldServeCachedResourceWithETag() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/html", "\"abc\"", 0L, null, "Hello".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Response response = handler.handle(indexContext(), new Request().setMethod("GET"))
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo("\"abc\"");
+        assertThat(response.getHeaders().getFirst("Content-Length")).isEqualTo("5");
+        assertThat(response.getEntity().getString()).isEqualTo("Hello");
+    }
+
+    @Test
+    public void shouldServeNotModifiedCachedResourceWhenETagMatches() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/html", "\"abc\"", 0L, null, "Hello".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("If-None-Match", "\"xyz\", W/\"abc\"");
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(NOT_MODIFIED);
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo("\"abc\"");
+    }
+
+    @Test
+    public void shouldServePrecompressedVariant() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/html", "\"abc\"", 0L, null, "Hello".getBytes());
+        cached.addVariant(CachedResource.inMemory("text/html", "\"abc-gzip\"", 0L, "gzip", "Gzipped".getBytes()));
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("Accept-Encoding", "gzip, deflate");
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(response.getHeaders().getFirst("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo("\"abc-gzip\"");
+        assertThat(response.getHeaders().get(ContentTypeHeader.class).getType()).isEqualTo("text/html");
+    }
+
+    @DataProvider
+    public static Object[][] ranges() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { "bytes=0-4", new long[] { 0, 5 } },
+                { "bytes=2-", new long[] { 2, 10 } },
+                { "bytes=-3", new long[] { 7, 10 } },
+                { "bytes=-20", new long[] { 0, 10 } },
+                { "bytes=5-100", new long[] { 5, 10 } },
+                { "bytes=10-", UNSATISFIABLE },
+                { "bytes=-0", UNSATISFIABLE },
+                { "bytes=4-2", null },
+                { "bytes=0-1,4-5", null },
+                { "bytes=a-b", null },
+                { "items=0-4", null },
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "ranges")
+    public void shouldParseRange(final String range, final long[] expected) throws Exception {
+        assertThat(ResourceHandler.parseRange(range, 10L)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldServeHeadersOnlyForHeadMethod() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/html", "\"abc\"", 0L, null, "Hello".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Response response = handler.handle(indexContext(), new Request().setMethod("HEAD"))
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThat(response.getHeaders().getFirst("Content-Length")).isEqualTo("5");
+        assertThat(response.getHeaders().getFirst("Accept-Ranges")).isEqualTo("bytes");
+        assertThat(response.getEntity().getString()).isEmpty();
+    }
+
+    @Test
+    public void shouldServePartialContent() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/plain", "\"abc\"", 0L, null, "Hello World".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("Range", "bytes=6-");
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(PARTIAL_CONTENT);
+        assertThat(response.getHeaders().getFirst("Content-Range")).isEqualTo("bytes 6-10/11");
+        assertThat(response.getHeaders().getFirst("Content-Length")).isEqualTo("5");
+        assertThat(response.getEntity().getString()).isEqualTo("World");
+    }
+
+    @Test
+    public void shouldServePartialContentFromFile() throws Exception {
+        File file = File.createTempFile("resource", ".txt");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("Hello World".getBytes());
+        }
+        CachedResource cached = CachedResource.onDisk("text/plain", file.lastModified(), null, file);
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("Range", "bytes=-5");
+        request.getHeaders().put("If-Range", cached.getETag());
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(PARTIAL_CONTENT);
+        assertThat(response.getHeaders().getFirst("Content-Range")).isEqualTo("bytes 6-10/11");
+        assertThat(response.getEntity().getString()).isEqualTo("World");
+    }
+
+    @Test
+    public void shouldServeWholeContentWhenIfRangeDoesNotMatch() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/plain", "\"abc\"", 0L, null, "Hello World".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("Range", "bytes=6-");
+        request.getHeaders().put("If-Range", "\"xyz\"");
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThat(response.getEntity().getString()).isEqualTo("Hello World");
+    }
+
+    @Test
+    public void shouldRejectUnsatisfiableRange() throws Exception {
+        CachedResource cached = CachedResource.inMemory("text/plain", "\"abc\"", 0L, null, "Hello".getBytes());
+        when(resourceSet.find(anyString())).thenReturn(cached);
+
+        ResourceHandler handler = new ResourceHandler(singletonList(resourceSet));
+        Request request = new Request().setMethod("GET");
+        request.getHeaders().put("Range", "bytes=42-");
+        Response response = handler.handle(indexContext(), request)
+                                   .get();
+
+        assertThat(response.getStatus()).isEqualTo(RANGE_NOT_SATISFIABLE);
+        assertThat(response.getHeaders().getFirst("Content-Range")).isEqualTo("bytes */5");
+    }
+
+    private static UriRouterContext indexContext() {
+        return new UriRouterContext(new RootContext(),
+                                    "",
+                                    "/index.html",
+                                    Collections.<String, String>emptyMap());
+    }
 }
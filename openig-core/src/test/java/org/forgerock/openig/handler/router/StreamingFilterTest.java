@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.router;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class StreamingFilterTest {
+
+    private static final byte[] CONTENT = new byte[StreamingFilter.PEEK_LIMIT * 4];
+
+    static {
+        Arrays.fill(CONTENT, (byte) 'x');
+    }
+
+    @DataProvider
+    public static Object[][] routes() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { json(object(field("handler", "ClientHandler"))), false },
+                { json(object(field("heap", array(object(field("name", "extract"),
+                                                         field("type", "EntityExtractFilter")))))), true },
+                { json(object(field("handler", object(field("type", "Chain"),
+                                                      field("config", object(field("filters", array(
+                                                              object(field("type", "ScriptableFilter")))))))))),
+                  true },
+                { json(object(field("condition", "${request.entity.string == 'x'}"))), true },
+                { json(object(field("condition", "${response['entity'].json.id == 'x'}"))), true },
+                { json(object(field("condition", "${attributes.saml.entityId == 'x'}"))), false },
+                { json(object(field("baseURI", "http://app.example.com/request.entity"))), false },
+                { json(object(field("handler", object(field("type", "HttpBasicAuthFilter"))))), true },
+                { json(object(field("handler", object(field("type", "OAuth2ClientFilter"))))), true },
+                { json(object(field("capture", object(field("type", "CaptureDecorator"),
+                                                      field("config", object(field("captureEntity", true))))))),
+                  true },
+                { json(object(field("heap", array(object(field("type", "HeaderFilter")))))), false }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "routes")
+    public void shouldDetectRoutesNeedingEntities(final JsonValue route, final boolean expected) throws Exception {
+        assertThat(StreamingFilter.needsEntity(route)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldStreamEntities() throws Exception {
+        Request request = new Request().setMethod("POST").setUri("http://example.com/upload");
+        request.getHeaders().put("Content-Type", "application/octet-stream");
+        request.setEntity(CONTENT);
+
+        Response response = new StreamingFilter().filter(new RootContext(), request, new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request streamed) {
+                assertThat(streamed.getHeaders().getFirst("Content-Type")).isEqualTo("application/octet-stream");
+                try {
+                    assertThat(readAll(streamed.getEntity().getRawContentInputStream())).isEqualTo(CONTENT.length);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return newResponsePromise(new Response(Status.OK).setEntity(CONTENT));
+            }
+        }).get();
+
+        assertThat(readAll(response.getEntity().getRawContentInputStream())).isEqualTo(CONTENT.length);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldNotBufferBeyondPeekLimit() throws Exception {
+        Request request = new Request().setMethod("POST").setUri("http://example.com/upload");
+        request.setEntity(CONTENT);
+
+        final Request[] streamed = new Request[1];
+        new StreamingFilter().filter(new RootContext(), request, new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                streamed[0] = request;
+                return newResponsePromise(new Response(Status.OK));
+            }
+        }).get();
+
+        // The trunk has not been read: the branch has to buffer all the content for it
+        readAll(streamed[0].getEntity().getRawContentInputStream().branch());
+    }
+
+    private static long readAll(final InputStream in) throws IOException {
+        long total = 0L;
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotSupportedException;
+import org.forgerock.util.Factory;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ReadOnlyResourceProviderTest {
+
+    private int reads;
+
+    @Test
+    public void shouldBuildContentOnEachRead() throws Exception {
+        ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+            @Override
+            public JsonValue newInstance() {
+                return json(object(field("reads", ++reads)));
+            }
+        });
+
+        assertThat(provider.readInstance(null, null).get().getContent().get("reads").asInteger()).isEqualTo(1);
+        assertThat(provider.readInstance(null, null).get().getContent().get("reads").asInteger()).isEqualTo(2);
+    }
+
+    @Test(expectedExceptions = NotSupportedException.class)
+    public void shouldNotSupportUpdates() throws Exception {
+        ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+            @Override
+            public JsonValue newInstance() {
+                return json(object());
+            }
+        });
+
+        provider.updateInstance(null, null).getOrThrow();
+    }
+}
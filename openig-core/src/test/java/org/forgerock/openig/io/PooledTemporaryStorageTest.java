@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.OverflowException;
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PooledTemporaryStorageTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private PooledTemporaryStorage storage;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        // 4 slabs in the pool, 2 per buffer, 8 blocks in the spill file, buffers limited to 6 KiB
+        storage = new PooledTemporaryStorage(null, BLOCK_SIZE, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE, 8 * BLOCK_SIZE,
+                                             6 * BLOCK_SIZE);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Test
+    public void shouldReadWhatWasAppended() throws Exception {
+        byte[] content = content(5 * BLOCK_SIZE + 10);
+        Buffer buffer = storage.newInstance();
+        buffer.append(content, 0, 100);
+        buffer.append(content[100]);
+        buffer.append(content, 101, content.length - 101);
+
+        assertThat(buffer.length()).isEqualTo(content.length);
+        byte[] read = new byte[content.length];
+        assertThat(buffer.read(0, read, 0, read.length)).isEqualTo(content.length);
+        assertThat(read).isEqualTo(content);
+        assertThat(buffer.read(BLOCK_SIZE + 3)).isEqualTo(content[BLOCK_SIZE + 3]);
+        assertThat(buffer.read(content.length, read, 0, 10)).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldSpillBeyondMemoryLimit() throws Exception {
+        Buffer buffer = storage.newInstance();
+        buffer.append(content(3 * BLOCK_SIZE), 0, 3 * BLOCK_SIZE);
+
+        JsonValue statistics = storage.getStatistics();
+        assertThat(statistics.get("pool").get("inUse").asInteger()).isEqualTo(2);
+        assertThat(statistics.get("spill").get("inUse").asInteger()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSpillWhenPoolIsExhausted() throws Exception {
+        storage.newInstance().append(content(2 * BLOCK_SIZE), 0, 2 * BLOCK_SIZE);
+        storage.newInstance().append(content(2 * BLOCK_SIZE), 0, 2 * BLOCK_SIZE);
+        Buffer third = storage.newInstance();
+        third.append(content(BLOCK_SIZE), 0, BLOCK_SIZE);
+
+        JsonValue statistics = storage.getStatistics();
+        assertThat(statistics.get("pool").get("inUse").asInteger()).isEqualTo(4);
+        assertThat(statistics.get("pool").get("misses").asLong()).isEqualTo(1L);
+        assertThat(statistics.get("spill").get("inUse").asInteger()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReuseBlocksOnceClosed() throws Exception {
+        Buffer buffer = storage.newInstance();
+        buffer.append(content(4 * BLOCK_SIZE), 0, 4 * BLOCK_SIZE);
+        buffer.close();
+        buffer.close();
+
+        JsonValue statistics = storage.getStatistics();
+        assertThat(statistics.get("openBuffers").asInteger()).isEqualTo(0);
+        assertThat(statistics.get("pool").get("inUse").asInteger()).isEqualTo(0);
+        assertThat(statistics.get("pool").get("allocated").asInteger()).isEqualTo(2);
+        assertThat(statistics.get("spill").get("inUse").asInteger()).isEqualTo(0);
+
+        storage.newInstance().append(content(BLOCK_SIZE), 0, BLOCK_SIZE);
+        assertThat(storage.getStatistics().get("pool").get("allocated").asInteger()).isEqualTo(2);
+    }
+
+    @Test(expectedExceptions = OverflowException.class)
+    public void shouldOverflowBeyondFileLimit() throws Exception {
+        storage.newInstance().append(content(6 * BLOCK_SIZE + 1), 0, 6 * BLOCK_SIZE + 1);
+    }
+
+    @Test
+    public void shouldOverflowWhenSpillFileIsFull() throws Exception {
+        storage.newInstance().append(content(6 * BLOCK_SIZE), 0, 6 * BLOCK_SIZE);
+        storage.newInstance().append(content(6 * BLOCK_SIZE), 0, 6 * BLOCK_SIZE);
+        try {
+            storage.newInstance().append(content(BLOCK_SIZE), 0, BLOCK_SIZE);
+            throw new AssertionError("Expected an overflow");
+        } catch (OverflowException e) {
+            assertThat(storage.getStatistics().get("overflows").asLong()).isEqualTo(1L);
+        }
+    }
+
+    @Test
+    public void shouldReclaimBlocksOfLeakedBuffers() throws Exception {
+        leakBuffer();
+        for (int i = 0; i < 100 && storage.getStatistics().get("leaks").asLong() == 0L; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        JsonValue statistics = storage.getStatistics();
+        assertThat(statistics.get("leaks").asLong()).isEqualTo(1L);
+        assertThat(statistics.get("openBuffers").asInteger()).isEqualTo(0);
+        assertThat(statistics.get("pool").get("inUse").asInteger()).isEqualTo(0);
+        assertThat(statistics.get("spill").get("inUse").asInteger()).isEqualTo(0);
+    }
+
+    private void leakBuffer() throws IOException {
+        storage.newInstance().append(content(3 * BLOCK_SIZE), 0, 3 * BLOCK_SIZE);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldNotReadClosedBuffer() throws Exception {
+        Buffer buffer = storage.newInstance();
+        buffer.append((byte) 1);
+        buffer.close();
+        buffer.read(0);
+    }
+
+    private static byte[] content(final int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.regex;
@@ -51,6 +51,21 @@ public class StreamPatternExtractorTest {
                                         entry("name", "X-Hello"));
     }
 
+    @Test
+    public void testPatternMatchingAcrossLines() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("form", Pattern.compile("<form action=\"([^\"]*)\"\\s+method=\"([^\"]*)\""));
+        extractor.getTemplates().put("form", new PatternTemplate("$2 $1"));
+        extractor.getPatterns().put("title", Pattern.compile("<title>(.*)</title>"));
+        extractor.getTemplates().put("title", new PatternTemplate("$1"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader("<title>Login</title>",
+                                                                    "<form action=\"/login\"",
+                                                                    "      method=\"POST\">")));
+        assertThat(actual).containsOnly(entry("form", "POST /login"),
+                                        entry("title", "Login"));
+    }
+
     public static <K, V> Map<K, V> asMap(Iterable<Map.Entry<K, V>> iterable) {
         Map<K, V> map = new HashMap<>();
         for (Map.Entry<K, V> item : iterable) {
@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.regex.Readers.reader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class StreamPatternScannerTest {
+
+    @DataProvider
+    public static Object[][] literalPrefixes() {
+        // @Checkstyle:off
+        return new Object[][] {
+                { Pattern.compile("Hello(.*)"), "Hello" },
+                { Pattern.compile("^X-(.*): "), "X-" },
+                { Pattern.compile("ab*c"), "a" },
+                { Pattern.compile("ab+c"), "ab" },
+                { Pattern.compile("a\\.b"), "a.b" },
+                { Pattern.compile("a\\db"), "a" },
+                { Pattern.compile("a|b"), null },
+                { Pattern.compile("(a)b"), null },
+                { Pattern.compile("[0-9]+"), null },
+                { Pattern.compile("hello", Pattern.CASE_INSENSITIVE), null },
+                { Pattern.compile("a.b", Pattern.LITERAL), "a.b" },
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "literalPrefixes")
+    public void shouldExtractLiteralPrefix(final Pattern pattern, final String expected) throws Exception {
+        assertThat(LiteralPrefixAutomaton.literalPrefix(pattern)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldMatchAcrossLines() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(reader("Hello", "World"),
+                                                                asList(Pattern.compile("Hello\\s+World")));
+        assertThat(scanner.find(0).group()).isEqualTo("Hello\nWorld");
+    }
+
+    @Test
+    public void shouldKeepLineAnchorsSemantic() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(reader("Not-X-Extra: Hi", "X-Hello: \"World\""),
+                                                                asList(Pattern.compile("^X-(.*): ")));
+        MatchResult result = scanner.find(0);
+        assertThat(result.group(1)).isEqualTo("Hello");
+        assertThat(result.start()).isEqualTo(16);
+    }
+
+    @Test
+    public void shouldResolveAllPatternsInOnePass() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(reader("one two", "three"),
+                                                                asList(Pattern.compile("three"),
+                                                                       Pattern.compile("t[a-z]o"),
+                                                                       Pattern.compile("four")));
+        assertThat(scanner.find(1).group()).isEqualTo("two");
+        assertThat(scanner.find(0).group()).isEqualTo("three");
+        assertThat(scanner.find(2)).isNull();
+        assertThat(scanner.isResolved()).isTrue();
+    }
+
+    @Test
+    public void shouldFindLiteralPrefixSpanningWindows() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(new StringReader("aaaaaaHELLO"),
+                                                                asList(Pattern.compile("HELLO")),
+                                                                8);
+        MatchResult result = scanner.find(0);
+        assertThat(result.group()).isEqualTo("HELLO");
+        assertThat(result.start()).isEqualTo(6);
+        assertThat(result.end()).isEqualTo(11);
+    }
+
+    @Test
+    public void shouldFindPatternWithoutPrefixSpanningWindows() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(new StringReader("abcdefgh123z"),
+                                                                asList(Pattern.compile("[0-9]+z")),
+                                                                8);
+        MatchResult result = scanner.find(0);
+        assertThat(result.group()).isEqualTo("123z");
+        assertThat(result.start()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldStopReadingOnceAllPatternsAreResolved() throws Exception {
+        StringBuilder content = new StringBuilder("ab");
+        for (int i = 0; i < 1000; i++) {
+            content.append('x');
+        }
+        CountingReader reader = new CountingReader(new StringReader(content.toString()));
+        StreamPatternScanner scanner = new StreamPatternScanner(reader, asList(Pattern.compile("ab")), 16);
+
+        assertThat(scanner.find(0).group()).isEqualTo("ab");
+        assertThat(scanner.isResolved()).isTrue();
+        assertThat(reader.count).isLessThanOrEqualTo(16);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldFailWhenClosed() throws Exception {
+        StreamPatternScanner scanner = new StreamPatternScanner(reader("abc"), asList(Pattern.compile("c")));
+        scanner.close();
+        scanner.find(0);
+    }
+
+    private static final class CountingReader extends Reader {
+        private final Reader delegate;
+        private int count;
+
+        CountingReader(final Reader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            int read = delegate.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
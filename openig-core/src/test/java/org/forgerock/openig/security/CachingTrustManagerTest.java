@@ -0,0 +1,136 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.security;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CachingTrustManagerTest {
+
+    @Mock
+    private X509ExtendedTrustManager delegate;
+
+    @Mock
+    private TimeService time;
+
+    @Mock
+    private SSLEngine engine;
+
+    private long now;
+
+    private X509Certificate[] chain;
+
+    private CachingTrustManager manager;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        when(engine.getPeerHost()).thenReturn("backend.example.com");
+        chain = new X509Certificate[] {certificate(Long.MAX_VALUE), certificate(Long.MAX_VALUE)};
+        manager = new CachingTrustManager(delegate, time, 10, 60000L);
+    }
+
+    @Test
+    public void shouldNotValidateSameChainTwice() throws Exception {
+        manager.checkServerTrusted(chain, "RSA", engine);
+        manager.checkServerTrusted(chain.clone(), "RSA", engine);
+
+        verify(delegate).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+    }
+
+    @Test
+    public void shouldValidateAgainOnceExpired() throws Exception {
+        manager.checkServerTrusted(chain, "RSA", engine);
+        now += 60000L;
+        manager.checkServerTrusted(chain, "RSA", engine);
+
+        verify(delegate, times(2)).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+    }
+
+    @Test
+    public void shouldValidateAgainOnceCertificateExpired() throws Exception {
+        chain[1] = certificate(now + 1000L);
+        manager.checkServerTrusted(chain, "RSA", engine);
+        now += 1000L;
+        manager.checkServerTrusted(chain, "RSA", engine);
+
+        verify(delegate, times(2)).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+    }
+
+    @Test
+    public void shouldValidateChainPresentedByAnotherHost() throws Exception {
+        SSLEngine other = mock(SSLEngine.class);
+        when(other.getPeerHost()).thenReturn("other.example.com");
+
+        manager.checkServerTrusted(chain, "RSA", engine);
+        manager.checkServerTrusted(chain, "RSA", other);
+
+        verify(delegate, times(2)).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+    }
+
+    @Test
+    public void shouldNotCacheFailedValidations() throws Exception {
+        doThrow(new CertificateException("revoked"))
+                .when(delegate).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+        for (int i = 0; i < 2; i++) {
+            try {
+                manager.checkServerTrusted(chain, "RSA", engine);
+                fail("Expected a CertificateException");
+            } catch (CertificateException e) {
+                assertThat(e).hasMessage("revoked");
+            }
+        }
+
+        verify(delegate, times(2)).checkServerTrusted(any(X509Certificate[].class), anyString(), any(SSLEngine.class));
+    }
+
+    private static X509Certificate certificate(final long notAfter) {
+        X509Certificate certificate = mock(X509Certificate.class);
+        when(certificate.getNotAfter()).thenReturn(new Date(notAfter));
+        return certificate;
+    }
+}
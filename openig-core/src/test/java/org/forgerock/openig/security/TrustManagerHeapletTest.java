@@ -53,6 +53,23 @@ public class TrustManagerHeapletTest {
                 .isInstanceOf(TrustManager.class);
     }
 
+    @Test
+    public void shouldLoadTrustManagerCheckingRevocationWithValidationCache() throws Exception {
+        HeapImpl heap = new HeapImpl(Name.of("anonymous"));
+        heap.put("KeyStore", loadKeyStore("jks", "/x509cert-keystore.jks"));
+
+        JsonValue config = json(object(
+                field("keystore", "KeyStore"),
+                field("alg", "PKIX"),
+                field("checkRevocation", true),
+                field("validationCache", object(field("maxSize", 10), field("ttl", "1 minute")))
+        ));
+
+        TrustManagerHeaplet heaplet = new TrustManagerHeaplet();
+        assertThat(heaplet.create(Name.of(OBJECT_NAME), config, heap))
+                .isInstanceOf(CachingTrustManager.class);
+    }
+
     private KeyStore loadKeyStore(String type, String name) throws Exception {
         KeyStore keyStore = KeyStore.getInstance(type);
         InputStream is = getClass().getResourceAsStream(name);
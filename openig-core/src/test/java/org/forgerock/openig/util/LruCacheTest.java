@@ -0,0 +1,100 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class LruCacheTest {
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private LruCache<String, String> cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        cache = new LruCache<>(time, 2);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedValue() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertThat(cache.get("a")).isEqualTo("1");
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isEqualTo("3");
+        assertThat(cache.getEvictions()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldNotReturnExpiredValue() throws Exception {
+        cache.put("a", "1", now + 10L);
+
+        now += 10L;
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotChangeOrderWhenRemovingExpiredValue() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2", now + 10L);
+
+        assertThat(cache.removeIfExpired("a")).isFalse();
+        now += 10L;
+        assertThat(cache.removeIfExpired("b")).isTrue();
+        cache.put("c", "3");
+        cache.put("d", "4");
+
+        assertThat(cache.get("a")).isNull();
+    }
+
+    @Test
+    public void shouldOnlyUpdateExpectedValue() throws Exception {
+        String value = new String("1");
+        cache.put("a", value);
+
+        assertThat(cache.expireAt("a", new String("1"), now)).isFalse();
+        assertThat(cache.remove("a", new String("1"))).isFalse();
+        assertThat(cache.expireAt("a", value, now)).isTrue();
+        assertThat(cache.get("a")).isNull();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SingleFlightCacheTest {
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private int loads;
+
+    private SingleFlightCache<String, String, IOException> cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        loads = 0;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        cache = new SingleFlightCache<>(time, 2, new SingleFlightCache.Expiration<String, String, IOException>() {
+            @Override
+            public long expiresAt(final String key, final String value) {
+                return now + Long.parseLong(value);
+            }
+
+            @Override
+            public long failureExpiresAt(final String key, final IOException exception) {
+                return now + 5L;
+            }
+        });
+    }
+
+    @Test
+    public void shouldLoadValueOnce() throws Exception {
+        assertThat(cache.getValue("a", load("10")).get()).isEqualTo("10");
+        assertThat(cache.getValue("a", load("10")).get()).isEqualTo("10");
+
+        assertThat(loads).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(1L);
+        assertThat(cache.getMisses()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldLoadValueAgainOnceExpired() throws Exception {
+        cache.getValue("a", load("10"));
+        now += 10L;
+        cache.getValue("a", load("10"));
+
+        assertThat(loads).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldShareConcurrentLoads() throws Exception {
+        final PromiseImpl<String, IOException> pending = PromiseImpl.create();
+        AsyncFunction<String, String, IOException> loader = new AsyncFunction<String, String, IOException>() {
+            @Override
+            public Promise<String, IOException> apply(final String key) {
+                loads++;
+                return pending;
+            }
+        };
+        Promise<String, IOException> first = cache.getValue("a", loader);
+        Promise<String, IOException> second = cache.getValue("a", loader);
+        pending.handleResult("10");
+
+        assertThat(first.get()).isEqualTo("10");
+        assertThat(second.get()).isEqualTo("10");
+        assertThat(loads).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepFailureForItsExpiration() throws Exception {
+        AsyncFunction<String, String, IOException> failure = new AsyncFunction<String, String, IOException>() {
+            @Override
+            public Promise<String, IOException> apply(final String key) {
+                loads++;
+                return newExceptionPromise(new IOException("boom"));
+            }
+        };
+        cache.getValue("a", failure);
+        cache.getValue("a", failure);
+        now += 5L;
+        cache.getValue("a", failure);
+
+        assertThat(loads).isEqualTo(2);
+        assertThat(cache.getFailureHits()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldNotKeepRuntimeFailures() throws Exception {
+        AsyncFunction<String, String, IOException> failure = new AsyncFunction<String, String, IOException>() {
+            @Override
+            public Promise<String, IOException> apply(final String key) {
+                loads++;
+                throw new IllegalStateException("boom");
+            }
+        };
+        Promise<String, IOException> promise = cache.getValue("a", failure);
+
+        try {
+            promise.getOrThrow();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("boom");
+        }
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.getValue("a", load("10")).get()).isEqualTo("10");
+    }
+
+    @Test
+    public void shouldNotKeepValueWhoseExpirationFails() throws Exception {
+        assertThat(cache.getValue("a", load("not a number")).get()).isEqualTo("not a number");
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    private AsyncFunction<String, String, IOException> load(final String value) {
+        return new AsyncFunction<String, String, IOException>() {
+            @Override
+            public Promise<String, IOException> apply(final String key) {
+                loads++;
+                return newResultPromise(value);
+            }
+        };
+    }
+}
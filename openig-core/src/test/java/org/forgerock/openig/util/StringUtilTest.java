@@ -17,6 +17,7 @@
 package org.forgerock.openig.util;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.util.StringUtil.sha256;
 import static org.forgerock.openig.util.StringUtil.toSIAbbreviation;
 import static org.forgerock.openig.util.StringUtil.slug;
 import static org.forgerock.openig.util.StringUtil.trailingSlash;
@@ -88,4 +89,9 @@ public class StringUtilTest {
     public void shouldNotConvertNullTimeUnitToSIAbbreviation() {
         assertThat(toSIAbbreviation(null)).isEqualTo("");
     }
+
+    @Test
+    public void shouldDigestValue() {
+        assertThat(sha256("abc")).isEqualTo("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=");
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.openig.oauth2.AccessTokenInfo;
+import org.forgerock.openig.oauth2.AccessTokenResolver;
+import org.forgerock.openig.util.SingleFlightCache;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * An {@link AccessTokenResolver} that remembers the outcome of the token resolutions performed by another resolver.
+ * <p>
+ * A valid token is remembered for {@literal expiration}, but never after the token itself expires. An invalid
+ * token (or a failed resolution) is remembered for {@literal negativeExpiration}, usually much shorter, so a client
+ * retrying a revoked token in a loop does not reach the authorization server on every request. Concurrent
+ * resolutions of the same token share a single call to the delegate resolver.
+ * <p>
+ * At most {@literal maxSize} tokens are remembered: the least recently used ones are evicted first. Expired entries
+ * are removed when they are looked up, or evicted as any other entry.
+ */
+class AccessTokenCache implements AccessTokenResolver {
+
+    private final AccessTokenResolver delegate;
+    private final SingleFlightCache<String, AccessTokenInfo, AccessTokenException> cache;
+
+    /**
+     * Creates a new access token cache.
+     *
+     * @param delegate
+     *         the resolver called on cache misses
+     * @param time
+     *         the time service
+     * @param expiration
+     *         how long (ms) a valid token is remembered at most
+     * @param negativeExpiration
+     *         how long (ms) an invalid token is remembered ({@code 0} to never remember them)
+     * @param maxSize
+     *         the maximum number of remembered tokens
+     */
+    AccessTokenCache(final AccessTokenResolver delegate,
+                     final TimeService time,
+                     final long expiration,
+                     final long negativeExpiration,
+                     final int maxSize) {
+        this.delegate = delegate;
+        this.cache = new SingleFlightCache<>(time, maxSize,
+                new SingleFlightCache.Expiration<String, AccessTokenInfo, AccessTokenException>() {
+                    @Override
+                    public long expiresAt(final String token, final AccessTokenInfo info) {
+                        long expiresAt = after(time, expiration);
+                        if (info.getExpiresAt() > 0L) {
+                            expiresAt = Math.min(expiresAt, info.getExpiresAt());
+                        }
+                        return expiresAt;
+                    }
+
+                    @Override
+                    public long failureExpiresAt(final String token, final AccessTokenException exception) {
+                        return after(time, negativeExpiration);
+                    }
+                });
+    }
+
+    @Override
+    public Promise<AccessTokenInfo, AccessTokenException> resolve(final Context context, final String token) {
+        return cache.getValue(token, new AsyncFunction<String, AccessTokenInfo, AccessTokenException>() {
+            @Override
+            public Promise<AccessTokenInfo, AccessTokenException> apply(final String key) {
+                return delegate.resolve(context, key);
+            }
+        });
+    }
+
+    private static long after(final TimeService time, final long delay) {
+        long now = time.now();
+        // Unlimited delays are given as Long.MAX_VALUE
+        return delay > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delay;
+    }
+
+    /** Forgets all the remembered tokens. */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the cache statistics.
+     *
+     * @return the cache statistics
+     */
+    JsonValue getStatistics() {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        return json(object(field("size", cache.size()),
+                           field("maxSize", cache.getMaxSize()),
+                           field("hits", hits),
+                           field("negativeHits", cache.getFailureHits()),
+                           field("misses", cache.getMisses()),
+                           field("evictions", cache.getEvictions()),
+                           field("hitRatio", lookups == 0L ? 0d : (double) hits / lookups)));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2;
+
+import static java.lang.String.format;
+import static org.forgerock.util.Utils.closeSilently;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Responses;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.jwk.JWK;
+import org.forgerock.json.jose.jwk.JWKSet;
+import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the JSON Web Key Set published by an authorization server.
+ * <p>
+ * The key set is fetched on first use, then refreshed with {@link #refresh(Context)} (usually in the background).
+ * When a key is not in the current set (the server rotated its keys), the set is fetched again, at most once every
+ * {@literal minRefreshDelay}: so tokens signed with unknown keys cannot be used to flood the server. Concurrent
+ * fetches are collapsed in a single request.
+ */
+class JwkSetCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(JwkSetCache.class);
+
+    private final Handler handler;
+    private final URI jwksUri;
+    private final TimeService time;
+    private final long minRefreshDelay;
+
+    /** Guarded by this. */
+    private JWKSet keys;
+    private long fetchedAt = Long.MIN_VALUE;
+    private Promise<JWKSet, AccessTokenException> pending;
+
+    /**
+     * Creates a new key set cache.
+     *
+     * @param handler
+     *         the handler used to fetch the key set
+     * @param jwksUri
+     *         where the key set is published
+     * @param time
+     *         the time service
+     * @param minRefreshDelay
+     *         the minimum delay (ms) between two fetches triggered by unknown keys
+     */
+    JwkSetCache(final Handler handler, final URI jwksUri, final TimeService time, final long minRefreshDelay) {
+        this.handler = handler;
+        this.jwksUri = jwksUri;
+        this.time = time;
+        this.minRefreshDelay = minRefreshDelay;
+    }
+
+    /**
+     * Returns the key with the given identifier, fetching the key set again if it is unknown (and if the key set has
+     * not been fetched recently).
+     *
+     * @param context
+     *         the context of the fetch request
+     * @param kid
+     *         the key identifier
+     * @return a promise completed with the key, or with {@code null} if it is not published by the server
+     */
+    Promise<JWK, AccessTokenException> findKey(final Context context, final String kid) {
+        Promise<JWKSet, AccessTokenException> promise;
+        synchronized (this) {
+            JWK key = keys != null ? keys.findJwk(kid) : null;
+            if (key != null) {
+                return newResultPromise(key);
+            }
+            if (isThrottled()) {
+                return newResultPromise(null);
+            }
+            promise = fetch(context);
+        }
+        return promise.then(new Function<JWKSet, JWK, AccessTokenException>() {
+            @Override
+            public JWK apply(final JWKSet set) {
+                return set.findJwk(kid);
+            }
+        });
+    }
+
+    /**
+     * Returns the current key set, fetching it if it has never been fetched.
+     *
+     * @param context
+     *         the context of the fetch request
+     * @return a promise completed with the key set
+     */
+    synchronized Promise<JWKSet, AccessTokenException> getKeys(final Context context) {
+        if (keys != null) {
+            return newResultPromise(keys);
+        }
+        if (isThrottled()) {
+            return newExceptionPromise(new AccessTokenException(format("No JWK set available from %s", jwksUri)));
+        }
+        return fetch(context);
+    }
+
+    /**
+     * Fetches the key set again, unless a fetch is already in progress.
+     *
+     * @param context
+     *         the context of the fetch request
+     * @return a promise completed with the new key set
+     */
+    synchronized Promise<JWKSet, AccessTokenException> refresh(final Context context) {
+        return fetch(context);
+    }
+
+    /**
+     * Returns {@code true} if the key set has been fetched (successfully or not) too recently to be fetched again on
+     * demand. Called with the lock held.
+     */
+    private boolean isThrottled() {
+        return pending == null && time.now() < fetchedAt + minRefreshDelay;
+    }
+
+    /** Called with the lock held. */
+    private Promise<JWKSet, AccessTokenException> fetch(final Context context) {
+        if (pending != null) {
+            return pending;
+        }
+        fetchedAt = time.now();
+        Request request = new Request().setMethod("GET").setUri(jwksUri);
+        request.getHeaders().put("Accept", "application/json");
+        final Promise<JWKSet, AccessTokenException> promise =
+                handler.handle(context, request)
+                       .then(new Function<Response, JWKSet, AccessTokenException>() {
+                           @Override
+                           public JWKSet apply(final Response response) throws AccessTokenException {
+                               return parse(response);
+                           }
+                       }, Responses.<JWKSet, AccessTokenException>noopExceptionFunction());
+        pending = promise;
+        promise.thenOnResult(new ResultHandler<JWKSet>() {
+            @Override
+            public void handleResult(final JWKSet set) {
+                synchronized (JwkSetCache.this) {
+                    keys = set;
+                }
+            }
+        }).thenAlways(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JwkSetCache.this) {
+                    if (pending == promise) {
+                        pending = null;
+                    }
+                }
+            }
+        });
+        return promise;
+    }
+
+    private JWKSet parse(final Response response) throws AccessTokenException {
+        try {
+            if (!response.getStatus().isSuccessful()) {
+                throw new AccessTokenException(format("Cannot fetch the JWK set from %s: %s",
+                                                      jwksUri, response.getStatus()));
+            }
+            JsonValue json = new JsonValue(response.getEntity().getJson()).expect(Map.class);
+            JWKSet set = JWKSet.parse(json);
+            logger.debug("Fetched {} keys from {}", set.getJWKsAsList().size(), jwksUri);
+            return set;
+        } catch (AccessTokenException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AccessTokenException(format("Cannot parse the JWK set from %s", jwksUri), e);
+        } finally {
+            closeSilently(response);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.json.JsonValueFunctions.uri;
+import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.forgerock.http.Handler;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.common.JwtReconstruction;
+import org.forgerock.json.jose.jwk.EcJWK;
+import org.forgerock.json.jose.jwk.JWK;
+import org.forgerock.json.jose.jwk.JWKSet;
+import org.forgerock.json.jose.jwk.RsaJWK;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.JwsAlgorithmType;
+import org.forgerock.json.jose.jws.SignedJwt;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jws.handlers.SigningHandler;
+import org.forgerock.json.jose.jwt.JwtClaimsSet;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.openig.oauth2.AccessTokenInfo;
+import org.forgerock.openig.oauth2.AccessTokenResolver;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates signed JWT access tokens locally, with the public keys published by the authorization server (JSON Web
+ * Key Set): no request is sent to the authorization server to validate a token.
+ * <p>
+ * A token is valid when it is signed (RSA or ECDSA) with one of the published keys, has the expected issuer, the
+ * expected audience (if configured), is not expired and can already be used ({@literal exp} and {@literal nbf},
+ * with a tolerance for clock skew). Its scopes are read from the {@literal scope} claim (a space-separated string
+ * or an array), or from the {@literal scp} claim.
+ * <p>
+ * The key set is fetched on first use, refreshed in the background every {@literal refreshInterval}, and fetched
+ * again when a token is signed with an unknown key (at most once every {@literal minRefreshDelay}).
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "name": "JwtResolver",
+ *     "type": "JwtAccessTokenResolver",
+ *     "config": {
+ *         "issuer": "https://openam.example.com:8443/openam/oauth2",          [REQUIRED]
+ *         "jwksUri": "https://openam.example.com:8443/openam/oauth2/connect/jwk_uri",  [REQUIRED]
+ *         "audience": [ "resource-server" ],  [OPTIONAL - string or list of strings]
+ *         "providerHandler": "ClientHandler", [OPTIONAL - default to ClientHandler]
+ *         "refreshInterval": "1 hour",        [OPTIONAL - default to 1 hour, zero to disable]
+ *         "minRefreshDelay": "30 seconds",    [OPTIONAL - default to 30 seconds]
+ *         "clockSkew": "30 seconds",          [OPTIONAL - default to 30 seconds]
+ *         "executor": "ScheduledExecutorService"  [OPTIONAL - used for the background refresh]
+ *     }
+ * }
+ * }
+ * </pre>
+ *
+ * Reference it with the {@literal accessTokenResolver} attribute of an {@literal OAuth2ResourceServerFilter}.
+ */
+public class JwtAccessTokenResolver extends GenericHeapObject implements AccessTokenResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(JwtAccessTokenResolver.class);
+
+    private static final JwtReconstruction JWT_DECODER = new JwtReconstruction();
+    private static final SigningManager SIGNING_MANAGER = new SigningManager();
+
+    private final JwkSetCache keys;
+    private final TimeService time;
+    private final String issuer;
+    private final Set<String> audiences;
+    private final long clockSkew;
+
+    /**
+     * Creates a new JWT access token resolver.
+     *
+     * @param keys
+     *         the key set of the authorization server
+     * @param time
+     *         the time service
+     * @param issuer
+     *         the expected issuer
+     * @param audiences
+     *         the accepted audiences (the token must be issued for one of them), empty to accept any audience
+     * @param clockSkew
+     *         the tolerance (ms) applied to the token validity period
+     */
+    JwtAccessTokenResolver(final JwkSetCache keys,
+                           final TimeService time,
+                           final String issuer,
+                           final Collection<String> audiences,
+                           final long clockSkew) {
+        this.keys = keys;
+        this.time = time;
+        this.issuer = issuer;
+        this.audiences = new HashSet<>(audiences);
+        this.clockSkew = clockSkew;
+    }
+
+    @Override
+    public Promise<AccessTokenInfo, AccessTokenException> resolve(final Context context, final String token) {
+        final SignedJwt jwt;
+        try {
+            jwt = JWT_DECODER.reconstructJwt(token, SignedJwt.class);
+        } catch (RuntimeException e) {
+            return newExceptionPromise(new AccessTokenException("The access token is not a signed JWT", e));
+        }
+        final JwsAlgorithm algorithm = jwt.getHeader().getAlgorithm();
+        if (algorithm == null
+                || (algorithm.getAlgorithmType() != JwsAlgorithmType.RSA
+                        && algorithm.getAlgorithmType() != JwsAlgorithmType.ECDSA)) {
+            return newExceptionPromise(new AccessTokenException(
+                    format("The access token signature algorithm %s is not supported", algorithm)));
+        }
+        final String kid = jwt.getHeader().getKeyId();
+        if (kid == null) {
+            // Try all the published keys
+            return keys.getKeys(context)
+                       .then(new Function<JWKSet, AccessTokenInfo, AccessTokenException>() {
+                           @Override
+                           public AccessTokenInfo apply(final JWKSet set) throws AccessTokenException {
+                               return validate(jwt, token, set.getJWKsAsList());
+                           }
+                       });
+        }
+        return keys.findKey(context, kid)
+                   .then(new Function<JWK, AccessTokenInfo, AccessTokenException>() {
+                       @Override
+                       public AccessTokenInfo apply(final JWK key) throws AccessTokenException {
+                           if (key == null) {
+                               throw new AccessTokenException(format("The access token is signed with an unknown "
+                                                                             + "key '%s'", kid));
+                           }
+                           return validate(jwt, token, Collections.singletonList(key));
+                       }
+                   });
+    }
+
+    private AccessTokenInfo validate(final SignedJwt jwt, final String token, final List<JWK> candidates)
+            throws AccessTokenException {
+        if (!isSignatureValid(jwt, candidates)) {
+            throw new AccessTokenException("The access token signature is invalid");
+        }
+
+        JwtClaimsSet claims = jwt.getClaimsSet();
+        if (!issuer.equals(claims.getIssuer())) {
+            throw new AccessTokenException(format("The access token issuer '%s' is not trusted", claims.getIssuer()));
+        }
+        if (!audiences.isEmpty()) {
+            List<String> audience = claims.getAudience();
+            if (audience == null || Collections.disjoint(audiences, audience)) {
+                throw new AccessTokenException("The access token is not issued for this resource server");
+            }
+        }
+        long now = time.now();
+        Date expiration = claims.getExpirationTime();
+        if (expiration == null) {
+            throw new AccessTokenException("The access token has no expiration time");
+        }
+        if (expiration.getTime() + clockSkew <= now) {
+            throw new AccessTokenException("The access token is expired");
+        }
+        Date notBefore = claims.getNotBeforeTime();
+        if (notBefore != null && notBefore.getTime() - clockSkew > now) {
+            throw new AccessTokenException("The access token cannot be used yet");
+        }
+
+        Map<String, Object> info = new LinkedHashMap<>();
+        for (String claim : claims.keys()) {
+            info.put(claim, claims.getClaim(claim));
+        }
+        return new AccessTokenInfo(json(info), token, getScopes(claims), expiration.getTime());
+    }
+
+    private static boolean isSignatureValid(final SignedJwt jwt, final List<JWK> candidates) {
+        for (JWK key : candidates) {
+            SigningHandler handler = verificationHandler(key);
+            if (handler != null && jwt.verify(handler)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SigningHandler verificationHandler(final JWK key) {
+        try {
+            if (key instanceof RsaJWK) {
+                return SIGNING_MANAGER.newRsaSigningHandler(((RsaJWK) key).toRSAPublicKey());
+            }
+            if (key instanceof EcJWK) {
+                return SIGNING_MANAGER.newEcdsaVerificationHandler(((EcJWK) key).toECPublicKey());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring the invalid key '{}'", key.getKeyId(), e);
+        }
+        return null;
+    }
+
+    private static Set<String> getScopes(final JwtClaimsSet claims) {
+        Object scope = claims.getClaim("scope");
+        if (scope == null) {
+            scope = claims.getClaim("scp");
+        }
+        Set<String> scopes = new HashSet<>();
+        if (scope instanceof String) {
+            for (String value : ((String) scope).split(" ")) {
+                if (!value.isEmpty()) {
+                    scopes.add(value);
+                }
+            }
+        } else if (scope instanceof Collection) {
+            for (Object value : (Collection<?>) scope) {
+                scopes.add(String.valueOf(value));
+            }
+        }
+        return scopes;
+    }
+
+    /** Creates and initializes a JWT access token resolver in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private JwkSetCache keys;
+        private ScheduledFuture<?> refresh;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluatedWithHeapProperties());
+            Handler handler = config.get("providerHandler")
+                                    .defaultTo(CLIENT_HANDLER_HEAP_KEY)
+                                    .as(requiredHeapObject(heap, Handler.class));
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+            if (time == null) {
+                time = TimeService.SYSTEM;
+            }
+            keys = new JwkSetCache(handler,
+                                   evaluated.get("jwksUri").required().as(uri()),
+                                   time,
+                                   evaluated.get("minRefreshDelay").defaultTo("30 seconds").as(duration())
+                                            .to(MILLISECONDS));
+            JsonValue audience = evaluated.get("audience");
+            List<String> audiences = new ArrayList<>();
+            if (audience.isString()) {
+                audiences.add(audience.asString());
+            } else if (audience.isNotNull()) {
+                audiences.addAll(audience.asList(String.class));
+            }
+            return new JwtAccessTokenResolver(keys,
+                                              time,
+                                              evaluated.get("issuer").required().asString(),
+                                              audiences,
+                                              evaluated.get("clockSkew").defaultTo("30 seconds").as(duration())
+                                                       .to(MILLISECONDS));
+        }
+
+        @Override
+        public void start() throws HeapException {
+            Duration interval = config.get("refreshInterval")
+                                      .as(evaluatedWithHeapProperties())
+                                      .defaultTo("1 hour")
+                                      .as(duration());
+            if (interval.isZero() || interval.isUnlimited()) {
+                return;
+            }
+            ScheduledExecutorService executor = config.get("executor")
+                                                      .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                      .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            // Fetch the keys right away, then refresh them in the background
+            refresh = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    // A failure must not cancel the next executions
+                    try {
+                        keys.refresh(new RootContext());
+                    } catch (RuntimeException e) {
+                        logger.warn("Cannot refresh the keys of the JwtAccessTokenResolver '{}'", name, e);
+                    }
+                }
+            }, 0L, interval.to(MILLISECONDS), MILLISECONDS);
+        }
+
+        @Override
+        public void destroy() {
+            if (refresh != null) {
+                refresh.cancel(false);
+            }
+            super.destroy();
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class OAuth2ClassAliasResolver implements ClassAliasResolver {
     static {
         ALIASES.put("ClientRegistration", ClientRegistration.class);
         ALIASES.put("Issuer", Issuer.class);
+        ALIASES.put("JwtAccessTokenResolver", JwtAccessTokenResolver.class);
         ALIASES.put("OAuth2ClientFilter", OAuth2ClientFilter.class);
         ALIASES.put("OAuth2ResourceServerFilter", OAuth2ResourceServerFilterHeaplet.class);
         ALIASES.put("OAuth2RSFilter", OAuth2ResourceServerFilterHeaplet.class);
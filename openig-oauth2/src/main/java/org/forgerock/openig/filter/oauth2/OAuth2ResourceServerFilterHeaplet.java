@@ -17,12 +17,14 @@
 package org.forgerock.openig.filter.oauth2;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.filter.Filters.chainOf;
 import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.setOf;
+import static org.forgerock.json.resource.Resources.newHandler;
+import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
-import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.expression;
 import static org.forgerock.openig.util.JsonValues.getWithDeprecation;
@@ -30,27 +32,26 @@ import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.ResponseException;
+import org.forgerock.json.JsonValue;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.el.ExpressionException;
 import org.forgerock.openig.filter.ConditionEnforcementFilter;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
-import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.ReadOnlyResourceProvider;
 import org.forgerock.openig.oauth2.AccessTokenInfo;
 import org.forgerock.openig.oauth2.AccessTokenResolver;
 import org.forgerock.openig.oauth2.ResourceAccess;
 import org.forgerock.openig.oauth2.ResourceServerFilter;
-import org.forgerock.openig.oauth2.resolver.CachingAccessTokenResolver;
 import org.forgerock.openig.oauth2.resolver.OpenAmAccessTokenResolver;
 import org.forgerock.services.context.Context;
-import org.forgerock.util.PerItemEvictionStrategyCache;
-import org.forgerock.util.promise.Promise;
+import org.forgerock.util.Factory;
 import org.forgerock.util.time.Duration;
 import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
@@ -85,6 +86,10 @@ import org.slf4j.LoggerFactory;
  * {@literal scopes}, {@literal tokenInfoEndpoint} and {@literal providerHandler} are the 3 only mandatory
  * configuration attributes.
  * <p>
+ * Instead of {@literal tokenInfoEndpoint}, the {@literal accessTokenResolver} optional attribute can reference an
+ * {@link AccessTokenResolver} declared in the heap, such as a {@link JwtAccessTokenResolver} validating signed JWT
+ * access tokens locally. As such a validation is cheap, set {@literal cacheExpiration} to {@literal zero} with it.
+ * <p>
  * If {@literal cacheExpiration} is not set, the default is to keep the {@link AccessTokenInfo} objects for 1 minute.
  * {@literal cacheExpiration} is expressed using natural language (use {@literal zero} or {@literal none}
  * to deactivate caching, any 0 valued duration will also deactivate it):
@@ -98,6 +103,11 @@ import org.slf4j.LoggerFactory;
  *     "cacheExpiration": "0 s" // no cache
  *     }
  * </pre>
+ * A token is never cached after its own expiration time. Invalid tokens (and failed validations) are cached too, for
+ * {@literal negativeCacheExpiration} (default to 10 seconds, {@literal zero} to not cache them), so a client retrying
+ * a revoked token does not reach the authorization server on every request. At most {@literal cacheMaxSize} tokens
+ * (default to 10000) are cached, the least recently used ones being evicted first. The cache statistics are exposed
+ * (read-only) by the {@literal cache} endpoint of the filter.
  * <p>
  * {@literal providerHandler} is a name reference to another handler available in the heap. It will be used to perform
  * access token validation against the {@literal tokenInfoEndpoint} URL.
@@ -121,7 +131,8 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
      */
     public static final String DEFAULT_REALM_NAME = "OpenIG";
 
-    private PerItemEvictionStrategyCache<String, Promise<AccessTokenInfo, AccessTokenException>> cache;
+    private AccessTokenCache cache;
+    private EndpointRegistry.Registration registration;
 
     @Override
     public Object create() throws HeapException {
@@ -130,12 +141,17 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
                 .as(requiredHeapObject(heap, Handler.class));
 
         TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
-        AccessTokenResolver resolver = new OpenAmAccessTokenResolver(httpHandler,
-                                                                     time,
-                                                                     config.get("tokenInfoEndpoint")
-                                                                           .as(evaluatedWithHeapProperties())
-                                                                           .required()
-                                                                           .asString());
+        AccessTokenResolver resolver;
+        if (config.isDefined("accessTokenResolver")) {
+            resolver = config.get("accessTokenResolver").as(requiredHeapObject(heap, AccessTokenResolver.class));
+        } else {
+            resolver = new OpenAmAccessTokenResolver(httpHandler,
+                                                     time,
+                                                     config.get("tokenInfoEndpoint")
+                                                           .as(evaluatedWithHeapProperties())
+                                                           .required()
+                                                           .asString());
+        }
 
         // Build the cache
         Duration expiration = config.get("cacheExpiration")
@@ -143,12 +159,19 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
                                     .defaultTo("1 minute")
                                     .as(duration());
         if (!expiration.isZero()) {
-            ScheduledExecutorService executorService = config.get("executor")
-                                                             .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
-                                                             .as(requiredHeapObject(heap,
-                                                                                    ScheduledExecutorService.class));
-            cache = new PerItemEvictionStrategyCache<>(executorService, expiration);
-            resolver = new CachingAccessTokenResolver(time, resolver, cache);
+            Duration negativeExpiration = config.get("negativeCacheExpiration")
+                                                .as(evaluatedWithHeapProperties())
+                                                .defaultTo("10 seconds")
+                                                .as(duration());
+            cache = new AccessTokenCache(resolver,
+                                         time != null ? time : TimeService.SYSTEM,
+                                         toMillis(expiration),
+                                         toMillis(negativeExpiration),
+                                         config.get("cacheMaxSize")
+                                               .as(evaluatedWithHeapProperties())
+                                               .defaultTo(10000)
+                                               .asInteger());
+            resolver = cache;
         }
 
         Set<Expression<String>> scopes = getWithDeprecation(config, logger, "scopes", "requiredScopes")
@@ -174,11 +197,33 @@ public class OAuth2ResourceServerFilterHeaplet extends GenericHeaplet {
         return filter;
     }
 
+    private static long toMillis(final Duration duration) {
+        return duration.isUnlimited() ? Long.MAX_VALUE : duration.to(MILLISECONDS);
+    }
+
+    @Override
+    public void start() throws HeapException {
+        if (cache != null) {
+            ReadOnlyResourceProvider provider = new ReadOnlyResourceProvider(new Factory<JsonValue>() {
+                @Override
+                public JsonValue newInstance() {
+                    return cache.getStatistics();
+                }
+            });
+            registration = endpointRegistry().register("cache", newHttpHandler(newHandler(provider)));
+            logger.info("Access token cache endpoint available at '{}'", registration.getPath());
+        }
+    }
+
     @Override
     public void destroy() {
+        if (registration != null) {
+            registration.unregister();
+        }
         if (cache != null) {
             cache.clear();
         }
+        super.destroy();
     }
 
     static final class OpenIGResourceAccess implements ResourceAccess {
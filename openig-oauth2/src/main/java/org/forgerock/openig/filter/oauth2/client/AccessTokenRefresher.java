@@ -0,0 +1,89 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.forgerock.openig.util.StringUtil.sha256;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.util.SingleFlightCache;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Refreshes the access tokens of the OAuth 2.0 sessions, using each refresh token once.
+ * <p>
+ * The concurrent requests of a session all present the same refresh token: they share a single refresh grant,
+ * instead of sending one each (which the authorization servers rotating their refresh tokens would reject). The
+ * refreshed access token response is then kept for {@literal retention} ms, so that the requests sent by the
+ * user-agent before it received the refreshed session reuse it too. Failed grants are not kept. At most
+ * {@literal maxSize} responses are kept, the least recently used ones being evicted first. The responses are keyed by
+ * a digest of the client registration name and of the refresh token.
+ */
+class AccessTokenRefresher {
+
+    private final SingleFlightCache<String, JsonValue, OAuth2ErrorException> grants;
+
+    /**
+     * Creates a new access token refresher.
+     *
+     * @param time
+     *         the time service
+     * @param retention
+     *         the duration (ms) a refreshed access token response is reused
+     * @param maxSize
+     *         the maximum number of refreshed access token responses kept
+     */
+    AccessTokenRefresher(final TimeService time, final long retention, final int maxSize) {
+        this.grants = new SingleFlightCache<>(time, maxSize,
+                new SingleFlightCache.Expiration<String, JsonValue, OAuth2ErrorException>() {
+                    @Override
+                    public long expiresAt(final String key, final JsonValue response) {
+                        return time.now() + retention;
+                    }
+
+                    @Override
+                    public long failureExpiresAt(final String key, final OAuth2ErrorException exception) {
+                        return Long.MIN_VALUE;
+                    }
+                });
+    }
+
+    /**
+     * Returns the promise of the refreshed access token response of the given session.
+     *
+     * @param context
+     *         the current context
+     * @param registration
+     *         the client registration of the session
+     * @param session
+     *         the session whose access token is refreshed
+     * @return the promise of the refreshed access token response
+     */
+    Promise<JsonValue, OAuth2ErrorException> refresh(final Context context,
+                                                     final ClientRegistration registration,
+                                                     final OAuth2Session session) {
+        return grants.getValue(sha256(registration.getName() + ":" + session.getRefreshToken()),
+                               new AsyncFunction<String, JsonValue, OAuth2ErrorException>() {
+                                   @Override
+                                   public Promise<JsonValue, OAuth2ErrorException> apply(final String key) {
+                                       return registration.refreshAccessToken(context, session);
+                                   }
+                               });
+    }
+}
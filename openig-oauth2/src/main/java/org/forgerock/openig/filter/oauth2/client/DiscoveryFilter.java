@@ -19,18 +19,17 @@ import static java.lang.String.format;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
 import static org.forgerock.http.protocol.Status.OK;
 import static org.forgerock.http.util.Uris.withQuery;
-import static org.forgerock.json.JsonValue.field;
-import static org.forgerock.json.JsonValue.json;
-import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.oauth2.client.Issuer.ISSUER_KEY;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.getJsonContent;
-import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.promise.Promises.newExceptionPromise;
 import static org.forgerock.util.promise.Promises.newResultPromise;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.forgerock.http.Filter;
@@ -49,6 +48,7 @@ import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,7 +73,9 @@ import org.slf4j.LoggerFactory;
  * corresponding to the extracted host name. If it exists, reuse it. If not,
  * IG verifies this host name is not part of an Issuer "supportedDomain".
  * If the host name belongs to an {@link Issuer} supported Domain, this
- * {@link Issuer} is used. Otherwise, discovery process continues...
+ * {@link Issuer} is used (the supported domains of all the declared issuers
+ * are compiled together into a single pattern). Otherwise, discovery process
+ * continues...
  * <br>
  * In the second part, the WebFinger uses the extracted host name,
  * to get the corresponding OpenID Issuer location which match the selected
@@ -81,7 +83,10 @@ import org.slf4j.LoggerFactory;
  * <br>
  * Based on the returned OpenID Issuer's location, the OpenID well-known
  * end-point is extracted and the filter builds a {@link Issuer} which is
- * placed in the context and in the heap to be reused if needed.
+ * placed in the context and in a bounded cache to be reused if needed.
+ * Concurrent discoveries of the same host share the same lookups, and the
+ * metadata of the cached issuers are refreshed in the background once
+ * expired.
  * </p>
  *
  * @see <a href="https://openid.net/specs/openid-connect-discovery-1_0.html">
@@ -96,8 +101,18 @@ public class DiscoveryFilter implements Filter {
     private static final String WELLKNOWN_WEBFINGER = ".well-known/webfinger";
     private static final String WELLKNOWN_OPENID_CONFIGURATION = ".well-known/openid-configuration";
 
+    /** Default duration (ms) after which the metadata of a discovered issuer are refreshed. */
+    static final long DEFAULT_ISSUER_CACHE_EXPIRATION = 3600000L;
+
+    /** Default maximum number of discovered issuers kept. */
+    static final int DEFAULT_ISSUER_CACHE_MAX_SIZE = 100;
+
     private final Handler discoveryHandler;
     private final Heap heap;
+    private final IssuerCache issuers;
+
+    /** Lazily built, as the issuers are resolved from the heap. */
+    private volatile SupportedDomainsMatcher supportedDomains;
 
     /**
      * Creates a discovery filter.
@@ -107,8 +122,25 @@ public class DiscoveryFilter implements Filter {
      *            A reference to the current heap.
      */
     DiscoveryFilter(final Handler handler, final Heap heap) {
+        this(handler,
+             heap,
+             new IssuerCache(handler, TimeService.SYSTEM, DEFAULT_ISSUER_CACHE_EXPIRATION,
+                             DEFAULT_ISSUER_CACHE_MAX_SIZE));
+    }
+
+    /**
+     * Creates a discovery filter.
+     * @param handler
+     *            The handler to perform the queries.
+     * @param heap
+     *            A reference to the current heap.
+     * @param issuers
+     *            The cache of the discovered issuers.
+     */
+    DiscoveryFilter(final Handler handler, final Heap heap, final IssuerCache issuers) {
         this.discoveryHandler = handler;
         this.heap = heap;
+        this.issuers = issuers;
     }
 
     @Override
@@ -133,7 +165,7 @@ public class DiscoveryFilter implements Filter {
                 });
     }
 
-    private Promise<Issuer, DiscoveryException> retrieveIssuer(Context context, Request request) {
+    private Promise<Issuer, DiscoveryException> retrieveIssuer(final Context context, Request request) {
         final AccountIdentifier account;
         try {
             account = extractFromInput(request.getForm().getFirst("discovery"));
@@ -144,7 +176,7 @@ public class DiscoveryFilter implements Filter {
         final String hostString = account.getHostBase().toASCIIString();
         Issuer issuer;
         try {
-            // Auto-created Issuer heap objects are named according to the discovered host base.
+            // Issuers declared in the heap may be named according to the discovered host base.
             issuer = heap.get(hostString, Issuer.class);
             if (issuer != null) {
                 return newResultPromise(issuer);
@@ -159,22 +191,13 @@ public class DiscoveryFilter implements Filter {
             return newExceptionPromise(new DiscoveryException("Error while retrieving the Issuer", e));
         }
 
-        // Performs discovery otherwise.
-        return performOpenIdIssuerDiscovery(context, account)
-                .then(new Function<URI, Issuer, DiscoveryException>() {
-                    @Override
-                    public Issuer apply(URI wellKnownUri) throws DiscoveryException {
-                        JsonValue issuerDeclaration = createIssuerDeclaration(hostString, wellKnownUri);
-                        try {
-                            return issuerDeclaration.as(requiredHeapObject(heap, Issuer.class));
-                        } catch (HeapException e) {
-                            String message = format("Cannot resolve the issuerDeclaration '%s'",
-                                                    issuerDeclaration.toString());
-                            logger.error(message, e);
-                            throw new DiscoveryException(message, e);
-                        }
-                    }
-                });
+        // Performs discovery otherwise, unless already done.
+        return issuers.get(context, hostString, new Callable<Promise<URI, DiscoveryException>>() {
+            @Override
+            public Promise<URI, DiscoveryException> call() {
+                return performOpenIdIssuerDiscovery(context, account);
+            }
+        });
     }
 
     /**
@@ -184,22 +207,72 @@ public class DiscoveryFilter implements Filter {
      * corresponding Issuer is returned to be used.
      */
     private Issuer fromSupportedDomainNames(final String givenDomainName) throws HeapException {
-        for (final Issuer definedIssuer : heap.getAll(Issuer.class)) {
-            final List<Pattern> domainNames = definedIssuer.getSupportedDomains();
-            for (final Pattern domainName : domainNames) {
-                if (domainName.matcher(givenDomainName).matches()) {
-                    return definedIssuer;
+        SupportedDomainsMatcher matcher = supportedDomains;
+        if (matcher == null) {
+            // Discovered issuers are not added to the heap: the declared ones never change
+            matcher = new SupportedDomainsMatcher(heap.getAll(Issuer.class));
+            supportedDomains = matcher;
+        }
+        return matcher.match(givenDomainName);
+    }
+
+    /**
+     * Matches a domain name against the supported domains of all the declared issuers at once, with a single
+     * pattern alternating all of them. Each supported domain is wrapped into a capturing group, the first
+     * participating group identifies the matching issuer. The issuers are tried in turn instead when their patterns
+     * use back references, as those would no longer refer to the same groups.
+     */
+    private static final class SupportedDomainsMatcher {
+        private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+        private final List<Issuer> declared;
+        /** Null if there is no supported domain, or if they can't be combined. */
+        private final Pattern combined;
+        /** The index of the group wrapping each supported domain, and the issuer it belongs to. */
+        private final List<Integer> groups = new ArrayList<>();
+        private final List<Issuer> owners = new ArrayList<>();
+
+        SupportedDomainsMatcher(final List<Issuer> declared) {
+            this.declared = declared;
+            StringBuilder alternation = new StringBuilder();
+            boolean combinable = true;
+            int group = 0;
+            for (Issuer issuer : declared) {
+                for (Pattern domain : issuer.getSupportedDomains()) {
+                    combinable &= !BACK_REFERENCE.matcher(domain.pattern()).find();
+                    if (alternation.length() > 0) {
+                        alternation.append('|');
+                    }
+                    alternation.append('(').append(domain.pattern()).append(')');
+                    groups.add(++group);
+                    owners.add(issuer);
+                    group += domain.matcher("").groupCount();
                 }
             }
+            this.combined = combinable && group > 0 ? Pattern.compile(alternation.toString()) : null;
         }
-        return null;
-    }
 
-    private JsonValue createIssuerDeclaration(final String issuerName, final URI wellKnowIssuerUri) {
-        return json(
-                object(field("name", issuerName),
-                       field("type", "Issuer"),
-                       field("config", object(field("wellKnownEndpoint", wellKnowIssuerUri.toString())))));
+        Issuer match(final String domainName) {
+            if (combined == null) {
+                for (Issuer issuer : declared) {
+                    for (Pattern domain : issuer.getSupportedDomains()) {
+                        if (domain.matcher(domainName).matches()) {
+                            return issuer;
+                        }
+                    }
+                }
+                return null;
+            }
+            Matcher matcher = combined.matcher(domainName);
+            if (matcher.matches()) {
+                for (int i = 0; i < groups.size(); i++) {
+                    if (matcher.start(groups.get(i)) != -1) {
+                        return owners.get(i);
+                    }
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -0,0 +1,216 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+
+import java.net.URI;
+import java.util.concurrent.Callable;
+
+import org.forgerock.http.Handler;
+import org.forgerock.openig.util.SingleFlightCache;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of the issuers discovered by the {@link DiscoveryFilter}, keyed by host.
+ * <p>
+ * Concurrent discoveries of the same host share a single WebFinger and {@literal .well-known} lookup; failed
+ * discoveries are not kept. Once {@literal expiration} ms have elapsed, the issuer metadata are fetched again from
+ * the {@literal .well-known} end-point in the background, the requests being served with the previous metadata
+ * meanwhile (and for good, if the refresh fails, until the next attempt). At most {@literal maxSize} issuers are
+ * kept, the least recently used ones being evicted first.
+ */
+class IssuerCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(IssuerCache.class);
+
+    /** Delay (ms) before trying again to refresh the metadata of an issuer, after a failure. */
+    private static final long RETRY_DELAY = 10000L;
+
+    /** A discovered issuer. */
+    private static final class Entry {
+        private final URI wellKnownUri;
+        /** The last known issuer. Guarded by this entry. */
+        private Issuer issuer;
+        /** Long.MAX_VALUE while refreshing. Guarded by this entry. */
+        private long refreshAt;
+
+        Entry(final URI wellKnownUri, final Issuer issuer, final long refreshAt) {
+            this.wellKnownUri = wellKnownUri;
+            this.issuer = issuer;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    private final Handler handler;
+    private final TimeService time;
+    private final long expiration;
+    private final SingleFlightCache<String, Entry, DiscoveryException> entries;
+
+    /**
+     * Creates a new issuer cache.
+     *
+     * @param handler
+     *         the handler fetching the issuers metadata
+     * @param time
+     *         the time service
+     * @param expiration
+     *         the duration (ms) after which the metadata of an issuer are refreshed
+     * @param maxSize
+     *         the maximum number of issuers kept
+     */
+    IssuerCache(final Handler handler, final TimeService time, final long expiration, final int maxSize) {
+        this.handler = handler;
+        this.time = time;
+        this.expiration = expiration;
+        // The issuers are refreshed rather than expired
+        this.entries = new SingleFlightCache<>(time, maxSize,
+                new SingleFlightCache.Expiration<String, Entry, DiscoveryException>() {
+                    @Override
+                    public long expiresAt(final String host, final Entry entry) {
+                        return Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long failureExpiresAt(final String host, final DiscoveryException exception) {
+                        return Long.MIN_VALUE;
+                    }
+                });
+    }
+
+    /**
+     * Returns the issuer of the given host, discovering it on cache misses.
+     *
+     * @param context
+     *         the current context
+     * @param host
+     *         the host base, used as the issuer name
+     * @param discovery
+     *         called on cache misses to discover the {@literal .well-known} URI of the issuer
+     * @return the promise of the issuer
+     */
+    Promise<Issuer, DiscoveryException> get(final Context context,
+                                            final String host,
+                                            final Callable<Promise<URI, DiscoveryException>> discovery) {
+        return entries.getValue(host, new AsyncFunction<String, Entry, DiscoveryException>() {
+            @Override
+            public Promise<Entry, DiscoveryException> apply(final String key) {
+                return discover(context, host, discovery);
+            }
+        }).then(new Function<Entry, Issuer, DiscoveryException>() {
+            @Override
+            public Issuer apply(final Entry entry) {
+                final Issuer issuer;
+                boolean refresh = false;
+                synchronized (entry) {
+                    issuer = entry.issuer;
+                    if (entry.refreshAt <= time.now()) {
+                        entry.refreshAt = Long.MAX_VALUE;
+                        refresh = true;
+                    }
+                }
+                if (refresh) {
+                    refresh(context, host, entry);
+                }
+                return issuer;
+            }
+        });
+    }
+
+    private Promise<Entry, DiscoveryException> discover(final Context context,
+                                                        final String host,
+                                                        final Callable<Promise<URI, DiscoveryException>> discovery) {
+        Promise<URI, DiscoveryException> wellKnownUri;
+        try {
+            wellKnownUri = discovery.call();
+        } catch (Exception e) {
+            wellKnownUri = newExceptionPromise(new DiscoveryException("Unable to discover the issuer", e));
+        }
+        return wellKnownUri.thenAsync(new AsyncFunction<URI, Entry, DiscoveryException>() {
+            @Override
+            public Promise<Entry, DiscoveryException> apply(final URI uri) {
+                return Issuer.build(context, host, uri, null, handler)
+                             .then(new Function<Issuer, Entry, DiscoveryException>() {
+                                 @Override
+                                 public Entry apply(final Issuer issuer) {
+                                     return new Entry(uri, issuer, refreshAt(expiration));
+                                 }
+                             });
+            }
+        });
+    }
+
+    private void refresh(final Context context, final String host, final Entry entry) {
+        try {
+            Issuer.build(context, host, entry.wellKnownUri, null, handler)
+                  .thenOnResult(new ResultHandler<Issuer>() {
+                      @Override
+                      public void handleResult(final Issuer issuer) {
+                          synchronized (entry) {
+                              entry.issuer = issuer;
+                              entry.refreshAt = refreshAt(expiration);
+                          }
+                      }
+                  })
+                  .thenOnException(new ExceptionHandler<DiscoveryException>() {
+                      @Override
+                      public void handleException(final DiscoveryException exception) {
+                          refreshFailed(host, entry, exception);
+                      }
+                  })
+                  .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                      @Override
+                      public void handleRuntimeException(final RuntimeException exception) {
+                          refreshFailed(host, entry, exception);
+                      }
+                  });
+        } catch (RuntimeException e) {
+            refreshFailed(host, entry, e);
+        }
+    }
+
+    private void refreshFailed(final String host, final Entry entry, final Exception exception) {
+        logger.warn("Unable to refresh the metadata of the issuer '{}', keeping the previous ones", host, exception);
+        synchronized (entry) {
+            entry.refreshAt = refreshAt(RETRY_DELAY);
+        }
+    }
+
+    /** Does not overflow for unlimited delays. */
+    private long refreshAt(final long delay) {
+        long now = time.now();
+        return delay >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delay;
+    }
+
+    /**
+     * Returns the number of cached issuers.
+     *
+     * @return the number of cached issuers
+     */
+    int size() {
+        return entries.size();
+    }
+}
@@ -17,6 +17,8 @@
 package org.forgerock.openig.filter.oauth2.client;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.forgerock.http.handler.Handlers.chainOf;
 import static org.forgerock.http.protocol.Status.OK;
 import static org.forgerock.http.protocol.Status.UNAUTHORIZED;
@@ -24,6 +26,7 @@ import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.listOf;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.filter.RequestCopyFilter.requestCopyFilter;
+import static org.forgerock.openig.filter.oauth2.client.DiscoveryFilter.DEFAULT_ISSUER_CACHE_MAX_SIZE;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.buildUri;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.createAuthorizationNonceHash;
 import static org.forgerock.openig.filter.oauth2.client.OAuth2Utils.httpRedirect;
@@ -114,12 +117,18 @@ import org.slf4j.LoggerFactory;
  *                                    inlined declaration],             which are going to be used by this client.]
  * "discoveryHandler"             : handler,                [OPTIONAL - by default it uses the 'ClientHandler'
  *                                                                      provided in heap.]
+ * "discoveryCacheExpiration"     : duration                [OPTIONAL - default to 1 hour, the metadata of the
+ *                                                                      discovered issuers are then refreshed]
+ * "discoveryCacheMaxSize"        : number                  [OPTIONAL - default to 100 discovered issuers]
  * "failureHandler"               : handler,                [REQUIRED]
  * "defaultLoginGoto"             : expression,             [OPTIONAL - default return empty page]
  * "defaultLogoutGoto"            : expression,             [OPTIONAL - default return empty page]
  * "requireLogin"                 : boolean                 [OPTIONAL - default require login]
  * "requireHttps"                 : boolean                 [OPTIONAL - default require SSL]
  * "cacheExpiration"              : duration                [OPTIONAL - default to 20 seconds]
+ * "refreshAhead"                 : duration                [OPTIONAL - default to zero, the access token is
+ *                                                                      only refreshed once rejected]
+ * "sessionCacheMaxSize"          : number                  [OPTIONAL - default to 1000 parsed sessions]
  * "executor"                     : executor                [OPTIONAL - by default uses 'ScheduledThreadPool'
  *                                                                      heap object]
  * "metadata"                     : {                       [OPTIONAL - contains metadata dedicated for dynamic
@@ -251,6 +260,15 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
     /** The expression which will be used for storing authorization information in the context. */
     public static final String DEFAULT_TOKEN_KEY = "openid";
 
+    /** The default maximum number of parsed sessions kept. */
+    private static final int DEFAULT_SESSION_CACHE_MAX_SIZE = 1000;
+
+    /** Duration (ms) a refreshed access token is reused by the requests presenting the former refresh token. */
+    private static final long REFRESHED_TOKEN_RETENTION = 30000L;
+
+    /** The maximum number of refreshed access tokens kept for reuse. */
+    private static final int REFRESHED_TOKEN_MAX_SIZE = 10000;
+
     private Expression<String> clientEndpoint;
     private Expression<String> defaultLoginGoto;
     private Expression<String> defaultLogoutGoto;
@@ -263,6 +281,9 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
     private PerItemEvictionStrategyCache<String, Promise<Map<String, Object>, OAuth2ErrorException>> userInfoCache;
     private final Handler discoveryAndDynamicRegistrationChain;
     private final ClientRegistrationRepository registrations;
+    private final AccessTokenRefresher refresher;
+    private OAuth2SessionCache sessions;
+    private Duration refreshAhead = ZERO;
 
     /**
      * Constructs an {@link OAuth2ClientFilter}.
@@ -291,6 +312,8 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         this.time = time;
         this.clientEndpoint = clientEndpoint;
         this.discoveryAndDynamicRegistrationChain = discoveryAndDynamicRegistrationChain;
+        this.refresher = new AccessTokenRefresher(time, REFRESHED_TOKEN_RETENTION, REFRESHED_TOKEN_MAX_SIZE);
+        this.sessions = new OAuth2SessionCache(time, DEFAULT_SESSION_CACHE_MAX_SIZE);
     }
 
     @Override
@@ -468,6 +491,34 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
         return this;
     }
 
+    /**
+     * Sets how long before its expiration the access token is refreshed, when the session has a refresh token.
+     * This configuration parameter is optional and set to {@literal zero} by default: the access token is then only
+     * refreshed once the protected resource rejects it.
+     *
+     * @param refreshAhead
+     *            How long before its expiration the access token is refreshed.
+     * @return This filter.
+     */
+    public OAuth2ClientFilter setRefreshAhead(final Duration refreshAhead) {
+        this.refreshAhead = checkNotNull(refreshAhead);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of parsed sessions kept, so that the requests presenting the same session do not
+     * parse it again. This configuration parameter is optional and set to 1000 by default, {@literal 0} disables
+     * the cache.
+     *
+     * @param maxSize
+     *            The maximum number of parsed sessions kept.
+     * @return This filter.
+     */
+    public OAuth2ClientFilter setSessionCacheMaxSize(final int maxSize) {
+        this.sessions = new OAuth2SessionCache(time, maxSize);
+        return this;
+    }
+
     private URI buildCallbackUri(final Context context, final Request request) throws ResponseException {
         return buildUri(context, request, clientEndpoint, "callback");
     }
@@ -513,7 +564,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             throw new OAuth2ErrorException(E_INVALID_REQUEST,
                     "Authorization call-back failed because there was no state parameter");
         }
-        final OAuth2Session session = loadOrCreateSession(context, request, clientEndpoint, time);
+        final OAuth2Session session = loadOrCreateSession(context, request, clientEndpoint, time, sessions);
         if (!session.isAuthorizing()) {
             throw new OAuth2ErrorException(E_INVALID_REQUEST,
                     "Authorization call-back failed because there is no authorization in progress");
@@ -619,9 +670,17 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                                                                             final Request request,
                                                                             final Handler next,
                                                                             final boolean refreshToken) {
+        return handleProtectedResource(context, request, next, refreshToken, refreshToken);
+    }
+
+    private Promise<Response, NeverThrowsException> handleProtectedResource(final Context context,
+                                                                            final Request request,
+                                                                            final Handler next,
+                                                                            final boolean refreshToken,
+                                                                            final boolean refreshExpiringToken) {
         final OAuth2Session session;
         try {
-            session = loadOrCreateSession(context, request, clientEndpoint, time);
+            session = loadOrCreateSession(context, request, clientEndpoint, time, sessions);
         } catch (OAuth2ErrorException | ResponseException e) {
             return handleException(context, request, e);
         }
@@ -630,6 +689,26 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             return sendAuthorizationRedirect(context, request, null);
         }
 
+        final ClientRegistration clientRegistration = getClientRegistration(session);
+        if (refreshExpiringToken && isExpiring(session, clientRegistration)) {
+            logger.debug("The access token expires in {} seconds, refreshing it", session.getExpiresIn());
+            return refreshAccessTokenAndSaveSession(context, request, session, clientRegistration)
+                    .thenCatch(new Function<OAuth2ErrorException, Void, NeverThrowsException>() {
+                        @Override
+                        public Void apply(final OAuth2ErrorException e) {
+                            // Still valid: keep using the current access token
+                            logger.warn("Unable to refresh the access token before its expiration", e);
+                            return null;
+                        }
+                    })
+                    .thenAsync(new AsyncFunction<Void, Response, NeverThrowsException>() {
+                        @Override
+                        public Promise<Response, NeverThrowsException> apply(final Void ignore) {
+                            return handleProtectedResource(context, request, next, refreshToken, false);
+                        }
+                    });
+        }
+
         Promise<Void, OAuth2ErrorException> result;
         if (session.isAuthorized()) {
             result = fillTarget(context, session, request);
@@ -653,6 +732,16 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                 handleOAuth2ErrorException(context, request));
     }
 
+    private boolean isExpiring(final OAuth2Session session, final ClientRegistration clientRegistration) {
+        final Long expiresIn = session.getExpiresIn();
+        return !refreshAhead.isZero()
+                && session.isAuthorized()
+                && session.getRefreshToken() != null
+                && clientRegistration != null
+                && expiresIn != null
+                && (refreshAhead.isUnlimited() || expiresIn <= refreshAhead.to(SECONDS));
+    }
+
     private AsyncFunction<Response, Response, NeverThrowsException> passThroughOrRefreshToken(
             final Context context,
             final Request request,
@@ -672,7 +761,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
 
                 final OAuth2Session session;
                 try {
-                    session = loadOrCreateSession(context, request, clientEndpoint, time);
+                    session = loadOrCreateSession(context, request, clientEndpoint, time, sessions);
                 } catch (OAuth2ErrorException | ResponseException e) {
                     return handleException(context, request, e);
                 }
@@ -709,7 +798,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             final OAuth2Session session,
             final ClientRegistration clientRegistration) {
 
-        return clientRegistration.refreshAccessToken(context, session).then(
+        return refresher.refresh(context, clientRegistration, session).then(
                 new Function<JsonValue, Void, OAuth2ErrorException>() {
 
                     @Override
@@ -841,7 +930,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                                                    final Request request) throws OAuth2ErrorException {
         final OAuth2Session session;
         try {
-            session = loadOrCreateSession(context, request, clientEndpoint, time);
+            session = loadOrCreateSession(context, request, clientEndpoint, time, sessions);
         } catch (ResponseException e) {
             throw new OAuth2ErrorException(E_SERVER_ERROR, "Unable to load the OAuth2 session", e);
         }
@@ -912,7 +1001,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
             final ClientRegistrationRepository registrations = new HeapClientRegistrationRepository(clients, heap);
             final Handler discoveryAndDynamicRegistrationChain = chainOf(
                     new AuthorizationRedirectHandler(time, clientEndpoint),
-                    new DiscoveryFilter(discoveryHandler, heap),
+                    new DiscoveryFilter(discoveryHandler, heap, issuerCache(discoveryHandler, time)),
                     new ClientRegistrationFilter(registrations,
                                                  discoveryHandler,
                                                  config.as(evaluatedWithHeapProperties()).get("metadata")));
@@ -958,10 +1047,33 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                                          .as(evaluatedWithHeapProperties())
                                          .defaultTo(true)
                                          .asBoolean());
+            filter.setRefreshAhead(config.get("refreshAhead")
+                                         .as(evaluatedWithHeapProperties())
+                                         .defaultTo("zero")
+                                         .as(duration()));
+            filter.setSessionCacheMaxSize(config.get("sessionCacheMaxSize")
+                                                .as(evaluatedWithHeapProperties())
+                                                .defaultTo(DEFAULT_SESSION_CACHE_MAX_SIZE)
+                                                .asInteger());
 
             return filter;
         }
 
+        private IssuerCache issuerCache(final Handler discoveryHandler, final TimeService time) {
+            Duration expiration = config.get("discoveryCacheExpiration")
+                                        .as(evaluatedWithHeapProperties())
+                                        .defaultTo("1 hour")
+                                        .as(duration());
+            int maxSize = config.get("discoveryCacheMaxSize")
+                                .as(evaluatedWithHeapProperties())
+                                .defaultTo(DEFAULT_ISSUER_CACHE_MAX_SIZE)
+                                .asInteger();
+            return new IssuerCache(discoveryHandler,
+                                   time,
+                                   expiration.isUnlimited() ? Long.MAX_VALUE : expiration.to(MILLISECONDS),
+                                   maxSize);
+        }
+
         @VisibleForTesting
         static AsyncFunction<Promise<Map<String, Object>, OAuth2ErrorException>, Duration, Exception>
         expirationFunction(final Duration expiration) {
@@ -1082,7 +1194,7 @@ public final class OAuth2ClientFilter extends GenericHeapObject implements Filte
                                                                     re));
             }
 
-            return clientRegistration.refreshAccessToken(context, session).thenAsync(
+            return refresher.refresh(context, clientRegistration, session).thenAsync(
                     new AsyncFunction<JsonValue, JsonValue, OAuth2ErrorException>() {
 
                         @Override
@@ -0,0 +1,77 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.forgerock.openig.util.StringUtil.sha256;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.util.LruCache;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A size-bounded cache of the parsed OAuth 2.0 sessions, keyed by a digest of their serialized value.
+ * <p>
+ * Parsing a session rebuilds its state and decodes its OpenID Connect ID token: this cache lets the successive
+ * requests of a user-agent, presenting the same session, share a single parsed {@link OAuth2Session}. At most
+ * {@literal maxSize} sessions are kept, the least recently used ones being evicted first.
+ */
+class OAuth2SessionCache {
+
+    private final TimeService time;
+    private final LruCache<String, OAuth2Session> sessions;
+
+    /**
+     * Creates a new OAuth 2.0 session cache.
+     *
+     * @param time
+     *         the time service given to the parsed sessions
+     * @param maxSize
+     *         the maximum number of sessions kept, {@literal 0} to disable the cache
+     */
+    OAuth2SessionCache(final TimeService time, final int maxSize) {
+        this.time = time;
+        this.sessions = new LruCache<>(time, maxSize);
+    }
+
+    /**
+     * Returns the session whose serialized value is given, parsing it if it is not cached.
+     *
+     * @param json
+     *         the serialized session
+     * @return the parsed session
+     * @throws OAuth2ErrorException
+     *         if the session cannot be parsed
+     */
+    OAuth2Session fromJson(final JsonValue json) throws OAuth2ErrorException {
+        final String key = sha256(json.toString());
+        OAuth2Session session = sessions.get(key);
+        if (session == null) {
+            session = OAuth2Session.fromJson(time, json);
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * Returns the number of cached sessions.
+     *
+     * @return the number of cached sessions
+     */
+    int size() {
+        return sessions.size();
+    }
+}
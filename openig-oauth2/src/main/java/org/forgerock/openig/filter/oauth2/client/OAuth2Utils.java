@@ -125,10 +125,22 @@ final class OAuth2Utils {
                                              final Expression<String> clientEndpoint,
                                              final TimeService time) throws OAuth2ErrorException,
                                                                             ResponseException {
+        return loadOrCreateSession(context, request, clientEndpoint, time, null);
+    }
+
+    static OAuth2Session loadOrCreateSession(final Context context,
+                                             final Request request,
+                                             final Expression<String> clientEndpoint,
+                                             final TimeService time,
+                                             final OAuth2SessionCache sessions) throws OAuth2ErrorException,
+                                                                                       ResponseException {
         SessionContext sessionContext = context.asContext(SessionContext.class);
         final Object sessionJson = sessionContext.getSession().get(sessionKey(context,
                                                                    buildUri(context, request, clientEndpoint)));
         if (sessionJson != null) {
+            if (sessions != null) {
+                return sessions.fromJson(new JsonValue(sessionJson));
+            }
             return OAuth2Session.fromJson(time, new JsonValue(sessionJson));
         }
         return stateNew(time);
@@ -0,0 +1,182 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2;
+
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.openig.oauth2.AccessTokenInfo;
+import org.forgerock.openig.oauth2.AccessTokenResolver;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class AccessTokenCacheTest {
+
+    private static final String TOKEN = "1fc0e143-f248-4e50-9c13-1d710360cec9";
+
+    @Mock
+    private AccessTokenResolver delegate;
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private Context context;
+
+    private AccessTokenCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        context = new RootContext();
+        cache = new AccessTokenCache(delegate, time, 60000L, 5000L, 2);
+    }
+
+    @Test
+    public void shouldResolveTokenOnce() throws Exception {
+        when(delegate.resolve(any(Context.class), eq(TOKEN))).thenReturn(info(TOKEN, now + 3600000L));
+
+        cache.resolve(context, TOKEN).getOrThrow();
+        cache.resolve(context, TOKEN).getOrThrow();
+
+        verify(delegate).resolve(any(Context.class), eq(TOKEN));
+        assertThat(cache.getStatistics().get("hits").asLong()).isEqualTo(1L);
+        assertThat(cache.getStatistics().get("misses").asLong()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldNotCacheTokenAfterItsExpiration() throws Exception {
+        when(delegate.resolve(any(Context.class), eq(TOKEN))).thenReturn(info(TOKEN, now + 10000L));
+
+        cache.resolve(context, TOKEN).getOrThrow();
+        now += 10000L;
+        cache.resolve(context, TOKEN).getOrThrow();
+
+        verify(delegate, times(2)).resolve(any(Context.class), eq(TOKEN));
+    }
+
+    @Test
+    public void shouldCacheInvalidTokenForNegativeExpiration() throws Exception {
+        Promise<AccessTokenInfo, AccessTokenException> invalid =
+                newExceptionPromise(new AccessTokenException("revoked"));
+        when(delegate.resolve(any(Context.class), eq(TOKEN))).thenReturn(invalid);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.resolve(context, TOKEN).getOrThrow();
+                fail("Expected an AccessTokenException");
+            } catch (AccessTokenException e) {
+                assertThat(e).hasMessage("revoked");
+            }
+        }
+        verify(delegate).resolve(any(Context.class), eq(TOKEN));
+        assertThat(cache.getStatistics().get("negativeHits").asLong()).isEqualTo(2L);
+
+        now += 5000L;
+        cache.resolve(context, TOKEN);
+        verify(delegate, times(2)).resolve(any(Context.class), eq(TOKEN));
+    }
+
+    @Test
+    public void shouldShareConcurrentResolutions() throws Exception {
+        PromiseImpl<AccessTokenInfo, AccessTokenException> pending = PromiseImpl.create();
+        when(delegate.resolve(any(Context.class), eq(TOKEN))).thenReturn(pending);
+
+        Promise<AccessTokenInfo, AccessTokenException> first = cache.resolve(context, TOKEN);
+        Promise<AccessTokenInfo, AccessTokenException> second = cache.resolve(context, TOKEN);
+        assertThat(first.isDone()).isFalse();
+        pending.handleResult(info(TOKEN, now + 3600000L).getOrThrow());
+
+        assertThat(second.getOrThrow().getToken()).isEqualTo(TOKEN);
+        verify(delegate).resolve(any(Context.class), eq(TOKEN));
+    }
+
+    @Test
+    public void shouldNotKeepRuntimeFailures() throws Exception {
+        when(delegate.resolve(any(Context.class), eq(TOKEN)))
+                .thenThrow(new IllegalStateException("boom"))
+                .thenReturn(info(TOKEN, now + 3600000L));
+
+        try {
+            cache.resolve(context, TOKEN).getOrThrow();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("boom");
+        }
+
+        assertThat(cache.resolve(context, TOKEN).getOrThrow().getToken()).isEqualTo(TOKEN);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedToken() throws Exception {
+        when(delegate.resolve(any(Context.class), anyString())).thenAnswer(
+                new Answer<Promise<AccessTokenInfo, AccessTokenException>>() {
+                    @Override
+                    public Promise<AccessTokenInfo, AccessTokenException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        return info((String) invocation.getArguments()[1], now + 3600000L);
+                    }
+                });
+
+        cache.resolve(context, "a");
+        cache.resolve(context, "b");
+        cache.resolve(context, "a");
+        cache.resolve(context, "c");
+        cache.resolve(context, "a");
+        cache.resolve(context, "b");
+
+        verify(delegate).resolve(any(Context.class), eq("a"));
+        verify(delegate, times(2)).resolve(any(Context.class), eq("b"));
+        assertThat(cache.getStatistics().get("size").asInteger()).isEqualTo(2);
+        assertThat(cache.getStatistics().get("evictions").asLong()).isEqualTo(2L);
+    }
+
+    private static Promise<AccessTokenInfo, AccessTokenException> info(final String token, final long expiresAt) {
+        AccessTokenInfo info = new AccessTokenInfo(json(object()), token, singleton("read"), expiresAt);
+        return newResultPromise(info);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.json.jose.jws.JwsAlgorithm;
+import org.forgerock.json.jose.jws.SigningManager;
+import org.forgerock.json.jose.jwt.JwtClaimsSet;
+import org.forgerock.openig.oauth2.AccessTokenException;
+import org.forgerock.openig.oauth2.AccessTokenInfo;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.encode.Base64url;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class JwtAccessTokenResolverTest {
+
+    private static final String ISSUER = "https://openam.example.com/oauth2";
+    private static final URI JWKS_URI = URI.create("https://openam.example.com/oauth2/connect/jwk_uri");
+
+    @Mock
+    private Handler handler;
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private KeyPair keyPair;
+
+    private Context context;
+
+    private JwtAccessTokenResolver resolver;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000000000000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        final JsonValue jwks = json(object(field("keys", array(rsaJwk("key-1", (RSAPublicKey) keyPair.getPublic())))));
+        when(handler.handle(any(Context.class), any(Request.class))).thenAnswer(new Answer<Promise<Response, ?>>() {
+            @Override
+            public Promise<Response, ?> answer(final InvocationOnMock invocation) throws Throwable {
+                return newResponsePromise(new Response(Status.OK).setEntity(jwks.getObject()));
+            }
+        });
+
+        context = new RootContext();
+        JwkSetCache keys = new JwkSetCache(handler, JWKS_URI, time, 30000L);
+        resolver = new JwtAccessTokenResolver(keys, time, ISSUER, singletonList("resource-server"), 30000L);
+    }
+
+    @Test
+    public void shouldResolveValidToken() throws Exception {
+        String token = token("key-1", ISSUER, now + 60000L);
+
+        AccessTokenInfo info = resolver.resolve(context, token).getOrThrow();
+
+        assertThat(info.getToken()).isEqualTo(token);
+        assertThat(info.getScopes()).containsOnly("read", "write");
+        assertThat(info.getExpiresAt()).isEqualTo((now + 60000L) / 1000L * 1000L);
+        assertThat(info.getInfo().get("sub").asString()).isEqualTo("bjensen");
+    }
+
+    @Test
+    public void shouldFetchKeySetOnce() throws Exception {
+        resolver.resolve(context, token("key-1", ISSUER, now + 60000L)).getOrThrow();
+        resolver.resolve(context, token("key-1", ISSUER, now + 60000L)).getOrThrow();
+
+        verify(handler).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*issuer.*")
+    public void shouldRejectUntrustedIssuer() throws Exception {
+        resolver.resolve(context, token("key-1", "https://evil.example.com", now + 60000L)).getOrThrow();
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*expired")
+    public void shouldRejectExpiredToken() throws Exception {
+        resolver.resolve(context, token("key-1", ISSUER, now - 60000L)).getOrThrow();
+    }
+
+    @Test
+    public void shouldAcceptRecentlyExpiredTokenWithinClockSkew() throws Exception {
+        resolver.resolve(context, token("key-1", ISSUER, now - 10000L)).getOrThrow();
+    }
+
+    @Test(expectedExceptions = AccessTokenException.class, expectedExceptionsMessageRegExp = ".*signature.*")
+    public void shouldRejectTokenSignedWithAnotherKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+
+        resolver.resolve(context, token("key-1", ISSUER, now + 60000L)).getOrThrow();
+    }
+
+    @Test
+    public void shouldThrottleFetchesForUnknownKeys() throws Exception {
+        resolver.resolve(context, token("key-1", ISSUER, now + 60000L)).getOrThrow();
+        for (int i = 0; i < 3; i++) {
+            try {
+                resolver.resolve(context, token("key-2", ISSUER, now + 60000L)).getOrThrow();
+            } catch (AccessTokenException e) {
+                assertThat(e).hasMessageContaining("unknown key");
+            }
+        }
+        verify(handler).handle(any(Context.class), any(Request.class));
+
+        // Once the minimum delay is elapsed, an unknown key triggers a new fetch
+        now += 30000L;
+        try {
+            resolver.resolve(context, token("key-2", ISSUER, now + 60000L)).getOrThrow();
+        } catch (AccessTokenException e) {
+            assertThat(e).hasMessageContaining("unknown key");
+        }
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    private String token(final String kid, final String issuer, final long expiration) {
+        JwtBuilderFactory factory = new JwtBuilderFactory();
+        JwtClaimsSet claims = factory.claims()
+                                     .iss(issuer)
+                                     .sub("bjensen")
+                                     .aud(Arrays.asList("resource-server", "other"))
+                                     .exp(new Date(expiration))
+                                     .claim("scope", "read write")
+                                     .build();
+        return factory.jws(new SigningManager().newRsaSigningHandler(keyPair.getPrivate()))
+                      .headers()
+                      .alg(JwsAlgorithm.RS256)
+                      .kid(kid)
+                      .done()
+                      .claims(claims)
+                      .build();
+    }
+
+    private static Object rsaJwk(final String kid, final RSAPublicKey key) {
+        return object(field("kty", "RSA"),
+                      field("kid", kid),
+                      field("use", "sig"),
+                      field("alg", "RS256"),
+                      field("n", base64url(key.getModulus())),
+                      field("e", base64url(key.getPublicExponent())));
+    }
+
+    private static String base64url(final BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            // Strip the sign byte
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64url.encode(bytes);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.http.protocol.Status.BAD_REQUEST;
+import static org.forgerock.http.protocol.Status.OK;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildAuthorizedOAuth2Session;
+import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildClientRegistration;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class AccessTokenRefresherTest {
+
+    private static final String NEW_ACCESS_TOKEN = "2YoLoFZFEjr1zCsicMWpAA*";
+
+    @Mock
+    private Handler registrationHandler;
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private Context context;
+
+    private ClientRegistration registration;
+
+    private OAuth2Session session;
+
+    private AccessTokenRefresher refresher;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        context = new RootContext();
+        registration = buildClientRegistration("openam", registrationHandler);
+        session = OAuth2Session.fromJson(time, buildAuthorizedOAuth2Session("openam", "http://www.example.com/app"));
+        refresher = new AccessTokenRefresher(time, 30000L, 10);
+    }
+
+    @Test
+    public void shouldShareConcurrentRefreshGrants() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> pending = PromiseImpl.create();
+        when(registrationHandler.handle(any(Context.class), any(Request.class))).thenReturn(pending);
+
+        Promise<JsonValue, OAuth2ErrorException> first = refresher.refresh(context, registration, session);
+        Promise<JsonValue, OAuth2ErrorException> second = refresher.refresh(context, registration, session);
+        assertThat(first.isDone()).isFalse();
+        pending.handleResult(refreshed());
+
+        assertThat(first.getOrThrow().get("access_token").asString()).isEqualTo(NEW_ACCESS_TOKEN);
+        assertThat(second.getOrThrow().get("access_token").asString()).isEqualTo(NEW_ACCESS_TOKEN);
+        verify(registrationHandler).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldReuseRefreshedTokenDuringRetention() throws Exception {
+        when(registrationHandler.handle(any(Context.class), any(Request.class))).thenAnswer(
+                new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        return newResponsePromise(refreshed());
+                    }
+                });
+
+        refresher.refresh(context, registration, session).getOrThrow();
+        now += 29999L;
+        refresher.refresh(context, registration, session).getOrThrow();
+        verify(registrationHandler).handle(any(Context.class), any(Request.class));
+
+        now += 1L;
+        refresher.refresh(context, registration, session).getOrThrow();
+        verify(registrationHandler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotKeepFailedRefreshGrants() throws Exception {
+        when(registrationHandler.handle(any(Context.class), any(Request.class))).thenAnswer(
+                new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        Response response = new Response(BAD_REQUEST);
+                        response.setEntity(object(field("error", "invalid_grant")));
+                        return newResponsePromise(response);
+                    }
+                });
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                refresher.refresh(context, registration, session).getOrThrow();
+                fail("Expected an OAuth2ErrorException");
+            } catch (OAuth2ErrorException e) {
+                assertThat(e.getOAuth2Error().is("invalid_grant")).isTrue();
+            }
+        }
+        verify(registrationHandler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldNotKeepRefreshGrantsFailingWithRuntimeException() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> failed = PromiseImpl.create();
+        failed.handleRuntimeException(new IllegalStateException("boom"));
+        when(registrationHandler.handle(any(Context.class), any(Request.class)))
+                .thenReturn(failed, newResponsePromise(refreshed()));
+
+        Promise<JsonValue, OAuth2ErrorException> first = refresher.refresh(context, registration, session);
+        Promise<JsonValue, OAuth2ErrorException> second = refresher.refresh(context, registration, session);
+
+        assertThat(first.isDone()).isTrue();
+        assertThat(second.getOrThrow().get("access_token").asString()).isEqualTo(NEW_ACCESS_TOKEN);
+        verify(registrationHandler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    private static Response refreshed() {
+        Response response = new Response(OK);
+        response.setEntity(object(field("access_token", NEW_ACCESS_TOKEN),
+                                  field("refresh_token", "tGzv3JOkF0XG5Qx2TlKWAAA"),
+                                  field("expires_in", 3600)));
+        return response;
+    }
+}
@@ -22,13 +22,17 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.oauth2.client.DiscoveryFilter.OPENID_SERVICE;
+import static org.forgerock.openig.filter.oauth2.client.Issuer.ISSUER_KEY;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.forgerock.http.Handler;
@@ -38,6 +42,7 @@ import org.forgerock.http.protocol.Status;
 import org.forgerock.http.routing.UriRouterContext;
 import org.forgerock.openig.filter.oauth2.client.DiscoveryFilter.AccountIdentifier;
 import org.forgerock.openig.heap.Heap;
+import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.mockito.ArgumentCaptor;
@@ -63,9 +68,13 @@ public class DiscoveryFilterTest {
     @Mock
     private Handler handler;
 
+    @Mock
+    private Handler next;
+
     @BeforeMethod
     public void setUp() throws Exception {
         initMocks(this);
+        when(next.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(new Response()));
         context = new UriRouterContext(new RootContext(),
                                        null,
                                        null,
@@ -234,4 +243,60 @@ public class DiscoveryFilterTest {
         final DiscoveryFilter df = new DiscoveryFilter(handler, heap);
         df.performOpenIdIssuerDiscovery(context, account).getOrThrow();
     }
+
+    @Test
+    public void shouldUseTheFirstIssuerSupportingTheDomain() throws Exception {
+        // given
+        final Issuer openam = issuer("openam", "openam.example.com", ".*\\.example\\.org");
+        final Issuer other = issuer("other", "(www|sub)\\.example\\.org", "sub\\.example\\.net");
+        when(heap.getAll(Issuer.class)).thenReturn(Arrays.asList(openam, other));
+        final DiscoveryFilter df = new DiscoveryFilter(handler, heap);
+
+        // then
+        assertThat(discover(df, "alice@sub.example.org")).isSameAs(openam);
+        assertThat(discover(df, "http://sub.example.net/alice")).isSameAs(other);
+        assertThat(discover(df, "https://openam.example.com/alice")).isSameAs(openam);
+        verify(handler, never()).handle(any(Context.class), any(Request.class));
+        verify(heap).getAll(Issuer.class);
+    }
+
+    @Test
+    public void shouldDiscoverTheIssuerOnce() throws Exception {
+        // given
+        when(heap.getAll(Issuer.class)).thenReturn(Collections.<Issuer>emptyList());
+        final Response webFinger = new Response(Status.OK);
+        webFinger.setEntity(json(object(field("links", array(object(
+                field("rel" , OPENID_SERVICE),
+                field("href", "http://openam.example.com/openam/oauth2")))))));
+        final Response wellKnown = new Response(Status.OK);
+        wellKnown.setEntity(json(object(field("authorization_endpoint", "http://openam.example.com/authorize"),
+                                        field("token_endpoint", "http://openam.example.com/access_token"))));
+        when(handler.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(webFinger),
+                                                                               newResponsePromise(wellKnown));
+        final DiscoveryFilter df = new DiscoveryFilter(handler, heap);
+
+        // when
+        final Issuer first = discover(df, "alice@openam.example.com");
+        final Issuer second = discover(df, "bob@openam.example.com");
+
+        // then
+        assertThat(second).isSameAs(first);
+        assertThat(first.getName()).isEqualTo("https://openam.example.com/");
+        assertThat(first.getTokenEndpoint()).isEqualTo(new URI("http://openam.example.com/access_token"));
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    private Issuer discover(final DiscoveryFilter df, final String input) throws Exception {
+        final AttributesContext attributesContext = new AttributesContext(context);
+        final Request request = new Request();
+        request.setUri("http://www.example.com/discovery?discovery=" + input);
+        df.filter(attributesContext, request, next).getOrThrow();
+        return (Issuer) attributesContext.getAttributes().get(ISSUER_KEY);
+    }
+
+    private static Issuer issuer(final String name, final String... supportedDomains) {
+        return new Issuer(name, json(object(field("authorizeEndpoint", "http://" + name + "/authorize"),
+                                            field("tokenEndpoint", "http://" + name + "/access_token"),
+                                            field("supportedDomains", Arrays.asList(supportedDomains)))));
+    }
 }
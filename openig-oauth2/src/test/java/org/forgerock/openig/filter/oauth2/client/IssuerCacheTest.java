@@ -0,0 +1,229 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newExceptionPromise;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.concurrent.Callable;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class IssuerCacheTest {
+
+    private static final URI WELL_KNOWN_URI = URI.create("http://openam.example.com/.well-known/openid-configuration");
+
+    @Mock
+    private Handler handler;
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private int discoveries;
+
+    /** The status of the .well-known responses, and the token end-point they list. */
+    private Status status;
+    private String tokenEndpoint;
+    private boolean runtimeFailure;
+
+    private Context context;
+
+    private IssuerCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        discoveries = 0;
+        status = Status.OK;
+        tokenEndpoint = "http://openam.example.com/oauth2/access_token";
+        runtimeFailure = false;
+        when(handler.handle(any(Context.class), any(Request.class))).thenAnswer(
+                new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        if (runtimeFailure) {
+                            throw new IllegalStateException("boom");
+                        }
+                        Response response = new Response(status);
+                        response.setEntity(json(object(
+                                field("authorization_endpoint", "http://openam.example.com/oauth2/authorize"),
+                                field("token_endpoint", tokenEndpoint))));
+                        return newResponsePromise(response);
+                    }
+                });
+        context = new RootContext();
+        cache = new IssuerCache(handler, time, 60000L, 2);
+    }
+
+    @Test
+    public void shouldDiscoverIssuerOnce() throws Exception {
+        Issuer first = cache.get(context, "http://a/", discovery()).getOrThrow();
+        Issuer second = cache.get(context, "http://a/", discovery()).getOrThrow();
+
+        assertThat(second).isSameAs(first);
+        assertThat(first.getName()).isEqualTo("http://a/");
+        assertThat(discoveries).isEqualTo(1);
+        verify(handler).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldShareConcurrentDiscoveries() throws Exception {
+        final PromiseImpl<URI, DiscoveryException> pending = PromiseImpl.create();
+        Callable<Promise<URI, DiscoveryException>> discovery = new Callable<Promise<URI, DiscoveryException>>() {
+            @Override
+            public Promise<URI, DiscoveryException> call() throws Exception {
+                discoveries++;
+                return pending;
+            }
+        };
+        Promise<Issuer, DiscoveryException> first = cache.get(context, "http://a/", discovery);
+        Promise<Issuer, DiscoveryException> second = cache.get(context, "http://a/", discovery);
+        assertThat(first.isDone()).isFalse();
+        pending.handleResult(WELL_KNOWN_URI);
+
+        assertThat(second.getOrThrow()).isSameAs(first.getOrThrow());
+        assertThat(discoveries).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRefreshIssuerInBackgroundOnceExpired() throws Exception {
+        Issuer discovered = cache.get(context, "http://a/", discovery()).getOrThrow();
+        now += 60000L;
+        tokenEndpoint = "http://openam.example.com/oauth2/token";
+
+        Issuer stale = cache.get(context, "http://a/", discovery()).getOrThrow();
+        Issuer refreshed = cache.get(context, "http://a/", discovery()).getOrThrow();
+
+        assertThat(stale).isSameAs(discovered);
+        assertThat(refreshed.getTokenEndpoint()).isEqualTo(URI.create("http://openam.example.com/oauth2/token"));
+        assertThat(discoveries).isEqualTo(1);
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldKeepIssuerWhenRefreshFails() throws Exception {
+        Issuer discovered = cache.get(context, "http://a/", discovery()).getOrThrow();
+        now += 60000L;
+        status = Status.INTERNAL_SERVER_ERROR;
+
+        cache.get(context, "http://a/", discovery()).getOrThrow();
+        Issuer kept = cache.get(context, "http://a/", discovery()).getOrThrow();
+
+        assertThat(kept).isSameAs(discovered);
+        verify(handler, times(2)).handle(any(Context.class), any(Request.class));
+
+        now += 10000L;
+        cache.get(context, "http://a/", discovery());
+        verify(handler, times(3)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotKeepFailedDiscoveries() throws Exception {
+        Callable<Promise<URI, DiscoveryException>> failure = new Callable<Promise<URI, DiscoveryException>>() {
+            @Override
+            public Promise<URI, DiscoveryException> call() throws Exception {
+                return newExceptionPromise(new DiscoveryException("Boom"));
+            }
+        };
+        cache.get(context, "http://a/", failure);
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotKeepDiscoveriesFailingWithRuntimeException() throws Exception {
+        runtimeFailure = true;
+        Promise<Issuer, DiscoveryException> failed = cache.get(context, "http://a/", discovery());
+
+        assertThat(failed.isDone()).isTrue();
+        assertThat(cache.size()).isEqualTo(0);
+        runtimeFailure = false;
+        assertThat(cache.get(context, "http://a/", discovery()).getOrThrow().getName()).isEqualTo("http://a/");
+    }
+
+    @Test
+    public void shouldRetryRefreshFailingWithRuntimeException() throws Exception {
+        Issuer discovered = cache.get(context, "http://a/", discovery()).getOrThrow();
+        now += 60000L;
+        runtimeFailure = true;
+
+        assertThat(cache.get(context, "http://a/", discovery()).getOrThrow()).isSameAs(discovered);
+        runtimeFailure = false;
+        now += 10000L;
+        cache.get(context, "http://a/", discovery());
+
+        verify(handler, times(3)).handle(any(Context.class), any(Request.class));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedIssuer() throws Exception {
+        cache.get(context, "http://a/", discovery());
+        cache.get(context, "http://b/", discovery());
+        cache.get(context, "http://a/", discovery());
+        cache.get(context, "http://c/", discovery());
+        cache.get(context, "http://a/", discovery());
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(discoveries).isEqualTo(3);
+    }
+
+    private Callable<Promise<URI, DiscoveryException>> discovery() {
+        return new Callable<Promise<URI, DiscoveryException>>() {
+            @Override
+            public Promise<URI, DiscoveryException> call() throws Exception {
+                discoveries++;
+                return newResultPromise(WELL_KNOWN_URI);
+            }
+        };
+    }
+}
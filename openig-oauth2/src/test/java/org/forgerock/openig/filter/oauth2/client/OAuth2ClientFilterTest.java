@@ -638,6 +638,33 @@ public class OAuth2ClientFilterTest {
         verifyZeroInteractions(discoveryAndDynamicRegistrationChain);
     }
 
+    @Test
+    public void shouldRefreshTheTokenBeforeItExpires() throws Exception {
+        // Given
+        setUpForHandleProtectedResourceCases();
+        // The session's access token expires in 10 seconds ("ea" is in seconds)
+        when(time.now()).thenReturn((1460018881L - 10L) * 1000L);
+        when(next.handle(eq(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        when(registrationHandler.handle(eq(context), any(Request.class)))
+            .thenReturn(newResponsePromise(buildOAuth2Response(OK, json(object(field("access_token", NEW_ACCESS_TOKEN),
+                                                             field("refresh_token", NEW_REFRESH_TOKEN),
+                                                             field("expires_in", 1000),
+                                                             field("id_token", OAuth2TestUtils.ID_TOKEN))))));
+
+        final OAuth2ClientFilter filter = buildOAuth2ClientFilter().setRefreshAhead(duration("30 seconds"));
+        setSessionAuthorized();
+
+        // When
+        final Response response = filter.filter(context, request, next).get();
+
+        // Then
+        assertThat(response.getStatus()).isEqualTo(OK);
+        assertThatTargetAttributesAreSetAndContain(NEW_ACCESS_TOKEN, NEW_REFRESH_TOKEN);
+        verify(next).handle(eq(context), any(Request.class));
+        verify(registrationHandler).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(failureHandler, discoveryAndDynamicRegistrationChain);
+    }
+
     /**
      * All successful responses are returned without any process.
      * (not a 5xx Server Error or a 4xx Client Error)
@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.oauth2.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.filter.oauth2.client.OAuth2TestUtils.buildAuthorizedOAuth2Session;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class OAuth2SessionCacheTest {
+
+    @Test
+    public void shouldParseSameSessionOnce() throws Exception {
+        OAuth2SessionCache cache = new OAuth2SessionCache(TimeService.SYSTEM, 10);
+
+        OAuth2Session first = cache.fromJson(session("openam"));
+        OAuth2Session second = cache.fromJson(session("openam"));
+
+        assertThat(second).isSameAs(first);
+        assertThat(second.getClientRegistrationName()).isEqualTo("openam");
+        assertThat(second.getIdToken()).isNotNull();
+    }
+
+    @Test
+    public void shouldParseChangedSessionAgain() throws Exception {
+        OAuth2SessionCache cache = new OAuth2SessionCache(TimeService.SYSTEM, 10);
+
+        OAuth2Session first = cache.fromJson(session("openam"));
+        OAuth2Session second = cache.fromJson(session("google"));
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.getClientRegistrationName()).isEqualTo("google");
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedSession() throws Exception {
+        OAuth2SessionCache cache = new OAuth2SessionCache(TimeService.SYSTEM, 2);
+
+        OAuth2Session first = cache.fromJson(session("a"));
+        cache.fromJson(session("b"));
+        cache.fromJson(session("a"));
+        cache.fromJson(session("c"));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.fromJson(session("a"))).isSameAs(first);
+    }
+
+    @Test
+    public void shouldNotKeepSessionsWhenDisabled() throws Exception {
+        OAuth2SessionCache cache = new OAuth2SessionCache(TimeService.SYSTEM, 0);
+
+        OAuth2Session first = cache.fromJson(session("openam"));
+
+        assertThat(cache.fromJson(session("openam"))).isNotSameAs(first);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    private static JsonValue session(final String clientRegistrationName) {
+        return buildAuthorizedOAuth2Session(clientRegistrationName, "http://www.example.com/app");
+    }
+}
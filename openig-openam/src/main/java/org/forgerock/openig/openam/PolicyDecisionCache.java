@@ -0,0 +1,219 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openig.util.SingleFlightCache;
+import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of policy decisions.
+ * <p>
+ * A decision is kept for the {@literal ttl} it carries, but never longer than {@literal maxExpiration}; failed
+ * evaluations are not kept. Concurrent evaluations with the same key share a single request to OpenAM. At most
+ * {@literal maxSize} decisions are kept, the least recently used ones being evicted first.
+ * <p>
+ * Instead of scheduling one eviction task per decision, expired decisions are removed by a single periodic task
+ * walking a hashed timing wheel: a fixed-size ring of one-second slots, each holding the keys of the decisions that
+ * expire during one of the seconds hashed to that slot. As each key records the second it expires at, the keys
+ * expiring in a later turn of the wheel stay in their slot, whatever {@literal maxExpiration}. Lookups never return
+ * an expired decision, even if its slot has not been processed yet.
+ */
+class PolicyDecisionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolicyDecisionCache.class);
+
+    /** Duration (ms) of a timing wheel slot. */
+    private static final long TICK = 1000L;
+
+    /** Number of slots of the timing wheel: a turn lasts a bit more than 8 minutes. */
+    static final int WHEEL_SIZE = 512;
+
+    private final TimeService time;
+    private final long maxExpiration;
+    private final SingleFlightCache<String, JsonValue, ResourceException> decisions;
+
+    /** Guarded by itself. */
+    private final List<List<WheelEntry>> wheel;
+    private long processedTick;
+
+    private final ScheduledFuture<?> ticker;
+
+    /**
+     * Creates a new policy decision cache.
+     *
+     * @param executor
+     *         the executor running the expiration task
+     * @param time
+     *         the time service
+     * @param maxExpiration
+     *         the maximum duration (ms) a decision is kept
+     * @param maxSize
+     *         the maximum number of decisions kept
+     */
+    PolicyDecisionCache(final ScheduledExecutorService executor,
+                        final TimeService time,
+                        final long maxExpiration,
+                        final int maxSize) {
+        this.time = time;
+        this.maxExpiration = maxExpiration;
+        this.decisions = new SingleFlightCache<>(time, maxSize,
+                new SingleFlightCache.Expiration<String, JsonValue, ResourceException>() {
+                    @Override
+                    public long expiresAt(final String key, final JsonValue decision) {
+                        return cached(key, decision);
+                    }
+
+                    @Override
+                    public long failureExpiresAt(final String key, final ResourceException exception) {
+                        return Long.MIN_VALUE;
+                    }
+                });
+        this.wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<WheelEntry>());
+        }
+        this.processedTick = time.now() / TICK;
+        this.ticker = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, TICK, TICK, MILLISECONDS);
+    }
+
+    /**
+     * Returns the decision cached for the given key, or evaluates it.
+     *
+     * @param key
+     *         the cache key
+     * @param evaluation
+     *         called to evaluate the decision on cache misses
+     * @return the promise of a policy decision
+     */
+    Promise<JsonValue, ResourceException> getValue(final String key,
+                                                   final Callable<Promise<JsonValue, ResourceException>> evaluation) {
+        return decisions.getValue(key, new AsyncFunction<String, JsonValue, ResourceException>() {
+            @Override
+            public Promise<JsonValue, ResourceException> apply(final String key) {
+                try {
+                    return evaluation.call();
+                } catch (Exception e) {
+                    return new InternalServerErrorException(e).asPromise();
+                }
+            }
+        });
+    }
+
+    /** Returns the expiration time of a new decision, and places its key in the timing wheel. */
+    private long cached(final String key, final JsonValue decision) {
+        long expiration = maxExpiration;
+        JsonValue ttl = decision.get("ttl");
+        if (ttl.isNumber()) {
+            expiration = Math.min(ttl.asLong(), maxExpiration);
+        } else if (ttl.isNotNull()) {
+            logger.debug("Ignoring the invalid ttl {} of the policy decision", ttl);
+        }
+        if (expiration <= 0L) {
+            return Long.MIN_VALUE;
+        }
+        long expiresAt = time.now() + expiration;
+        // Round up, so that the slot is processed once the decision has expired
+        long tick = (expiresAt + TICK - 1L) / TICK;
+        synchronized (wheel) {
+            wheel.get(slot(tick)).add(new WheelEntry(key, tick));
+        }
+        return expiresAt;
+    }
+
+    /** Processes the slots of the ticks elapsed since the last run. */
+    void expire() {
+        long currentTick = time.now() / TICK;
+        List<String> expired = new ArrayList<>();
+        synchronized (wheel) {
+            // Process a full turn at most, whatever the delay since the last run
+            long first = Math.max(processedTick + 1L, currentTick - WHEEL_SIZE + 1L);
+            for (long tick = first; tick <= currentTick; tick++) {
+                Iterator<WheelEntry> slot = wheel.get(slot(tick)).iterator();
+                while (slot.hasNext()) {
+                    WheelEntry entry = slot.next();
+                    // Keep the keys expiring in a later turn
+                    if (entry.tick <= currentTick) {
+                        expired.add(entry.key);
+                        slot.remove();
+                    }
+                }
+            }
+            processedTick = Math.max(processedTick, currentTick);
+        }
+        // A key whose decision has been evaluated again since is in a later slot too: only expired decisions are
+        // removed
+        for (String key : expired) {
+            decisions.removeIfExpired(key);
+        }
+    }
+
+    private static int slot(final long tick) {
+        return (int) (tick % WHEEL_SIZE);
+    }
+
+    /**
+     * Returns the number of cached decisions.
+     *
+     * @return the number of cached decisions
+     */
+    int size() {
+        return decisions.size();
+    }
+
+    /** Removes all the decisions and stops the expiration task. */
+    void clear() {
+        ticker.cancel(false);
+        decisions.clear();
+        synchronized (wheel) {
+            for (List<WheelEntry> slot : wheel) {
+                slot.clear();
+            }
+        }
+    }
+
+    /** The key of a decision, in the slot of the tick it expires at. */
+    private static final class WheelEntry {
+        private final String key;
+        private final long tick;
+
+        WheelEntry(final String key, final long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.FORGEROCK_CLIENT_HANDLER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.openam.SsoTokenFilter.ssoTokenRenewal;
 import static org.forgerock.openig.util.JsonValues.getWithDeprecation;
 import static org.forgerock.openig.util.JsonValues.leftValueExpression;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
@@ -50,7 +52,6 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
-import org.forgerock.http.MutableUri;
 import org.forgerock.http.header.AcceptApiVersionHeader;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
@@ -82,6 +83,7 @@ import org.forgerock.util.annotations.VisibleForTesting;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -96,7 +98,17 @@ import org.slf4j.LoggerFactory;
  * Policy decisions are cached for each filter and eviction is based on the
  * "time-to-live" given in the policy decision returned by AM, if this one
  * exceed the duration expressed in the cacheMaxExpiration, then the value of
- * cacheMaxExpiration is used to cache the policy.
+ * cacheMaxExpiration is used to cache the policy. At most cacheMaxSize decisions
+ * are cached, the least recently used ones being evicted first.
+ * <p>
+ * When ignoreQuery is set, the policy decision is requested for the request URI
+ * without its query string: a single cached decision then serves all the query
+ * strings of a resource (only use it when no policy depends on query strings).
+ * <p>
+ * When batchSize is greater than 1, the decisions missing from the cache are
+ * requested in batches: the resources requested with the same subject,
+ * application and environment within batchDelay are evaluated with a single
+ * request to OpenAM, listing up to batchSize resources.
  *
  * <pre>
  * {@code {
@@ -111,6 +123,8 @@ import org.slf4j.LoggerFactory;
  *                                                                        'ForgeRockClientHandler' provided in heap.]
  *          "realm"                  :    String,             [OPTIONAL - default is '/']
  *          "ssoTokenHeader"         :    String,             [OPTIONAL]
+ *          "ssoTokenRenewal"        :    duration/"session", [OPTIONAL - by default the SSO token is only
+ *                                                                        renewed once rejected]
  *          "application"            :    String,             [OPTIONAL]
  *          "ssoTokenSubject"        :    expression,         [OPTIONAL - must be specified if no jwtSubject or
  *                                                                        claimsSubject ]
@@ -120,6 +134,10 @@ import org.slf4j.LoggerFactory;
  *                                                                        ssoTokenSubject - instance of
  *                                                                        Map<String, Object> JWT claims ]
  *          "cacheMaxExpiration"     :    duration,           [OPTIONAL - default to 1 minute ]
+ *          "cacheMaxSize"           :    number,             [OPTIONAL - default to 10000 ]
+ *          "ignoreQuery"            :    boolean,            [OPTIONAL - default to false ]
+ *          "batchSize"              :    number,             [OPTIONAL - default to 1, no batching ]
+ *          "batchDelay"             :    duration,           [OPTIONAL - default to 5 milliseconds ]
  *          "target"                 :    mapExpression,      [OPTIONAL - default is ${attributes.policy} ]
  *          "environment"            :    map/expression,     [OPTIONAL - instance of Map<String, List<Object>>]
  *          "executor"               :    executor            [OPTIONAL - by default uses 'ScheduledThreadPool'
@@ -135,7 +153,9 @@ import org.slf4j.LoggerFactory;
  * This heaplet adds an SsoTokenFilter to the amHandler's chain and its
  * role is to retrieve and set the SSO token header of this given user (REST API
  * calls must present the session token, aka SSO Token, in an HTTP header as
- * proof of authentication).
+ * proof of authentication). When ssoTokenRenewal is set, the SSO token is also
+ * renewed in the background: after the given duration, or, with "session",
+ * before the session's remaining time or max idle time returned by OpenAM elapses.
  * <p>
  * The target represents a map in the attribute context where the "attributes"
  * and "advices" map fields from the policy decision will be saved in. By
@@ -182,6 +202,9 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
             "The attribute 'ssoTokenSubject' or 'jwtSubject' or 'claimsSubject' must be specified";
 
     private PerItemEvictionStrategyCache<String, Promise<JsonValue, ResourceException>> policyDecisionCache;
+    private PolicyDecisionCache decisionCache;
+    private PolicyEvaluationBatcher batcher;
+    private boolean ignoreQuery;
     private final RequestHandler requestHandler;
     private String application;
     private Expression<String> ssoTokenSubject;
@@ -220,6 +243,48 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         this.policyDecisionCache = cache;
     }
 
+    /**
+     * Sets the size-bounded cache for the policy decisions, used instead of the cache set with
+     * {@link #setCache(PerItemEvictionStrategyCache)}.
+     *
+     * @param cache
+     *            The cache for policy decisions to set.
+     */
+    void setCache(final PolicyDecisionCache cache) {
+        this.decisionCache = cache;
+    }
+
+    /**
+     * Enables the batching of policy evaluations: the resources requested with the same subject, application and
+     * environment are evaluated together, in a single request to OpenAM.
+     *
+     * @param executor
+     *            The executor sending the batched evaluations once their delay is elapsed.
+     * @param batchSize
+     *            The maximum number of resources evaluated in a single request.
+     * @param batchDelay
+     *            The maximum duration an evaluation waits for other evaluations.
+     */
+    void setBatching(final ScheduledExecutorService executor, final int batchSize, final Duration batchDelay) {
+        this.batcher = new PolicyEvaluationBatcher(requestHandler,
+                                                   POLICY_ENDPOINT,
+                                                   EVALUATE_ACTION,
+                                                   executor,
+                                                   batchSize,
+                                                   batchDelay.to(MILLISECONDS));
+    }
+
+    /**
+     * Sets whether the query string of the requests is ignored: if {@code true}, the policy decision is requested
+     * for the request URI without its query string, and a cached decision is reused for all the query strings.
+     *
+     * @param ignoreQuery
+     *            {@code true} to ignore the query string of the requests.
+     */
+    public void setIgnoreQuery(final boolean ignoreQuery) {
+        this.ignoreQuery = ignoreQuery;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
@@ -327,16 +392,23 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         actionRequest.setResourceVersion(version(2, 0));
 
         final JsonValue subject = resources.get("subject");
-        final String key = createKeyCache(request.getUri().toASCIIString(),
+        final String key = createKeyCache(resource(request),
                                           subject.get("ssoToken").asString(),
                                           subject.get("jwt").asString(),
                                           subject.get("claims").asMap() != null
                                                       ? subject.get("claims").asMap().hashCode()
                                                       : 0);
+        final Callable<Promise<JsonValue, ResourceException>> evaluation;
+        if (batcher != null) {
+            evaluation = getBatchedPolicyDecisionCallable(context, batcher, resources);
+        } else {
+            evaluation = getPolicyDecisionCallable(context, requestHandler, actionRequest);
+        }
+        if (decisionCache != null) {
+            return decisionCache.getValue(key, evaluation);
+        }
         try {
-            return policyDecisionCache.getValue(key,
-                                                getPolicyDecisionCallable(context, requestHandler, actionRequest),
-                                                extractDurationFromTtl());
+            return policyDecisionCache.getValue(key, evaluation, extractDurationFromTtl());
         } catch (InterruptedException | ExecutionException e) {
             return new InternalServerErrorException(e).asPromise();
         }
@@ -357,12 +429,27 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
             throw new NotSupportedException(SUBJECT_ERROR);
         }
 
-        return json(object(field("resources", array(request.getUri().toASCIIString())),
+        return json(object(field("resources", array(resource(request))),
                            field("subject", subject.getObject()),
                            fieldIfNotNull("application", application),
                            fieldIfNotNull("environment", environment != null ? environment.apply(bindings) : null)));
     }
 
+    /** Returns the resource to evaluate: the request URI, without its query string if it is ignored. */
+    private String resource(final Request request) {
+        String uri = request.getUri().toASCIIString();
+        if (ignoreQuery) {
+            int index = uri.indexOf('?');
+            if (index == -1) {
+                index = uri.indexOf('#');
+            }
+            if (index != -1) {
+                return uri.substring(0, index);
+            }
+        }
+        return uri;
+    }
+
     private AsyncFunction<Promise<JsonValue, ResourceException>, Duration, Exception> extractDurationFromTtl() {
         //@Checkstyle:off
         return new AsyncFunction<Promise<JsonValue, ResourceException>, Duration, Exception>() {
@@ -386,6 +473,19 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
         //@Checkstyle:on
     }
 
+    private static Callable<Promise<JsonValue, ResourceException>> getBatchedPolicyDecisionCallable(
+                                                                                final Context context,
+                                                                                final PolicyEvaluationBatcher batcher,
+                                                                                final JsonValue resources) {
+        return new Callable<Promise<JsonValue, ResourceException>>() {
+
+            @Override
+            public Promise<JsonValue, ResourceException> call() throws Exception {
+                return batcher.evaluate(context, resources);
+            }
+        };
+    }
+
     private static Callable<Promise<JsonValue, ResourceException>> getPolicyDecisionCallable(
                                                                                   final Context context,
                                                                                   final RequestHandler requestHandler,
@@ -433,8 +533,7 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
 
             @Override
             public Boolean apply(final JsonValue policyDecision) {
-                final MutableUri original = request.getUri();
-                if (policyDecision.get("resource").asString().equals(original.toASCIIString())) {
+                if (policyDecision.get("resource").asString().equals(resource(request))) {
                     final Map<String, Object> extra = new LinkedHashMap<>();
                     extra.put("attributes", policyDecision.get("attributes").asMap());
                     extra.put("advices", policyDecision.get("advices").asMap());
@@ -453,7 +552,8 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
     /** Creates and initializes a policy enforcement filter in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
 
-        private PerItemEvictionStrategyCache<String, Promise<JsonValue, ResourceException>> cache;
+        private PolicyDecisionCache cache;
+        private SsoTokenFilter ssoTokenFilter;
 
         @Override
         public Object create() throws HeapException {
@@ -485,13 +585,21 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
                                                  .defaultTo(format("${attributes.%s}", DEFAULT_POLICY_KEY))
                                                  .as(leftValueExpression(Map.class));
 
+            final ScheduledExecutorService executor = config.get("executor")
+                                                            .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                            .as(requiredHeapObject(heap,
+                                                                                   ScheduledExecutorService.class));
+            final Duration renewal = ssoTokenRenewal(config.get("ssoTokenRenewal").as(evaluatedWithHeapProperties()));
+
             try {
-                final SsoTokenFilter ssoTokenFilter = new SsoTokenFilter(amHandler,
-                                                                         new URI(openamUrl),
-                                                                         pepRealm,
-                                                                         ssoTokenHeader,
-                                                                         pepUsername,
-                                                                         pepPassword);
+                ssoTokenFilter = new SsoTokenFilter(amHandler,
+                                                    new URI(openamUrl),
+                                                    pepRealm,
+                                                    ssoTokenHeader,
+                                                    pepUsername,
+                                                    pepPassword,
+                                                    executor,
+                                                    renewal);
 
                 final PolicyEnforcementFilter filter =
                         new PolicyEnforcementFilter(normalizeToJsonEndpoint(openamUrl, realm),
@@ -516,20 +624,40 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
                 filter.setEnvironment(environment(heap.getProperties()));
 
                 // Sets the cache
-                ScheduledExecutorService executor = config.get("executor")
-                                                          .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
-                                                          .as(requiredHeapObject(heap, ScheduledExecutorService.class));
-                String defaultExpiration = "1 minute";
-                cache = new PerItemEvictionStrategyCache<>(executor, duration(defaultExpiration));
                 final Duration cacheMaxExpiration = config.get("cacheMaxExpiration")
                                                           .as(evaluatedWithHeapProperties())
-                                                          .defaultTo(defaultExpiration)
+                                                          .defaultTo("1 minute")
                                                           .as(duration());
                 if (cacheMaxExpiration.isZero() || cacheMaxExpiration.isUnlimited()) {
                     throw new HeapException("The max expiration value cannot be set to 0 or to 'unlimited'");
                 }
-                cache.setMaxTimeout(cacheMaxExpiration);
+                final int cacheMaxSize = config.get("cacheMaxSize")
+                                               .as(evaluatedWithHeapProperties())
+                                               .defaultTo(10000)
+                                               .asInteger();
+                TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+                cache = new PolicyDecisionCache(executor,
+                                                time != null ? time : TimeService.SYSTEM,
+                                                cacheMaxExpiration.to(MILLISECONDS),
+                                                cacheMaxSize);
                 filter.setCache(cache);
+                filter.setIgnoreQuery(config.get("ignoreQuery")
+                                            .as(evaluatedWithHeapProperties())
+                                            .defaultTo(false)
+                                            .asBoolean());
+
+                final int batchSize = config.get("batchSize")
+                                            .as(evaluatedWithHeapProperties())
+                                            .defaultTo(1)
+                                            .asInteger();
+                if (batchSize > 1) {
+                    filter.setBatching(executor,
+                                       batchSize,
+                                       config.get("batchDelay")
+                                             .as(evaluatedWithHeapProperties())
+                                             .defaultTo("5 milliseconds")
+                                             .as(duration()));
+                }
 
                 return filter;
             } catch (URISyntaxException e) {
@@ -590,6 +718,9 @@ public class PolicyEnforcementFilter extends GenericHeapObject implements Filter
             if (cache != null) {
                 cache.clear();
             }
+            if (ssoTokenFilter != null) {
+                ssoTokenFilter.stop();
+            }
         }
 
         private class ApiVersionProtocolHeaderFilter implements Filter {
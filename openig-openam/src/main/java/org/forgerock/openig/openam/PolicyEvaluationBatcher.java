@@ -0,0 +1,242 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.http.routing.Version.version;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the policy evaluations of several resources in a single request to OpenAM.
+ * <p>
+ * Evaluations sharing the same subject, application and environment are collected for at most {@literal delay}
+ * milliseconds, or until {@literal maxSize} distinct resources are collected, then evaluated with a single
+ * {@literal evaluate} action listing all the resources. Each waiting evaluation is completed with the decision
+ * returned for its resource.
+ */
+class PolicyEvaluationBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolicyEvaluationBatcher.class);
+
+    /** Evaluations waiting to be sent together. */
+    private final class Batch {
+        private final String key;
+        private final Context context;
+        private final JsonValue evaluation;
+        /** The promises waiting for the decision of each resource. */
+        private final Map<String, List<PromiseImpl<JsonValue, ResourceException>>> waiting = new LinkedHashMap<>();
+        private ScheduledFuture<?> timer;
+
+        Batch(final String key, final Context context, final JsonValue evaluation) {
+            this.key = key;
+            this.context = context;
+            this.evaluation = evaluation;
+        }
+
+        void send() {
+            JsonValue content = evaluation.copy();
+            content.put("resources", new ArrayList<>(waiting.keySet()));
+            ActionRequest request = Requests.newActionRequest(ResourcePath.valueOf(policyEndpoint), evaluateAction);
+            request.setContent(content);
+            request.setResourceVersion(version(2, 0));
+            logger.debug("Evaluating the policies of {} resources in a single request", waiting.size());
+            try {
+                requestHandler.handleAction(context, request)
+                              .thenOnResult(new ResultHandler<ActionResponse>() {
+                                  @Override
+                                  public void handleResult(final ActionResponse response) {
+                                      dispatch(response.getJsonContent());
+                                  }
+                              })
+                              .thenOnException(new ExceptionHandler<ResourceException>() {
+                                  @Override
+                                  public void handleException(final ResourceException exception) {
+                                      fail(exception);
+                                  }
+                              })
+                              .thenOnRuntimeException(new RuntimeExceptionHandler() {
+                                  @Override
+                                  public void handleRuntimeException(final RuntimeException exception) {
+                                      fail(new InternalServerErrorException(exception));
+                                  }
+                              });
+            } catch (RuntimeException e) {
+                fail(new InternalServerErrorException(e));
+            }
+        }
+
+        private void dispatch(final JsonValue decisions) {
+            Map<String, JsonValue> byResource = new HashMap<>();
+            try {
+                for (JsonValue decision : decisions.expect(List.class)) {
+                    byResource.put(decision.get("resource").asString(), decision);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Cannot read the policy decisions returned by OpenAM", e);
+                fail(new InternalServerErrorException("Invalid policy decisions returned by OpenAM", e));
+                return;
+            }
+            for (Map.Entry<String, List<PromiseImpl<JsonValue, ResourceException>>> entry : waiting.entrySet()) {
+                JsonValue decision = byResource.get(entry.getKey());
+                for (PromiseImpl<JsonValue, ResourceException> promise : entry.getValue()) {
+                    if (decision != null) {
+                        promise.handleResult(decision);
+                    } else {
+                        promise.handleException(new InternalServerErrorException(
+                                format("No policy decision returned for %s", entry.getKey())));
+                    }
+                }
+            }
+        }
+
+        private void fail(final ResourceException exception) {
+            for (List<PromiseImpl<JsonValue, ResourceException>> promises : waiting.values()) {
+                for (PromiseImpl<JsonValue, ResourceException> promise : promises) {
+                    promise.handleException(exception);
+                }
+            }
+        }
+    }
+
+    private final RequestHandler requestHandler;
+    private final String policyEndpoint;
+    private final String evaluateAction;
+    private final ScheduledExecutorService executor;
+    private final int maxSize;
+    private final long delay;
+
+    /** Guarded by itself. */
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * Creates a new policy evaluation batcher.
+     *
+     * @param requestHandler
+     *         the handler sending the evaluation requests to OpenAM
+     * @param policyEndpoint
+     *         the path of the policies endpoint
+     * @param evaluateAction
+     *         the name of the evaluation action
+     * @param executor
+     *         the executor sending the batches once their delay is elapsed
+     * @param maxSize
+     *         the maximum number of resources evaluated in a single request
+     * @param delay
+     *         the maximum duration (ms) an evaluation waits for other evaluations
+     */
+    PolicyEvaluationBatcher(final RequestHandler requestHandler,
+                            final String policyEndpoint,
+                            final String evaluateAction,
+                            final ScheduledExecutorService executor,
+                            final int maxSize,
+                            final long delay) {
+        this.requestHandler = requestHandler;
+        this.policyEndpoint = policyEndpoint;
+        this.evaluateAction = evaluateAction;
+        this.executor = executor;
+        this.maxSize = maxSize;
+        this.delay = delay;
+    }
+
+    /**
+     * Evaluates the policies of a single resource, together with the other evaluations with the same subject,
+     * application and environment.
+     *
+     * @param context
+     *         the current context
+     * @param evaluation
+     *         the evaluation content, listing a single resource
+     * @return the promise of the policy decision for that resource
+     */
+    Promise<JsonValue, ResourceException> evaluate(final Context context, final JsonValue evaluation) {
+        String resource = evaluation.get("resources").get(0).asString();
+        JsonValue common = evaluation.copy();
+        common.remove("resources");
+        String key = common.toString();
+
+        PromiseImpl<JsonValue, ResourceException> promise = PromiseImpl.create();
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                final Batch created = new Batch(key, context, common);
+                batches.put(key, created);
+                created.timer = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remove(created)) {
+                            created.send();
+                        }
+                    }
+                }, delay, MILLISECONDS);
+                batch = created;
+            }
+            List<PromiseImpl<JsonValue, ResourceException>> promises = batch.waiting.get(resource);
+            if (promises == null) {
+                promises = new ArrayList<>();
+                batch.waiting.put(resource, promises);
+            }
+            promises.add(promise);
+            if (batch.waiting.size() >= maxSize) {
+                batches.remove(key);
+                batch.timer.cancel(false);
+                full = batch;
+            }
+        }
+
+        // Send out of the lock: the request may complete synchronously
+        if (full != null) {
+            full.send();
+        }
+        return promise;
+    }
+
+    private boolean remove(final Batch batch) {
+        synchronized (batches) {
+            if (batches.get(batch.key) == batch) {
+                batches.remove(batch.key);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -16,30 +16,44 @@
 
 package org.forgerock.openig.openam;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.handler.Handlers.chainOf;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
 import static org.forgerock.http.protocol.Status.OK;
 import static org.forgerock.http.protocol.Status.UNAUTHORIZED;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.openig.filter.RequestCopyFilter.requestCopyFilter;
 import static org.forgerock.util.Reject.checkNotNull;
+import static org.forgerock.util.Utils.closeSilently;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
 import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Factory;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.promise.RuntimeExceptionHandler;
+import org.forgerock.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +61,13 @@ import org.slf4j.LoggerFactory;
  * Provides an OpenAM SSO Token in the given header name for downstream components.
  *
  * <p>If the request failed with a {@literal 401} UNAUTHORIZED, a unique attempt to refresh the SSO token is tried.
+ * Concurrent requests failing with the same token share a single authentication request.
+ *
+ * <p>When an executor is given, the SSO token can also be renewed in the background before it expires, so that the
+ * requests in flight never have to be replayed: either after the configured renewal delay, or after three quarters
+ * of the shortest of the session's remaining time and max idle time, as returned by OpenAM's
+ * {@literal sessions} endpoint. The previous token is used until the new one is obtained, then logged out once the
+ * requests in flight with it had time to complete.
  *
  * @see <a href="https://forgerock.org/openam/doc/bootstrap/dev-guide/index.html#rest-api-status-codes">OPENAM REST
  * API status codes</a>
@@ -57,7 +78,15 @@ public class SsoTokenFilter implements Filter {
 
     static final String BASE_ENDPOINT = "json";
     static final String AUTHENTICATION_ENDPOINT = "/authenticate";
+    static final String SESSIONS_ENDPOINT = "/sessions/";
     static final String DEFAULT_HEADER_NAME = "iPlanetDirectoryPro";
+    static final String SESSION_RENEWAL = "session";
+
+    /** Renewal delay floor (ms), to never hammer OpenAM whatever the session info. */
+    private static final long MIN_RENEWAL_DELAY = 1000L;
+
+    /** Delay (ms) before logging out a renewed token, so that the requests in flight with it complete first. */
+    static final long LOGOUT_DELAY = 60000L;
 
     private final String headerName;
     private final SsoTokenHolder ssoTokenHolder;
@@ -68,6 +97,39 @@ public class SsoTokenFilter implements Filter {
                    final String headerName,
                    final String username,
                    final String password) {
+        this(ssoClientHandler, openamUrl, realm, headerName, username, password, null, null);
+    }
+
+    /**
+     * Creates a new SSO token filter renewing the SSO token in the background.
+     *
+     * @param ssoClientHandler
+     *         the handler sending the requests to OpenAM
+     * @param openamUrl
+     *         the OpenAM base URL
+     * @param realm
+     *         the realm of the user
+     * @param headerName
+     *         the name of the header carrying the SSO token (defaults to {@value #DEFAULT_HEADER_NAME})
+     * @param username
+     *         the name of the user
+     * @param password
+     *         the password of the user
+     * @param executor
+     *         the executor renewing the SSO token, if {@code null} the token is only renewed on {@literal 401}
+     * @param renewal
+     *         the delay after which the SSO token is renewed, if {@code null} it is computed from the session info
+     *         returned by OpenAM, if {@literal zero} or {@literal unlimited} the token is only renewed on
+     *         {@literal 401}
+     */
+    SsoTokenFilter(final Handler ssoClientHandler,
+                   final URI openamUrl,
+                   final String realm,
+                   final String headerName,
+                   final String username,
+                   final String password,
+                   final ScheduledExecutorService executor,
+                   final Duration renewal) {
         this.headerName = headerName != null ? headerName : DEFAULT_HEADER_NAME;
         final Factory<Request> requestFactory = new Factory<Request>() {
             final URI authenticateEndpoint = openamUrl.resolve(BASE_ENDPOINT + startsWithSlash(realm)
@@ -85,7 +147,10 @@ public class SsoTokenFilter implements Filter {
             }
         };
         ssoTokenHolder = new SsoTokenHolder(checkNotNull(ssoClientHandler, "The ssoClientHandler cannot be null"),
-                                            requestFactory);
+                                            requestFactory,
+                                            openamUrl.resolve(BASE_ENDPOINT + SESSIONS_ENDPOINT),
+                                            executor,
+                                            renewal);
     }
 
     @Override
@@ -111,20 +176,44 @@ public class SsoTokenFilter implements Filter {
                     }
                 };
 
+        final Promise<String, NeverThrowsException> token = ssoTokenHolder.findToken(context);
         final AsyncFunction<Response, Response, NeverThrowsException> checkResponse =
                 new AsyncFunction<Response, Response, NeverThrowsException>() {
 
                     @Override
                     public Promise<Response, NeverThrowsException> apply(Response response) {
                         if (response.getStatus().equals(UNAUTHORIZED)) {
-                            return ssoTokenHolder.updateToken(context).thenAsync(executeRequestWithToken);
+                            return ssoTokenHolder.updateToken(context, token).thenAsync(executeRequestWithToken);
                         }
                         return newResponsePromise(response);
                     }
                 };
-        return ssoTokenHolder.findToken(context)
-                             .thenAsync(executeRequestWithToken)
-                             .thenAsync(checkResponse);
+        return token.thenAsync(executeRequestWithToken)
+                    .thenAsync(checkResponse);
+    }
+
+    /** Stops renewing the SSO token in the background. */
+    void stop() {
+        ssoTokenHolder.stop();
+    }
+
+    /**
+     * Reads the {@literal ssoTokenRenewal} attribute of a heaplet configuration: either a duration, or
+     * {@value #SESSION_RENEWAL} to renew the SSO token before its session expires. When missing, the SSO token is
+     * only renewed on {@literal 401}.
+     *
+     * @param renewal
+     *         the {@literal ssoTokenRenewal} attribute, with the heap properties evaluated
+     * @return the renewal delay, {@code null} to compute it from the session info, {@literal zero} for no renewal
+     */
+    static Duration ssoTokenRenewal(final JsonValue renewal) {
+        if (renewal.isNull()) {
+            return Duration.ZERO;
+        }
+        if (SESSION_RENEWAL.equalsIgnoreCase(renewal.asString())) {
+            return null;
+        }
+        return renewal.as(duration());
     }
 
     private static String startsWithSlash(final String realm) {
@@ -136,46 +225,220 @@ public class SsoTokenFilter implements Filter {
 
         private final Handler ssoClientHandler;
         private final Factory<Request> authenticationRequest;
-        private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-        private Promise<String, NeverThrowsException> token;
-        private boolean isTokenValid = false;
+        private final URI sessionsEndpoint;
+        private final ScheduledExecutorService executor;
+        private final Duration renewal;
+
+        /** The current token, replaced without locking: readers never wait, even while a token is renewed. */
+        private final AtomicReference<Promise<String, NeverThrowsException>> token = new AtomicReference<>();
+        private volatile ScheduledFuture<?> renewalTask;
+        private volatile boolean stopped;
 
         SsoTokenHolder(final Handler ssoClientHandler,
-                       final Factory<Request> authenticationRequest) {
+                       final Factory<Request> authenticationRequest,
+                       final URI sessionsEndpoint,
+                       final ScheduledExecutorService executor,
+                       final Duration renewal) {
             this.ssoClientHandler = ssoClientHandler;
             this.authenticationRequest = authenticationRequest;
+            this.sessionsEndpoint = sessionsEndpoint;
+            this.executor = executor;
+            this.renewal = renewal;
         }
 
         Promise<String, NeverThrowsException> findToken(final Context context) {
-            rwl.readLock().lock();
-            if (!isTokenValid) {
-                // Must release read lock before acquiring write lock
-                rwl.readLock().unlock();
-                rwl.writeLock().lock();
-                try {
-                    // Re-check state because another thread might have
-                    // acquired write lock and changed state before we did.
-                    if (!isTokenValid) {
-                        token = createSsoToken(context);
+            Promise<String, NeverThrowsException> current = token.get();
+            if (current == null || isFailed(current)) {
+                return updateToken(context, current);
+            }
+            return current;
+        }
+
+        /**
+         * Replaces the given token, unless it has already been replaced: concurrent callers presenting the same
+         * stale token share a single authentication request.
+         */
+        Promise<String, NeverThrowsException> updateToken(final Context context,
+                                                          final Promise<String, NeverThrowsException> stale) {
+            final PromiseImpl<String, NeverThrowsException> fresh = PromiseImpl.create();
+            if (!token.compareAndSet(stale, fresh)) {
+                return token.get();
+            }
+            try {
+                createSsoToken(context).thenOnResult(new ResultHandler<String>() {
+                    @Override
+                    public void handleResult(final String result) {
+                        fresh.handleResult(result);
+                        if (result != null) {
+                            scheduleRenewal(fresh, result);
+                        }
                     }
-                    // Downgrade by acquiring read lock before releasing write lock
-                    rwl.readLock().lock();
-                } finally {
-                    // Unlock write, still hold read
-                    rwl.writeLock().unlock();
+                }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+                    @Override
+                    public void handleRuntimeException(final RuntimeException exception) {
+                        failed(fresh, exception);
+                    }
+                });
+            } catch (RuntimeException e) {
+                failed(fresh, e);
+            }
+            return fresh;
+        }
+
+        /** Completes the token as failed, so that the next request tries again to authenticate. */
+        private void failed(final PromiseImpl<String, NeverThrowsException> fresh, final RuntimeException exception) {
+            logger.error("Unable to get an SSO token", exception);
+            fresh.handleResult(null);
+        }
+
+        private boolean isFailed(final Promise<String, NeverThrowsException> promise) {
+            return promise.isDone() && promise.getOrThrowUninterruptibly() == null;
+        }
+
+        private void scheduleRenewal(final Promise<String, NeverThrowsException> renewed, final String ssoToken) {
+            if (executor == null || stopped) {
+                return;
+            }
+            if (renewal != null) {
+                if (!renewal.isZero() && !renewal.isUnlimited()) {
+                    scheduleRenewal(renewed, renewal.to(MILLISECONDS));
                 }
+                return;
             }
+            renewalDelay(ssoToken).thenOnResult(new ResultHandler<Long>() {
+                @Override
+                public void handleResult(final Long delay) {
+                    if (delay != null) {
+                        scheduleRenewal(renewed, delay);
+                    }
+                }
+            });
+        }
+
+        private void scheduleRenewal(final Promise<String, NeverThrowsException> renewed, final long delay) {
+            logger.debug("Renewing the SSO token in {} ms", delay);
+            renewalTask = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    renew(renewed);
+                }
+            }, max(delay, MIN_RENEWAL_DELAY), MILLISECONDS);
+        }
 
+        private void renew(final Promise<String, NeverThrowsException> renewed) {
+            // A 401 may already have replaced this token, and scheduled its own renewal
+            if (stopped || token.get() != renewed) {
+                return;
+            }
+            final Promise<String, NeverThrowsException> fresh;
             try {
-                return token;
-            } finally {
-                rwl.readLock().unlock();
+                fresh = createSsoToken(new RootContext());
+            } catch (RuntimeException e) {
+                renewalFailed(e);
+                return;
             }
+            fresh.thenOnResult(new ResultHandler<String>() {
+                @Override
+                public void handleResult(final String result) {
+                    if (result == null) {
+                        renewalFailed(null);
+                    } else if (token.compareAndSet(renewed, fresh)) {
+                        scheduleRenewal(fresh, result);
+                        scheduleLogout(renewed.getOrThrowUninterruptibly());
+                    } else {
+                        // A 401 has replaced the token meanwhile: this one is not used
+                        logout(result);
+                    }
+                }
+            }).thenOnRuntimeException(new RuntimeExceptionHandler() {
+                @Override
+                public void handleRuntimeException(final RuntimeException exception) {
+                    renewalFailed(exception);
+                }
+            });
         }
 
-        Promise<String, NeverThrowsException> updateToken(final Context context) {
-            setTokenState(false);
-            return findToken(context);
+        private void renewalFailed(final RuntimeException exception) {
+            logger.warn("Unable to renew the SSO Token, it will be renewed when rejected", exception);
+        }
+
+        private void scheduleLogout(final String ssoToken) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    logout(ssoToken);
+                }
+            }, LOGOUT_DELAY, MILLISECONDS);
+        }
+
+        private void logout(final String ssoToken) {
+            ssoClientHandler.handle(new RootContext(), sessionsRequest("logout", ssoToken))
+                            .thenOnResult(new ResultHandler<Response>() {
+                                @Override
+                                public void handleResult(final Response response) {
+                                    if (!response.getStatus().equals(OK)) {
+                                        logger.debug("Unable to log out a renewed SSO token ({})",
+                                                     response.getStatus());
+                                    }
+                                    closeSilently(response);
+                                }
+                            });
+        }
+
+        /**
+         * Returns the promise of the delay (ms) after which the given token should be renewed, or {@code null} if
+         * OpenAM does not provide the session's remaining time and max idle time.
+         */
+        private Promise<Long, NeverThrowsException> renewalDelay(final String ssoToken) {
+            final Promise<Long, NeverThrowsException> timeLeft = sessionInfo(ssoToken, "getTimeLeft", "maxtime");
+            final Promise<Long, NeverThrowsException> maxIdle = sessionInfo(ssoToken, "getMaxIdle", "maxidletime");
+            return timeLeft.thenAsync(new AsyncFunction<Long, Long, NeverThrowsException>() {
+                @Override
+                public Promise<Long, NeverThrowsException> apply(final Long seconds) {
+                    return maxIdle.then(new Function<Long, Long, NeverThrowsException>() {
+                        @Override
+                        public Long apply(final Long minutes) {
+                            if (seconds == null || minutes == null) {
+                                logger.debug("Unable to read the SSO token's session info, it will be renewed "
+                                                     + "when rejected");
+                                return null;
+                            }
+                            return min(seconds * 1000L, minutes * 60000L) / 4L * 3L;
+                        }
+                    });
+                }
+            });
+        }
+
+        private Promise<Long, NeverThrowsException> sessionInfo(final String ssoToken,
+                                                                final String action,
+                                                                final String field) {
+            return ssoClientHandler.handle(new RootContext(), sessionsRequest(action, ssoToken))
+                                   .then(new Function<Response, Long, NeverThrowsException>() {
+                                       @Override
+                                       public Long apply(final Response response) {
+                                           try {
+                                               if (response.getStatus().equals(OK)) {
+                                                   JsonValue info = json(response.getEntity().getJson());
+                                                   return info.get(field).asLong();
+                                               }
+                                           } catch (IOException | RuntimeException e) {
+                                               logger.debug("Couldn't parse the OpenAM session info", e);
+                                           } finally {
+                                               closeSilently(response);
+                                           }
+                                           return null;
+                                       }
+                                   });
+        }
+
+        private Request sessionsRequest(final String action, final String ssoToken) {
+            final Request request = new Request();
+            request.setMethod("POST")
+                   .setUri(URI.create(sessionsEndpoint + "?_action=" + action))
+                   .setEntity(emptyMap());
+            request.getHeaders().put(headerName, ssoToken);
+            return request;
         }
 
         private Promise<String, NeverThrowsException> createSsoToken(final Context context) {
@@ -191,7 +454,6 @@ public class SsoTokenFilter implements Filter {
                         try {
                             @SuppressWarnings("unchecked")
                             final Map<String, String> result = (Map<String, String>) response.getEntity().getJson();
-                            setTokenState(true);
                             return result.get("tokenId");
                         } catch (IOException e) {
                             logger.warn("Couldn't parse as JSON the OpenAM authentication response", e);
@@ -202,12 +464,11 @@ public class SsoTokenFilter implements Filter {
             };
         }
 
-        private void setTokenState(boolean newState) {
-            rwl.writeLock().lock();
-            try {
-                isTokenValid = newState;
-            } finally {
-                rwl.writeLock().unlock();
+        void stop() {
+            stopped = true;
+            ScheduledFuture<?> task = renewalTask;
+            if (task != null) {
+                task.cancel(false);
             }
         }
     }
@@ -17,14 +17,20 @@
 package org.forgerock.openig.openam;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.FORGEROCK_CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.openam.SsoTokenFilter.ssoTokenRenewal;
 import static org.forgerock.openig.util.JsonValues.leftValueExpression;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.openig.util.StringUtil.sha256;
 import static org.forgerock.openig.util.StringUtil.trailingSlash;
 import static org.forgerock.util.Reject.checkNotNull;
 
@@ -32,22 +38,32 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.handler.Handlers;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Responses;
 import org.forgerock.http.protocol.Status;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.el.LeftValueExpression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.util.SingleFlightCache;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.AsyncFunction;
+import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,7 +84,9 @@ import org.slf4j.LoggerFactory;
  *             "idToken": "${attributes.id_token}",
  *             "target": "${attributes.saml_assertions}",
  *             "instance": "oidc-to-saml",
- *             "amHandler": "#Handler"
+ *             "amHandler": "#Handler",
+ *             "cacheExpiration": "5 minutes",
+ *             "cacheMaxSize": 1000
  *         }
  *     }
  *     }
@@ -94,6 +112,18 @@ import org.slf4j.LoggerFactory;
  * for all REST calls to OpenAM (as opposed to the {@code next} Handler of the filter method that is dedicated to
  * continue the execution flow through the chain).
  *
+ * <p>The SSO token used to call OpenAM is renewed once OpenAM rejects it. When the {@literal ssoTokenRenewal}
+ * optional attribute is set, it is also renewed in the background by the {@literal executor} (default to the heap's
+ * {@literal ScheduledExecutorService}): either after the given duration, or, when set to {@literal session}, before
+ * the session's remaining time or max idle time returned by OpenAM elapses.
+ *
+ * <p>The {@literal cacheExpiration} optional attribute enables the reuse of issued tokens: when set (default to
+ * {@literal zero}, no reuse), an id_token is transformed only once, and the issued token is reused for the same
+ * id_token until {@literal cacheExpiration} elapses, but never after the assertion's own {@literal NotOnOrAfter}
+ * instant. Concurrent requests with the same id_token share a single STS request. At most {@literal cacheMaxSize}
+ * (default to 1000) issued tokens are kept. Failed transformations are never reused. When issued tokens are reused,
+ * the {@literal response} of the STS is {@code null} in the {@literal target} expression.
+ *
  * <p>If errors are happening during the token transformation, the error response is returned as-is to the caller,
  * and informative messages are being logged for the administrator.
  */
@@ -101,10 +131,14 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
 
     private static final Logger logger = LoggerFactory.getLogger(TokenTransformationFilter.class);
 
+    /** Validity bounds of a SAML 2.0 assertion (in its conditions and subject confirmations). */
+    private static final Pattern NOT_ON_OR_AFTER = Pattern.compile("NotOnOrAfter=[\"']([^\"']+)[\"']");
+
     private final Handler handler;
     private final URI endpoint;
     private final Expression<String> idToken;
     private final LeftValueExpression<String> target;
+    private final IssuedTokenCache cache;
 
     /**
      * Constructs a new TokenTransformationFilter transforming the OpenID Connect id_token from {@code idToken}
@@ -119,10 +153,40 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
                                      final URI endpoint,
                                      final Expression<String> idToken,
                                      final LeftValueExpression<String> target) {
+        this(handler, endpoint, idToken, target, TimeService.SYSTEM, Duration.ZERO, 0);
+    }
+
+    /**
+     * Constructs a new TokenTransformationFilter transforming the OpenID Connect id_token from {@code idToken}
+     * into a SAML 2.0 Assertions structure (into {@code target}), and reusing the issued tokens.
+     *
+     * @param handler pipeline used to send the STS transformation request
+     * @param endpoint Fully qualified URI of the STS instance (including the {@literal _action=translate} query string)
+     * @param idToken Expression for reading OpenID Connect id_token (expects a {@code String})
+     * @param target Expression for writing SAML 2.0 token (expects a {@code String})
+     * @param time Time service used to expire the issued tokens
+     * @param cacheExpiration How long an issued token is reused at most ({@link Duration#ZERO} to never reuse them)
+     * @param cacheMaxSize Maximum number of issued tokens kept
+     */
+    public TokenTransformationFilter(final Handler handler,
+                                     final URI endpoint,
+                                     final Expression<String> idToken,
+                                     final LeftValueExpression<String> target,
+                                     final TimeService time,
+                                     final Duration cacheExpiration,
+                                     final int cacheMaxSize) {
         this.handler = checkNotNull(handler);
         this.endpoint = checkNotNull(endpoint);
         this.idToken = checkNotNull(idToken);
         this.target = checkNotNull(target);
+        if (cacheExpiration.isZero() || cacheMaxSize <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = new IssuedTokenCache(checkNotNull(time),
+                                              cacheExpiration.isUnlimited() ? Long.MAX_VALUE
+                                                      : cacheExpiration.to(MILLISECONDS),
+                                              cacheMaxSize);
+        }
     }
 
     @Override
@@ -136,47 +200,92 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
             return newResponsePromise(newInternalServerError());
         }
 
-        return handler.handle(context, transformationRequest(resolvedIdToken))
-                      .thenAsync(processIssuedToken(context, request, next));
+        if (cache == null) {
+            return handler.handle(context, transformationRequest(resolvedIdToken))
+                          .thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
+                              @Override
+                              public Promise<Response, NeverThrowsException> apply(final Response response) {
+                                  try {
+                                      return forward(context, request, response, issuedToken(response), next);
+                                  } catch (TransformationException e) {
+                                      return failed(e);
+                                  }
+                              }
+                          });
+        }
+        return cache.get(context, resolvedIdToken)
+                    .thenAsync(new AsyncFunction<String, Response, NeverThrowsException>() {
+                        @Override
+                        public Promise<Response, NeverThrowsException> apply(final String token) {
+                            // The token may have been issued for another request: no STS response to bind
+                            return forward(context, request, null, token, next);
+                        }
+                    }, TRANSFORMATION_FAILED);
     }
 
-    private AsyncFunction<Response, Response, NeverThrowsException> processIssuedToken(final Context context,
-                                                                                       final Request request,
-                                                                                       final Handler next) {
-        return new AsyncFunction<Response, Response, NeverThrowsException>() {
-            @Override
-            public Promise<Response, NeverThrowsException> apply(final Response response) {
-                try {
-                    Map<String, Object> json = parseJsonObject(response);
-                    if (response.getStatus() != Status.OK) {
-                        logger.error("Server side error ({}, {}) while transforming id_token:{}",
-                                     response.getStatus(),
-                                     json.get("reason"),
-                                     json.get("message"));
-                        return newResponsePromise(new Response(Status.BAD_GATEWAY));
-                    }
-
-                    String token = (String) json.get("issued_token");
-                    if (token == null) {
-                        // Unlikely to happen, since this is an OK response
-                        logger.error("STS issued_token is null");
-                        return newResponsePromise(newInternalServerError());
-                    }
-                    target.set(bindings(context, request, response), token);
-
-                    // Forward the initial request
-                    return next.handle(context, request);
-                } catch (IOException e) {
-                    logger.error("Can't get JSON back from {}", endpoint, e);
-                    return newResponsePromise(newInternalServerError(e));
+    private Promise<Response, NeverThrowsException> forward(final Context context,
+                                                            final Request request,
+                                                            final Response response,
+                                                            final String token,
+                                                            final Handler next) {
+        target.set(bindings(context, request, response), token);
+
+        // Forward the initial request
+        return next.handle(context, request);
+    }
+
+    private static final AsyncFunction<TransformationException, Response, NeverThrowsException> TRANSFORMATION_FAILED =
+            new AsyncFunction<TransformationException, Response, NeverThrowsException>() {
+                @Override
+                public Promise<Response, NeverThrowsException> apply(final TransformationException e) {
+                    return failed(e);
                 }
+            };
+
+    private static Promise<Response, NeverThrowsException> failed(final TransformationException e) {
+        if (e.getCause() instanceof Exception) {
+            return newResponsePromise(newInternalServerError((Exception) e.getCause()));
+        }
+        return newResponsePromise(new Response(e.status));
+    }
+
+    private Promise<String, TransformationException> transform(final Context context, final String resolvedIdToken) {
+        return handler.handle(context, transformationRequest(resolvedIdToken))
+                      .then(new Function<Response, String, TransformationException>() {
+                          @Override
+                          public String apply(final Response response) throws TransformationException {
+                              return issuedToken(response);
+                          }
+                      }, Responses.<String, TransformationException>noopExceptionFunction());
+    }
+
+    private String issuedToken(final Response response) throws TransformationException {
+        try {
+            Map<String, Object> json = parseJsonObject(response);
+            if (response.getStatus() != Status.OK) {
+                logger.error("Server side error ({}, {}) while transforming id_token:{}",
+                             response.getStatus(),
+                             json.get("reason"),
+                             json.get("message"));
+                throw new TransformationException(Status.BAD_GATEWAY, null);
             }
 
-            @SuppressWarnings("unchecked")
-            private Map<String, Object> parseJsonObject(final Response response) throws IOException {
-                return (Map<String, Object>) response.getEntity().getJson();
+            String token = (String) json.get("issued_token");
+            if (token == null) {
+                // Unlikely to happen, since this is an OK response
+                logger.error("STS issued_token is null");
+                throw new TransformationException(Status.INTERNAL_SERVER_ERROR, null);
             }
-        };
+            return token;
+        } catch (IOException e) {
+            logger.error("Can't get JSON back from {}", endpoint, e);
+            throw new TransformationException(Status.INTERNAL_SERVER_ERROR, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parseJsonObject(final Response response) throws IOException {
+        return (Map<String, Object>) response.getEntity().getJson();
     }
 
     private Request transformationRequest(final String resolvedIdToken) {
@@ -192,9 +301,77 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
                                                          field("subject_confirmation", "BEARER"))));
     }
 
+    /** A failed transformation: the status of the response to return to the caller. */
+    private static final class TransformationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final Status status;
+
+        TransformationException(final Status status, final Throwable cause) {
+            super(status.toString(), cause);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Remembers the tokens issued by the STS, keyed by a digest of the id_token they were issued for.
+     * <p>
+     * An issued token is reused until {@literal cacheExpiration} elapses, but never after the earliest
+     * {@literal NotOnOrAfter} instant of the assertion. Concurrent transformations of the same id_token share a single
+     * STS request. Failed transformations are not remembered. At most {@literal cacheMaxSize} tokens are kept, the
+     * least recently used ones being evicted first.
+     */
+    private final class IssuedTokenCache {
+
+        private final SingleFlightCache<String, String, TransformationException> tokens;
+
+        IssuedTokenCache(final TimeService time, final long expiration, final int maxSize) {
+            this.tokens = new SingleFlightCache<>(time, maxSize,
+                    new SingleFlightCache.Expiration<String, String, TransformationException>() {
+                        @Override
+                        public long expiresAt(final String key, final String token) {
+                            long now = time.now();
+                            long expiresAt = expiration > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + expiration;
+                            return Math.min(expiresAt, notOnOrAfter(token));
+                        }
+
+                        @Override
+                        public long failureExpiresAt(final String key, final TransformationException exception) {
+                            return Long.MIN_VALUE;
+                        }
+                    });
+        }
+
+        Promise<String, TransformationException> get(final Context context, final String resolvedIdToken) {
+            return tokens.getValue(sha256(resolvedIdToken),
+                                   new AsyncFunction<String, String, TransformationException>() {
+                                       @Override
+                                       public Promise<String, TransformationException> apply(final String key) {
+                                           return transform(context, resolvedIdToken);
+                                       }
+                                   });
+        }
+
+        private long notOnOrAfter(final String token) {
+            long notOnOrAfter = Long.MAX_VALUE;
+            Matcher matcher = NOT_ON_OR_AFTER.matcher(token);
+            while (matcher.find()) {
+                try {
+                    notOnOrAfter = Math.min(notOnOrAfter, DatatypeConverter.parseDateTime(matcher.group(1))
+                                                                           .getTimeInMillis());
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Ignoring the invalid NotOnOrAfter instant {}", matcher.group(1), e);
+                }
+            }
+            return notOnOrAfter;
+        }
+    }
+
     /** Creates and initializes a token transformation filter in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
 
+        private SsoTokenFilter ssoTokenFilter;
+
         @Override
         public Object create() throws HeapException {
             Handler amHandler = config.get("amHandler").defaultTo(FORGEROCK_CLIENT_HANDLER_HEAP_KEY).required()
@@ -204,22 +381,49 @@ public class TokenTransformationFilter extends GenericHeapObject implements Filt
             String ssoTokenHeader = config.get("ssoTokenHeader").as(evaluatedWithHeapProperties()).asString();
             String username = config.get("username").required().as(evaluatedWithHeapProperties()).asString();
             String password = config.get("password").required().as(evaluatedWithHeapProperties()).asString();
-            SsoTokenFilter ssoTokenFilter = new SsoTokenFilter(amHandler,
-                                                               baseUri,
-                                                               realm,
-                                                               ssoTokenHeader,
-                                                               username,
-                                                               password);
+            Duration renewal = ssoTokenRenewal(config.get("ssoTokenRenewal").as(evaluatedWithHeapProperties()));
+            ScheduledExecutorService executor = null;
+            if (renewal == null || !renewal.isZero()) {
+                executor = config.get("executor")
+                                 .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                 .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            }
+            ssoTokenFilter = new SsoTokenFilter(amHandler,
+                                                baseUri,
+                                                realm,
+                                                ssoTokenHeader,
+                                                username,
+                                                password,
+                                                executor,
+                                                renewal);
 
             Expression<String> idToken = config.get("idToken").required().as(expression(String.class));
             LeftValueExpression<String> target = config.get("target").required().as(leftValueExpression(String.class));
 
             String instance = config.get("instance").as(evaluatedWithHeapProperties()).required().asString();
 
+            TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
             return new TokenTransformationFilter(Handlers.chainOf(amHandler, ssoTokenFilter),
                                                  transformationEndpoint(baseUri, realm, instance),
                                                  idToken,
-                                                 target);
+                                                 target,
+                                                 time != null ? time : TimeService.SYSTEM,
+                                                 config.get("cacheExpiration")
+                                                       .as(evaluatedWithHeapProperties())
+                                                       .defaultTo("zero")
+                                                       .as(duration()),
+                                                 config.get("cacheMaxSize")
+                                                       .as(evaluatedWithHeapProperties())
+                                                       .defaultTo(1000)
+                                                       .asInteger());
+        }
+
+        @Override
+        public void destroy() {
+            if (ssoTokenFilter != null) {
+                ssoTokenFilter.stop();
+            }
+            super.destroy();
         }
 
         private URI getOpenamBaseUri() throws HeapException {
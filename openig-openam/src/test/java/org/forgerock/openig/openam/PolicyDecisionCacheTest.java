@@ -0,0 +1,246 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.TimeService;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PolicyDecisionCacheTest {
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @Mock
+    private TimeService time;
+
+    @Mock
+    private ScheduledFuture<Object> future;
+
+    @Captor
+    private ArgumentCaptor<Runnable> ticker;
+
+    private long now;
+
+    private int evaluations;
+
+    private PolicyDecisionCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        evaluations = 0;
+        when(executor.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(new Answer<ScheduledFuture<Object>>() {
+                    @Override
+                    public ScheduledFuture<Object> answer(final InvocationOnMock invocation) throws Throwable {
+                        return future;
+                    }
+                });
+        cache = new PolicyDecisionCache(executor, time, 60000L, 2);
+        verify(executor).scheduleAtFixedRate(ticker.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void shouldEvaluateDecisionOnce() throws Exception {
+        cache.getValue("a", decision(Long.MAX_VALUE));
+        cache.getValue("a", decision(Long.MAX_VALUE));
+
+        assertThat(evaluations).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepDecisionForItsTtl() throws Exception {
+        cache.getValue("a", decision(10000L));
+
+        now += 9000L;
+        ticker.getValue().run();
+        assertThat(cache.size()).isEqualTo(1);
+
+        now += 1000L;
+        ticker.getValue().run();
+        assertThat(cache.size()).isEqualTo(0);
+        cache.getValue("a", decision(10000L));
+        assertThat(evaluations).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldKeepDecisionForMaxExpirationAtMost() throws Exception {
+        cache.getValue("a", decision(Long.MAX_VALUE));
+
+        now += 60000L;
+        ticker.getValue().run();
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldKeepDecisionLongerThanOneTurnOfTheWheel() throws Exception {
+        long turn = PolicyDecisionCache.WHEEL_SIZE * 1000L;
+        cache.clear();
+        cache = new PolicyDecisionCache(executor, time, 2 * turn, 2);
+        verify(executor, times(2)).scheduleAtFixedRate(ticker.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        cache.getValue("a", decision(turn + 5000L));
+
+        for (int i = 0; i < PolicyDecisionCache.WHEEL_SIZE + 4; i++) {
+            now += 1000L;
+            ticker.getValue().run();
+        }
+        assertThat(cache.size()).isEqualTo(1);
+
+        now += 1000L;
+        ticker.getValue().run();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedDecision() throws Exception {
+        cache.getValue("a", decision(Long.MAX_VALUE));
+        cache.getValue("b", decision(Long.MAX_VALUE));
+        cache.getValue("a", decision(Long.MAX_VALUE));
+        cache.getValue("c", decision(Long.MAX_VALUE));
+        cache.getValue("a", decision(Long.MAX_VALUE));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(evaluations).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotKeepFailedEvaluations() throws Exception {
+        Callable<Promise<JsonValue, ResourceException>> failure =
+                new Callable<Promise<JsonValue, ResourceException>>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> call() throws Exception {
+                        return new NotFoundException().asPromise();
+                    }
+                };
+        cache.getValue("a", failure);
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldKeepDecisionWithInvalidTtlForMaxExpiration() throws Exception {
+        Callable<Promise<JsonValue, ResourceException>> evaluation =
+                new Callable<Promise<JsonValue, ResourceException>>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> call() throws Exception {
+                        evaluations++;
+                        return newResultPromise(json(object(field("ttl", "soon"))));
+                    }
+                };
+        assertThat(cache.getValue("a", evaluation).get().get("ttl").asString()).isEqualTo("soon");
+        cache.getValue("a", evaluation);
+        assertThat(evaluations).isEqualTo(1);
+
+        now += 60000L;
+        ticker.getValue().run();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotKeepEvaluationsFailingWithRuntimeException() throws Exception {
+        final PromiseImpl<JsonValue, ResourceException> pending = PromiseImpl.create();
+        Callable<Promise<JsonValue, ResourceException>> evaluation =
+                new Callable<Promise<JsonValue, ResourceException>>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> call() throws Exception {
+                        return pending;
+                    }
+                };
+        Promise<JsonValue, ResourceException> promise = cache.getValue("a", evaluation);
+        pending.handleRuntimeException(new IllegalStateException("boom"));
+
+        assertThat(promise.isDone()).isTrue();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldShareConcurrentEvaluations() throws Exception {
+        final PromiseImpl<JsonValue, ResourceException> pending = PromiseImpl.create();
+        Callable<Promise<JsonValue, ResourceException>> evaluation =
+                new Callable<Promise<JsonValue, ResourceException>>() {
+                    @Override
+                    public Promise<JsonValue, ResourceException> call() throws Exception {
+                        evaluations++;
+                        return pending;
+                    }
+                };
+        Promise<JsonValue, ResourceException> first = cache.getValue("a", evaluation);
+        Promise<JsonValue, ResourceException> second = cache.getValue("a", evaluation);
+        pending.handleResult(json(object(field("ttl", 1000L))));
+
+        assertThat(first.get().get("ttl").asLong()).isEqualTo(1000L);
+        assertThat(second.get().get("ttl").asLong()).isEqualTo(1000L);
+        assertThat(evaluations).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldStopExpirationTaskWhenCleared() throws Exception {
+        cache.getValue("a", decision(Long.MAX_VALUE));
+
+        cache.clear();
+
+        assertThat(cache.size()).isEqualTo(0);
+        verify(future).cancel(false);
+    }
+
+    private Callable<Promise<JsonValue, ResourceException>> decision(final long ttl) {
+        return new Callable<Promise<JsonValue, ResourceException>>() {
+            @Override
+            public Promise<JsonValue, ResourceException> call() throws Exception {
+                evaluations++;
+                return newResultPromise(json(object(field("ttl", ttl))));
+            }
+        };
+    }
+}
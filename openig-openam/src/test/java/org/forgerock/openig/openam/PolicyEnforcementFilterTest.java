@@ -449,6 +449,30 @@ public class PolicyEnforcementFilterTest {
         verify(next, times(3)).handle(attributesContext, resourceRequest);
     }
 
+    @Test
+    public void shouldIgnoreQueryString() throws Exception {
+        // Given
+        final PolicyEnforcementFilter filter = buildPolicyEnforcementFilter();
+        filter.setIgnoreQuery(true);
+
+        when(next.handle(any(Context.class), any(Request.class)))
+            .thenReturn(newResponsePromise(displayResourceResponse()));
+
+        // When
+        final Response first = filter.filter(attributesContext,
+                                             new Request().setMethod("GET").setUri(RESOURCE_URI + "?size=small"),
+                                             next).get();
+        final Response second = filter.filter(attributesContext,
+                                              new Request().setMethod("GET").setUri(RESOURCE_URI + "?size=large"),
+                                              next).get();
+
+        // Then
+        assertThat(first.getStatus()).isEqualTo(OK);
+        assertThat(second.getStatus()).isEqualTo(OK);
+        // The decision requested for the resource without query is reused
+        verify(amHandler).handle(any(Context.class), any(Request.class));
+    }
+
     @DataProvider
     private static Object[][] givenAndExpectedKey() {
         return new Object[][] {
@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.openam;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newActionResponse;
+import static org.forgerock.util.promise.Promises.newResultPromise;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.Promise;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PolicyEvaluationBatcherTest {
+
+    @Mock
+    private RequestHandler requestHandler;
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @Mock
+    private ScheduledFuture<Object> timer;
+
+    @Captor
+    private ArgumentCaptor<Runnable> task;
+
+    private final List<JsonValue> evaluated = new ArrayList<>();
+
+    private Context context;
+
+    private PolicyEvaluationBatcher batcher;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        evaluated.clear();
+        context = new RootContext();
+        when(executor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(new Answer<ScheduledFuture<Object>>() {
+                    @Override
+                    public ScheduledFuture<Object> answer(final InvocationOnMock invocation) throws Throwable {
+                        return timer;
+                    }
+                });
+        when(requestHandler.handleAction(any(Context.class), any(ActionRequest.class)))
+                .thenAnswer(new Answer<Promise<ActionResponse, ResourceException>>() {
+                    @Override
+                    public Promise<ActionResponse, ResourceException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        JsonValue content = ((ActionRequest) invocation.getArguments()[1]).getContent();
+                        evaluated.add(content);
+                        JsonValue decisions = json(array());
+                        for (JsonValue resource : content.get("resources")) {
+                            decisions.add(object(field("resource", resource.asString()),
+                                                 field("actions", object(field("GET", true)))));
+                        }
+                        return newResultPromise(newActionResponse(decisions));
+                    }
+                });
+        batcher = new PolicyEvaluationBatcher(requestHandler, "/policies", "evaluate", executor, 3, 5L);
+    }
+
+    @Test
+    public void shouldEvaluateResourcesOfSameSubjectTogether() throws Exception {
+        Promise<JsonValue, ResourceException> first = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        Promise<JsonValue, ResourceException> second = batcher.evaluate(context, evaluation("bjensen", "/b"));
+        assertThat(first.isDone()).isFalse();
+
+        Promise<JsonValue, ResourceException> third = batcher.evaluate(context, evaluation("bjensen", "/c"));
+
+        assertThat(evaluated).hasSize(1);
+        assertThat(evaluated.get(0).get("resources").asList(String.class)).containsExactly("/a", "/b", "/c");
+        assertThat(first.get().get("resource").asString()).isEqualTo("/a");
+        assertThat(second.get().get("resource").asString()).isEqualTo("/b");
+        assertThat(third.get().get("resource").asString()).isEqualTo("/c");
+        verify(timer).cancel(false);
+    }
+
+    @Test
+    public void shouldSendIncompleteBatchOnceDelayIsElapsed() throws Exception {
+        Promise<JsonValue, ResourceException> promise = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        verify(executor).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+
+        task.getValue().run();
+
+        assertThat(evaluated).hasSize(1);
+        assertThat(promise.get().get("resource").asString()).isEqualTo("/a");
+    }
+
+    @Test
+    public void shouldNotMixSubjects() throws Exception {
+        batcher.evaluate(context, evaluation("bjensen", "/a"));
+        batcher.evaluate(context, evaluation("scarter", "/a"));
+        batcher.evaluate(context, evaluation("bjensen", "/b"));
+
+        assertThat(evaluated).isEmpty();
+        verify(timer, never()).cancel(false);
+    }
+
+    @Test
+    public void shouldShareDecisionOfSameResource() throws Exception {
+        Promise<JsonValue, ResourceException> first = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        Promise<JsonValue, ResourceException> second = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        verify(executor).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+
+        task.getValue().run();
+
+        assertThat(evaluated.get(0).get("resources").asList(String.class)).containsExactly("/a");
+        assertThat(first.get().get("resource").asString()).isEqualTo("/a");
+        assertThat(second.get().get("resource").asString()).isEqualTo("/a");
+    }
+
+    @Test
+    public void shouldFailWaitingEvaluationsOnMalformedDecisions() throws Exception {
+        // Stubbed with doReturn, as the default answer expects a request
+        doReturn(newResultPromise(newActionResponse(json(object(field("resource", "/a"))))))
+                .when(requestHandler).handleAction(any(Context.class), any(ActionRequest.class));
+        Promise<JsonValue, ResourceException> promise = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        verify(executor).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+
+        task.getValue().run();
+
+        assertThat(promise.isDone()).isTrue();
+        try {
+            promise.getOrThrow();
+            fail("Expected an InternalServerErrorException");
+        } catch (InternalServerErrorException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldFailWaitingEvaluationsOnRuntimeException() throws Exception {
+        doThrow(new IllegalStateException("boom"))
+                .when(requestHandler).handleAction(any(Context.class), any(ActionRequest.class));
+        Promise<JsonValue, ResourceException> promise = batcher.evaluate(context, evaluation("bjensen", "/a"));
+        verify(executor).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+
+        task.getValue().run();
+
+        try {
+            promise.getOrThrow();
+            fail("Expected an InternalServerErrorException");
+        } catch (InternalServerErrorException e) {
+            assertThat(e.getCause()).hasMessage("boom");
+        }
+    }
+
+    private static JsonValue evaluation(final String subject, final String resource) {
+        return json(object(field("resources", array(resource)),
+                           field("subject", object(field("ssoToken", subject))),
+                           field("application", "myApplication")));
+    }
+}
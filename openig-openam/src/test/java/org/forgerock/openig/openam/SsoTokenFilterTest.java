@@ -17,6 +17,7 @@
 package org.forgerock.openig.openam;
 
 import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Status.BAD_GATEWAY;
@@ -24,10 +25,14 @@ import static org.forgerock.http.protocol.Status.BAD_REQUEST;
 import static org.forgerock.http.protocol.Status.INTERNAL_SERVER_ERROR;
 import static org.forgerock.http.protocol.Status.OK;
 import static org.forgerock.http.protocol.Status.UNAUTHORIZED;
+import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.util.time.Duration.duration;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -37,14 +42,25 @@ import static org.mockito.Mockito.when;
 import java.net.URI;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -67,6 +83,15 @@ public class SsoTokenFilterTest {
     @Mock
     static Handler authenticate, next;
 
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @Mock
+    private ScheduledFuture<Object> future;
+
+    @Captor
+    private ArgumentCaptor<Runnable> renewal;
+
     @BeforeMethod
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
@@ -81,6 +106,14 @@ public class SsoTokenFilterTest {
                                            field("message", "Access denied"))));
         authenticated = new Response(OK);
         authenticated.setEntity(AUTHENTICATION_SUCCEEDED);
+
+        when(executor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(new Answer<ScheduledFuture<Object>>() {
+                    @Override
+                    public ScheduledFuture<Object> answer(final InvocationOnMock invocation) throws Throwable {
+                        return future;
+                    }
+                });
     }
 
     @SuppressWarnings("unused")
@@ -281,6 +314,153 @@ public class SsoTokenFilterTest {
         assertThat(secondRequest.getHeaders().containsKey(DEFAULT_HEADER_NAME)).isTrue();
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldRecoverFromMalformedAuthenticationResponse() throws Exception {
+        // Given
+        final Response malformed = new Response(OK);
+        malformed.setEntity(array("tokenId"));
+        when(authenticate.handle(same(context), any(Request.class)))
+                         .thenReturn(newResponsePromise(malformed), newResponsePromise(authenticated));
+        when(next.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        final SsoTokenFilter filter = buildSsoTokenFilter();
+
+        // When
+        final Response failureResponse = filter.filter(context, new Request().setUri(APP_URI), next).get();
+        final Response successfulResponse = filter.filter(context, request, next).get();
+
+        // Then
+        assertThat(failureResponse.getStatus()).isEqualTo(INTERNAL_SERVER_ERROR);
+        assertThat(successfulResponse.getStatus()).isEqualTo(OK);
+        verify(authenticate, times(2)).handle(same(context), any(Request.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldAuthenticateOnceWhenConcurrentRequestsAreRejected() throws Exception {
+        // Given
+        final PromiseImpl<Response, NeverThrowsException> first = PromiseImpl.create();
+        final PromiseImpl<Response, NeverThrowsException> second = PromiseImpl.create();
+        when(authenticate.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(authenticated));
+        when(next.handle(same(context), any(Request.class))).thenReturn(first,
+                                                                 second,
+                                                                 newResponsePromise(new Response(OK)));
+        final SsoTokenFilter filter = buildSsoTokenFilter();
+
+        // When
+        final Promise<Response, NeverThrowsException> firstResponse = filter.filter(context, request, next);
+        final Promise<Response, NeverThrowsException> secondResponse = filter.filter(context, request, next);
+        first.handleResult(unauthorized);
+        second.handleResult(unauthorized);
+
+        // Then
+        assertThat(firstResponse.get().getStatus()).isEqualTo(OK);
+        assertThat(secondResponse.get().getStatus()).isEqualTo(OK);
+        verify(authenticate, times(2)).handle(same(context), any(Request.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldRenewTokenInBackground() throws Exception {
+        // Given
+        final Response renewed = new Response(OK);
+        renewed.setEntity(object(field("tokenId", "renewed")));
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticated), newResponsePromise(renewed));
+        when(next.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        final SsoTokenFilter filter = buildRenewingSsoTokenFilter(duration("10 minutes"));
+
+        // When
+        filter.filter(context, request, next).get();
+        verify(executor).schedule(renewal.capture(), eq(600000L), eq(MILLISECONDS));
+        renewal.getValue().run();
+        filter.filter(context, request, next).get();
+
+        // Then
+        verify(authenticate, times(2)).handle(any(Context.class), any(Request.class));
+        verify(next, times(2)).handle(same(context), any(Request.class));
+        assertThat(request.getHeaders().get(DEFAULT_HEADER_NAME).getFirstValue()).isEqualTo("renewed");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shouldLogoutRenewedTokenAfterDelay() throws Exception {
+        // Given
+        final Response renewed = new Response(OK);
+        renewed.setEntity(object(field("tokenId", "renewed")));
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticated),
+                            newResponsePromise(renewed),
+                            newResponsePromise(new Response(OK)));
+        when(next.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        final SsoTokenFilter filter = buildRenewingSsoTokenFilter(duration("10 minutes"));
+        filter.filter(context, request, next).get();
+        verify(executor).schedule(renewal.capture(), eq(600000L), eq(MILLISECONDS));
+        renewal.getValue().run();
+
+        // When
+        verify(executor).schedule(renewal.capture(), eq(SsoTokenFilter.LOGOUT_DELAY), eq(MILLISECONDS));
+        renewal.getValue().run();
+
+        // Then
+        ArgumentCaptor<Request> sent = ArgumentCaptor.forClass(Request.class);
+        verify(authenticate, times(3)).handle(any(Context.class), sent.capture());
+        Request logout = sent.getAllValues().get(2);
+        assertThat(logout.getUri().toString()).endsWith("/json/sessions/?_action=logout");
+        assertThat(logout.getHeaders().get(DEFAULT_HEADER_NAME).getFirstValue()).isEqualTo(VALID_TOKEN);
+    }
+
+    @Test
+    public void shouldRenewTokenBeforeSessionExpires() throws Exception {
+        // Given
+        when(authenticate.handle(any(Context.class), any(Request.class))).thenAnswer(
+                new Answer<Promise<Response, NeverThrowsException>>() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        Request sent = (Request) invocation.getArguments()[1];
+                        String uri = sent.getUri().toString();
+                        Response response = new Response(OK);
+                        if (uri.endsWith("?_action=getTimeLeft")) {
+                            assertThat(sent.getHeaders().get(DEFAULT_HEADER_NAME).getFirstValue())
+                                    .isEqualTo(VALID_TOKEN);
+                            response.setEntity(object(field("maxtime", 7200)));
+                        } else if (uri.endsWith("?_action=getMaxIdle")) {
+                            response.setEntity(object(field("maxidletime", 30)));
+                        } else {
+                            response.setEntity(AUTHENTICATION_SUCCEEDED);
+                        }
+                        return newResponsePromise(response);
+                    }
+                });
+        when(next.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+
+        // When
+        buildRenewingSsoTokenFilter(null).filter(context, request, next).get();
+
+        // Then: three quarters of the max idle time, shorter than the session's time left
+        verify(executor).schedule(any(Runnable.class), eq(1350000L), eq(MILLISECONDS));
+    }
+
+    @Test
+    public void shouldNotRenewTokenWhenStopped() throws Exception {
+        // Given
+        when(authenticate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(newResponsePromise(authenticated));
+        when(next.handle(same(context), any(Request.class))).thenReturn(newResponsePromise(new Response(OK)));
+        final SsoTokenFilter filter = buildRenewingSsoTokenFilter(duration("10 minutes"));
+        filter.filter(context, request, next).get();
+        verify(executor).schedule(renewal.capture(), eq(600000L), eq(MILLISECONDS));
+
+        // When
+        filter.stop();
+        renewal.getValue().run();
+
+        // Then
+        verify(future).cancel(false);
+        verify(authenticate).handle(any(Context.class), any(Request.class));
+    }
+
     class Worker implements Runnable {
         private Runnable action;
         private final CountDownLatch started;
@@ -313,6 +493,17 @@ public class SsoTokenFilterTest {
         }
     }
 
+    private SsoTokenFilter buildRenewingSsoTokenFilter(final Duration renewal) throws Exception {
+        return new SsoTokenFilter(authenticate,
+                                  OPENAM_URI,
+                                  null,
+                                  null,
+                                  "bjensen",
+                                  "hifalutin",
+                                  executor,
+                                  renewal);
+    }
+
     private static SsoTokenFilter buildSsoTokenFilter() throws Exception {
         return buildSsoTokenFilter(null);
     }
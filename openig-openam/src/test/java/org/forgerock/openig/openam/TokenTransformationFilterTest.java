@@ -16,6 +16,7 @@
 
 package org.forgerock.openig.openam;
 
+import static java.lang.String.format;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.entry;
 import static org.forgerock.http.io.IO.newTemporaryStorage;
@@ -32,6 +33,10 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import javax.xml.bind.DatatypeConverter;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -50,10 +55,16 @@ import org.forgerock.openig.heap.Name;
 import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -87,9 +98,21 @@ public class TokenTransformationFilterTest {
 
     private HeapImpl heap;
 
+    @Mock
+    private TimeService time;
+
+    private long now;
+
     @BeforeMethod
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        now = 1000000000000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
         attributesContext = new AttributesContext(new RootContext());
         context = attributesContext;
         attributesContext.getAttributes().put("id_token", ID_TOKEN_JWT);
@@ -181,6 +204,23 @@ public class TokenTransformationFilterTest {
         verify(next).handle(context, request);
     }
 
+    @Test
+    public void shouldBindResponseOfStsInTargetExpression() throws Exception {
+        when(transformationHandler.handle(eq(context), any(Request.class)))
+                .thenReturn(newResponsePromise(ISSUED_TOKEN_RESPONSE));
+
+        TokenTransformationFilter filter =
+                new TokenTransformationFilter(transformationHandler,
+                                              new URI("http://openam.example.com/"),
+                                              Expression.valueOf("${attributes.id_token}",
+                                                                 String.class),
+                                              LeftValueExpression.valueOf("${attributes[response.status.reasonPhrase]}",
+                                                                          String.class));
+        filter.filter(context, new Request(), next);
+
+        assertThat(attributesContext.getAttributes()).contains(entry("OK", SAML_ASSERTIONS));
+    }
+
     @Test
     public void shouldFailWhenNoTransformedTokenIsIssued() throws Exception {
         when(transformationHandler.handle(eq(context), any(Request.class)))
@@ -202,4 +242,87 @@ public class TokenTransformationFilterTest {
         // Original request has not been forwarded
         verifyZeroInteractions(next);
     }
+
+    @Test
+    public void shouldReuseIssuedToken() throws Exception {
+        when(transformationHandler.handle(eq(context), any(Request.class))).thenAnswer(issuedToken(SAML_ASSERTIONS));
+
+        TokenTransformationFilter filter = cachingFilter();
+        filter.filter(context, new Request(), next);
+        attributesContext.getAttributes().remove("saml_token");
+        filter.filter(context, new Request(), next);
+
+        verify(transformationHandler).handle(eq(context), any(Request.class));
+        assertThat(attributesContext.getAttributes()).contains(entry("saml_token", SAML_ASSERTIONS));
+        verify(next, times(2)).handle(eq(context), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotReuseIssuedTokenAfterItsValidity() throws Exception {
+        String assertion = format("<saml:Conditions NotBefore=\"%s\" NotOnOrAfter=\"%s\"/>",
+                                  DatatypeConverter.printDateTime(calendar(now)),
+                                  DatatypeConverter.printDateTime(calendar(now + 60000L)));
+        when(transformationHandler.handle(eq(context), any(Request.class))).thenAnswer(issuedToken(assertion));
+
+        TokenTransformationFilter filter = cachingFilter();
+        filter.filter(context, new Request(), next);
+        now += 30000L;
+        filter.filter(context, new Request(), next);
+        now += 30000L;
+        filter.filter(context, new Request(), next);
+
+        verify(transformationHandler, times(2)).handle(eq(context), any(Request.class));
+    }
+
+    @Test
+    public void shouldNotReuseFailedTransformations() throws Exception {
+        when(transformationHandler.handle(eq(context), any(Request.class)))
+                .thenReturn(newResponsePromise(ERROR_RESPONSE));
+
+        TokenTransformationFilter filter = cachingFilter();
+        filter.filter(context, new Request(), next);
+        filter.filter(context, new Request(), next);
+
+        verify(transformationHandler, times(2)).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(next);
+    }
+
+    @Test
+    public void shouldNotReuseMalformedTransformations() throws Exception {
+        when(transformationHandler.handle(eq(context), any(Request.class)))
+                .thenReturn(newResponsePromise(new Response(Status.OK).setEntity(object(field("issued_token", 42)))));
+
+        TokenTransformationFilter filter = cachingFilter();
+        Promise<Response, NeverThrowsException> first = filter.filter(context, new Request(), next);
+        filter.filter(context, new Request(), next);
+
+        assertThat(first.isDone()).isTrue();
+        verify(transformationHandler, times(2)).handle(eq(context), any(Request.class));
+        verifyZeroInteractions(next);
+    }
+
+    private TokenTransformationFilter cachingFilter() throws Exception {
+        return new TokenTransformationFilter(transformationHandler,
+                                             new URI("http://openam.example.com/"),
+                                             Expression.valueOf("${attributes.id_token}", String.class),
+                                             LeftValueExpression.valueOf("${attributes.saml_token}", String.class),
+                                             time,
+                                             Duration.duration("5 minutes"),
+                                             10);
+    }
+
+    private static Answer<Promise<Response, NeverThrowsException>> issuedToken(final String token) {
+        return new Answer<Promise<Response, NeverThrowsException>>() {
+            @Override
+            public Promise<Response, NeverThrowsException> answer(final InvocationOnMock invocation) throws Throwable {
+                return newResponsePromise(new Response(Status.OK).setEntity(object(field("issued_token", token))));
+            }
+        };
+    }
+
+    private static Calendar calendar(final long millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
 }
@@ -0,0 +1,284 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.readJson;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.util.Json;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A {@link ShareStore} keeping each share in its own JSON file, in a directory that may be shared between several
+ * OpenIG instances (a network file system for instance).
+ *
+ * <p>The shares are written and deleted in the background, in the order of the calls: {@link #loadAll()} merges the
+ * pending changes with the content of the directory, so that they are never missed. A share file is written under
+ * a temporary name, then atomically renamed, so that the other instances never read a partially written share.
+ *
+ * <pre>
+ *     {@code {
+ *         "name": "ShareStore",
+ *         "type": "FileShareStore",
+ *         "config": {
+ *           "directory": "/var/openig/uma/shares",
+ *           "executor": "ScheduledExecutorService"
+ *         }
+ *       }
+ *     }
+ * </pre>
+ *
+ * The {@code directory} is created if needed. The {@code executor} writing the files defaults to the
+ * {@literal ScheduledExecutorService} heap object.
+ */
+public class FileShareStore implements ShareStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileShareStore.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModules(new Json.JsonValueModule());
+
+    private static final String SUFFIX = ".json";
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(OWNER_READ, OWNER_WRITE);
+
+    private static final FileFilter SHARE_FILES = new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+            return file.isFile() && file.getName().endsWith(SUFFIX);
+        }
+    };
+
+    private final File directory;
+    private final Executor executor;
+
+    /** The shares not written yet, by identifier: a {@code null} share is being removed. Guarded by itself. */
+    private final Map<String, JsonValue> pending = new HashMap<>();
+
+    /** The writes to perform, in order. Guarded by itself. */
+    private final Queue<Runnable> writes = new ArrayDeque<>();
+    private boolean writing;
+
+    /**
+     * Creates a new file share store.
+     *
+     * @param directory
+     *         the directory holding the share files
+     * @param executor
+     *         the executor writing the share files
+     */
+    public FileShareStore(final File directory, final Executor executor) {
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    @Override
+    public List<JsonValue> loadAll() throws IOException {
+        Map<String, JsonValue> shares = new LinkedHashMap<>();
+        File[] files = directory.listFiles(SHARE_FILES);
+        if (files == null && directory.exists()) {
+            throw new IOException("Cannot list the shares of " + directory);
+        }
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    shares.put(id(file), readJson(file.toURI().toURL()));
+                } catch (IOException e) {
+                    // The share may have been removed by another instance in the meantime
+                    logger.warn("Ignoring the share file {}", file, e);
+                }
+            }
+        }
+        synchronized (pending) {
+            for (Map.Entry<String, JsonValue> change : pending.entrySet()) {
+                if (change.getValue() == null) {
+                    shares.remove(change.getKey());
+                } else {
+                    shares.put(change.getKey(), change.getValue());
+                }
+            }
+        }
+        return new ArrayList<>(shares.values());
+    }
+
+    @Override
+    public void save(final String id, final JsonValue share) {
+        submit(id, share, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(id, share);
+                } catch (IOException e) {
+                    logger.error("Cannot write the share {} in {}", id, directory, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String id) {
+        submit(id, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.deleteIfExists(file(id).toPath());
+                } catch (IOException e) {
+                    logger.error("Cannot delete the share {} from {}", id, directory, e);
+                }
+            }
+        });
+    }
+
+    private void submit(final String id, final JsonValue share, final Runnable write) {
+        synchronized (pending) {
+            pending.put(id, share);
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } finally {
+                    synchronized (pending) {
+                        // A later change of the same share is still pending
+                        if (pending.get(id) == share) {
+                            pending.remove(id);
+                        }
+                    }
+                }
+            }
+        };
+        synchronized (writes) {
+            writes.add(task);
+            if (writing) {
+                return;
+            }
+            writing = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /** Performs the writes one at a time, so that the changes of a share are applied in order. */
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable next;
+                synchronized (writes) {
+                    next = writes.poll();
+                    if (next == null) {
+                        drained = true;
+                        writing = false;
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                } catch (RuntimeException e) {
+                    logger.error("Cannot apply a change of the shares in {}", directory, e);
+                }
+            }
+        } finally {
+            if (!drained) {
+                // Let the next change start a new drain
+                synchronized (writes) {
+                    writing = false;
+                }
+            }
+        }
+    }
+
+    private void write(final String id, final JsonValue share) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        // The shares hold the PAT of their resource owner: only the owner of the process can read them
+        Path temporary;
+        if (directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            temporary = Files.createTempFile(directory.toPath(), id, ".tmp", asFileAttribute(OWNER_ONLY));
+        } else {
+            temporary = Files.createTempFile(directory.toPath(), id, ".tmp");
+        }
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary, UTF_8)) {
+                writer.write(MAPPER.writeValueAsString(share.getObject()));
+            }
+            Files.move(temporary, file(id).toPath(), ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private File file(final String id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static String id(final File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    /**
+     * Creates and initializes a file share store in a heap environment.
+     */
+    public static class Heaplet extends GenericHeaplet {
+
+        @Override
+        public Object create() throws HeapException {
+            File directory = new File(config.get("directory").as(evaluatedWithHeapProperties()).required().asString());
+            ScheduledExecutorService executor = config.get("executor")
+                                                      .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                      .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            return new FileShareStore(directory, executor);
+        }
+    }
+}
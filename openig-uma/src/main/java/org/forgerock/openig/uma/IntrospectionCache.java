@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static org.forgerock.openig.util.StringUtil.sha256;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.util.LruCache;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A size-bounded cache of the RPT introspection responses, sparing a call to the introspection endpoint for each
+ * request presenting the same RPT.
+ * <p>
+ * The responses are keyed by the SHA-256 digests of the PAT used to introspect the RPT and of the RPT, so that the
+ * tokens themselves are not kept in memory, and a response is only reused for the resource server that obtained it. An
+ * introspection response is kept for {@literal expiration} ms, but never after the RPT expires (as given by its
+ * {@literal exp} member). At most {@literal maxSize} responses are kept, the least recently used ones being evicted
+ * first.
+ */
+class IntrospectionCache {
+
+    private final TimeService time;
+    private final long expiration;
+    private final LruCache<String, JsonValue> entries;
+
+    /**
+     * Creates a new introspection cache.
+     *
+     * @param time
+     *         the time service
+     * @param expiration
+     *         the maximum duration (ms) an introspection response is kept
+     * @param maxSize
+     *         the maximum number of introspection responses kept
+     */
+    IntrospectionCache(final TimeService time, final long expiration, final int maxSize) {
+        this.time = time;
+        this.expiration = expiration;
+        this.entries = new LruCache<>(time, maxSize);
+    }
+
+    /**
+     * Returns the cached introspection response of the given RPT.
+     *
+     * @param pat
+     *         the protection API token used to introspect the RPT
+     * @param rpt
+     *         the requesting party token
+     * @return the cached introspection response, or {@code null} if there is none
+     */
+    JsonValue get(final String pat, final String rpt) {
+        return entries.get(key(pat, rpt));
+    }
+
+    /**
+     * Caches the introspection response of the given RPT.
+     *
+     * @param pat
+     *         the protection API token used to introspect the RPT
+     * @param rpt
+     *         the requesting party token
+     * @param introspection
+     *         the introspection response
+     */
+    void put(final String pat, final String rpt, final JsonValue introspection) {
+        long now = time.now();
+        long expiresAt = expiration >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + expiration;
+        JsonValue exp = introspection.get("exp");
+        if (exp.isNumber()) {
+            expiresAt = Math.min(expiresAt, exp.asLong() * 1000L);
+        }
+        entries.put(key(pat, rpt), introspection, expiresAt);
+    }
+
+    /** The digests have a fixed length: their concatenation is not ambiguous. */
+    private static String key(final String pat, final String rpt) {
+        return sha256(pat) + sha256(rpt);
+    }
+
+    /**
+     * Returns the number of cached introspection responses.
+     *
+     * @return the number of cached introspection responses
+     */
+    int size() {
+        return entries.size();
+    }
+}
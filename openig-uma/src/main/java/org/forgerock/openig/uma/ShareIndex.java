@@ -0,0 +1,145 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable index of the {@link Share}s, finding the share protecting a path without trying each of them in turn.
+ * <p>
+ * The shares whose pattern is a plain path (the most common case, as shares are created from the path of the shared
+ * resource) are looked up by path. The other patterns are compiled together into a single pattern alternating all of
+ * them, each wrapped into a capturing group: the first participating group identifies the matching share. The shares
+ * with a longer literal prefix come first, so that the most specific share wins. Patterns using back references can't
+ * be combined, as they would no longer refer to the same groups: they are tried in turn, last.
+ * <p>
+ * The index is rebuilt when shares are created or removed, and published as a whole, so that lookups need no lock.
+ */
+final class ShareIndex {
+
+    /** An index without any share. */
+    static final ShareIndex EMPTY = new ShareIndex(Collections.<Share>emptyList());
+
+    private static final Pattern METACHARACTERS = Pattern.compile("[\\\\\\[\\](){}.*+?^$|]");
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    /** The shares, by pattern. */
+    private final Map<String, Share> shares = new HashMap<>();
+    /** The shares whose pattern is a plain path, by path. */
+    private final Map<String, Share> literals = new HashMap<>();
+    /** Null if there is no share to combine. */
+    private final Pattern combined;
+    /** The index of the group wrapping each combined pattern, and the share it belongs to. */
+    private final List<Integer> groups = new ArrayList<>();
+    private final List<Share> owners = new ArrayList<>();
+    /** The shares whose pattern can't be combined. */
+    private final List<Share> others = new ArrayList<>();
+
+    /**
+     * Builds an index of the given shares.
+     *
+     * @param shares
+     *         the shares to index
+     */
+    ShareIndex(final Collection<Share> shares) {
+        List<Share> expressions = new ArrayList<>();
+        for (Share share : shares) {
+            String pattern = share.getPattern().pattern();
+            this.shares.put(pattern, share);
+            if (!METACHARACTERS.matcher(pattern).find()) {
+                literals.put(pattern, share);
+            } else if (BACK_REFERENCE.matcher(pattern).find()) {
+                others.add(share);
+            } else {
+                expressions.add(share);
+            }
+        }
+        Collections.sort(expressions, new Comparator<Share>() {
+            @Override
+            public int compare(final Share first, final Share second) {
+                return literalPrefix(second) - literalPrefix(first);
+            }
+        });
+
+        StringBuilder alternation = new StringBuilder();
+        int group = 0;
+        for (Share share : expressions) {
+            if (alternation.length() > 0) {
+                alternation.append('|');
+            }
+            alternation.append('(').append(share.getPattern().pattern()).append(')');
+            groups.add(++group);
+            owners.add(share);
+            group += share.getPattern().matcher("").groupCount();
+        }
+        this.combined = group > 0 ? Pattern.compile(alternation.toString()) : null;
+    }
+
+    private static int literalPrefix(final Share share) {
+        Matcher matcher = METACHARACTERS.matcher(share.getPattern().pattern());
+        return matcher.find() ? matcher.start() : share.getPattern().pattern().length();
+    }
+
+    /**
+     * Returns the share protecting the given path.
+     *
+     * @param path
+     *         the path of the requested resource
+     * @return the share protecting the given path, or {@code null} if there is none
+     */
+    Share find(final String path) {
+        Share share = literals.get(path);
+        if (share != null) {
+            return share;
+        }
+        if (combined != null) {
+            Matcher matcher = combined.matcher(path);
+            if (matcher.matches()) {
+                for (int i = 0; i < groups.size(); i++) {
+                    if (matcher.start(groups.get(i)) != -1) {
+                        return owners.get(i);
+                    }
+                }
+            }
+        }
+        for (Share other : others) {
+            if (other.getPattern().matcher(path).matches()) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a share with the given pattern is indexed.
+     *
+     * @param pattern
+     *         the pattern of the share
+     * @return {@code true} if a share with the given pattern is indexed
+     */
+    boolean contains(final String pattern) {
+        return shares.containsKey(pattern);
+    }
+}
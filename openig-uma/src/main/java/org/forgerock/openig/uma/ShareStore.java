@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * A {@link ShareStore} keeps the shares created by an {@link UmaSharingService}, so that they survive restarts and
+ * can be read by the other OpenIG instances protecting the same resources.
+ *
+ * <p>Shares are given as JSON objects, with the following members:
+ * <pre>
+ *     {@code {
+ *         "id": "3a1a3d57-3b7b-4b27-9d7b-55c1b6ed5f2b",
+ *         "pattern": "/alice/allergies",
+ *         "resource_set": { "_id": "e99016bb-b8f1-4e42-b83c-b0be67baf0fd0", ... },
+ *         "pat": "1/fFAGRNJru1FTz70BzhT3Zg"
+ *       }
+ *     }
+ * </pre>
+ *
+ * <p>As they hold the Protection Api Tokens (PAT) of the resource owners, stored shares must be protected
+ * accordingly.
+ */
+public interface ShareStore {
+
+    /**
+     * Returns all the stored shares, including the ones whose writing is still in progress.
+     *
+     * @return all the stored shares
+     * @throws IOException
+     *         if the shares cannot be read
+     */
+    List<JsonValue> loadAll() throws IOException;
+
+    /**
+     * Stores the given share. The share may be written after this method returns.
+     *
+     * @param id
+     *         the share identifier
+     * @param share
+     *         the JSON representation of the share
+     */
+    void save(String id, JsonValue share);
+
+    /**
+     * Removes the share with the given identifier. The share may be removed after this method returns.
+     *
+     * @param id
+     *         the share identifier
+     */
+    void remove(String id);
+}
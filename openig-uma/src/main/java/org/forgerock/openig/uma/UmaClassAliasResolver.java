@@ -30,6 +30,7 @@ public class UmaClassAliasResolver implements ClassAliasResolver {
     static {
         ALIASES.put("UmaService", UmaSharingService.class);
         ALIASES.put("UmaFilter", UmaResourceServerFilter.class);
+        ALIASES.put("FileShareStore", FileShareStore.class);
     }
 
     @Override
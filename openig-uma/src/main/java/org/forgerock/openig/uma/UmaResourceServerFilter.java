@@ -17,6 +17,7 @@
 package org.forgerock.openig.uma;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.http.header.WarningHeader.MISCELLANEOUS_WARNING;
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
@@ -24,6 +25,8 @@ import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.Utils.closeSilently;
 
@@ -51,6 +54,8 @@ import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,11 +69,19 @@ import org.slf4j.LoggerFactory;
  *         "type": "UmaFilter",
  *         "config": {
  *           "protectionApiHandler": "HttpsClient",
- *           "umaService": "UmaService"
+ *           "umaService": "UmaService",
+ *           "cacheExpiration": "1 minute",
+ *           "cacheMaxSize": 10000
  *         }
  *       }
  *     }
  * </pre>
+ *
+ * <p>When {@code cacheExpiration} is set (defaults to {@literal zero}, no cache), the RPT introspection responses are
+ * cached for that duration, but never after the RPT expires; at most {@code cacheMaxSize} (defaults to 10000)
+ * responses are kept. The scopes are still verified against the requested resource on each request. Note that an RPT
+ * revoked by the authorization server is still accepted until its cached introspection response expires: keep
+ * {@code cacheExpiration} short.
  */
 public class UmaResourceServerFilter extends GenericHeapObject implements Filter {
 
@@ -77,6 +90,7 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
     private final UmaSharingService umaService;
     private final Handler protectionApiHandler;
     private final String realm;
+    private final IntrospectionCache cache;
 
     /**
      * Constructs a new UmaResourceServerFilter.
@@ -91,9 +105,29 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
     public UmaResourceServerFilter(final UmaSharingService umaService,
                                    final Handler protectionApiHandler,
                                    final String realm) {
+        this(umaService, protectionApiHandler, realm, null);
+    }
+
+    /**
+     * Constructs a new UmaResourceServerFilter.
+     *
+     * @param umaService
+     *         core service to use
+     * @param protectionApiHandler
+     *         protectionApiHandler to use when interacting with introspection and permission request endpoints
+     * @param realm
+     *         UMA realm name (can be {@code null})
+     * @param cache
+     *         cache of the RPT introspection responses (can be {@code null})
+     */
+    UmaResourceServerFilter(final UmaSharingService umaService,
+                            final Handler protectionApiHandler,
+                            final String realm,
+                            final IntrospectionCache cache) {
         this.umaService = umaService;
         this.protectionApiHandler = protectionApiHandler;
         this.realm = realm;
+        this.cache = cache;
     }
 
     @Override
@@ -109,8 +143,14 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
             // Is there an RPT ?
             if (rpt != null) {
                 // Validate the token
+                VerifyScopesAsyncFunction verifyScopes =
+                        new VerifyScopesAsyncFunction(share, context, request, next, rpt);
+                JsonValue introspection = cache != null ? cache.get(share.getPAT(), rpt) : null;
+                if (introspection != null) {
+                    return verifyScopes.verify(introspection);
+                }
                 return introspectToken(context, rpt, share.getPAT())
-                        .thenAsync(new VerifyScopesAsyncFunction(share, context, request, next));
+                        .thenAsync(verifyScopes);
             }
 
             // Error case: ask for a ticket
@@ -206,20 +246,22 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
         private final Context context;
         private final Request request;
         private final Handler next;
+        private final String rpt;
 
         public VerifyScopesAsyncFunction(final Share share,
                                          final Context context,
                                          final Request request,
-                                         final Handler next) {
+                                         final Handler next,
+                                         final String rpt) {
             this.share = share;
             this.context = context;
             this.request = request;
             this.next = next;
+            this.rpt = rpt;
         }
 
         @Override
         public Promise<Response, NeverThrowsException> apply(final Response token) {
-
             if (Status.OK == token.getStatus()) {
                 JsonValue value = null;
                 try {
@@ -228,34 +270,52 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
                     logger.debug("Cannot extract JSON from token introspection response, possibly malformed JSON", e);
                     return newResponsePromise(newInternalServerError(e));
                 }
-                if (value.get("active").asBoolean()) {
-                    // Got a valid token
-                    // Need to verify embed scopes against required scopes
-                    ShareTemplate template = share.getTemplate();
-                    Set<String> required = template.getScopes(request);
-                    if (getScopes(value, share.getResourceSetId()).containsAll(required)) {
-                        // All required scopes are present, continue the request processing
-                        return next.handle(context, request);
-                    }
+                if (cache != null && value.get("active").defaultTo(false).asBoolean()) {
+                    // Only active tokens are cached, their permissions are verified on each request
+                    cache.put(share.getPAT(), rpt, value);
+                }
+                return verify(value);
+            }
 
-                    logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
-                    // Not all of the required scopes are in the token
-                    // Error case: ask for a ticket, append an error code
-                    return ticket(context, share, request)
-                            .thenOnResult(new ResultHandler<Response>() {
-                                @Override
-                                public void handleResult(final Response response) {
-
-                                    // Update the Authorization header with a proper error code
-                                    String authorization = response.getHeaders()
-                                                                   .getFirst("WWW-Authenticate");
-                                    if (authorization != null) {
-                                        authorization = authorization.concat(", error=\"insufficient_scope\"");
-                                        response.getHeaders().put("WWW-Authenticate", authorization);
-                                    }
-                                }
-                            });
+            // Error case: ask for a ticket
+            return ticket(context, share, request);
+        }
+
+        /**
+         * Verifies that the RPT described by the given introspection response grants the required scopes.
+         *
+         * @param value
+         *         the RPT introspection response
+         * @return an asynchronous {@link Response}
+         */
+        Promise<Response, NeverThrowsException> verify(final JsonValue value) {
+            if (value.get("active").asBoolean()) {
+                // Got a valid token
+                // Need to verify embed scopes against required scopes
+                ShareTemplate template = share.getTemplate();
+                Set<String> required = template.getScopes(request);
+                if (getScopes(value, share.getResourceSetId()).containsAll(required)) {
+                    // All required scopes are present, continue the request processing
+                    return next.handle(context, request);
                 }
+
+                logger.trace("Insufficient scopes encoded in RPT, asking for a new ticket");
+                // Not all of the required scopes are in the token
+                // Error case: ask for a ticket, append an error code
+                return ticket(context, share, request)
+                        .thenOnResult(new ResultHandler<Response>() {
+                            @Override
+                            public void handleResult(final Response response) {
+
+                                // Update the Authorization header with a proper error code
+                                String authorization = response.getHeaders()
+                                                               .getFirst("WWW-Authenticate");
+                                if (authorization != null) {
+                                    authorization = authorization.concat(", error=\"insufficient_scope\"");
+                                    response.getHeaders().put("WWW-Authenticate", authorization);
+                                }
+                            }
+                        });
             }
 
             // Error case: ask for a ticket
@@ -325,7 +385,21 @@ public class UmaResourceServerFilter extends GenericHeapObject implements Filter
                                               .as(requiredHeapObject(heap, UmaSharingService.class));
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
             String realm = config.get("realm").as(evaluatedWithHeapProperties()).defaultTo("uma").asString();
-            return new UmaResourceServerFilter(service, handler, realm);
+            Duration expiration = config.get("cacheExpiration")
+                                        .as(evaluatedWithHeapProperties())
+                                        .defaultTo("zero")
+                                        .as(duration());
+            IntrospectionCache cache = null;
+            if (!expiration.isZero()) {
+                TimeService time = heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
+                cache = new IntrospectionCache(time != null ? time : TimeService.SYSTEM,
+                                               expiration.isUnlimited() ? Long.MAX_VALUE : expiration.to(MILLISECONDS),
+                                               config.get("cacheMaxSize")
+                                                     .as(evaluatedWithHeapProperties())
+                                                     .defaultTo(10000)
+                                                     .asInteger());
+            }
+            return new UmaResourceServerFilter(service, handler, realm, cache);
         }
     }
 }
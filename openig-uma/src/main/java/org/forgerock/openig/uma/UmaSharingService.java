@@ -17,14 +17,18 @@
 package org.forgerock.openig.uma;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.listOf;
 import static org.forgerock.json.JsonValueFunctions.pattern;
 import static org.forgerock.json.JsonValueFunctions.uri;
 import static org.forgerock.json.resource.Resources.newHandler;
 import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.optionalHeapObject;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.promise.Promises.newExceptionPromise;
 
@@ -37,8 +41,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.forgerock.http.Handler;
 import org.forgerock.http.MutableUri;
@@ -55,6 +62,7 @@ import org.forgerock.services.context.Context;
 import org.forgerock.util.Function;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -100,6 +108,20 @@ import org.slf4j.LoggerFactory;
  *     }
  * </pre>
  *
+ * <p>The shares are only kept in memory, unless a {@code shareStore} (see {@link ShareStore}) is given: the shares
+ * are then loaded from that store on startup and written to it on creation and removal. As the store may be used by
+ * several OpenIG instances, the shares are reloaded from it every {@code shareStoreReloadInterval} (defaults to 30
+ * seconds, {@literal zero} to only load them on startup), using the {@code executor} (defaults to the
+ * {@literal ScheduledExecutorService} heap object).
+ *
+ * <pre>
+ *     {@code {
+ *         "shareStore": "ShareStore",
+ *         "shareStoreReloadInterval": "30 seconds"
+ *       }
+ *     }
+ * </pre>
+ *
  * Along with the {@code UmaService}, a REST endpoint is deployed in OpenIG's API namespace:
  * {@literal /openig/api/system/objects/../objects/[name-of-the-uma-service-object]/share}.
  * The dotted segment depends on your deployment (like which RouterHandler hosts the route that
@@ -107,9 +129,16 @@ import org.slf4j.LoggerFactory;
  */
 public class UmaSharingService {
 
+    private static final Logger logger = LoggerFactory.getLogger(UmaSharingService.class);
+
     private final List<ShareTemplate> templates = new ArrayList<>();
+
+    /** Guarded by itself. */
     private final Map<String, Share> shares = new TreeMap<>();
 
+    /** Rebuilt each time the shares change, so that requests look shares up without locking. */
+    private volatile ShareIndex index = ShareIndex.EMPTY;
+
     private final Handler protectionApiHandler;
     private final URI authorizationServer;
     private final URI introspectionEndpoint;
@@ -117,6 +146,7 @@ public class UmaSharingService {
     private final URI resourceSetEndpoint;
     private final String clientId;
     private final String clientSecret;
+    private final ShareStore store;
 
     /**
      * Constructs an UmaSharingService bound to the given {@code authorizationServer} and dedicated to protect resource
@@ -141,6 +171,35 @@ public class UmaSharingService {
                              final String clientId,
                              final String clientSecret)
             throws URISyntaxException {
+        this(protectionApiHandler, templates, authorizationServer, clientId, clientSecret, null);
+    }
+
+    /**
+     * Constructs an UmaSharingService bound to the given {@code authorizationServer} and dedicated to protect resource
+     * sets described by the given {@code templates}, keeping its shares in the given {@code store}.
+     *
+     * @param protectionApiHandler
+     *         used to call the resource set endpoint
+     * @param templates
+     *         list of resource descriptions
+     * @param authorizationServer
+     *         Bound UMA Authorization Server
+     * @param clientId
+     *         OAuth 2.0 Client identifier
+     * @param clientSecret
+     *         OAuth 2.0 Client secret
+     * @param store
+     *         where the shares are kept (can be {@code null})
+     * @throws URISyntaxException
+     *         when the authorization server URI cannot be "normalized" (trailing '/' append if required)
+     */
+    public UmaSharingService(final Handler protectionApiHandler,
+                             final List<ShareTemplate> templates,
+                             final URI authorizationServer,
+                             final String clientId,
+                             final String clientSecret,
+                             final ShareStore store)
+            throws URISyntaxException {
         this.protectionApiHandler = protectionApiHandler;
         this.templates.addAll(templates);
         this.authorizationServer = appendTrailingSlash(authorizationServer);
@@ -150,6 +209,7 @@ public class UmaSharingService {
         this.resourceSetEndpoint = authorizationServer.resolve("oauth2/resource_set");
         this.clientId = clientId;
         this.clientSecret = clientSecret;
+        this.store = store;
     }
 
     /**
@@ -206,7 +266,13 @@ public class UmaSharingService {
                             try {
                                 JsonValue value = json(response.getEntity().getJson());
                                 Share share = new Share(matching, value, Pattern.compile(resourcePath), pat);
-                                shares.put(share.getId(), share);
+                                synchronized (shares) {
+                                    shares.put(share.getId(), share);
+                                    index = new ShareIndex(shares.values());
+                                    if (store != null) {
+                                        store.save(share.getId(), asJson(share));
+                                    }
+                                }
                                 return share;
                             } catch (IOException e) {
                                 throw new UmaException("Can't read the CREATE resource_set response", e);
@@ -238,12 +304,7 @@ public class UmaSharingService {
     }
 
     private boolean isShared(final String path) {
-        for (Share share : shares.values()) {
-            if (path.equals(share.getPattern().toString())) {
-                return true;
-            }
-        }
-        return false;
+        return index.contains(path);
     }
 
     private Promise<Response, NeverThrowsException> createResourceSet(final Context context,
@@ -267,10 +328,66 @@ public class UmaSharingService {
     }
 
     private String uniqueName(final String name) {
-        // TODO this is a workaround until we have persistence on the OpenIG side
+        // The resource sets are not deleted from the AS when their share is removed: a resource shared again needs
+        // another name
         return format("%s @ %d", name, System.currentTimeMillis());
     }
 
+    /**
+     * Replaces the shares with the ones of the share store, if any.
+     *
+     * @throws IOException
+     *         if the shares cannot be read from the store
+     */
+    void loadShares() throws IOException {
+        if (store == null) {
+            return;
+        }
+        // Holding the lock while reading the store, so that the shares created or removed meanwhile are not lost
+        synchronized (shares) {
+            Map<String, Share> loaded = new TreeMap<>();
+            for (JsonValue stored : store.loadAll()) {
+                String id = stored.get("id").asString();
+                Share share = id != null ? shares.get(id) : null;
+                if (share == null) {
+                    share = fromJson(stored);
+                }
+                if (share != null) {
+                    loaded.put(share.getId(), share);
+                }
+            }
+            shares.clear();
+            shares.putAll(loaded);
+            index = new ShareIndex(shares.values());
+        }
+    }
+
+    private static JsonValue asJson(final Share share) {
+        return json(object(field("id", share.getId()),
+                           field("pattern", share.getPattern().pattern()),
+                           field("resource_set", share.getResourceSet().getObject()),
+                           field("pat", share.getPAT())));
+    }
+
+    private Share fromJson(final JsonValue stored) {
+        try {
+            String path = stored.get("pattern").required().asString();
+            ShareTemplate template = findShareTemplate(path);
+            if (template == null) {
+                logger.warn("Ignoring the stored share of {}: no template matches this resource anymore", path);
+                return null;
+            }
+            return new Share(stored.get("id").required().asString(),
+                             template,
+                             stored.get("resource_set").required(),
+                             Pattern.compile(path),
+                             stored.get("pat").required().asString());
+        } catch (JsonValueException | PatternSyntaxException e) {
+            logger.warn("Ignoring the malformed stored share {}", stored.get("id").asString(), e);
+            return null;
+        }
+    }
+
     /**
      * Find a {@link Share}.
      *
@@ -287,16 +404,8 @@ public class UmaSharingService {
         //   request: /alice/allergies/pollen
         //   shares: [ /alice.*, /alice/allergies, /alice/allergies/pollen ]
         // expects the last share to be returned
-        Share matching = null;
         String path = request.getUri().getPath();
-        int longest = -1;
-        for (Share share : shares.values()) {
-            Matcher matcher = share.getPattern().matcher(path);
-            if (matcher.matches() && matcher.end() > longest) {
-                matching = share;
-                longest = matcher.end();
-            }
-        }
+        Share matching = index.find(path);
 
         // Fail-fast if no shares matched
         if (matching == null) {
@@ -315,7 +424,16 @@ public class UmaSharingService {
      * @return the removed Share instance if found, {@code null} otherwise.
      */
     public Share removeShare(String shareId) {
-        return shares.remove(shareId);
+        synchronized (shares) {
+            Share removed = shares.remove(shareId);
+            if (removed != null) {
+                index = new ShareIndex(shares.values());
+                if (store != null) {
+                    store.remove(shareId);
+                }
+            }
+            return removed;
+        }
     }
 
     /**
@@ -323,7 +441,9 @@ public class UmaSharingService {
      * @return a copy of the list of currently managed shares.
      */
     public Set<Share> listShares() {
-        return new HashSet<>(shares.values());
+        synchronized (shares) {
+            return new HashSet<>(shares.values());
+        }
     }
 
     /**
@@ -356,7 +476,9 @@ public class UmaSharingService {
      * @return the {@link Share} with the given {@code id} (or {@code null} if none was found).
      */
     public Share getShare(final String id) {
-        return shares.get(id);
+        synchronized (shares) {
+            return shares.get(id);
+        }
     }
 
     /**
@@ -382,18 +504,23 @@ public class UmaSharingService {
 
         private static final Logger logger = LoggerFactory.getLogger(Heaplet.class);
 
+        private ShareStore store;
+        private ScheduledFuture<?> reload;
+
         @Override
         public Object create() throws HeapException {
             Handler handler = config.get("protectionApiHandler").required().as(requiredHeapObject(heap, Handler.class));
             URI uri = config.get("authorizationServerUri").as(evaluatedWithHeapProperties()).required().as(uri());
             String clientId = config.get("clientId").as(evaluatedWithHeapProperties()).required().asString();
             String clientSecret = config.get("clientSecret").as(evaluatedWithHeapProperties()).required().asString();
+            store = config.get("shareStore").as(optionalHeapObject(heap, ShareStore.class));
             try {
                 UmaSharingService service = new UmaSharingService(handler,
                                                                   createResourceTemplates(),
                                                                   uri,
                                                                   clientId,
-                                                                  clientSecret);
+                                                                  clientSecret,
+                                                                  store);
                 // register admin endpoint
                 Handler httpHandler = newHttpHandler(newHandler(new ShareCollectionProvider(service)));
                 EndpointRegistry.Registration share = endpointRegistry().register("share", httpHandler);
@@ -405,6 +532,53 @@ public class UmaSharingService {
             }
         }
 
+        @Override
+        public void start() throws HeapException {
+            if (store == null) {
+                return;
+            }
+            UmaSharingService service = (UmaSharingService) object;
+            try {
+                service.loadShares();
+            } catch (IOException e) {
+                throw new HeapException("Cannot load the shares from the share store", e);
+            }
+            scheduleReload(service);
+        }
+
+        private void scheduleReload(final UmaSharingService service) throws HeapException {
+            Duration interval = config.get("shareStoreReloadInterval")
+                                      .as(evaluatedWithHeapProperties())
+                                      .defaultTo("30 seconds")
+                                      .as(duration());
+            if (interval.isZero() || interval.isUnlimited()) {
+                return;
+            }
+            ScheduledExecutorService executor = config.get("executor")
+                                                      .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                      .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            long delay = interval.to(MILLISECONDS);
+            reload = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        service.loadShares();
+                    } catch (IOException | RuntimeException e) {
+                        // Keep the current shares, and the task scheduled
+                        logger.warn("Cannot reload the shares from the share store", e);
+                    }
+                }
+            }, delay, delay, MILLISECONDS);
+        }
+
+        @Override
+        public void destroy() {
+            if (reload != null) {
+                reload.cancel(false);
+            }
+            super.destroy();
+        }
+
         private List<ShareTemplate> createResourceTemplates() throws HeapException {
             return config.get("resources")
                          .required()
@@ -0,0 +1,165 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class FileShareStoreTest {
+
+    private File directory;
+
+    /** Writes submitted to the store, run on demand. */
+    private final List<Runnable> writes = new ArrayList<>();
+
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            writes.add(command);
+        }
+    };
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = new File(Files.createTempDirectory("shares").toFile(), "store");
+        writes.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(directory.toPath());
+        }
+        Files.delete(directory.getParentFile().toPath());
+    }
+
+    @Test
+    public void shouldLoadNothingFromMissingDirectory() throws Exception {
+        assertThat(new FileShareStore(directory, executor).loadAll()).isEmpty();
+    }
+
+    @Test
+    public void shouldWriteSharesInTheBackground() throws Exception {
+        FileShareStore store = new FileShareStore(directory, executor);
+        store.save("a", share("a", "/alice"));
+        store.save("b", share("b", "/bob"));
+
+        // Pending writes are visible from this store only
+        assertThat(ids(store.loadAll())).containsOnly("a", "b");
+        assertThat(new FileShareStore(directory, executor).loadAll()).isEmpty();
+
+        runWrites();
+        assertThat(ids(new FileShareStore(directory, executor).loadAll())).containsOnly("a", "b");
+        assertThat(directory.list()).containsOnly("a.json", "b.json");
+    }
+
+    @Test
+    public void shouldRemoveShares() throws Exception {
+        FileShareStore store = new FileShareStore(directory, executor);
+        store.save("a", share("a", "/alice"));
+        store.save("b", share("b", "/bob"));
+        runWrites();
+
+        store.remove("a");
+        assertThat(ids(store.loadAll())).containsOnly("b");
+
+        runWrites();
+        assertThat(ids(new FileShareStore(directory, executor).loadAll())).containsOnly("b");
+    }
+
+    @Test
+    public void shouldApplyChangesOfAShareInOrder() throws Exception {
+        FileShareStore store = new FileShareStore(directory, executor);
+        store.save("a", share("a", "/alice"));
+        store.remove("a");
+        store.save("a", share("a", "/alice/allergies"));
+
+        assertThat(writes).hasSize(1);
+        runWrites();
+
+        List<JsonValue> shares = new FileShareStore(directory, executor).loadAll();
+        assertThat(shares).hasSize(1);
+        assertThat(shares.get(0).get("pattern").asString()).isEqualTo("/alice/allergies");
+    }
+
+    @Test
+    public void shouldWriteSharesReadableByTheOwnerOnly() throws Exception {
+        FileShareStore store = new FileShareStore(directory, executor);
+        store.save("a", share("a", "/alice"));
+        runWrites();
+
+        Path file = new File(directory, "a.json").toPath();
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertThat(Files.getPosixFilePermissions(file)).containsOnly(OWNER_READ, OWNER_WRITE);
+        }
+    }
+
+    @Test
+    public void shouldKeepWritingAfterAFailedWrite() throws Exception {
+        FileShareStore store = new FileShareStore(directory, executor);
+        // Jackson cannot serialize this share
+        store.save("a", json(object(field("id", "a"), field("pattern", new Object()))));
+        runWrites();
+
+        store.save("b", share("b", "/bob"));
+        assertThat(writes).hasSize(1);
+        runWrites();
+        assertThat(directory.list()).containsOnly("b.json");
+    }
+
+    private void runWrites() {
+        while (!writes.isEmpty()) {
+            writes.remove(0).run();
+        }
+    }
+
+    private static List<String> ids(final List<JsonValue> shares) {
+        List<String> ids = new ArrayList<>();
+        for (JsonValue share : shares) {
+            ids.add(share.get("id").asString());
+        }
+        return ids;
+    }
+
+    private static JsonValue share(final String id, final String pattern) {
+        return json(object(field("id", id),
+                           field("pattern", pattern),
+                           field("resource_set", object(field("_id", "rs-" + id))),
+                           field("pat", "pat")));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.util.time.TimeService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class IntrospectionCacheTest {
+
+    @Mock
+    private TimeService time;
+
+    private long now;
+
+    private IntrospectionCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        now = 1000000L;
+        when(time.now()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(final InvocationOnMock invocation) throws Throwable {
+                return now;
+            }
+        });
+        cache = new IntrospectionCache(time, 60000L, 2);
+    }
+
+    @Test
+    public void shouldKeepIntrospectionForItsExpiration() throws Exception {
+        JsonValue introspection = json(object(field("active", true)));
+        cache.put("pat", "rpt", introspection);
+
+        now += 59000L;
+        assertThat(cache.get("pat", "rpt")).isSameAs(introspection);
+        assertThat(cache.get("pat", "other")).isNull();
+
+        now += 1000L;
+        assertThat(cache.get("pat", "rpt")).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotReuseIntrospectionObtainedWithAnotherPat() throws Exception {
+        cache.put("pat", "rpt", json(object(field("active", true))));
+
+        assertThat(cache.get("other", "rpt")).isNull();
+    }
+
+    @Test
+    public void shouldNotKeepIntrospectionAfterTheRptExpires() throws Exception {
+        cache.put("pat", "rpt", json(object(field("active", true), field("exp", (now + 10000L) / 1000L))));
+
+        now += 10000L;
+        assertThat(cache.get("pat", "rpt")).isNull();
+
+        cache.put("pat", "expired", json(object(field("active", true), field("exp", now / 1000L))));
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedIntrospection() throws Exception {
+        cache.put("pat", "a", json(object()));
+        cache.put("pat", "b", json(object()));
+        cache.get("pat", "a");
+        cache.put("pat", "c", json(object()));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("pat", "a")).isNotNull();
+        assertThat(cache.get("pat", "b")).isNull();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.uma;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.regex.Pattern;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ShareIndexTest {
+
+    @Test
+    public void shouldPreferPlainPathToPattern() throws Exception {
+        Share any = share("/alice.*");
+        Share allergies = share("/alice/allergies");
+        Share pollen = share("/alice/allergies/pollen");
+        ShareIndex index = new ShareIndex(asList(any, allergies, pollen));
+
+        assertThat(index.find("/alice/allergies/pollen")).isSameAs(pollen);
+        assertThat(index.find("/alice/allergies")).isSameAs(allergies);
+        assertThat(index.find("/alice/prescriptions")).isSameAs(any);
+    }
+
+    @Test
+    public void shouldPreferPatternWithLongestLiteralPrefix() throws Exception {
+        Share any = share("/alice.*");
+        Share allergies = share("/alice/(allergies|intolerances)/.*");
+        Share pollen = share("/alice/allergies/pollen[0-9]+");
+        ShareIndex index = new ShareIndex(asList(any, allergies, pollen));
+
+        assertThat(index.find("/alice/allergies/pollen42")).isSameAs(pollen);
+        assertThat(index.find("/alice/intolerances/gluten")).isSameAs(allergies);
+        assertThat(index.find("/alice")).isSameAs(any);
+        assertThat(index.find("/bob")).isNull();
+    }
+
+    @Test
+    public void shouldMatchPatternsWithBackReferences() throws Exception {
+        Share twice = share("/(alice|bob)/\\1");
+        ShareIndex index = new ShareIndex(asList(share("/(carol|dave)/.*"), twice));
+
+        assertThat(index.find("/bob/bob")).isSameAs(twice);
+        assertThat(index.find("/bob/alice")).isNull();
+    }
+
+    @Test
+    public void shouldKnowSharedPatterns() throws Exception {
+        ShareIndex index = new ShareIndex(asList(share("/alice/allergies"), share("/bob.*")));
+
+        assertThat(index.contains("/alice/allergies")).isTrue();
+        assertThat(index.contains("/bob.*")).isTrue();
+        assertThat(index.contains("/bob")).isFalse();
+        assertThat(ShareIndex.EMPTY.find("/alice/allergies")).isNull();
+    }
+
+    private static Share share(final String pattern) {
+        return new Share(null, json(object()), Pattern.compile(pattern), "pat");
+    }
+}
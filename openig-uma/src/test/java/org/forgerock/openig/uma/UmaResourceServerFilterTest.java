@@ -27,6 +27,7 @@ import static org.forgerock.json.JsonValue.object;
 import static org.hamcrest.CoreMatchers.allOf;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -43,6 +44,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.el.ExpressionException;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.time.TimeService;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -115,6 +117,24 @@ public class UmaResourceServerFilterTest {
         verify(terminal).handle(null, request);
     }
 
+    @Test
+    public void shouldIntrospectCachedRptOnce() throws Exception {
+        request.getHeaders().put("Authorization", format("Bearer %s", RPT));
+        mockTokenIntrospection(new Response(Status.OK).setEntity(validToken()));
+        UmaResourceServerFilter filter = new UmaResourceServerFilter(service,
+                                                                     handler,
+                                                                     null,
+                                                                     new IntrospectionCache(TimeService.SYSTEM,
+                                                                                            60000L,
+                                                                                            10));
+
+        filter.filter(null, request, terminal);
+        filter.filter(null, request, terminal);
+
+        verify(handler).handle(any(Context.class), any(Request.class));
+        verify(terminal, times(2)).handle(null, request);
+    }
+
     private static Object validToken() {
         return object(field("active", true),
                       field("permissions", array(object(field("resource_set_id", RS_ID),
@@ -27,9 +27,13 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.JsonValue.set;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -72,6 +76,8 @@ public class UmaSharingServiceTest {
 
     @Mock
     private Handler handler;
+    @Mock
+    private ShareStore store;
     private UmaSharingService service;
 
     @BeforeMethod
@@ -218,4 +224,64 @@ public class UmaSharingServiceTest {
 
         assertThat(response.getStatus()).isEqualTo(Status.CREATED);
     }
+
+    @Test
+    public void shouldLoadSharesFromStore() throws Exception {
+        ShareTemplate template = new ShareTemplate(Pattern.compile("/alice/allergies.*"),
+                                                   singletonList(
+                                                           createAction("http://uma.example.com/allergies#read")));
+        UmaSharingService service = new UmaSharingService(handler,
+                                                          singletonList(template),
+                                                          new URI("http://localhost"),
+                                                          "uma",
+                                                          "uma",
+                                                          store);
+        when(store.loadAll()).thenReturn(Arrays.asList(storedShare("a", "/alice/allergies"),
+                                                       storedShare("b", "/bob/heart")));
+
+        service.loadShares();
+
+        assertThat(service.listShares()).hasSize(1);
+        Request request = new Request();
+        request.setUri("http://localhost/alice/allergies");
+        Share share = service.findShare(request);
+        assertThat(share.getId()).isEqualTo("a");
+        assertThat(share.getTemplate()).isSameAs(template);
+        assertThat(share.getResourceSetId()).isEqualTo("rs-a");
+        assertThat(share.getPAT()).isEqualTo(PAT);
+
+        // Shares removed by another instance are removed here too
+        when(store.loadAll()).thenReturn(Collections.<JsonValue>emptyList());
+        service.loadShares();
+        assertThat(service.listShares()).isEmpty();
+    }
+
+    @Test
+    public void shouldWriteSharesToStore() throws Exception {
+        Response response = new Response(Status.CREATED);
+        response.setEntity(RESOURCE_SET_CREATED);
+        when(handler.handle(any(Context.class), any(Request.class))).thenReturn(newResponsePromise(response));
+        ShareTemplate template = new ShareTemplate(Pattern.compile("/alice/allergies.*"),
+                                                   singletonList(
+                                                           createAction("http://uma.example.com/allergies#read")));
+        UmaSharingService service = new UmaSharingService(handler,
+                                                          singletonList(template),
+                                                          new URI("http://localhost"),
+                                                          "uma",
+                                                          "uma",
+                                                          store);
+
+        Share share = service.createShare(new RootContext(), "/alice/allergies", PAT).getOrThrow();
+        service.removeShare(share.getId());
+
+        verify(store).save(eq(share.getId()), any(JsonValue.class));
+        verify(store).remove(share.getId());
+    }
+
+    private static JsonValue storedShare(final String id, final String pattern) {
+        return json(object(field("id", id),
+                           field("pattern", pattern),
+                           field("resource_set", object(field("_id", "rs-" + id))),
+                           field("pat", PAT)));
+    }
 }
@@ -33,6 +33,7 @@ import java.util.jar.JarInputStream;
 import org.forgerock.http.io.IO;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openig.config.Environment;
+import org.forgerock.openig.handler.resources.CachingResourceSet;
 import org.forgerock.openig.handler.resources.FileResourceSet;
 import org.forgerock.openig.handler.resources.ResourceHandler;
 import org.forgerock.openig.handler.resources.ResourceSet;
@@ -47,6 +48,8 @@ class UiAdminHttpApplication extends AdminHttpApplication {
 
     private static final Logger logger = LoggerFactory.getLogger(UiAdminHttpApplication.class);
 
+    private final CachingResourceSet resources;
+
     /**
      * Construct a {@link UiAdminHttpApplication}.
      *
@@ -79,16 +82,27 @@ class UiAdminHttpApplication extends AdminHttpApplication {
             }
         }
 
-        // Create a FileResourceSet around that directory
-        ResourceSet resources = new FileResourceSet(unpack);
+        // Create a FileResourceSet around that directory, cached in memory until the directory changes
+        resources = new CachingResourceSet(new FileResourceSet(unpack)).watch(unpack);
 
         // Create a ResourceHandler
-        ResourceHandler handler = new ResourceHandler(singletonList(resources), singletonList("index.html"));
+        ResourceHandler handler = new ResourceHandler(singletonList((ResourceSet) resources),
+                                                      singletonList("index.html"));
 
         // Register it in the router under the /openig/studio path
         getOpenIGRouter().addRoute(requestUriMatcher(STARTS_WITH, "studio"), handler);
     }
 
+    @Override
+    public void stop() {
+        try {
+            resources.close();
+        } catch (IOException e) {
+            logger.warn("Can't stop watching the UI resources", e);
+        }
+        super.stop();
+    }
+
     private static void unpackFileEntry(final JarInputStream jar, final JarEntry entry, final File destination)
             throws IOException {
         // Prepare parent directories if they do not exists yet